@@ -566,8 +566,10 @@ public class BluetoothStressTest implements IDeviceTest, IRemoteTest {
                 }
             }
             if (mLogHcidump) {
+                InputStreamSource hcidumpSource = mHcidumpCommand.getHcidump();
                 listener.testLog(String.format("%s_hcidump", t.mTestName), LogDataType.TEXT,
-                        mHcidumpCommand.getHcidump());
+                        hcidumpSource);
+                hcidumpSource.cancel();
                 mHcidumpCommand.stopHcidump();
                 mHcidumpCommand = null;
             }
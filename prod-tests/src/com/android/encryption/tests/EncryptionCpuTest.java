@@ -221,6 +221,7 @@ public class EncryptionCpuTest implements IDeviceTest, IRemoteTest {
             }
             InputStreamSource bugreport = mTestDevice.getBugreport();
             listener.testLog(String.format("bugreport_%s", mKey), LogDataType.BUGREPORT, bugreport);
+            bugreport.cancel();
             if (mUseCpuStats) {
                 addCpuStats(mCpuStatsCollector);
             } else {
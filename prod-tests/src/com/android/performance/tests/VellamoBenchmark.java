@@ -20,9 +20,11 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.StreamUtil;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -98,9 +100,10 @@ public class VellamoBenchmark implements IDeviceTest, IRemoteTest {
                     "com.quicinc.vellamo");
 
             // get the logcat and parse
+            InputStreamSource logcatSource = device.getLogcat();
             BufferedReader logcat =
                     new BufferedReader(
-                            new InputStreamReader(device.getLogcat().createInputStream()));
+                            new InputStreamReader(logcatSource.createInputStream()));
             try {
                 while ((line = logcat.readLine()) != null) {
                     // filter only output from the Vellamo process
@@ -127,6 +130,9 @@ public class VellamoBenchmark implements IDeviceTest, IRemoteTest {
                 }
             } catch (IOException e) {
                 CLog.e(e);
+            } finally {
+                StreamUtil.close(logcat);
+                logcatSource.cancel();
             }
         }
 
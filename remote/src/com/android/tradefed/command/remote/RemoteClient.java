@@ -43,6 +43,7 @@ public class RemoteClient implements IRemoteClient {
     private final Socket mSocket;
     private final PrintWriter mWriter;
     private final BufferedReader mReader;
+    private long mNextRequestId = 0;
 
     /**
      * Initialize the {@RemoteClient}, and instruct it to connect to the given port
@@ -79,6 +80,7 @@ public class RemoteClient implements IRemoteClient {
     private synchronized <T> T sendOperation(RemoteOperation<T> op) throws RemoteException {
        try {
            Log.d(TAG, String.format("Sending remote op %s", op.getType()));
+           op.setRequestId(mNextRequestId++);
            mWriter.println(op.pack());
            String response = mReader.readLine();
            if (response == null) {
@@ -27,6 +27,15 @@ abstract class RemoteOperation<T> {
     private static final String VERSION = "version";
     /** represents json key for error message */
     static final String ERROR = "error";
+    /**
+     * represents json key for the optional id of a request, echoed in its response so that
+     * pipelined requests and responses can be correlated
+     */
+    static final String REQUEST_ID = "requestId";
+    /** the request id of operations without one */
+    static final long NO_REQUEST_ID = -1;
+
+    private long mRequestId = NO_REQUEST_ID;
 
     static final int CURRENT_PROTOCOL_VERSION = 8;
 
@@ -95,14 +104,45 @@ abstract class RemoteOperation<T> {
                     throw new RemoteException(String.format("unknown remote command '%s'", data));
 
             }
+            rc.setRequestId(jsonData.optLong(REQUEST_ID, NO_REQUEST_ID));
             return rc;
         } catch (JSONException e) {
             throw new RemoteException(e);
         }
     }
 
+    /**
+     * Gets the request id of the operation found in given data, without fully parsing it.
+     *
+     * @param data the data to parse
+     * @return the request id, or {@link #NO_REQUEST_ID} if the data has none or is invalid
+     */
+    static long getRequestId(String data) {
+        try {
+            return new JSONObject(data).optLong(REQUEST_ID, NO_REQUEST_ID);
+        } catch (JSONException e) {
+            return NO_REQUEST_ID;
+        }
+    }
+
     protected abstract OperationType getType();
 
+    /**
+     * Gets the id of this request.
+     *
+     * @return the request id, or {@link #NO_REQUEST_ID} if not set
+     */
+    long getRequestId() {
+        return mRequestId;
+    }
+
+    /**
+     * Sets the id of this request, to be echoed in its response.
+     */
+    void setRequestId(long requestId) {
+        mRequestId = requestId;
+    }
+
     /**
      * Returns the RemoteCommand data in its wire protocol format
      */
@@ -120,6 +160,9 @@ abstract class RemoteOperation<T> {
         try {
             j.put(VERSION, protocolVersion);
             j.put(TYPE, getType().toString());
+            if (mRequestId != NO_REQUEST_ID) {
+                j.put(REQUEST_ID, mRequestId);
+            }
             packIntoJson(j);
         } catch (JSONException e) {
             throw new RemoteException("Failed to serialize RemoteOperation", e);
@@ -153,6 +196,12 @@ abstract class RemoteOperation<T> {
      */
     T unpackResponseFromString(String response) throws JSONException, RemoteException {
         JSONObject jsonData = new JSONObject(response);
+        long responseId = jsonData.optLong(REQUEST_ID, NO_REQUEST_ID);
+        if (responseId != NO_REQUEST_ID && responseId != mRequestId) {
+            throw new RemoteException(String.format(
+                    "Received response to request %d while expecting response to request %d",
+                    responseId, mRequestId));
+        }
         if (jsonData.has(ERROR)) {
             throw new RemoteException(jsonData.getString(ERROR));
         }
@@ -19,22 +19,51 @@ import com.android.ddmlib.Log;
 import com.android.tradefed.command.FatalHostError;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Collection;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
 /**
  * A helper class that maintains a local filesystem LRU cache of downloaded files.
+ * <p/>
+ * Concurrent requests for the same remote file share a single download. Cache bookkeeping is
+ * persisted to a checksummed index file in the cache root, so the cache can be rebuilt on startup
+ * without walking the whole directory tree. A missing, truncated or corrupted index is ignored,
+ * and the cache is rebuilt from the directory contents instead. Eviction runs on a background
+ * thread once the cache grows past its max size, and removes least recently used files until the
+ * cache shrinks below a low watermark. Files that still have live hardlinks, ie copies that were
+ * handed out and not yet deleted, are never evicted.
  */
 public class FileDownloadCache {
 
@@ -42,52 +71,88 @@ public class FileDownloadCache {
 
     private static final char REL_PATH_SEPARATOR = '/';
 
+    /** name of the persisted index file, stored in the cache root */
+    static final String INDEX_FILE_NAME = ".tf_cache_index";
+
+    private static final String INDEX_SEPARATOR = "\t";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** prefix of the first line of the index, which holds the CRC32 of the remaining lines */
+    private static final String INDEX_CHECKSUM_PREFIX = "crc32:";
+
+    /** the min time between index saves triggered by cache hits */
+    private static final long HIT_PERSIST_INTERVAL_MS = 60 * 1000;
+
+    /** the default low watermark, as a percentage of the max cache size */
+    private static final int DEFAULT_LOW_WATERMARK_PERCENT = 80;
+
     /** fixed location of download cache. */
     private final File mCacheRoot;
 
     /**
-     * The map of remote file paths to local files, stored in least-recently-used order.
-     * <p/>
-     * Used for performance reasons. Functionally speaking, this data structure is not needed,
-     * since all info could be obtained from inspecting the filesystem.
+     * The map of remote file paths to cache entries, stored in least-recently-used order.
      */
-    private final Map<String, File> mCacheMap = new LinkedHashMap<String, File>();
+    private final Map<String, CacheEntry> mCacheMap = new LinkedHashMap<String, CacheEntry>();
 
     /** the lock for <var>mCacheMap</var> */
     private final ReentrantLock mCacheMapLock = new ReentrantLock();
 
+    /** the in progress downloads, keyed by remote path */
+    private final ConcurrentMap<String, FutureTask<CacheEntry>> mDownloads =
+            new ConcurrentHashMap<String, FutureTask<CacheEntry>>();
+
+    /** single background thread used for eviction and index persistence */
+    private final ThreadPoolExecutor mMaintenanceExecutor;
+
+    /** flag used to coalesce maintenance requests */
+    private final AtomicBoolean mMaintenancePending = new AtomicBoolean(false);
+
+    /** the last time a cache hit triggered an index save, in ms since epoch */
+    private final AtomicLong mLastHitPersistTime = new AtomicLong(0);
+
+    /** the time this cache was created. Used to distinguish leftover files from new downloads */
+    private final long mCreationTime;
+
     private long mCurrentCacheSize = 0;
 
     /** The approximate maximum allowed size of the local file cache. Default to 20 gig */
     private long mMaxFileCacheSize = 20L * 1024L * 1024L * 1024L;
 
+    private int mLowWatermarkPercent = DEFAULT_LOW_WATERMARK_PERCENT;
+
     /**
-     * Struct for a {@link File} and its remote relative path
+     * A file stored in the cache.
      */
-    private static class FilePair {
-        final String mRelPath;
+    private static class CacheEntry {
+        final String mRemotePath;
         final File mFile;
+        final long mSize;
+        /** the last time this entry was retrieved, in ms since epoch */
+        long mLastAccess;
+        /** the number of callers currently creating a copy of this entry */
+        int mPinCount = 0;
 
-        FilePair(String relPath, File file) {
-            mRelPath = relPath;
+        CacheEntry(String remotePath, File file, long size, long lastAccess) {
+            mRemotePath = remotePath;
             mFile = file;
+            mSize = size;
+            mLastAccess = lastAccess;
         }
     }
 
     /**
-     * A {@link Comparator} for comparing {@link File}s based on {@link File#lastModified()}.
+     * A {@link Comparator} for comparing {@link CacheEntry}s based on last access time.
      */
-    private static class FileTimeComparator implements Comparator<FilePair> {
+    private static class AccessTimeComparator implements Comparator<CacheEntry> {
         @Override
-        public int compare(FilePair o1, FilePair o2) {
-            Long timestamp1 = new Long(o1.mFile.lastModified());
-            Long timestamp2 = o2.mFile.lastModified();
-            return timestamp1.compareTo(timestamp2);
+        public int compare(CacheEntry o1, CacheEntry o2) {
+            return Long.compare(o1.mLastAccess, o2.mLastAccess);
         }
     }
 
     /**
-     * Create a {@link FileDownloadCache}, deleting any previous cache contents from disk.
+     * Create a {@link FileDownloadCache}, loading any previous cache contents from disk.
      * <p/>
      * Assumes that the current process has exclusive access to the <var>cacheRoot</var> directory.
      * <p/>
@@ -95,6 +160,16 @@ public class FileDownloadCache {
      */
     FileDownloadCache(File cacheRoot) {
         mCacheRoot = cacheRoot;
+        mCreationTime = System.currentTimeMillis();
+        mMaintenanceExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "FileDownloadCache-maintenance");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
         if (!mCacheRoot.exists()) {
             Log.d(LOG_TAG, String.format("Creating file cache at %s",
                     mCacheRoot.getAbsolutePath()));
@@ -103,22 +178,44 @@ public class FileDownloadCache {
                         mCacheRoot.getAbsolutePath()));
             }
         } else {
-            Log.d(LOG_TAG, String.format("Building file cache from contents at %s",
-                    mCacheRoot.getAbsolutePath()));
-            // create an unsorted list of all the files in mCacheRoot. Need to create list first
-            // rather than inserting in Map directly because Maps cannot be sorted
-            List<FilePair> cacheEntryList = new LinkedList<FilePair>();
-            addFiles(mCacheRoot, new Stack<String>(), cacheEntryList);
-            // now sort them based on file timestamp, to get them in LRU order
-            Collections.sort(cacheEntryList, new FileTimeComparator());
-            // now insert them into the map
-            for (FilePair cacheEntry : cacheEntryList) {
-                mCacheMap.put(cacheEntry.mRelPath, cacheEntry.mFile);
-                mCurrentCacheSize += cacheEntry.mFile.length();
+            List<CacheEntry> cacheEntryList = loadIndex();
+            boolean indexLoaded = cacheEntryList != null;
+            if (indexLoaded) {
+                Log.d(LOG_TAG, String.format("Loaded file cache index from %s",
+                        mCacheRoot.getAbsolutePath()));
+            } else {
+                Log.d(LOG_TAG, String.format("Building file cache from contents at %s",
+                        mCacheRoot.getAbsolutePath()));
+                cacheEntryList = new LinkedList<CacheEntry>();
+                addFiles(mCacheRoot, new Stack<String>(), cacheEntryList);
             }
-            // this would be an unusual situation, but check if current cache is already too big
-            if (mCurrentCacheSize > getMaxFileCacheSize()) {
-                incrementAndAdjustCache(0);
+            // now sort them based on access time, to get them in LRU order
+            Collections.sort(cacheEntryList, new AccessTimeComparator());
+            mCacheMapLock.lock();
+            try {
+                // now insert them into the map
+                for (CacheEntry cacheEntry : cacheEntryList) {
+                    mCacheMap.put(cacheEntry.mRemotePath, cacheEntry);
+                    mCurrentCacheSize += cacheEntry.mSize;
+                }
+                // this would be an unusual situation, but check if current cache is already too
+                // big
+                if (mCurrentCacheSize > getMaxFileCacheSize()) {
+                    evict(getMaxFileCacheSize());
+                }
+            } finally {
+                mCacheMapLock.unlock();
+            }
+            if (indexLoaded) {
+                // pick up any files that were not recorded in index, eg if process was killed
+                // mid-download. Done in the background so startup is not delayed. Scheduled once
+                // the indexed entries are in the map, so they are not added twice
+                mMaintenanceExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        reconcileWithDisk();
+                    }
+                });
             }
         }
     }
@@ -134,7 +231,7 @@ public class FileDownloadCache {
      * @param cacheEntryList the list of files discovered
      */
     private void addFiles(File dir, Stack<String> relPathSegments,
-            List<FilePair> cacheEntryList) {
+            List<CacheEntry> cacheEntryList) {
 
         File[] fileList = dir.listFiles();
         if (fileList == null) {
@@ -147,13 +244,17 @@ public class FileDownloadCache {
                 addFiles(childFile, relPathSegments, cacheEntryList);
                 relPathSegments.pop();
             } else if (childFile.isFile()) {
+                if (relPathSegments.isEmpty() && childFile.getName().startsWith(INDEX_FILE_NAME)) {
+                    continue;
+                }
                 StringBuffer relPath = new StringBuffer();
                 for (String pathSeg : relPathSegments) {
                     relPath.append(pathSeg);
                     relPath.append(REL_PATH_SEPARATOR);
                 }
                 relPath.append(childFile.getName());
-                cacheEntryList.add(new FilePair(relPath.toString(), childFile));
+                cacheEntryList.add(new CacheEntry(relPath.toString(), childFile,
+                        childFile.length(), childFile.lastModified()));
             } else {
                 Log.w(LOG_TAG, String.format("Unrecognized file type %s in cache",
                         childFile.getAbsolutePath()));
@@ -175,11 +276,22 @@ public class FileDownloadCache {
         mCacheMapLock.unlock();
     }
 
+    /**
+     * Set the size eviction shrinks the cache to once it exceeds its max size, as a percentage of
+     * the max size.
+     */
+    public void setLowWatermarkPercent(int percent) {
+        mCacheMapLock.lock();
+        mLowWatermarkPercent = percent;
+        mCacheMapLock.unlock();
+    }
+
     /**
      * Returns a local file corresponding to the given <var>remotePath</var>
      * <p/>
      * The local {@link File} will be copied from the cache if it exists, otherwise will be
-     * downloaded via the given {@link IFileDownloader}.
+     * downloaded via the given {@link IFileDownloader}. If another thread is already downloading
+     * the same file, this call waits for that download instead of starting its own.
      *
      * @param downloader the {@link IFileDownloader}
      * @param remotePath the remote file.
@@ -188,49 +300,153 @@ public class FileDownloadCache {
      */
     public File fetchRemoteFile(IFileDownloader downloader, String remotePath)
             throws BuildRetrievalError {
-        boolean download = false;
-        // remove and then add previous cache entry to maintain LRU order
-        mCacheMapLock.lock();
-        File cachedFile = mCacheMap.remove(remotePath);
-        if (cachedFile == null) {
-            // create a local File that maps to remotePath
-            // convert remotePath to a local path if necessary
-            String localRelativePath = convertPath(remotePath);
-            cachedFile = new File(mCacheRoot, localRelativePath);
-            cachedFile.getParentFile().mkdirs();
-            download = true;
-        }
-        // lock on the file, so no other thread attempts to delete it or access it before its
-        // downloaded
-        File copyFile = null;
+        CacheEntry entry = acquireEntry(remotePath);
+        if (entry != null) {
+            Log.d(LOG_TAG, String.format("Retrieved remote file %s from cached file %s",
+                    remotePath, entry.mFile.getAbsolutePath()));
+            persistAccessTime();
+        } else {
+            entry = downloadEntry(downloader, remotePath);
+        }
         try {
-            synchronized (cachedFile) {
-                mCacheMap.put(remotePath, cachedFile);
-                mCacheMapLock.unlock();
-                if (download) {
-                    downloadFile(downloader, remotePath, cachedFile);
-                } else {
-                    Log.d(LOG_TAG, String.format("Retrieved remote file %s from cached file %s",
-                            remotePath, cachedFile.getAbsolutePath()));
-                }
-                copyFile = copyFile(remotePath, cachedFile);
+            return copyFile(entry);
+        } finally {
+            releaseEntry(entry);
+        }
+    }
 
+    /**
+     * Look up the cache entry for given path, and pin it so it cannot be evicted.
+     *
+     * @return the pinned {@link CacheEntry} or <code>null</code> if not in cache
+     */
+    private CacheEntry acquireEntry(String remotePath) {
+        mCacheMapLock.lock();
+        try {
+            // remove and then add previous cache entry to maintain LRU order
+            CacheEntry entry = mCacheMap.remove(remotePath);
+            if (entry != null) {
+                mCacheMap.put(remotePath, entry);
+                entry.mLastAccess = System.currentTimeMillis();
+                entry.mPinCount++;
             }
-        } catch (BuildRetrievalError e) {
-            // remove entry from cache outside of cachedFile lock, to prevent deadlock
-            mCacheMapLock.lock();
-            mCacheMap.remove(remotePath);
+            return entry;
+        } finally {
             mCacheMapLock.unlock();
-            throw e;
         }
-        if (download) {
-           incrementAndAdjustCache(cachedFile.length());
+    }
+
+    /**
+     * Saves the index after a cache hit, so the updated LRU order survives a restart.
+     * <p/>
+     * Saves are done at most once per {@link #HIT_PERSIST_INTERVAL_MS}, so the access times of
+     * the hits since the last save are lost if the process exits before the next one.
+     */
+    private void persistAccessTime() {
+        long now = System.currentTimeMillis();
+        long lastPersistTime = mLastHitPersistTime.get();
+        if (now - lastPersistTime >= HIT_PERSIST_INTERVAL_MS
+                && mLastHitPersistTime.compareAndSet(lastPersistTime, now)) {
+            scheduleMaintenance();
+        }
+    }
+
+    private void releaseEntry(CacheEntry entry) {
+        mCacheMapLock.lock();
+        entry.mPinCount--;
+        mCacheMapLock.unlock();
+    }
+
+    /**
+     * Download the given file into the cache, or wait for an in progress download of the same
+     * file to complete.
+     *
+     * @return the pinned {@link CacheEntry}
+     */
+    private CacheEntry downloadEntry(final IFileDownloader downloader, final String remotePath)
+            throws BuildRetrievalError {
+        while (true) {
+            FutureTask<CacheEntry> task = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+                @Override
+                public CacheEntry call() throws BuildRetrievalError {
+                    // another download may have completed since the caller checked the cache
+                    CacheEntry entry = acquireEntry(remotePath);
+                    if (entry == null) {
+                        entry = downloadFile(downloader, remotePath);
+                    }
+                    return entry;
+                }
+            });
+            FutureTask<CacheEntry> inFlight = mDownloads.putIfAbsent(remotePath, task);
+            if (inFlight == null) {
+                // this thread owns the download
+                try {
+                    task.run();
+                } finally {
+                    mDownloads.remove(remotePath, task);
+                }
+                return getDownloadResult(task);
+            }
+            Log.d(LOG_TAG, String.format("Waiting for in progress download of %s", remotePath));
+            onWaitForDownload(remotePath);
+            getDownloadResult(inFlight);
+            CacheEntry entry = acquireEntry(remotePath);
+            if (entry != null) {
+                return entry;
+            }
+            // entry was evicted before it could be pinned, which should be extremely rare.
+            // try again
+        }
+    }
+
+    /**
+     * Called before waiting for an in progress download of the same file.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void onWaitForDownload(String remotePath) {
+        // ignore
+    }
+
+    /**
+     * Wait for download task to complete, and return its result.
+     */
+    private CacheEntry getDownloadResult(FutureTask<CacheEntry> task)
+            throws BuildRetrievalError {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof BuildRetrievalError) {
+                        throw (BuildRetrievalError)e.getCause();
+                    } else if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException)e.getCause();
+                    }
+                    throw new BuildRetrievalError("Failed to download file", e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
-        return copyFile;
     }
 
-    private void downloadFile(IFileDownloader downloader, String remotePath, File cachedFile)
+    /**
+     * Download the given file into the cache.
+     *
+     * @return the new pinned {@link CacheEntry}
+     */
+    private CacheEntry downloadFile(IFileDownloader downloader, String remotePath)
             throws BuildRetrievalError {
+        // create a local File that maps to remotePath
+        // convert remotePath to a local path if necessary
+        File cachedFile = new File(mCacheRoot, convertPath(remotePath));
+        cachedFile.getParentFile().mkdirs();
         try {
             Log.d(LOG_TAG, String.format("Downloading %s to cache", remotePath));
             downloader.downloadFile(remotePath, cachedFile);
@@ -239,13 +455,29 @@ public class FileDownloadCache {
             cachedFile.delete();
             throw e;
         }
+        CacheEntry entry = new CacheEntry(remotePath, cachedFile, cachedFile.length(),
+                System.currentTimeMillis());
+        entry.mPinCount = 1;
+        mCacheMapLock.lock();
+        try {
+            CacheEntry oldEntry = mCacheMap.put(remotePath, entry);
+            if (oldEntry != null) {
+                mCurrentCacheSize -= oldEntry.mSize;
+            }
+            mCurrentCacheSize += entry.mSize;
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        scheduleMaintenance();
+        return entry;
     }
 
-    private File copyFile(String remotePath, File cachedFile) throws BuildRetrievalError {
+    private File copyFile(CacheEntry entry) throws BuildRetrievalError {
         // attempt to create a local copy of cached file with sane name
         File hardlinkFile = null;
+        File cachedFile = entry.mFile;
         try {
-            hardlinkFile = FileUtil.createTempFileForRemote(remotePath, null);
+            hardlinkFile = FileUtil.createTempFileForRemote(entry.mRemotePath, null);
             hardlinkFile.delete();
             CLog.d("Creating hardlink '%s' to '%s'", hardlinkFile.getAbsolutePath(),
                     cachedFile.getAbsolutePath());
@@ -255,13 +487,30 @@ public class FileDownloadCache {
             if (hardlinkFile != null) {
                 hardlinkFile.delete();
             }
-            // cached file might be corrupt or incomplete, delete it
-            cachedFile.delete();
+            // cached file might be corrupt or incomplete, remove it
+            removeEntry(entry);
             throw new BuildRetrievalError(String.format("Failed to copy cached file %s",
                     cachedFile), e);
         }
     }
 
+    /**
+     * Remove given entry from the cache, and delete its file.
+     */
+    private void removeEntry(CacheEntry entry) {
+        mCacheMapLock.lock();
+        try {
+            if (mCacheMap.get(entry.mRemotePath) == entry) {
+                mCacheMap.remove(entry.mRemotePath);
+                mCurrentCacheSize -= entry.mSize;
+                entry.mFile.delete();
+            }
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        scheduleMaintenance();
+    }
+
     /**
      * Convert remote relative path into an equivalent local path
      * @param remotePath
@@ -277,37 +526,244 @@ public class FileDownloadCache {
     }
 
     /**
-     * Adjust file cache size to mMaxFileCacheSize if necessary by deleting old files
+     * Request that eviction and index persistence are performed on the background thread.
+     * Multiple requests made before the background thread runs are coalesced.
      */
-    private void incrementAndAdjustCache(long length) {
+    private void scheduleMaintenance() {
+        if (mMaintenancePending.compareAndSet(false, true)) {
+            mMaintenanceExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mMaintenancePending.set(false);
+                    if (getCurrentCacheSize() > getMaxFileCacheSize()) {
+                        evict(getMaxFileCacheSize() * getLowWatermarkPercent() / 100);
+                    }
+                    persistIndex();
+                }
+            });
+        }
+    }
+
+    /**
+     * Delete least recently used files until cache size is at or below given size.
+     * <p/>
+     * Files that are pinned, or that have live hardlinks, are skipped.
+     *
+     * @param targetSize the cache size to shrink to
+     */
+    private void evict(long targetSize) {
         mCacheMapLock.lock();
         try {
-            mCurrentCacheSize += length;
-            Iterator<Map.Entry<String, File>> mapIterator = mCacheMap.entrySet().iterator();
-            // map cannot be modified while iterating, so store entries to be deleted in another list
-            Collection<String> keysToDelete = new LinkedList<String>();
-            while (mCurrentCacheSize > getMaxFileCacheSize() && mapIterator.hasNext()) {
-                Map.Entry<String, File> currentEntry = mapIterator.next();
-                keysToDelete.add(currentEntry.getKey());
-                mCurrentCacheSize -= currentEntry.getValue().length();
-            }
-            for (String deleteKey : keysToDelete) {
-                File deleteFile = mCacheMap.remove(deleteKey);
-                synchronized (deleteFile) {
-                    deleteFile.delete();
+            List<CacheEntry> lruEntries = new ArrayList<CacheEntry>(mCacheMap.values());
+            for (CacheEntry entry : lruEntries) {
+                if (mCurrentCacheSize <= targetSize) {
+                    break;
+                }
+                if (entry.mPinCount > 0 || hasLiveHardlinks(entry.mFile)) {
+                    continue;
                 }
+                mCacheMap.remove(entry.mRemotePath);
+                mCurrentCacheSize -= entry.mSize;
+                entry.mFile.delete();
+            }
+            if (mCurrentCacheSize > getMaxFileCacheSize()) {
+                Log.w(LOG_TAG, String.format("Cache size %d is still over max %d: all remaining " +
+                        "files are in use", mCurrentCacheSize, getMaxFileCacheSize()));
             }
             // audit cache size
             if (mCurrentCacheSize < 0) {
                 // should never happen
                 Log.e(LOG_TAG, "Cache size is less than 0!");
-                // TODO: throw fatal error?
             }
         } finally {
             mCacheMapLock.unlock();
         }
     }
 
+    /**
+     * Determine if given file has other hardlinks to it, ie a copy handed out by
+     * {@link #fetchRemoteFile(IFileDownloader, String)} still exists.
+     */
+    private boolean hasLiveHardlinks(File file) {
+        try {
+            Object linkCount = Files.getAttribute(file.toPath(), "unix:nlink");
+            return linkCount instanceof Integer && (Integer)linkCount > 1;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            // link count not supported on this platform
+            return false;
+        }
+    }
+
+    /**
+     * Load the persisted cache index.
+     *
+     * @return the list of valid entries, or <code>null</code> if index could not be read
+     */
+    private List<CacheEntry> loadIndex() {
+        File indexFile = new File(mCacheRoot, INDEX_FILE_NAME);
+        if (!indexFile.exists()) {
+            return null;
+        }
+        List<CacheEntry> entries = new LinkedList<CacheEntry>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile),
+                    UTF_8));
+            String header = reader.readLine();
+            if (header == null || !header.startsWith(INDEX_CHECKSUM_PREFIX)) {
+                CLog.w("Cache index %s has no checksum, ignoring it", indexFile.getAbsolutePath());
+                return null;
+            }
+            long expectedChecksum = Long.parseLong(
+                    header.substring(INDEX_CHECKSUM_PREFIX.length()), 16);
+            List<String> lines = new ArrayList<String>();
+            CRC32 checksum = new CRC32();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+                checksum.update(toIndexLine(line));
+            }
+            if (checksum.getValue() != expectedChecksum) {
+                CLog.w("Cache index %s is corrupted, ignoring it", indexFile.getAbsolutePath());
+                return null;
+            }
+            for (String entryLine : lines) {
+                // format: size, last access, last modified, remote path
+                String[] fields = entryLine.split(INDEX_SEPARATOR, 4);
+                if (fields.length != 4) {
+                    CLog.w("Ignoring malformed cache index line '%s'", entryLine);
+                    continue;
+                }
+                long size = Long.parseLong(fields[0]);
+                long lastAccess = Long.parseLong(fields[1]);
+                long lastModified = Long.parseLong(fields[2]);
+                File file = new File(mCacheRoot, convertPath(fields[3]));
+                // verify file was not modified or removed outside of the cache
+                if (file.length() == size && file.lastModified() == lastModified) {
+                    entries.add(new CacheEntry(fields[3], file, size, lastAccess));
+                }
+            }
+            return entries;
+        } catch (IOException | NumberFormatException e) {
+            CLog.w("Failed to read cache index %s: %s", indexFile.getAbsolutePath(),
+                    e.toString());
+            return null;
+        } finally {
+            StreamUtil.close(reader);
+        }
+    }
+
+    /**
+     * Write the cache index to disk.
+     */
+    private void persistIndex() {
+        List<CacheEntry> entries;
+        mCacheMapLock.lock();
+        try {
+            entries = new ArrayList<CacheEntry>(mCacheMap.values());
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        File indexFile = new File(mCacheRoot, INDEX_FILE_NAME);
+        File tmpIndexFile = new File(mCacheRoot, INDEX_FILE_NAME + ".tmp");
+        List<String> lines = new ArrayList<String>(entries.size());
+        CRC32 checksum = new CRC32();
+        for (CacheEntry entry : entries) {
+            long lastModified = entry.mFile.lastModified();
+            if (lastModified == 0) {
+                // file was deleted
+                continue;
+            }
+            String line = String.format("%d%s%d%s%d%s%s", entry.mSize, INDEX_SEPARATOR,
+                    entry.mLastAccess, INDEX_SEPARATOR, lastModified, INDEX_SEPARATOR,
+                    entry.mRemotePath);
+            lines.add(line);
+            checksum.update(toIndexLine(line));
+        }
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmpIndexFile), UTF_8));
+            writer.write(String.format("%s%x\n", INDEX_CHECKSUM_PREFIX, checksum.getValue()));
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!tmpIndexFile.renameTo(indexFile)) {
+                CLog.w("Failed to replace cache index %s", indexFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to write cache index %s: %s", indexFile.getAbsolutePath(),
+                    e.toString());
+        } finally {
+            StreamUtil.close(writer);
+        }
+    }
+
+    /**
+     * Gets the bytes of an index line, as covered by the index checksum.
+     */
+    private static byte[] toIndexLine(String line) {
+        return (line + "\n").getBytes(UTF_8);
+    }
+
+    /**
+     * Add any files that exist on disk but are missing from the loaded index.
+     */
+    private void reconcileWithDisk() {
+        List<CacheEntry> diskEntries = new LinkedList<CacheEntry>();
+        addFiles(mCacheRoot, new Stack<String>(), diskEntries);
+        List<CacheEntry> missingEntries = new ArrayList<CacheEntry>();
+        mCacheMapLock.lock();
+        try {
+            for (CacheEntry entry : diskEntries) {
+                // files modified after cache creation are downloads made by this process, which
+                // might still be in progress
+                if (!mCacheMap.containsKey(entry.mRemotePath)
+                        && entry.mFile.lastModified() < mCreationTime) {
+                    missingEntries.add(entry);
+                }
+            }
+            if (missingEntries.isEmpty()) {
+                return;
+            }
+            // treat missing files as least recently used, by inserting them before all others
+            Collections.sort(missingEntries, new AccessTimeComparator());
+            Map<String, CacheEntry> oldMap = new LinkedHashMap<String, CacheEntry>(mCacheMap);
+            mCacheMap.clear();
+            for (CacheEntry entry : missingEntries) {
+                mCacheMap.put(entry.mRemotePath, entry);
+                mCurrentCacheSize += entry.mSize;
+            }
+            mCacheMap.putAll(oldMap);
+        } finally {
+            mCacheMapLock.unlock();
+        }
+        scheduleMaintenance();
+    }
+
+    /**
+     * Block until all pending background eviction and index persistence has completed.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void waitForMaintenance() {
+        FutureTask<Void> marker = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                // ignore
+            }
+        }, null);
+        mMaintenanceExecutor.execute(marker);
+        try {
+            marker.get();
+        } catch (InterruptedException | ExecutionException e) {
+            CLog.e(e);
+        }
+    }
+
     /**
      * Returns the cached file for given remote path, or <code>null</code> if no cached file exists.
      * <p/>
@@ -319,7 +775,8 @@ public class FileDownloadCache {
      File getCachedFile(String remoteFilePath) {
         mCacheMapLock.lock();
         try {
-            return mCacheMap.get(remoteFilePath);
+            CacheEntry entry = mCacheMap.get(remoteFilePath);
+            return entry == null ? null : entry.mFile;
         } finally {
             mCacheMapLock.unlock();
         }
@@ -331,11 +788,18 @@ public class FileDownloadCache {
      * exposed for unit testing
      */
      void empty() {
-        long currentMax = getMaxFileCacheSize();
-        // reuse incrementAndAdjustCache to clear cache, by setting cache cap to 0
-        setMaxCacheSize(0L);
-        incrementAndAdjustCache(0);
-        setMaxCacheSize(currentMax);
+        waitForMaintenance();
+        mCacheMapLock.lock();
+        try {
+            for (CacheEntry entry : mCacheMap.values()) {
+                entry.mFile.delete();
+            }
+            mCacheMap.clear();
+            mCurrentCacheSize = 0;
+            new File(mCacheRoot, INDEX_FILE_NAME).delete();
+        } finally {
+            mCacheMapLock.unlock();
+        }
     }
 
     /**
@@ -358,6 +822,24 @@ public class FileDownloadCache {
         }
     }
 
+    private long getCurrentCacheSize() {
+        mCacheMapLock.lock();
+        try {
+            return mCurrentCacheSize;
+        } finally {
+            mCacheMapLock.unlock();
+        }
+    }
+
+    private int getLowWatermarkPercent() {
+        mCacheMapLock.lock();
+        try {
+            return mLowWatermarkPercent;
+        } finally {
+            mCacheMapLock.unlock();
+        }
+    }
+
     /**
      * Get the current max size of file cache.
      * <p/>
@@ -366,6 +848,11 @@ public class FileDownloadCache {
      * @return the mMaxFileCacheSize
      */
     long getMaxFileCacheSize() {
-        return mMaxFileCacheSize;
+        mCacheMapLock.lock();
+        try {
+            return mMaxFileCacheSize;
+        } finally {
+            mCacheMapLock.unlock();
+        }
     }
 }
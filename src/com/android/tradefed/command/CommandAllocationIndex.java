@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.ddmlib.IDevice;
+import com.android.tradefed.device.DeviceSelectionOptions;
+import com.android.tradefed.device.IDeviceManager;
+import com.android.tradefed.device.IDeviceSelection;
+import com.android.tradefed.device.ITestDevice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * An index of commands waiting for a device, bucketed by their device requirements.
+ * <p/>
+ * Commands with identical {@link IDeviceSelection} criteria share a bucket, so a device only has
+ * to be matched once per distinct set of requirements rather than once per command. Buckets that
+ * request explicit serials are additionally indexed by serial, and the other buckets that request
+ * product types are indexed by product type, so that when a device becomes available only the
+ * buckets that could possibly match it are evaluated. The product type of a device is learned the
+ * first time it is allocated through the index; until then all product type buckets are
+ * candidates. Other criteria, such as device properties, are not indexed.
+ * <p/>
+ * Allocation is event driven:
+ * <ul>
+ * <li>newly added commands mark their bucket as dirty, and dirty buckets are matched against any
+ * available device on the next {@link #allocate(IDeviceManager)} call</li>
+ * <li>devices reported via {@link #notifyDeviceAvailable(String)} are only offered to the buckets
+ * that could match them</li>
+ * <li>{@link #markAllDirty()} forces every bucket to be re-evaluated, for device attributes such as
+ * battery level that can change without an allocation event</li>
+ * </ul>
+ * <p/>
+ * Not thread safe, with the exception of {@link #notifyDeviceAvailable(String)} which can be
+ * called from any thread. Callers must synchronize all other access.
+ *
+ * @param <T> the type of command held in the index
+ */
+class CommandAllocationIndex<T> {
+
+    /**
+     * A group of commands that share identical device requirements.
+     */
+    private static class RequirementBucket<T> {
+        private final Object mKey;
+        private final IDeviceSelection mOptions;
+        /** the serials this bucket is restricted to. Empty if any serial can match */
+        private final Collection<String> mSerials;
+        /** the product types this bucket is restricted to. Empty if any product can match */
+        private final Collection<String> mProductTypes;
+        private final Set<T> mCommands = new LinkedHashSet<T>();
+        private boolean mDirty = true;
+
+        RequirementBucket(Object key, IDeviceSelection options) {
+            mKey = key;
+            mOptions = options;
+            mSerials = options.getSerials();
+            mProductTypes = new HashSet<String>();
+            for (String productType : options.getProductTypes()) {
+                // strip the optional ":variant" suffix
+                mProductTypes.add(productType.split(":", 2)[0]);
+            }
+        }
+
+        /**
+         * Return the highest priority command in this bucket. Ties are resolved in insertion
+         * order.
+         */
+        T getHighestPriority(Comparator<T> comparator) {
+            T best = null;
+            for (T cmd : mCommands) {
+                if (best == null || comparator.compare(cmd, best) < 0) {
+                    best = cmd;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Orders {@link RequirementBucket}s by the priority of their highest priority command.
+     */
+    private static class BucketComparator<T> implements Comparator<RequirementBucket<T>> {
+        private final Map<RequirementBucket<T>, T> mHeads;
+        private final Comparator<T> mCmdComparator;
+
+        BucketComparator(Map<RequirementBucket<T>, T> heads, Comparator<T> cmdComparator) {
+            mHeads = heads;
+            mCmdComparator = cmdComparator;
+        }
+
+        @Override
+        public int compare(RequirementBucket<T> b1, RequirementBucket<T> b2) {
+            return mCmdComparator.compare(mHeads.get(b1), mHeads.get(b2));
+        }
+    }
+
+    /**
+     * A {@link IDeviceSelection} that restricts another selection to given serials. The serial
+     * check is performed first, so that the more expensive criteria of the wrapped selection are
+     * only evaluated for the devices of interest.
+     */
+    private static class SerialRestrictedSelection implements IDeviceSelection {
+        private Collection<String> mSerials;
+        private final IDeviceSelection mDelegate;
+
+        SerialRestrictedSelection(String serial, IDeviceSelection delegate) {
+            mSerials = Arrays.asList(serial);
+            mDelegate = delegate;
+        }
+
+        @Override
+        public boolean matches(IDevice device) {
+            return mSerials.contains(device.getSerialNumber()) && mDelegate.matches(device);
+        }
+
+        @Override
+        public Collection<String> getSerials() {
+            return mSerials;
+        }
+
+        @Override
+        public Collection<String> getExcludeSerials() {
+            return mDelegate.getExcludeSerials();
+        }
+
+        @Override
+        public Collection<String> getProductTypes() {
+            return mDelegate.getProductTypes();
+        }
+
+        @Override
+        public Map<String, String> getProperties() {
+            return mDelegate.getProperties();
+        }
+
+        @Override
+        public boolean emulatorRequested() {
+            return mDelegate.emulatorRequested();
+        }
+
+        @Override
+        public boolean deviceRequested() {
+            return mDelegate.deviceRequested();
+        }
+
+        @Override
+        public boolean stubEmulatorRequested() {
+            return mDelegate.stubEmulatorRequested();
+        }
+
+        @Override
+        public boolean nullDeviceRequested() {
+            return mDelegate.nullDeviceRequested();
+        }
+
+        @Override
+        public String getDeviceProductType(IDevice device) {
+            return mDelegate.getDeviceProductType(device);
+        }
+
+        @Override
+        public String getDeviceProductVariant(IDevice device) {
+            return mDelegate.getDeviceProductVariant(device);
+        }
+
+        @Override
+        public Integer getBatteryLevel(IDevice device) {
+            return mDelegate.getBatteryLevel(device);
+        }
+
+        /**
+         * Replaces the serials this selection is restricted to. The wrapped selection is left
+         * untouched, as it is shared by all commands in a bucket.
+         */
+        @Override
+        public void setSerial(String... serialNumber) {
+            mSerials = Arrays.asList(serialNumber);
+        }
+    }
+
+    private final Comparator<T> mPriorityComparator;
+    private final Map<Object, RequirementBucket<T>> mBuckets =
+            new LinkedHashMap<Object, RequirementBucket<T>>();
+    private final Map<T, RequirementBucket<T>> mCommandBuckets =
+            new HashMap<T, RequirementBucket<T>>();
+    /** buckets that request explicit serials, indexed by each requested serial */
+    private final Map<String, Set<RequirementBucket<T>>> mSerialBuckets =
+            new HashMap<String, Set<RequirementBucket<T>>>();
+    /** buckets that can match any serial and request product types, indexed by product type */
+    private final Map<String, Set<RequirementBucket<T>>> mProductTypeBuckets =
+            new HashMap<String, Set<RequirementBucket<T>>>();
+    /** buckets that can match any serial and any product type */
+    private final Set<RequirementBucket<T>> mAnyDeviceBuckets =
+            new LinkedHashSet<RequirementBucket<T>>();
+    /** the product type of devices allocated through this index, by serial */
+    private final Map<String, String> mDeviceProductTypes = new HashMap<String, String>();
+    /** serials of devices that became available since the last allocation pass */
+    private final Set<String> mAvailableSerials = new LinkedHashSet<String>();
+
+    /**
+     * Creates a {@link CommandAllocationIndex}.
+     *
+     * @param priorityComparator the {@link Comparator} used to pick which command gets a device
+     *            first. Lower values are higher priority.
+     */
+    CommandAllocationIndex(Comparator<T> priorityComparator) {
+        mPriorityComparator = priorityComparator;
+    }
+
+    /**
+     * Add a command to the index.
+     *
+     * @param cmd the command
+     * @param options the device requirements of the command
+     */
+    void add(T cmd, IDeviceSelection options) {
+        Object key = getRequirementKey(options);
+        RequirementBucket<T> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new RequirementBucket<T>(key, options);
+            mBuckets.put(key, bucket);
+            if (!bucket.mSerials.isEmpty()) {
+                addToIndex(mSerialBuckets, bucket.mSerials, bucket);
+            } else if (!bucket.mProductTypes.isEmpty()) {
+                addToIndex(mProductTypeBuckets, bucket.mProductTypes, bucket);
+            } else {
+                mAnyDeviceBuckets.add(bucket);
+            }
+        }
+        bucket.mCommands.add(cmd);
+        bucket.mDirty = true;
+        mCommandBuckets.put(cmd, bucket);
+    }
+
+    /**
+     * Remove a command from the index.
+     *
+     * @return <code>true</code> if command was present in index
+     */
+    boolean remove(T cmd) {
+        RequirementBucket<T> bucket = mCommandBuckets.remove(cmd);
+        if (bucket == null) {
+            return false;
+        }
+        bucket.mCommands.remove(cmd);
+        if (bucket.mCommands.isEmpty()) {
+            removeBucket(bucket);
+        }
+        return true;
+    }
+
+    private void removeBucket(RequirementBucket<T> bucket) {
+        mBuckets.remove(bucket.mKey);
+        mAnyDeviceBuckets.remove(bucket);
+        removeFromIndex(mSerialBuckets, bucket.mSerials, bucket);
+        removeFromIndex(mProductTypeBuckets, bucket.mProductTypes, bucket);
+    }
+
+    private static <T> void addToIndex(Map<String, Set<RequirementBucket<T>>> index,
+            Collection<String> keys, RequirementBucket<T> bucket) {
+        for (String key : keys) {
+            Set<RequirementBucket<T>> buckets = index.get(key);
+            if (buckets == null) {
+                buckets = new LinkedHashSet<RequirementBucket<T>>();
+                index.put(key, buckets);
+            }
+            buckets.add(bucket);
+        }
+    }
+
+    private static <T> void removeFromIndex(Map<String, Set<RequirementBucket<T>>> index,
+            Collection<String> keys, RequirementBucket<T> bucket) {
+        for (String key : keys) {
+            Set<RequirementBucket<T>> buckets = index.get(key);
+            if (buckets != null) {
+                buckets.remove(bucket);
+                if (buckets.isEmpty()) {
+                    index.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all commands from the index.
+     */
+    void clear() {
+        mBuckets.clear();
+        mCommandBuckets.clear();
+        mSerialBuckets.clear();
+        mProductTypeBuckets.clear();
+        mAnyDeviceBuckets.clear();
+    }
+
+    /**
+     * @return the number of commands in the index
+     */
+    int size() {
+        return mCommandBuckets.size();
+    }
+
+    /**
+     * @return a copy of all commands in the index
+     */
+    List<T> getCommands() {
+        List<T> cmds = new ArrayList<T>(size());
+        for (RequirementBucket<T> bucket : mBuckets.values()) {
+            cmds.addAll(bucket.mCommands);
+        }
+        return cmds;
+    }
+
+    /**
+     * @return the number of distinct device requirement buckets. Exposed for unit testing.
+     */
+    int getBucketCount() {
+        return mBuckets.size();
+    }
+
+    /**
+     * Record that the device with given serial has become available for allocation.
+     * <p/>
+     * Safe to call from any thread.
+     */
+    void notifyDeviceAvailable(String serial) {
+        synchronized (mAvailableSerials) {
+            mAvailableSerials.add(serial);
+        }
+    }
+
+    /**
+     * Force all buckets to be matched against all available devices on next
+     * {@link #allocate(IDeviceManager)} call.
+     */
+    void markAllDirty() {
+        for (RequirementBucket<T> bucket : mBuckets.values()) {
+            bucket.mDirty = true;
+        }
+    }
+
+    /**
+     * Match waiting commands with available devices.
+     * <p/>
+     * Devices reported as available since the last call are offered to the highest priority
+     * candidate bucket that they match. Then the dirty buckets are matched against any available
+     * device, one command at a time in global priority order, so that a bucket cannot take every
+     * device ahead of a higher priority command in another bucket. Commands that are matched with
+     * a device are removed from the index.
+     *
+     * @param manager the {@link IDeviceManager} to allocate devices from
+     * @return a {@link Map} of command to allocated device, in allocation order
+     */
+    Map<T, ITestDevice> allocate(IDeviceManager manager) {
+        Map<T, ITestDevice> allocated = new LinkedHashMap<T, ITestDevice>();
+        List<String> serials;
+        synchronized (mAvailableSerials) {
+            serials = new ArrayList<String>(mAvailableSerials);
+            mAvailableSerials.clear();
+        }
+        for (String serial : serials) {
+            for (RequirementBucket<T> bucket : sortByPriority(getCandidateBuckets(serial))) {
+                ITestDevice device = manager.allocateDevice(
+                        new SerialRestrictedSelection(serial, bucket.mOptions));
+                if (device != null) {
+                    assignDevice(bucket, device, allocated);
+                    break;
+                }
+            }
+        }
+        Map<RequirementBucket<T>, T> heads = new HashMap<RequirementBucket<T>, T>();
+        PriorityQueue<RequirementBucket<T>> dirtyBuckets = new PriorityQueue<RequirementBucket<T>>(
+                Math.max(1, mBuckets.size()), new BucketComparator<T>(heads, mPriorityComparator));
+        for (RequirementBucket<T> bucket : mBuckets.values()) {
+            if (bucket.mDirty) {
+                bucket.mDirty = false;
+                heads.put(bucket, bucket.getHighestPriority(mPriorityComparator));
+                dirtyBuckets.add(bucket);
+            }
+        }
+        RequirementBucket<T> bucket;
+        while ((bucket = dirtyBuckets.poll()) != null) {
+            ITestDevice device = manager.allocateDevice(bucket.mOptions);
+            if (device == null) {
+                // no device matches this bucket, so it is done until the next event
+                continue;
+            }
+            assignDevice(bucket, device, allocated);
+            if (!bucket.mCommands.isEmpty()) {
+                // re-insert with its next command, to compete with the other buckets again
+                heads.put(bucket, bucket.getHighestPriority(mPriorityComparator));
+                dirtyBuckets.add(bucket);
+            }
+        }
+        return allocated;
+    }
+
+    /**
+     * Assign the device to the highest priority command in the bucket, and record its product
+     * type.
+     */
+    private void assignDevice(RequirementBucket<T> bucket, ITestDevice device,
+            Map<T, ITestDevice> allocated) {
+        T cmd = bucket.getHighestPriority(mPriorityComparator);
+        remove(cmd);
+        allocated.put(cmd, device);
+        IDevice iDevice = device.getIDevice();
+        if (iDevice != null) {
+            String productType = bucket.mOptions.getDeviceProductType(iDevice);
+            if (productType != null) {
+                mDeviceProductTypes.put(device.getSerialNumber(), productType);
+            }
+        }
+    }
+
+    /**
+     * Get the buckets that could potentially match the device with given serial.
+     */
+    private Collection<RequirementBucket<T>> getCandidateBuckets(String serial) {
+        Set<RequirementBucket<T>> candidates = new LinkedHashSet<RequirementBucket<T>>();
+        Set<RequirementBucket<T>> serialBuckets = mSerialBuckets.get(serial);
+        if (serialBuckets != null) {
+            candidates.addAll(serialBuckets);
+        }
+        String productType = mDeviceProductTypes.get(serial);
+        if (productType != null) {
+            Set<RequirementBucket<T>> productTypeBuckets = mProductTypeBuckets.get(productType);
+            if (productTypeBuckets != null) {
+                candidates.addAll(productTypeBuckets);
+            }
+        } else {
+            // product type not known yet, any product type bucket could match
+            for (Set<RequirementBucket<T>> productTypeBuckets : mProductTypeBuckets.values()) {
+                candidates.addAll(productTypeBuckets);
+            }
+        }
+        candidates.addAll(mAnyDeviceBuckets);
+        return candidates;
+    }
+
+    /**
+     * Return a copy of given buckets, sorted so the bucket containing the highest priority command
+     * is first.
+     */
+    private List<RequirementBucket<T>> sortByPriority(Collection<RequirementBucket<T>> buckets) {
+        Map<RequirementBucket<T>, T> heads = new HashMap<RequirementBucket<T>, T>(buckets.size());
+        for (RequirementBucket<T> bucket : buckets) {
+            heads.put(bucket, bucket.getHighestPriority(mPriorityComparator));
+        }
+        List<RequirementBucket<T>> sorted = new ArrayList<RequirementBucket<T>>(buckets);
+        Collections.sort(sorted, new BucketComparator<T>(heads, mPriorityComparator));
+        return sorted;
+    }
+
+    /**
+     * Build a key that is equal for all {@link IDeviceSelection}s with identical criteria.
+     * <p/>
+     * Only {@link DeviceSelectionOptions} criteria are fully known, so all other implementations
+     * are keyed by identity.
+     */
+    static Object getRequirementKey(IDeviceSelection options) {
+        if (!(options instanceof DeviceSelectionOptions)) {
+            return options;
+        }
+        DeviceSelectionOptions o = (DeviceSelectionOptions)options;
+        return Arrays.asList(new HashSet<String>(o.getSerials()),
+                new HashSet<String>(o.getExcludeSerials()),
+                new HashSet<String>(o.getProductTypes()),
+                new HashMap<String, String>(o.getProperties()),
+                o.emulatorRequested(), o.deviceRequested(), o.stubEmulatorRequested(),
+                o.nullDeviceRequested(), o.getMinBatteryLevel(), o.getMaxBatteryLevel(),
+                o.getRequireBatteryCheck(), o.getMinSdkLevel());
+    }
+}
@@ -20,21 +20,41 @@ import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A simple class to watch a set of command files for changes, and to trigger a
  * reload of _all_ manually-loaded command files when such a change happens.
+ * <p/>
+ * The directories of watched files are watched with a {@link WatchService}, so that changes are
+ * noticed as they happen. Files are also checked every {@link #POLL_TIME_MS}, in case the file
+ * system does not report changes, such as with network file systems.
  */
 class CommandFileWatcher extends Thread {
     private static final long POLL_TIME_MS = 20 * 1000;  // 20 seconds
+    /** time to wait for further changes after a change, as editors write files in steps */
+    private static final long SETTLE_TIME_MS = 500;
+    /**
+     * max time to wait for changes to settle, so that a directory that is written continuously
+     * cannot hold off checking for updates
+     */
+    private static final long MAX_SETTLE_TIME_MS = 5 * 1000;
     // thread-safe (for read-writes, not write during iteration) structure holding all commands
     // being watched. map of absolute file system path to command file
     private Map<String, CommandFile> mCmdFileMap = new Hashtable<>();
@@ -115,9 +135,127 @@ class CommandFileWatcher extends Thread {
      */
     @Override
     public void run() {
-        while (!isCancelled()) {
-            checkForUpdates();
-            getRunUtil().sleep(POLL_TIME_MS);
+        WatchService watchService = createWatchService();
+        Map<Path, WatchKey> watchedDirs = new HashMap<Path, WatchKey>();
+        try {
+            while (!isCancelled() && !isInterrupted()) {
+                checkForUpdates();
+                if (watchService == null) {
+                    getRunUtil().sleep(POLL_TIME_MS);
+                } else {
+                    waitForChange(watchService, watchedDirs, POLL_TIME_MS);
+                }
+            }
+        } finally {
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the {@link WatchService} to watch command file directories with.
+     *
+     * @return the {@link WatchService}, or <code>null</code> if not supported, in which case
+     *         files are polled
+     */
+    WatchService createWatchService() {
+        try {
+            return FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            CLog.w("Failed to create watch service, polling command files: %s", e.getMessage());
+            return null;
+        } catch (UnsupportedOperationException e) {
+            CLog.w("Watch service not supported, polling command files");
+            return null;
+        }
+    }
+
+    /**
+     * Waits for a change in the directory of a watched file.
+     * <p />
+     * Exposed for unit testing
+     *
+     * @param watchService the {@link WatchService} to use
+     * @param watchedDirs the directories currently watched, updated to the directories of the
+     *            files currently watched
+     * @param timeout the max time to wait in ms
+     * @return <code>true</code> if a change happened, <code>false</code> if the timeout expired
+     *         or the thread was interrupted
+     */
+    boolean waitForChange(WatchService watchService, Map<Path, WatchKey> watchedDirs,
+            long timeout) {
+        updateWatchedDirs(watchService, watchedDirs);
+        try {
+            WatchKey key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+            if (key == null) {
+                return false;
+            }
+            long settleDeadline = System.currentTimeMillis() + MAX_SETTLE_TIME_MS;
+            do {
+                key.pollEvents();
+                key.reset();
+                long settleTime = Math.min(SETTLE_TIME_MS,
+                        settleDeadline - System.currentTimeMillis());
+                if (settleTime <= 0) {
+                    break;
+                }
+                key = watchService.poll(settleTime, TimeUnit.MILLISECONDS);
+            } while (key != null);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Registers the directories of watched files and their dependencies, and cancels the
+     * registration of directories no longer needed.
+     */
+    private void updateWatchedDirs(WatchService watchService, Map<Path, WatchKey> watchedDirs) {
+        Set<Path> dirs = new HashSet<Path>();
+        List<CommandFile> cmdCopy;
+        synchronized (mCmdFileMap) {
+            cmdCopy = new ArrayList<CommandFile>(mCmdFileMap.values());
+        }
+        for (CommandFile cmd : cmdCopy) {
+            addParentDir(cmd.file, dirs);
+            for (CommandFile dep : cmd.dependencies) {
+                addParentDir(dep.file, dirs);
+            }
+        }
+        Iterator<Map.Entry<Path, WatchKey>> iter = watchedDirs.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Path, WatchKey> entry = iter.next();
+            if (!dirs.contains(entry.getKey()) || !entry.getValue().isValid()) {
+                entry.getValue().cancel();
+                iter.remove();
+            }
+        }
+        for (Path dir : dirs) {
+            if (!watchedDirs.containsKey(dir)) {
+                try {
+                    watchedDirs.put(dir, dir.register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE));
+                } catch (IOException e) {
+                    // directory does not exist yet, it will be polled
+                    CLog.d("Could not watch %s: %s", dir, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void addParentDir(File file, Set<Path> dirs) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            dirs.add(parent.toPath());
         }
     }
 
@@ -72,6 +72,15 @@ public class CommandOptions implements ICommandOptions {
             "take a bugreport when the test invocation has ended")
     private boolean mTakeBugreportOnInvocationEnded = false;
 
+    @Option(name = "auto-shard", description = "split tests that expose their test list into " +
+            "shards of balanced expected duration, one per available device that matches the " +
+            "device requirements. Expected durations are based on previous runs of the tests.")
+    private boolean mAutoShard = false;
+
+    @Option(name = "max-shards", description =
+            "the maximum number of shards to create with --auto-shard. 0 means no limit.")
+    private int mMaxShards = 0;
+
     /**
      * Set the help mode for the config.
      * <p/>
@@ -199,4 +208,28 @@ public class CommandOptions implements ICommandOptions {
     public boolean takeBugreportOnInvocationEnded() {
         return mTakeBugreportOnInvocationEnded;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAutoShard() {
+        return mAutoShard;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setAutoShard(boolean autoShard) {
+        mAutoShard = autoShard;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxShards() {
+        return mMaxShards;
+    }
 }
@@ -79,8 +79,8 @@ import java.util.concurrent.TimeUnit;
  */
 public class CommandScheduler extends Thread implements ICommandScheduler, ICommandFileListener {
 
-    /** the queue of commands ready to be executed. */
-    private List<ExecutableCommand> mReadyCommands;
+    /** the commands ready to be executed, indexed by their device requirements. */
+    private final CommandAllocationIndex<ExecutableCommand> mReadyCommands;
 
     /** the queue of commands sleeping. */
     private Set<ExecutableCommand> mSleepingCommands;
@@ -120,11 +120,21 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
 
     private WaitObj mCommandProcessWait = new WaitObj();
 
+    /** the commands added from each command file, used to reload command files on change */
+    private final Map<String, List<CommandFileEntry>> mCmdFileEntries =
+            new HashMap<String, List<CommandFileEntry>>();
+
     @Option(name = "reload-cmdfiles", description =
             "Whether to enable the command file autoreload mechanism")
     // FIXME: enable this to be enabled or disabled on a per-cmdfile basis
     private boolean mReloadCmdfiles = false;
 
+    @Option(name = "full-allocation-scan-interval", description =
+            "Max time in ms between attempts to match every waiting command against all " +
+            "available devices. Commands are otherwise only re-evaluated when a device becomes " +
+            "available. Set to 0 to disable.")
+    private long mFullAllocationScanInterval = 60 * 1000;
+
     private enum CommandState {
         WAITING_FOR_DEVICE("Wait_for_device"),
         EXECUTING("Executing"),
@@ -153,6 +163,9 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         /** the total amount of time this command was executing. Used to prioritize */
         private long mTotalExecTime = 0;
 
+        /** whether this command was removed. Guarded by the {@link CommandScheduler} lock */
+        private boolean mRemoved = false;
+
         CommandTracker(int id, String[] args, String commandFilePath) {
             mId = id;
             mArgs = args;
@@ -188,6 +201,31 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         String getCommandFilePath() {
             return mCommandFilePath;
         }
+
+        void setRemoved() {
+            mRemoved = true;
+        }
+
+        /**
+         * @return <code>true</code> if this command was removed, and so must not be queued again
+         */
+        boolean isRemoved() {
+            return mRemoved;
+        }
+    }
+
+    /**
+     * A command line of a command file, and the {@link CommandTracker}s created for it.
+     */
+    private static class CommandFileEntry {
+        /** the command line, with command file extra args */
+        final String mLine;
+        final List<CommandTracker> mTrackers;
+
+        CommandFileEntry(String line, List<CommandTracker> trackers) {
+            mLine = line;
+            mTrackers = trackers;
+        }
     }
 
     /**
@@ -484,6 +522,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 DeviceAllocationState newState) {
             if (newState.equals(DeviceAllocationState.Available)) {
                 // new avail device was added, wake up scheduler
+                mReadyCommands.notifyDeviceAvailable(serial);
                 mCommandProcessWait.signalEventReceived();
             }
         }
@@ -496,7 +535,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      */
     public CommandScheduler() {
         super("CommandScheduler");  // set the thread name
-        mReadyCommands = new LinkedList<>();
+        mReadyCommands = new CommandAllocationIndex<>(new ExecutableCommandComparator());
         mSleepingCommands = new HashSet<>();
         mExecutingCommands = new HashSet<>();
         mInvocationThreadMap = new HashMap<ITestDevice, InvocationThread>();
@@ -588,9 +627,19 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             // add a listener that will wake up scheduler when a new avail device is added
             manager.addDeviceMonitor(new AvailDeviceMonitor());
 
+            long lastFullScanTime = System.currentTimeMillis();
             while (!isShutdown()) {
                 // wait until processing is required again
-                mCommandProcessWait.waitAndReset();
+                mCommandProcessWait.waitAndReset(mFullAllocationScanInterval);
+                // periodically re-match everything, in case device attributes such as
+                // battery level have changed without an allocation event. Checked on every
+                // wakeup, since a steady stream of events can keep the wait from timing out
+                long now = System.currentTimeMillis();
+                if (mFullAllocationScanInterval > 0
+                        && now - lastFullScanTime >= mFullAllocationScanInterval) {
+                    lastFullScanTime = now;
+                    markAllCommandsForAllocation();
+                }
                 processReadyCommands(manager);
             }
             mCommandTimer.shutdown();
@@ -617,25 +666,19 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         }
     }
 
+    private synchronized void markAllCommandsForAllocation() {
+        mReadyCommands.markAllDirty();
+    }
+
     private void processReadyCommands(IDeviceManager manager) {
-        Map<ExecutableCommand, ITestDevice> scheduledCommandMap = new HashMap<>();
+        Map<ExecutableCommand, ITestDevice> scheduledCommandMap;
         // minimize length of synchronized block by just matching commands with device first,
         // then scheduling invocations/adding looping commands back to queue
         synchronized (this) {
-            // sort ready commands by priority, so high priority commands are matched first
-            Collections.sort(mReadyCommands, new ExecutableCommandComparator());
-            Iterator<ExecutableCommand> cmdIter = mReadyCommands.iterator();
-            while (cmdIter.hasNext()) {
-                ExecutableCommand cmd = cmdIter.next();
-                ITestDevice device = manager.allocateDevice(cmd.getConfiguration()
-                        .getDeviceRequirements());
-                if (device != null) {
-                    cmdIter.remove();
-                    mExecutingCommands.add(cmd);
-                    // track command matched with device
-                    scheduledCommandMap.put(cmd, device);
-                }
-            }
+            // only the commands that could use a newly available device, or that have not been
+            // matched yet, are evaluated. High priority commands are matched first
+            scheduledCommandMap = mReadyCommands.allocate(manager);
+            mExecutingCommands.addAll(scheduledCommandMap.keySet());
         }
 
         // now actually execute the commands
@@ -699,11 +742,21 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      */
     @Override
     public boolean addCommand(String[] args, long totalExecTime) throws ConfigurationException {
-        return internalAddCommand(args, totalExecTime, null);
+        return internalAddCommand(args, totalExecTime, null, null);
     }
 
-    private boolean internalAddCommand(String[] args, long totalExecTime, String cmdFilePath)
-            throws ConfigurationException {
+    /**
+     * Adds a command.
+     *
+     * @param args the command args
+     * @param totalExecTime the initial exec time of the command
+     * @param cmdFilePath the path of the command file the command is from, or <code>null</code>
+     * @param addedTrackers if not <code>null</code>, the {@link CommandTracker}s created for the
+     *            command are added to it
+     * @return <code>true</code> if the command was added
+     */
+    private boolean internalAddCommand(String[] args, long totalExecTime, String cmdFilePath,
+            List<CommandTracker> addedTrackers) throws ConfigurationException {
         assertStarted();
         IConfiguration config = getConfigFactory().createConfigurationFromArgs(args);
         if (config.getCommandOptions().isHelpMode()) {
@@ -722,10 +775,13 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             config.validateOptions();
 
             if (config.getCommandOptions().runOnAllDevices()) {
-                addCommandForAllDevices(totalExecTime, args, cmdFilePath);
+                addCommandForAllDevices(totalExecTime, args, cmdFilePath, addedTrackers);
             } else {
                 CommandTracker cmdTracker = createCommandTracker(args, cmdFilePath);
                 cmdTracker.incrementExecTime(totalExecTime);
+                if (addedTrackers != null) {
+                    addedTrackers.add(cmdTracker);
+                }
                 ExecutableCommand cmdInstance = createExecutableCommand(cmdTracker, config, false);
                 addExecCommandToQueue(cmdInstance, 0);
             }
@@ -755,6 +811,102 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      */
     private void internalAddCommandFile(File cmdFile, List<String> extraArgs)
             throws ConfigurationException {
+        List<CommandLine> commands = parseCommandFile(cmdFile, extraArgs);
+        List<CommandFileEntry> entries = new ArrayList<CommandFileEntry>();
+        if (mReloadCmdfiles) {
+            synchronized (this) {
+                mCmdFileEntries.put(cmdFile.getAbsolutePath(), entries);
+            }
+        }
+        for (CommandLine command : commands) {
+            CommandFileEntry entry = addCommandFileLine(cmdFile, command);
+            synchronized (this) {
+                entries.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Reloads a command file, only adding and removing the command lines that changed. Commands
+     * from unchanged lines keep their {@link CommandTracker}, and so their execution time and
+     * schedule.
+     * <p/>
+     * Lines whose commands are no longer active, eg because they ran once and completed, are
+     * treated as changed and added again.
+     */
+    private void reloadCommandFile(File cmdFile, List<String> extraArgs)
+            throws ConfigurationException {
+        // parse before removing anything, so that commands are kept if the file fails to load
+        List<CommandLine> commands = parseCommandFile(cmdFile, extraArgs);
+        String path = cmdFile.getAbsolutePath();
+        List<CommandFileEntry> oldEntries;
+        synchronized (this) {
+            oldEntries = mCmdFileEntries.remove(path);
+        }
+        Set<CommandTracker> activeTrackers = new HashSet<CommandTracker>(getCommandTrackers());
+        Map<String, LinkedList<CommandFileEntry>> unmatchedEntries =
+                new HashMap<String, LinkedList<CommandFileEntry>>();
+        Set<CommandTracker> removedTrackers = new HashSet<CommandTracker>();
+        if (oldEntries != null) {
+            for (CommandFileEntry entry : oldEntries) {
+                if (!Collections.disjoint(entry.mTrackers, activeTrackers)) {
+                    LinkedList<CommandFileEntry> lineEntries = unmatchedEntries.get(entry.mLine);
+                    if (lineEntries == null) {
+                        lineEntries = new LinkedList<CommandFileEntry>();
+                        unmatchedEntries.put(entry.mLine, lineEntries);
+                    }
+                    lineEntries.add(entry);
+                }
+            }
+        }
+        List<CommandFileEntry> newEntries = new ArrayList<CommandFileEntry>();
+        List<CommandLine> addedCommands = new ArrayList<CommandLine>();
+        for (CommandLine command : commands) {
+            LinkedList<CommandFileEntry> sameLineEntries = unmatchedEntries.get(
+                    QuotationAwareTokenizer.combineTokens(command.asArray()));
+            if (sameLineEntries != null && !sameLineEntries.isEmpty()) {
+                newEntries.add(sameLineEntries.removeFirst());
+            } else {
+                addedCommands.add(command);
+            }
+        }
+        for (List<CommandFileEntry> entries : unmatchedEntries.values()) {
+            for (CommandFileEntry entry : entries) {
+                removedTrackers.addAll(entry.mTrackers);
+            }
+        }
+        int unchanged = newEntries.size();
+        removeCommands(removedTrackers);
+
+        ConfigurationException addException = null;
+        for (CommandLine command : addedCommands) {
+            try {
+                newEntries.add(addCommandFileLine(cmdFile, command));
+            } catch (ConfigurationException e) {
+                CLog.e(e.getMessage());
+                if (addException == null) {
+                    addException = e;
+                }
+            }
+        }
+        synchronized (this) {
+            mCmdFileEntries.put(path, newEntries);
+        }
+        CLog.logAndDisplay(LogLevel.INFO,
+                "Reloaded cmdfile '%s': %d commands unchanged, %d removed, %d added", path,
+                unchanged, removedTrackers.size(), newEntries.size() - unchanged);
+        if (addException != null) {
+            throw addException;
+        }
+    }
+
+    /**
+     * Parses a command file, and registers it with the command file watcher if enabled.
+     *
+     * @return the {@link CommandLine}s of the file, with extraArgs appended
+     */
+    private List<CommandLine> parseCommandFile(File cmdFile, List<String> extraArgs)
+            throws ConfigurationException {
         try {
             CommandFileParser parser = createCommandFileParser();
 
@@ -766,22 +918,34 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             }
             for (CommandLine command : commands) {
                 command.addAll(extraArgs);
-                String[] arrayCommand = command.asArray();
-                final String prettyCmdLine = QuotationAwareTokenizer.combineTokens(arrayCommand);
-                CLog.d("Adding command %s", prettyCmdLine);
-
-                try {
-                    internalAddCommand(arrayCommand, 0, cmdFile.getAbsolutePath());
-                } catch (ConfigurationException e) {
-                    throw new ConfigurationException(String.format(
-                            "Failed to add command '%s': %s", prettyCmdLine, e.getMessage()), e);
-                }
             }
+            return commands;
         } catch (IOException e) {
             throw new ConfigurationException("Failed to read file " + cmdFile.getAbsolutePath(), e);
         }
     }
 
+    /**
+     * Adds a command line of a command file.
+     *
+     * @return the {@link CommandFileEntry} for the line
+     */
+    private CommandFileEntry addCommandFileLine(File cmdFile, CommandLine command)
+            throws ConfigurationException {
+        String[] arrayCommand = command.asArray();
+        final String prettyCmdLine = QuotationAwareTokenizer.combineTokens(arrayCommand);
+        CLog.d("Adding command %s", prettyCmdLine);
+
+        List<CommandTracker> trackers = new ArrayList<CommandTracker>();
+        try {
+            internalAddCommand(arrayCommand, 0, cmdFile.getAbsolutePath(), trackers);
+        } catch (ConfigurationException e) {
+            throw new ConfigurationException(String.format(
+                    "Failed to add command '%s': %s", prettyCmdLine, e.getMessage()), e);
+        }
+        return new CommandFileEntry(prettyCmdLine, trackers);
+    }
+
     /**
      * Factory method for creating a {@link CommandFileParser}.
      * <p/>
@@ -797,8 +961,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      * Note this won't have the desired effect if user has specified other
      * conflicting {@link IConfiguration#getDeviceRequirements()}in the command.
      */
-    private void addCommandForAllDevices(long totalExecTime, String[] args, String cmdFilePath)
-            throws ConfigurationException {
+    private void addCommandForAllDevices(long totalExecTime, String[] args, String cmdFilePath,
+            List<CommandTracker> addedTrackers) throws ConfigurationException {
         List<DeviceDescriptor> deviceDescs = getDeviceManager().listAllDevices();
 
         for (DeviceDescriptor deviceDesc : deviceDescs) {
@@ -809,6 +973,9 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 argsWithDevice[argsWithDevice.length - 1] = device;
                 CommandTracker cmdTracker = createCommandTracker(argsWithDevice, cmdFilePath);
                 cmdTracker.incrementExecTime(totalExecTime);
+                if (addedTrackers != null) {
+                    addedTrackers.add(cmdTracker);
+                }
                 IConfiguration config = getConfigFactory().createConfigurationFromArgs(
                         cmdTracker.getArgs());
                 CLog.logAndDisplay(LogLevel.INFO, "Scheduling '%s' on '%s'", cmdTracker.getArgs()[0],
@@ -869,6 +1036,11 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         if (isShutdown()) {
             return false;
         }
+        if (cmd.getCommandTracker().isRemoved()) {
+            // an instance of a removed command that was executing is trying to loop or reschedule
+            CLog.d("not queuing removed command id %d", cmd.getCommandTracker().getId());
+            return false;
+        }
         if (delayTime > 0) {
             mSleepingCommands.add(cmd);
             // delay before making command active
@@ -877,7 +1049,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 public void run() {
                     synchronized (CommandScheduler.this) {
                         if (mSleepingCommands.remove(cmd)) {
-                            mReadyCommands.add(cmd);
+                            mReadyCommands.add(cmd,
+                                    cmd.getConfiguration().getDeviceRequirements());
                             mCommandProcessWait.signalEventReceived();
                         }
                     }
@@ -885,7 +1058,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             };
             mCommandTimer.schedule(delayCommand, delayTime, TimeUnit.MILLISECONDS);
         } else {
-            mReadyCommands.add(cmd);
+            mReadyCommands.add(cmd, cmd.getConfiguration().getDeviceRequirements());
             mCommandProcessWait.signalEventReceived();
         }
         return true;
@@ -1008,6 +1181,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         if (mReloadCmdfiles) {
             getCommandFileWatcher().removeAllFiles();
         }
+        mCmdFileEntries.clear();
         if (mCommandTimer != null) {
             for (Runnable task : mCommandTimer.getQueue()) {
                 mCommandTimer.remove(task);
@@ -1021,25 +1195,27 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     }
 
     /**
-     * Remove commands originally added via the given command file
-     * @param cmdFile
+     * Remove the waiting and sleeping instances of given commands. Executing instances are left
+     * to complete, but will not be rescheduled.
+     *
+     * @param cmdTrackers the {@link CommandTracker}s of the commands to remove
      */
-    private synchronized void removeCommandsFromFile(File cmdFile) {
-        Iterator<ExecutableCommand> cmdIter = mReadyCommands.iterator();
-        while (cmdIter.hasNext()) {
-            ExecutableCommand cmd = cmdIter.next();
-            String path = cmd.getCommandFilePath();
-            if (path != null &&
-                    path.equals(cmdFile.getAbsolutePath())) {
-                cmdIter.remove();
+    private synchronized void removeCommands(Set<CommandTracker> cmdTrackers) {
+        if (cmdTrackers.isEmpty()) {
+            return;
+        }
+        for (CommandTracker cmdTracker : cmdTrackers) {
+            cmdTracker.setRemoved();
+        }
+        for (ExecutableCommand cmd : mReadyCommands.getCommands()) {
+            if (cmdTrackers.contains(cmd.getCommandTracker())) {
+                mReadyCommands.remove(cmd);
             }
         }
-        cmdIter = mSleepingCommands.iterator();
+        Iterator<ExecutableCommand> cmdIter = mSleepingCommands.iterator();
         while (cmdIter.hasNext()) {
             ExecutableCommand cmd = cmdIter.next();
-            String path = cmd.getCommandFilePath();
-            if (path != null &&
-                    path.equals(cmdFile.getAbsolutePath())) {
+            if (cmdTrackers.contains(cmd.getCommandTracker())) {
                 cmdIter.remove();
             }
         }
@@ -1182,6 +1358,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     void initLogging() {
         DdmPreferences.setLogLevel(LogLevel.VERBOSE.getStringValue());
         Log.setLogOutput(LogRegistry.getLogRegistry());
+        CLog.setLogRegistry(LogRegistry.getLogRegistry());
     }
 
     /**
@@ -1397,12 +1574,16 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         }
 
         /**
-         * Wait indefinitely for event to be received, and reset state back to 'no event received'
-         * upon completion.
+         * Wait for event to be received for a max of given ms, and reset state back to 'no event
+         * received' upon completion.
+         *
+         * @param maxWaitTime the max time in ms to wait. If <= 0 wait indefinitely
+         * @return true if event received before time elapsed, false otherwise
          */
-        public synchronized void waitAndReset() {
-            waitForEvent();
+        public synchronized boolean waitAndReset(long maxWaitTime) {
+            boolean received = maxWaitTime > 0 ? waitForEvent(maxWaitTime) : waitForEvent();
             reset();
+            return received;
         }
 
         /**
@@ -1482,11 +1663,10 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     public void notifyFileChanged(File cmdFile, List<String> extraArgs) {
         CLog.logAndDisplay(LogLevel.INFO, "Detected update for cmdfile '%s'. Reloading",
                 cmdFile.getAbsolutePath());
-        removeCommandsFromFile(cmdFile);
         try {
-            // just add the file again, including re-registering for command file watcher
-            // don't want to remove the registration here in case file fails to load
-            internalAddCommandFile(cmdFile, extraArgs);
+            // re-registers for command file watcher, as the dependent file list might have
+            // changed. Don't want to remove the registration here in case file fails to load
+            reloadCommandFile(cmdFile, extraArgs);
         } catch (ConfigurationException e) {
             CLog.wtf(String.format("Failed to automatically reload cmdfile %s",
                     cmdFile.getAbsolutePath()), e);
@@ -1511,7 +1691,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         for (ExecutableCommand cmd : mExecutingCommands) {
             cmds.add(new ExecutableCommandState(cmd, CommandState.EXECUTING));
         }
-        for (ExecutableCommand cmd : mReadyCommands) {
+        for (ExecutableCommand cmd : mReadyCommands.getCommands()) {
             cmds.add(new ExecutableCommandState(cmd, CommandState.WAITING_FOR_DEVICE));
         }
         for (ExecutableCommand cmd : mSleepingCommands) {
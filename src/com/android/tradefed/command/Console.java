@@ -23,6 +23,7 @@ import com.android.tradefed.config.ConfigurationFactory;
 import com.android.tradefed.config.GlobalConfiguration;
 import com.android.tradefed.config.IConfigurationFactory;
 import com.android.tradefed.config.Option;
+import com.android.tradefed.device.DeviceWaitStats;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.log.ConsoleReaderOutputStream;
 import com.android.tradefed.log.LogRegistry;
@@ -414,6 +415,8 @@ public class Console extends Thread {
                 "\tl[ogs]             Dump the logs of all invocations to files" + LINE_SEPARATOR +
                 "\tc[onfig] <config>  Dump the content of the specified config" + LINE_SEPARATOR +
                 "\tcommandQueue       Dump the contents of the commmand execution queue" +
+                LINE_SEPARATOR +
+                "\tw[aits]            Dump the latencies of device state waits" +
                 LINE_SEPARATOR,
                 DUMP_PATTERN));
 
@@ -509,6 +512,12 @@ public class Console extends Thread {
                 mScheduler.displayCommandQueue(new PrintWriter(System.out, true));
             }
         }, DUMP_PATTERN, "commandQueue");
+        trie.put(new Runnable() {
+            @Override
+            public void run() {
+                DeviceWaitStats.getInstance().printStats(new PrintWriter(System.out, true));
+            }
+        }, DUMP_PATTERN, "w(?:aits?)?");
 
         // Run commands
         ArgRunnable<CaptureList> runRunCommand = new ArgRunnable<CaptureList>() {
@@ -84,4 +84,21 @@ public interface ICommandOptions {
      */
     public boolean takeBugreportOnInvocationEnded();
 
+    /**
+     * Return true if tests that expose their test list should be split into shards of balanced
+     * expected duration, one per available device.
+     */
+    public boolean isAutoShard();
+
+    /**
+     * Sets whether tests should be automatically sharded.
+     */
+    public void setAutoShard(boolean autoShard);
+
+    /**
+     * Return the maximum number of shards to create when automatically sharding, or 0 if there
+     * is no limit.
+     */
+    public int getMaxShards();
+
 }
@@ -30,20 +30,34 @@ import com.android.tradefed.util.ArrayUtil;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class that receives {@link RemoteOperation}s via a socket.
  * <p/>
- * Currently accepts only one remote connection at one time, and processes incoming commands
- * serially.
+ * Serves any number of concurrent connections from a single selector thread. Clients may
+ * pipeline operations: the operations of a connection are processed in order on a thread pool,
+ * without blocking other connections, and each response echoes the request id of its operation.
  * <p/>
  * Usage:
  * <pre>
@@ -57,10 +71,27 @@ import java.net.SocketTimeoutException;
 @OptionClass(alias = "remote-manager")
 public class RemoteManager extends Thread {
 
-    private ServerSocket mServerSocket = null;
-    private boolean mCancel = false;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    /** max number of operations of a connection waiting to be processed before reads pause */
+    private static final int MAX_PENDING_OPERATIONS = 64;
+    /** max length in bytes of an operation line, longer lines close the connection */
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    /** max time in ms to wait for operations being processed when shutting down */
+    private static final long SHUTDOWN_TIMEOUT = 10 * 1000;
+    private static final AtomicInteger sThreadCount = new AtomicInteger(0);
+
+    private ServerSocketChannel mServerChannel = null;
+    private Selector mSelector = null;
+    private volatile boolean mCancel = false;
     private final IDeviceManager mDeviceManager;
     private final ICommandScheduler mScheduler;
+    private ExecutorService mOperationExecutor = null;
+    private long mShutdownTimeout = SHUTDOWN_TIMEOUT;
+    private final List<ClientConnection> mConnections = new LinkedList<ClientConnection>();
+    /** connections whose interest ops must be updated by the selector thread */
+    private final Queue<ClientConnection> mPendingUpdates =
+            new ConcurrentLinkedQueue<ClientConnection>();
 
     @Option(name = "start-remote-mgr",
             description = "Whether or not to start a remote manager on boot.")
@@ -79,6 +110,10 @@ public class RemoteManager extends Thread {
             description = "Timeout for when accepting connections with the remote manager socket.")
     private static int mSocketTimeout = 2000;
 
+    @Option(name = "remote-mgr-threads",
+            description = "The max number of remote operations processed concurrently.")
+    private static int mNumThreads = 8;
+
     public boolean getStartRemoteMgrOnBoot() {
         return mStartRemoteManagerOnBoot;
     }
@@ -95,6 +130,14 @@ public class RemoteManager extends Thread {
         mSocketTimeout = timeout;
     }
 
+    /**
+     * Sets the time to wait for running operations, and then for pending responses to be sent,
+     * on shutdown. Exposed for unit testing.
+     */
+    void setShutdownTimeout(long timeout) {
+        mShutdownTimeout = timeout;
+    }
+
     public boolean getAutoHandover() {
         return mAutoHandover;
     }
@@ -136,20 +179,26 @@ public class RemoteManager extends Thread {
      * @return true if we successfully connect to the port, false otherwise.
      */
     protected boolean connect(int port) {
-        mServerSocket = openSocket(port);
-        return mServerSocket != null;
+        mServerChannel = openSocket(port);
+        return mServerChannel != null;
     }
 
     /**
      * Attempts to open server socket at given port.
      * @param port to open the socket at.
-     * @return the ServerSocket or null if attempt failed.
+     * @return the ServerSocketChannel or null if attempt failed.
      */
-    private ServerSocket openSocket(int port) {
+    private ServerSocketChannel openSocket(int port) {
+        ServerSocketChannel channel = null;
         try {
-            return new ServerSocket(port);
+            channel = ServerSocketChannel.open();
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            return channel;
         } catch (IOException e) {
             CLog.w("Failed to open server socket: %s", e);
+            closeChannel(channel);
             return null;
         }
     }
@@ -158,25 +207,33 @@ public class RemoteManager extends Thread {
     /**
      * The main thread body of the remote manager.
      * <p/>
-     * Creates a server socket, and waits for client connections.
+     * Waits for client connections and operations, until cancelled.
      */
     @Override
     public void run() {
-        if (mServerSocket == null) {
+        if (mServerChannel == null) {
             CLog.e("Started remote manager thread without connecting");
             return;
         }
+        mOperationExecutor = Executors.newFixedThreadPool(mNumThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, String.format("RemoteOperation-%d",
+                        sThreadCount.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         try {
-            // Set a timeout as we don't want to be blocked listening for connections,
-            // we could receive a request for cancel().
-            mServerSocket.setSoTimeout(mSocketTimeout);
-            processClientConnections(mServerSocket);
-        } catch (SocketException e) {
-            // TODO Auto-generated catch block
-            CLog.e("Error when setting socket timeout :%s", e);
+            synchronized (this) {
+                mSelector = Selector.open();
+            }
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+            processClientConnections(mSelector);
+        } catch (IOException e) {
+            CLog.e("Error when processing remote connections: %s", e);
         } finally {
-            freeAllDevices();
-            closeSocket(mServerSocket);
+            shutdown();
         }
     }
 
@@ -188,99 +245,175 @@ public class RemoteManager extends Thread {
      * @return
      */
     public synchronized int getPort() {
-        if (mServerSocket == null) {
+        if (mServerChannel == null) {
             try {
                 wait(10*1000);
             } catch (InterruptedException e) {
                 // ignore
             }
         }
-        if (mServerSocket == null) {
+        if (mServerChannel == null) {
             return -1;
         }
-        return mServerSocket.getLocalPort();
+        return mServerChannel.socket().getLocalPort();
     }
 
-    private void processClientConnections(ServerSocket serverSocket) {
+    private void processClientConnections(Selector selector) throws IOException {
+        ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
         while (!mCancel) {
-            Socket clientSocket = null;
-            BufferedReader in = null;
-            PrintWriter out = null;
+            // wake up periodically, as a safety net for a missed cancel
+            selector.select(mSocketTimeout);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    acceptConnection(selector);
+                    continue;
+                }
+                ClientConnection connection = (ClientConnection)key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.read(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                } catch (IOException e) {
+                    CLog.w("Closing remote connection after error: %s", e);
+                    connection.close();
+                }
+            }
+            ClientConnection connection;
+            while ((connection = mPendingUpdates.poll()) != null) {
+                connection.updateInterestOps();
+            }
+        }
+    }
+
+    private void acceptConnection(Selector selector) {
+        SocketChannel channel = null;
+        try {
+            channel = mServerChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            ClientConnection connection = new ClientConnection(channel);
+            connection.mKey = channel.register(selector, SelectionKey.OP_READ, connection);
+            synchronized (mConnections) {
+                mConnections.add(connection);
+            }
+        } catch (IOException e) {
+            CLog.e("Failed to accept connection: %s", e);
+            closeChannel(channel);
+        }
+    }
+
+    /**
+     * Stops processing operations, flushes the responses of processed operations, and closes
+     * all connections.
+     */
+    private void shutdown() {
+        mOperationExecutor.shutdown();
+        try {
+            if (!mOperationExecutor.awaitTermination(mShutdownTimeout, TimeUnit.MILLISECONDS)) {
+                CLog.w("Remote operations still running after %d ms", mShutdownTimeout);
+            }
+        } catch (InterruptedException e) {
+            CLog.e(e);
+        }
+        List<ClientConnection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<ClientConnection>(mConnections);
+        }
+        // clients that stop reading must not hold up the shutdown
+        long deadline = System.currentTimeMillis() + mShutdownTimeout;
+        for (ClientConnection connection : connections) {
+            connection.flushAndClose(deadline);
+        }
+        freeAllDevices();
+        closeChannel(mServerChannel);
+        if (mSelector != null) {
             try {
-                clientSocket = serverSocket.accept();
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                processClientOperations(in, out);
-            } catch (SocketTimeoutException e) {
-                // ignore.
+                mSelector.close();
             } catch (IOException e) {
-                CLog.e("Failed to accept connection: %s", e);
-            } finally {
-                closeReader(in);
-                closeWriter(out);
-                closeSocket(clientSocket);
+                // ignore
             }
         }
     }
 
-    private void processClientOperations(BufferedReader in, PrintWriter out) throws IOException {
-        String line = null;
-        while ((line = in.readLine()) != null && !mCancel) {
-            JSONObject result = new JSONObject();
-            RemoteOperation rc;
-            Thread postOp = null;
+    /**
+     * Processes an operation.
+     *
+     * @param line the operation, in its wire protocol format
+     * @param connection the {@link ClientConnection} the operation was received on, to send the
+     *            response to
+     */
+    private void processClientOperation(String line, ClientConnection connection) {
+        JSONObject result = new JSONObject();
+        RemoteOperation rc = null;
+        Thread postOp = null;
+        try {
+            rc = RemoteOperation.createRemoteOpFromString(line);
+            switch (rc.getType()) {
+                case ADD_COMMAND:
+                    processAdd((AddCommandOp)rc, result);
+                    break;
+                case ADD_COMMAND_FILE:
+                    processAddCommandFile((AddCommandFileOp)rc, result);
+                    break;
+                case CLOSE:
+                    processClose((CloseOp)rc, result);
+                    break;
+                case ALLOCATE_DEVICE:
+                    processAllocate((AllocateDeviceOp)rc, result);
+                    break;
+                case FREE_DEVICE:
+                    processFree((FreeDeviceOp)rc, result);
+                    break;
+                case START_HANDOVER:
+                    postOp = processStartHandover((StartHandoverOp)rc, result);
+                    break;
+                case HANDOVER_INIT_COMPLETE:
+                    processHandoverInitComplete((HandoverInitCompleteOp)rc, result);
+                    break;
+                case HANDOVER_COMPLETE:
+                    postOp = processHandoverComplete((HandoverCompleteOp)rc, result);
+                    break;
+                case LIST_DEVICES:
+                    processListDevices((ListDevicesOp)rc, result);
+                    break;
+                case EXEC_COMMAND:
+                    processExecCommand((ExecCommandOp)rc, result);
+                    break;
+                case GET_LAST_COMMAND_RESULT:
+                    processGetLastCommandResult((GetLastCommandResultOp)rc, result);
+                    break;
+                default:
+                    result.put(RemoteOperation.ERROR, "Unrecognized operation");
+                    break;
+            }
+        } catch (RemoteException e) {
+            addErrorToResult(result, e);
+        } catch (JSONException e) {
+            addErrorToResult(result, e);
+        } catch (RuntimeException e) {
+            addErrorToResult(result, e);
+        }
+        // only parse the line again if it could not be turned into an operation
+        long requestId = rc != null ? rc.getRequestId() : RemoteOperation.getRequestId(line);
+        if (requestId != RemoteOperation.NO_REQUEST_ID) {
             try {
-                rc = RemoteOperation.createRemoteOpFromString(line);
-                switch (rc.getType()) {
-                    case ADD_COMMAND:
-                        processAdd((AddCommandOp)rc, result);
-                        break;
-                    case ADD_COMMAND_FILE:
-                        processAddCommandFile((AddCommandFileOp)rc, result);
-                        break;
-                    case CLOSE:
-                        processClose((CloseOp)rc, result);
-                        break;
-                    case ALLOCATE_DEVICE:
-                        processAllocate((AllocateDeviceOp)rc, result);
-                        break;
-                    case FREE_DEVICE:
-                        processFree((FreeDeviceOp)rc, result);
-                        break;
-                    case START_HANDOVER:
-                        postOp = processStartHandover((StartHandoverOp)rc, result);
-                        break;
-                    case HANDOVER_INIT_COMPLETE:
-                        processHandoverInitComplete((HandoverInitCompleteOp)rc, result);
-                        break;
-                    case HANDOVER_COMPLETE:
-                        postOp = processHandoverComplete((HandoverCompleteOp)rc, result);
-                        break;
-                    case LIST_DEVICES:
-                        processListDevices((ListDevicesOp)rc, result);
-                        break;
-                    case EXEC_COMMAND:
-                        processExecCommand((ExecCommandOp)rc, result);
-                        break;
-                    case GET_LAST_COMMAND_RESULT:
-                        processGetLastCommandResult((GetLastCommandResultOp)rc, result);
-                        break;
-                    default:
-                        result.put(RemoteOperation.ERROR, "Unrecognized operation");
-                        break;
-                }
-            } catch (RemoteException e) {
-                addErrorToResult(result, e);
+                result.put(RemoteOperation.REQUEST_ID, requestId);
             } catch (JSONException e) {
                 addErrorToResult(result, e);
-            } catch (RuntimeException e) {
-                addErrorToResult(result, e);
-            }
-            sendAck(result, out);
-            if (postOp != null) {
-                postOp.start();
             }
         }
+        connection.sendResponse(result.toString(), postOp);
     }
 
     private void addErrorToResult(JSONObject result, Exception e) {
@@ -391,6 +524,14 @@ public class RemoteManager extends Thread {
     }
 
     private void processExecCommand(ExecCommandOp c, JSONObject result) throws JSONException {
+        // operations of different connections run concurrently, so check and set the command
+        // tracker atomically
+        synchronized (DeviceTracker.getInstance()) {
+            doExecCommand(c, result);
+        }
+    }
+
+    private void doExecCommand(ExecCommandOp c, JSONObject result) throws JSONException {
         ITestDevice device = DeviceTracker.getInstance().getDeviceForSerial(c.getDeviceSerial());
         if (device == null) {
             String msg = String.format("Could not find remotely allocated device with serial %s",
@@ -450,10 +591,6 @@ public class RemoteManager extends Thread {
         }
     }
 
-    private void sendAck(JSONObject result, PrintWriter out) {
-        out.println(result.toString());
-    }
-
     /**
      * Request to cancel the remote manager.
      */
@@ -461,6 +598,9 @@ public class RemoteManager extends Thread {
         if (!mCancel) {
             mCancel  = true;
             CLog.logAndDisplay(LogLevel.INFO, "Closing remote manager at port %d", getPort());
+            if (mSelector != null) {
+                mSelector.wakeup();
+            }
         }
     }
 
@@ -476,47 +616,288 @@ public class RemoteManager extends Thread {
         }
     }
 
-    private void closeSocket(ServerSocket serverSocket) {
-        if (serverSocket != null) {
+    private void closeChannel(Channel channel) {
+        if (channel != null) {
             try {
-                serverSocket.close();
+                channel.close();
             } catch (IOException e) {
                 CLog.e("Failed to close socket: %s", e);
             }
         }
     }
 
-    private void closeSocket(Socket clientSocket) {
-        if (clientSocket != null) {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                // ignore
-                e.printStackTrace();
-            }
+    /**
+     * @return <code>true</code> if a cancel has been requested
+     */
+    public boolean isCanceled() {
+        return mCancel;
+    }
+
+    /**
+     * A response waiting to be sent.
+     */
+    private static class PendingResponse {
+        final ByteBuffer mData;
+        /** the {@link Thread} to start once the response has been sent, or <code>null</code> */
+        final Thread mPostOp;
+
+        PendingResponse(ByteBuffer data, Thread postOp) {
+            mData = data;
+            mPostOp = postOp;
         }
     }
 
-    private void closeReader(BufferedReader in) {
-        if (in != null) {
+    /**
+     * A client connection. Reads and writes are done on the selector thread; operations are
+     * processed in order, one at a time, on the operation thread pool.
+     */
+    private class ClientConnection implements Runnable {
+        private final SocketChannel mChannel;
+        private SelectionKey mKey = null;
+        /** the partial line carried over from the previous read */
+        private final ByteArrayOutputStream mLineBuffer = new ByteArrayOutputStream();
+        private final LinkedList<String> mPendingOperations = new LinkedList<String>();
+        private final LinkedList<PendingResponse> mPendingResponses =
+                new LinkedList<PendingResponse>();
+        private boolean mProcessing = false;
+        private boolean mInputClosed = false;
+        private boolean mClosed = false;
+
+        ClientConnection(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        /**
+         * Reads available data, and queues the operations it completes for processing.
+         */
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int read = mChannel.read(buffer);
+            if (read < 0) {
+                synchronized (this) {
+                    mInputClosed = true;
+                }
+                updateInterestOps();
+                return;
+            }
+            byte[] data = buffer.array();
+            List<String> lines = new ArrayList<String>();
+            int lineStart = 0;
+            for (int i = 0; i < read; i++) {
+                if (data[i] == '\n') {
+                    appendToLine(data, lineStart, i - lineStart);
+                    lines.add(decodeLine(mLineBuffer.toByteArray()));
+                    mLineBuffer.reset();
+                    lineStart = i + 1;
+                }
+            }
+            appendToLine(data, lineStart, read - lineStart);
+            if (lines.isEmpty()) {
+                return;
+            }
+            synchronized (this) {
+                mPendingOperations.addAll(lines);
+                if (!mProcessing) {
+                    mProcessing = true;
+                    mOperationExecutor.execute(this);
+                }
+            }
+            updateInterestOps();
+        }
+
+        private void appendToLine(byte[] data, int offset, int length) throws IOException {
+            if (mLineBuffer.size() + length > MAX_LINE_LENGTH) {
+                throw new IOException(String.format(
+                        "Remote operation exceeds max length of %d bytes", MAX_LINE_LENGTH));
+            }
+            mLineBuffer.write(data, offset, length);
+        }
+
+        private String decodeLine(byte[] line) {
+            int length = line.length;
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            return new String(line, 0, length, UTF_8);
+        }
+
+        /**
+         * Processes the queued operations.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                String line;
+                synchronized (this) {
+                    if (mPendingOperations.isEmpty() || mClosed || mCancel) {
+                        mPendingOperations.clear();
+                        mProcessing = false;
+                        break;
+                    }
+                    line = mPendingOperations.removeFirst();
+                }
+                processClientOperation(line, this);
+            }
+            requestUpdate();
+        }
+
+        /**
+         * Queues a response to be sent.
+         *
+         * @param response the response, in its wire protocol format
+         * @param postOp the {@link Thread} to start once the response has been sent, or
+         *            <code>null</code>
+         */
+        void sendResponse(String response, Thread postOp) {
+            synchronized (this) {
+                mPendingResponses.add(new PendingResponse(
+                        ByteBuffer.wrap((response + "\n").getBytes(UTF_8)), postOp));
+            }
+            requestUpdate();
+        }
+
+        /**
+         * Writes queued responses, until the socket would block.
+         */
+        void write() throws IOException {
+            while (true) {
+                PendingResponse response;
+                synchronized (this) {
+                    if (mPendingResponses.isEmpty()) {
+                        break;
+                    }
+                    response = mPendingResponses.getFirst();
+                }
+                mChannel.write(response.mData);
+                if (response.mData.hasRemaining()) {
+                    return;
+                }
+                synchronized (this) {
+                    mPendingResponses.removeFirst();
+                }
+                if (response.mPostOp != null) {
+                    response.mPostOp.start();
+                }
+            }
+            updateInterestOps();
+        }
+
+        /**
+         * Asks the selector thread to update the operations this connection waits for.
+         */
+        private void requestUpdate() {
+            mPendingUpdates.add(this);
+            mSelector.wakeup();
+        }
+
+        /**
+         * Updates the operations this connection waits for: reads unless too many operations
+         * are pending, and writes if responses are pending. Closes the connection once the client
+         * closed it and all its operations have been answered.
+         */
+        synchronized void updateInterestOps() {
+            if (mClosed || !mKey.isValid()) {
+                return;
+            }
+            if (mInputClosed && !mProcessing && mPendingOperations.isEmpty() &&
+                    mPendingResponses.isEmpty()) {
+                close();
+                return;
+            }
+            int ops = 0;
+            if (!mInputClosed && mPendingOperations.size() < MAX_PENDING_OPERATIONS) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!mPendingResponses.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            mKey.interestOps(ops);
+        }
+
+        /**
+         * Sends the queued responses, waiting for the client to read them until the given
+         * deadline, and closes the connection. Must only be called once operations are no longer
+         * processed.
+         *
+         * @param deadline the time in ms since epoch after which unsent responses are dropped
+         */
+        void flushAndClose(long deadline) {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+            }
+            List<PendingResponse> responses;
+            synchronized (this) {
+                responses = new ArrayList<PendingResponse>(mPendingResponses);
+                mPendingResponses.clear();
+            }
+            Selector writeSelector = null;
             try {
-                in.close();
+                mKey.cancel();
+                // deregister the channel, so that it can wait for writes on its own selector
+                mSelector.selectNow();
+                writeSelector = Selector.open();
+                mChannel.register(writeSelector, SelectionKey.OP_WRITE);
+                for (int i = 0; i < responses.size(); i++) {
+                    PendingResponse response = responses.get(i);
+                    if (!writeFully(response.mData, writeSelector, deadline)) {
+                        CLog.w("Timed out sending remote responses, dropping %d",
+                                responses.size() - i);
+                        break;
+                    }
+                    if (response.mPostOp != null) {
+                        response.mPostOp.start();
+                    }
+                }
             } catch (IOException e) {
-                // ignore
+                CLog.w("Failed to send remote responses: %s", e);
+            } finally {
+                if (writeSelector != null) {
+                    try {
+                        writeSelector.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
             }
+            close();
         }
-    }
 
-    private void closeWriter(PrintWriter out) {
-        if (out != null) {
-            out.close();
+        /**
+         * Writes all of the given data to the non-blocking channel, waiting on the given selector
+         * while the socket would block.
+         *
+         * @return <code>false</code> if the deadline was reached before all data was written
+         */
+        private boolean writeFully(ByteBuffer data, Selector writeSelector, long deadline)
+                throws IOException {
+            while (true) {
+                mChannel.write(data);
+                if (!data.hasRemaining()) {
+                    return true;
+                }
+                long waitTime = deadline - System.currentTimeMillis();
+                if (waitTime <= 0) {
+                    return false;
+                }
+                writeSelector.select(waitTime);
+                writeSelector.selectedKeys().clear();
+            }
         }
-    }
 
-    /**
-     * @return <code>true</code> if a cancel has been requested
-     */
-    public boolean isCanceled() {
-        return mCancel;
+        synchronized void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mKey != null) {
+                mKey.cancel();
+            }
+            closeChannel(mChannel);
+            synchronized (mConnections) {
+                mConnections.remove(this);
+            }
+        }
     }
 }
@@ -24,6 +24,9 @@ import java.util.Map;
 
 /**
  * Holds a record of a configuration, its associated objects and their options.
+ * <p/>
+ * Definitions are cached and shared by {@link ConfigurationFactory}, so must not be modified once
+ * loaded.
  */
 public class ConfigurationDef {
 
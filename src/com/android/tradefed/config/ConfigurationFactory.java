@@ -23,21 +23,26 @@ import com.android.tradefed.util.StreamUtil;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Factory for creating {@link IConfiguration}.
@@ -49,7 +54,8 @@ public class ConfigurationFactory implements IConfigurationFactory {
     private static final String CONFIG_SUFFIX = ".xml";
     private static final String CONFIG_PREFIX = "config/";
 
-    private Map<String, ConfigurationDef> mConfigDefMap;
+    /** cache of loaded config definitions */
+    private final Map<ConfigId, CachedConfigDef> mConfigDefMap;
 
     /**
      * A {@link IClassPathFilter} for configuration XML files.
@@ -61,9 +67,8 @@ public class ConfigurationFactory implements IConfigurationFactory {
          */
         @Override
         public boolean accept(String pathName) {
-            // only accept entries that match the pattern, and that we don't already know about
-            return pathName.startsWith(CONFIG_PREFIX) && pathName.endsWith(CONFIG_SUFFIX) &&
-                    !mConfigDefMap.containsKey(pathName);
+            // only accept entries that match the pattern
+            return pathName.startsWith(CONFIG_PREFIX) && pathName.endsWith(CONFIG_SUFFIX);
         }
 
         /**
@@ -94,6 +99,85 @@ public class ConfigurationFactory implements IConfigurationFactory {
 
     }
 
+    /**
+     * The key of a cached {@link ConfigurationDef}.
+     */
+    private static class ConfigId {
+        private final String mName;
+        private final boolean mIsGlobalConfig;
+
+        ConfigId(String name, boolean isGlobalConfig) {
+            mName = name;
+            mIsGlobalConfig = isGlobalConfig;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ConfigId)) {
+                return false;
+            }
+            ConfigId other = (ConfigId)obj;
+            return mName.equals(other.mName) && mIsGlobalConfig == other.mIsGlobalConfig;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return 31 * mName.hashCode() + (mIsGlobalConfig ? 1 : 0);
+        }
+    }
+
+    /**
+     * A file that a {@link ConfigurationDef} was loaded from, and its state at load time.
+     * <p/>
+     * For configs bundled in a jar, this is the jar file itself.
+     */
+    private static class ConfigSource {
+        private final File mFile;
+        private final long mLastModified;
+        private final long mLength;
+
+        ConfigSource(File file) {
+            mFile = file;
+            mLastModified = file.lastModified();
+            mLength = file.length();
+        }
+
+        boolean isModified() {
+            return mFile.lastModified() != mLastModified || mFile.length() != mLength;
+        }
+    }
+
+    /**
+     * A cached {@link ConfigurationDef}, along with the files it was loaded from.
+     */
+    private static class CachedConfigDef {
+        private final ConfigurationDef mDef;
+        private final List<ConfigSource> mSources;
+
+        CachedConfigDef(ConfigurationDef def, List<ConfigSource> sources) {
+            mDef = def;
+            mSources = sources;
+        }
+
+        /**
+         * @return <code>true</code> if any of the files this def was loaded from have changed
+         */
+        boolean isStale() {
+            for (ConfigSource source : mSources) {
+                if (source.isModified()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     /**
      * Implementation of {@link IConfigDefLoader} that tracks the included configurations from one
      * root config, and throws an exception on circular includes.
@@ -102,6 +186,7 @@ public class ConfigurationFactory implements IConfigurationFactory {
 
         private final boolean mIsGlobalConfig;
         private Set<String> mIncludedConfigs = new HashSet<String>();
+        private List<ConfigSource> mSources = new ArrayList<ConfigSource>();
 
         public ConfigLoader(boolean isGlobalConfig) {
             mIsGlobalConfig = isGlobalConfig;
@@ -113,13 +198,18 @@ public class ConfigurationFactory implements IConfigurationFactory {
         @Override
         public ConfigurationDef getConfigurationDef(String name) throws ConfigurationException {
             // first attempt to load cached config def
-            ConfigurationDef def = mConfigDefMap.get(name);
-            if (def == null) {
-                // not found - load from file
-                def = new ConfigurationDef(name);
-                loadConfiguration(name, def);
-                mConfigDefMap.put(name, def);
+            ConfigId id = new ConfigId(name, mIsGlobalConfig);
+            CachedConfigDef cachedDef = mConfigDefMap.get(id);
+            if (cachedDef != null) {
+                if (!cachedDef.isStale()) {
+                    return cachedDef.mDef;
+                }
+                CLog.d("Configuration '%s' has changed, reloading", name);
             }
+            // not found - load from file
+            ConfigurationDef def = new ConfigurationDef(name);
+            loadConfiguration(name, def);
+            mConfigDefMap.put(id, new CachedConfigDef(def, mSources));
             return def;
         }
 
@@ -145,6 +235,11 @@ public class ConfigurationFactory implements IConfigurationFactory {
          */
         void loadConfiguration(String name, ConfigurationDef def) throws ConfigurationException {
             Log.i(LOG_TAG, String.format("Loading configuration '%s'", name));
+            // record file state before reading, so a concurrent change is detected on next use
+            File sourceFile = getConfigSourceFile(name);
+            if (sourceFile != null) {
+                mSources.add(new ConfigSource(sourceFile));
+            }
             BufferedInputStream bufStream = getConfigStream(name);
             ConfigurationXmlParser parser = new ConfigurationXmlParser(this);
             parser.parse(def, name, bufStream);
@@ -160,7 +255,7 @@ public class ConfigurationFactory implements IConfigurationFactory {
     }
 
     ConfigurationFactory() {
-        mConfigDefMap = new Hashtable<String, ConfigurationDef>();
+        mConfigDefMap = new ConcurrentHashMap<ConfigId, CachedConfigDef>();
     }
 
     /**
@@ -175,6 +270,8 @@ public class ConfigurationFactory implements IConfigurationFactory {
 
     /**
      * Retrieve the {@link ConfigurationDef} for the given name
+     * <p/>
+     * Definitions are cached, and reloaded if any of the files they were loaded from changed.
      *
      * @param name the name of a built-in configuration to load or a file path to configuration xml
      *            to load
@@ -281,7 +378,9 @@ public class ConfigurationFactory implements IConfigurationFactory {
         // sort the configs by name before displaying
         SortedSet<ConfigurationDef> configDefs = new TreeSet<ConfigurationDef>(
                 new ConfigDefComparator());
-        configDefs.addAll(mConfigDefMap.values());
+        for (CachedConfigDef cachedDef : mConfigDefMap.values()) {
+            configDefs.add(cachedDef.mDef);
+        }
         for (ConfigurationDef def: configDefs) {
             out.printf("  %s: %s", def.getName(), def.getDescription());
             out.println();
@@ -303,8 +402,7 @@ public class ConfigurationFactory implements IConfigurationFactory {
         Set<String> configNames = cpScanner.getClassPathEntries(new ConfigClasspathFilter());
         for (String configName : configNames) {
             try {
-                ConfigurationDef configDef = getConfigurationDef(configName, false);
-                mConfigDefMap.put(configName, configDef);
+                getConfigurationDef(configName, false);
             } catch (ConfigurationException e) {
                 ps.printf("Failed to load %s: %s", configName, e.getMessage());
                 ps.println();
@@ -370,8 +468,7 @@ public class ConfigurationFactory implements IConfigurationFactory {
      * @throws ConfigurationException if config could not be found
      */
     private BufferedInputStream getConfigStream(String name) throws ConfigurationException {
-        InputStream configStream = getClass().getResourceAsStream(
-                String.format("/%s%s%s", getConfigPrefix(), name, CONFIG_SUFFIX));
+        InputStream configStream = getClass().getResourceAsStream(getConfigResourceName(name));
         if (configStream == null) {
             // now try to load from file
             try {
@@ -385,6 +482,37 @@ public class ConfigurationFactory implements IConfigurationFactory {
         return new BufferedInputStream(configStream);
     }
 
+    private String getConfigResourceName(String name) {
+        return String.format("/%s%s%s", getConfigPrefix(), name, CONFIG_SUFFIX);
+    }
+
+    /**
+     * Gets the file whose modification time reflects changes to given config: the config file
+     * itself, or the jar that contains it.
+     *
+     * @param name the configuration name
+     * @return the {@link File} or <code>null</code> if it could not be determined
+     */
+    private File getConfigSourceFile(String name) {
+        URL configUrl = getClass().getResource(getConfigResourceName(name));
+        if (configUrl == null) {
+            File configFile = new File(name);
+            return configFile.isFile() ? configFile : null;
+        }
+        try {
+            if ("file".equals(configUrl.getProtocol())) {
+                return new File(configUrl.toURI());
+            }
+            URLConnection connection = configUrl.openConnection();
+            if (connection instanceof JarURLConnection) {
+                return new File(((JarURLConnection)connection).getJarFileURL().toURI());
+            }
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            CLog.w("Could not determine source of configuration '%s': %s", name, e.toString());
+        }
+        return null;
+    }
+
     /**
      * Utility method that checks that all configs can be loaded, parsed, and all option values
      * set.
@@ -396,7 +524,8 @@ public class ConfigurationFactory implements IConfigurationFactory {
        boolean failed = false;
        ByteArrayOutputStream baos = new ByteArrayOutputStream();
        PrintStream ps = new PrintStream(baos);
-       for (ConfigurationDef def : mConfigDefMap.values()) {
+       for (CachedConfigDef cachedDef : mConfigDefMap.values()) {
+           ConfigurationDef def = cachedDef.mDef;
            try {
                def.createConfiguration().printCommandUsage(false,
                        new PrintStream(StreamUtil.nullOutputStream()));
@@ -18,11 +18,6 @@ package com.android.tradefed.config;
 
 import com.android.tradefed.log.LogUtil.CLog;
 
-import java.lang.reflect.Field;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * A helper class that can copy {@link Option} field values with same names from one object to
  * another.
@@ -38,15 +33,14 @@ public class OptionCopier {
      */
     public static void copyOptions(Object origObject, Object destObject)
             throws ConfigurationException {
-        Collection<Field> origFields = OptionSetter.getOptionFieldsForClass(origObject.getClass());
-        Map<String, Field> destFieldMap = getFieldOptionMap(destObject);
-        for (Field origField : origFields) {
-            final Option option = origField.getAnnotation(Option.class);
-            Field destField = destFieldMap.remove(option.name());
+        OptionSetter.OptionClassSchema origSchema = OptionSetter.getSchema(origObject.getClass());
+        OptionSetter.OptionClassSchema destSchema = OptionSetter.getSchema(destObject.getClass());
+        for (OptionSetter.OptionFieldDef origField : origSchema.getFieldDefs()) {
+            final String optionName = origField.getName();
+            OptionSetter.OptionFieldDef destField = destSchema.getFieldDef(optionName);
             if (destField != null) {
-                Object origValue = OptionSetter.getFieldValue(origField,
-                        origObject);
-                OptionSetter.setFieldValue(option.name(), destObject, destField, origValue);
+                Object origValue = origField.getValue(optionName, origObject);
+                destField.setValue(optionName, destObject, origValue);
             }
         }
     }
@@ -62,20 +56,4 @@ public class OptionCopier {
             CLog.e(e);
         }
     }
-
-    /**
-     * Build a map of {@link Option#name()} to {@link Field} for given {@link Object}.
-     *
-     * @param destObject
-     * @return a {@link Map}
-     */
-    private static Map<String, Field> getFieldOptionMap(Object destObject) {
-        Collection<Field> destFields = OptionSetter.getOptionFieldsForClass(destObject.getClass());
-        Map<String, Field> fieldMap = new HashMap<String, Field>(destFields.size());
-        for (Field field : destFields) {
-            Option o = field.getAnnotation(Option.class);
-            fieldMap.put(o.name(), field);
-        }
-        return fieldMap;
-    }
 }
@@ -21,6 +21,9 @@ import com.android.tradefed.util.ArrayUtil;
 import com.google.common.base.Objects;
 
 import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
@@ -28,11 +31,15 @@ import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Populates {@link Option} fields.
@@ -62,6 +69,15 @@ public class OptionSetter {
     private static final HashMap<Class<?>, Handler> handlers = new HashMap<Class<?>, Handler>();
     static final char NAMESPACE_SEPARATOR = ':';
 
+    /** the {@link OptionClassSchema}s built so far, by class */
+    private static final ConcurrentMap<Class<?>, OptionClassSchema> sSchemaCache =
+            new ConcurrentHashMap<Class<?>, OptionClassSchema>();
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class,
+            Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class,
+            Object.class);
+
     static {
         handlers.put(boolean.class, new BooleanHandler());
         handlers.put(Boolean.class, new BooleanHandler());
@@ -144,20 +160,299 @@ public class OptionSetter {
     private final Collection<Object> mOptionSources;
     private final Map<String, OptionFieldsForName> mOptionMap;
 
+    /**
+     * The precomputed {@link Option} metadata for one class: its option fields, their handlers and
+     * accessors, and the names they can be set by.
+     * <p/>
+     * Built once per class and cached, so creating an {@link OptionSetter} or copying options does
+     * not need to walk the class hierarchy or resolve annotations again.
+     */
+    static class OptionClassSchema {
+        private final List<OptionFieldDef> mFieldDefs;
+        private final Collection<Field> mFields;
+        private final Map<String, OptionFieldDef> mFieldDefsByName;
+        private final String mClassName;
+        private final boolean mAddToGlobalNamespace;
+        /** the {@link OptionClass#alias()}, or <code>null</code> if class has no alias */
+        private final String mAlias;
+
+        OptionClassSchema(Class<?> optionClass) {
+            mClassName = optionClass.getName();
+            final OptionClass classAnnotation = optionClass.getAnnotation(OptionClass.class);
+            if (classAnnotation != null) {
+                // Allow classes to opt out of the global Option namespace
+                mAddToGlobalNamespace = classAnnotation.global_namespace();
+                mAlias = classAnnotation.alias();
+            } else {
+                mAddToGlobalNamespace = true;
+                mAlias = null;
+            }
+            List<Field> fields = new ArrayList<Field>();
+            buildOptionFieldsForClass(optionClass, fields);
+            mFields = Collections.unmodifiableList(fields);
+            List<OptionFieldDef> fieldDefs = new ArrayList<OptionFieldDef>(fields.size());
+            mFieldDefsByName = new HashMap<String, OptionFieldDef>(fields.size());
+            for (Field field : fields) {
+                OptionFieldDef fieldDef = new OptionFieldDef(field, this);
+                fieldDefs.add(fieldDef);
+                mFieldDefsByName.put(fieldDef.getName(), fieldDef);
+            }
+            mFieldDefs = Collections.unmodifiableList(fieldDefs);
+        }
+
+        List<OptionFieldDef> getFieldDefs() {
+            return mFieldDefs;
+        }
+
+        Collection<Field> getFields() {
+            return mFields;
+        }
+
+        /**
+         * @return the {@link OptionFieldDef} with given {@link Option#name()}, or
+         *         <code>null</code>
+         */
+        OptionFieldDef getFieldDef(String optionName) {
+            return mFieldDefsByName.get(optionName);
+        }
+
+        String getClassName() {
+            return mClassName;
+        }
+    }
+
+    /**
+     * The precomputed metadata for one {@link Option} field.
+     */
+    static class OptionFieldDef {
+        private final Field mField;
+        private final Option mOption;
+        /** the handler for field's type, or <code>null</code> if type is not supported */
+        private final Handler mHandler;
+        /** the error to report when this field is used, or <code>null</code> if field is valid */
+        private final String mDefinitionError;
+        private final boolean mIsCollection;
+        private final boolean mIsMap;
+        private final MethodHandle mGetter;
+        /** the setter, or <code>null</code> if field is final */
+        private final MethodHandle mSetter;
+        /** the unqualified names for this field: name, short name and 'no-' boolean name */
+        private final String[] mBaseNames;
+        /** the alias namespaced versions of <var>mBaseNames</var> */
+        private final String[] mAliasNames;
+        /** the class namespaced versions of <var>mBaseNames</var> */
+        private final String[] mClassNames;
+
+        OptionFieldDef(Field field, OptionClassSchema schema) {
+            mField = field;
+            mOption = field.getAnnotation(Option.class);
+            mIsCollection = Collection.class.isAssignableFrom(field.getType());
+            mIsMap = Map.class.isAssignableFrom(field.getType());
+
+            Handler handler = null;
+            String error = null;
+            try {
+                handler = OptionSetter.getHandler(field.getGenericType());
+                if (handler == null) {
+                    error = String.format("Option name '%s' in class '%s' is invalid. " +
+                            "Unsupported @Option field type '%s'", mOption.name(),
+                            schema.getClassName(), field.getType());
+                }
+            } catch (ConfigurationException e) {
+                error = e.getMessage();
+            }
+            mHandler = handler;
+            String definitionError = getDefinitionError(schema.getClassName());
+            mDefinitionError = definitionError != null ? definitionError : error;
+
+            field.setAccessible(true);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle getter = null;
+            MethodHandle setter = null;
+            boolean isStatic = (field.getModifiers() & Modifier.STATIC) != 0;
+            try {
+                getter = lookup.unreflectGetter(field);
+                if (isStatic) {
+                    // static field handles take no instance, so ignore the one passed in
+                    getter = MethodHandles.dropArguments(getter, 0, Object.class);
+                }
+                getter = getter.asType(GETTER_TYPE);
+                if ((field.getModifiers() & Modifier.FINAL) == 0) {
+                    setter = lookup.unreflectSetter(field);
+                    if (isStatic) {
+                        setter = MethodHandles.dropArguments(setter, 0, Object.class);
+                    }
+                    setter = setter.asType(SETTER_TYPE);
+                }
+            } catch (IllegalAccessException e) {
+                // should never happen, since field is accessible
+                CLog.e("Could not access field %s in class %s", field.getName(),
+                        schema.getClassName());
+            }
+            mGetter = getter;
+            mSetter = setter;
+
+            List<String> baseNames = new ArrayList<String>(3);
+            baseNames.add(mOption.name());
+            if (mOption.shortName() != Option.NO_SHORT_NAME) {
+                baseNames.add(String.valueOf(mOption.shortName()));
+            }
+            if (handler != null && handler.isBoolean()) {
+                // add the corresponding "no" option to make boolean false
+                baseNames.add(BOOL_FALSE_PREFIX + mOption.name());
+            }
+            mBaseNames = baseNames.toArray(new String[baseNames.size()]);
+            mAliasNames = new String[mBaseNames.length];
+            mClassNames = new String[mBaseNames.length];
+            for (int i = 0; i < mBaseNames.length; i++) {
+                if (schema.mAlias != null) {
+                    mAliasNames[i] = schema.mAlias + NAMESPACE_SEPARATOR + mBaseNames[i];
+                }
+                mClassNames[i] = schema.getClassName() + NAMESPACE_SEPARATOR + mBaseNames[i];
+            }
+        }
+
+        /**
+         * Check the {@link Option} declaration for problems.
+         *
+         * @return an error message, or <code>null</code> if declaration is valid
+         */
+        private String getDefinitionError(String className) {
+            if (mOption.name().indexOf(NAMESPACE_SEPARATOR) != -1) {
+                return String.format("Option name '%s' in class '%s' is invalid. " +
+                        "Option names cannot contain the namespace separator character '%c'",
+                        mOption.name(), className, NAMESPACE_SEPARATOR);
+            }
+
+            // Make sure the source doesn't use GREATEST or LEAST for a non-Comparable field.
+            final Type type = mField.getGenericType();
+            if ((type instanceof Class) && !(type instanceof ParameterizedType)) {
+                // Not a parameterized type
+                if ((mOption.updateRule() == OptionUpdateRule.GREATEST) ||
+                        (mOption.updateRule() == OptionUpdateRule.LEAST)) {
+                    Class cType = (Class) type;
+                    if (!(Comparable.class.isAssignableFrom(cType))) {
+                        return String.format(
+                                "Option '%s' in class '%s' attempts to use updateRule %s with " +
+                                "non-Comparable type '%s'.", mOption.name(), className,
+                                mOption.updateRule(), mField.getGenericType());
+                    }
+                }
+
+                // don't allow 'final' for non-Collections
+                if ((mField.getModifiers() & Modifier.FINAL) != 0) {
+                    return String.format("Option '%s' in class '%s' is final and cannot be set",
+                            mOption.name(), className);
+                }
+            }
+            return null;
+        }
+
+        Field getField() {
+            return mField;
+        }
+
+        Option getOption() {
+            return mOption;
+        }
+
+        String getName() {
+            return mOption.name();
+        }
+
+        Handler getHandler() {
+            return mHandler;
+        }
+
+        /**
+         * Return this field's value in given object.
+         */
+        Object getValue(String optionName, Object optionSource) throws ConfigurationException {
+            try {
+                return (Object)mGetter.invokeExact(optionSource);
+            } catch (Throwable t) {
+                throw new ConfigurationException(String.format(
+                        "internal error when reading option '%s'", optionName), t);
+            }
+        }
+
+        /**
+         * Sets this field's value in given object. Values are added to {@link Collection} and
+         * {@link Map} fields, and other fields are updated according to the field's
+         * {@link OptionUpdateRule}.
+         *
+         * @param optionName the {@link Option#name()}
+         * @param optionSource the {@link Object} to set
+         * @param value the value to set
+         * @throws ConfigurationException
+         */
+        @SuppressWarnings("unchecked")
+        void setValue(String optionName, Object optionSource, Object value)
+                throws ConfigurationException {
+            if (mIsCollection) {
+                Collection collection = (Collection)getValue(optionName, optionSource);
+                if (collection == null) {
+                    throw new ConfigurationException(String.format(
+                            "internal error: no storage allocated for field '%s' (used for " +
+                            "option '%s') in class '%s'",
+                            mField.getName(), optionName, optionSource.getClass().getName()));
+                }
+                if (value instanceof Collection) {
+                    collection.addAll((Collection)value);
+                } else {
+                    collection.add(value);
+                }
+            } else if (mIsMap) {
+                Map map = (Map)getValue(optionName, optionSource);
+                if (map == null) {
+                    throw new ConfigurationException(String.format(
+                            "internal error: no storage allocated for field '%s' (used for " +
+                            "option '%s') in class '%s'",
+                            mField.getName(), optionName, optionSource.getClass().getName()));
+                }
+                if (value instanceof Map) {
+                    map.putAll((Map)value);
+                } else {
+                    throw new ConfigurationException(String.format(
+                            "internal error: value provided for field '%s' is not a map (used " +
+                            "for option '%s') in class '%s'",
+                            mField.getName(), optionName, optionSource.getClass().getName()));
+                }
+            } else {
+                if (mSetter == null) {
+                    throw new ConfigurationException(String.format(
+                            "internal error when setting option '%s'", optionName));
+                }
+                OptionUpdateRule rule = mOption.updateRule();
+                Object newValue = rule.update(optionName, getValue(optionName, optionSource),
+                        value);
+                try {
+                    mSetter.invokeExact(optionSource, newValue);
+                } catch (Throwable t) {
+                    throw new ConfigurationException(String.format(
+                            "internal error when setting option '%s'", optionName), t);
+                }
+            }
+        }
+    }
+
     /**
      * Container for the list of option fields with given name.
      * <p/>
      * Used to enforce constraint that fields with same name can exist in different option sources,
      * but not the same option source
      */
-    private class OptionFieldsForName implements Iterable<Map.Entry<Object, Field>> {
+    private static class OptionFieldsForName
+            implements Iterable<Map.Entry<Object, OptionFieldDef>> {
 
-        private Map<Object, Field> mSourceFieldMap = new HashMap<Object, Field>();
+        private Map<Object, OptionFieldDef> mSourceFieldMap =
+                new HashMap<Object, OptionFieldDef>();
 
-        void addField(String name, Object source, Field field) throws ConfigurationException {
+        void addField(String name, Object source, OptionFieldDef field)
+                throws ConfigurationException {
             if (size() > 0) {
-                Handler existingFieldHandler = getHandler(getFirstField().getGenericType());
-                Handler newFieldHandler = getHandler(field.getGenericType());
+                Handler existingFieldHandler = getFirstField().getHandler();
+                Handler newFieldHandler = field.getHandler();
                 if (!existingFieldHandler.equals(newFieldHandler)) {
                     throw new ConfigurationException(String.format(
                             "@Option field with name '%s' in class '%s' is defined with a " +
@@ -177,7 +472,7 @@ public class OptionSetter {
             return mSourceFieldMap.size();
         }
 
-        public Field getFirstField() throws ConfigurationException {
+        public OptionFieldDef getFirstField() throws ConfigurationException {
             if (size() <= 0) {
                 // should never happen
                 throw new ConfigurationException("no option fields found");
@@ -194,7 +489,7 @@ public class OptionSetter {
         }
 
         @Override
-        public Iterator<Map.Entry<Object, Field>> iterator() {
+        public Iterator<Map.Entry<Object, OptionFieldDef>> iterator() {
             return mSourceFieldMap.entrySet().iterator();
         }
     }
@@ -233,7 +528,8 @@ public class OptionSetter {
      * @throws ConfigurationException if field could not be found
      */
     public String getTypeForOption(String name) throws ConfigurationException {
-        return fieldsForArg(name).getFirstField().getType().getSimpleName().toLowerCase();
+        return fieldsForArg(name).getFirstField().getField().getType().getSimpleName()
+                .toLowerCase();
     }
 
     /**
@@ -244,84 +540,18 @@ public class OptionSetter {
      */
     public void setOptionValue(String optionName, String valueText) throws ConfigurationException {
         OptionFieldsForName optionFields = fieldsForArg(optionName);
-        for (Map.Entry<Object, Field> fieldEntry : optionFields) {
+        for (Map.Entry<Object, OptionFieldDef> fieldEntry : optionFields) {
 
             Object optionSource = fieldEntry.getKey();
-            Field field = fieldEntry.getValue();
-            Handler handler = getHandler(field.getGenericType());
-            Object value = handler.translate(valueText);
+            OptionFieldDef field = fieldEntry.getValue();
+            Object value = field.getHandler().translate(valueText);
             if (value == null) {
-                final String type = field.getType().getSimpleName();
+                final String type = field.getField().getType().getSimpleName();
                 throw new ConfigurationException(
                         String.format("Couldn't convert '%s' to a %s for option '%s'", valueText,
                                 type, optionName));
             }
-            setFieldValue(optionName, optionSource, field, value);
-        }
-    }
-
-    /**
-     * Sets the given {@link Option} fields value.
-     *
-     * @param optionName the {@link Option#name()}
-     * @param optionSource the {@link Object} to set
-     * @param field the {@link Field}
-     * @param value the value to set
-     * @throws ConfigurationException
-     */
-    @SuppressWarnings("unchecked")
-    static void setFieldValue(String optionName, Object optionSource, Field field, Object value)
-            throws ConfigurationException {
-        try {
-            field.setAccessible(true);
-            if (Collection.class.isAssignableFrom(field.getType())) {
-                Collection collection = (Collection)field.get(optionSource);
-                if (collection == null) {
-                    throw new ConfigurationException(String.format(
-                            "internal error: no storage allocated for field '%s' (used for " +
-                            "option '%s') in class '%s'",
-                            field.getName(), optionName, optionSource.getClass().getName()));
-                }
-                if (value instanceof Collection) {
-                    collection.addAll((Collection)value);
-                } else {
-                    collection.add(value);
-                }
-            } else if (Map.class.isAssignableFrom(field.getType())) {
-                Map map = (Map)field.get(optionSource);
-                if (map == null) {
-                    throw new ConfigurationException(String.format(
-                            "internal error: no storage allocated for field '%s' (used for " +
-                            "option '%s') in class '%s'",
-                            field.getName(), optionName, optionSource.getClass().getName()));
-                }
-                if (value instanceof Map) {
-                    map.putAll((Map)value);
-                } else {
-                    throw new ConfigurationException(String.format(
-                            "internal error: value provided for field '%s' is not a map (used " +
-                            "for option '%s') in class '%s'",
-                            field.getName(), optionName, optionSource.getClass().getName()));
-                }
-            } else {
-                final Option option = field.getAnnotation(Option.class);
-                if (option == null) {
-                    // By virtue of us having gotten here, this should never happen.  But better
-                    // safe than sorry
-                    throw new ConfigurationException(String.format(
-                            "internal error: @Option annotation for field %s in class %s was " +
-                            "unexpectedly null",
-                            field.getName(), optionSource.getClass().getName()));
-                }
-                OptionUpdateRule rule = option.updateRule();
-                field.set(optionSource, rule.update(optionName, optionSource, field, value));
-            }
-        } catch (IllegalAccessException e) {
-            throw new ConfigurationException(String.format(
-                    "internal error when setting option '%s'", optionName), e);
-        } catch (IllegalArgumentException e) {
-            throw new ConfigurationException(String.format(
-                    "internal error when setting option '%s'", optionName), e);
+            field.setValue(optionName, optionSource, value);
         }
     }
 
@@ -337,11 +567,12 @@ public class OptionSetter {
             throws ConfigurationException {
         // FIXME: try to unify code paths with setOptionValue
         OptionFieldsForName optionFields = fieldsForArg(optionName);
-        for (Map.Entry<Object, Field> fieldEntry : optionFields) {
+        for (Map.Entry<Object, OptionFieldDef> fieldEntry : optionFields) {
 
             Object optionSource = fieldEntry.getKey();
-            Field field = fieldEntry.getValue();
-            Handler handler = getHandler(field.getGenericType());
+            OptionFieldDef fieldDef = fieldEntry.getValue();
+            Field field = fieldDef.getField();
+            Handler handler = fieldDef.getHandler();
             if (handler == null || !(handler instanceof MapHandler)) {
                 throw new ConfigurationException("Not a map!");
             }
@@ -376,24 +607,18 @@ public class OptionSetter {
                 }
                 throw new ConfigurationException(message);
             }
-            try {
-                field.setAccessible(true);
-                if (!Map.class.isAssignableFrom(field.getType())) {
-                    throw new ConfigurationException(String.format(
-                            "internal error: not a map field!"));
-                }
-                Map map = (Map)field.get(optionSource);
-                if (map == null) {
-                    throw new ConfigurationException(String.format(
-                            "internal error: no storage allocated for field '%s' (used for " +
-                            "option '%s') in class '%s'",
-                            field.getName(), optionName, optionSource.getClass().getName()));
-                }
-                map.put(pair.mKey, pair.mValue);
-            } catch (IllegalAccessException e) {
+            if (!Map.class.isAssignableFrom(field.getType())) {
                 throw new ConfigurationException(String.format(
-                        "internal error when setting option '%s'", optionName), e);
+                        "internal error: not a map field!"));
             }
+            Map map = (Map)fieldDef.getValue(optionName, optionSource);
+            if (map == null) {
+                throw new ConfigurationException(String.format(
+                        "internal error: no storage allocated for field '%s' (used for " +
+                        "option '%s') in class '%s'",
+                        field.getName(), optionName, optionSource.getClass().getName()));
+            }
+            map.put(pair.mKey, pair.mValue);
         }
     }
 
@@ -437,67 +662,16 @@ public class OptionSetter {
     private void addOptionsForObject(Object optionSource,
             Map<String, OptionFieldsForName> optionMap, Integer index)
             throws ConfigurationException {
-        Collection<Field> optionFields = getOptionFieldsForClass(optionSource.getClass());
-        for (Field field : optionFields) {
-            final Option option = field.getAnnotation(Option.class);
-            if (option.name().indexOf(NAMESPACE_SEPARATOR) != -1) {
-                throw new ConfigurationException(String.format(
-                        "Option name '%s' in class '%s' is invalid. " +
-                        "Option names cannot contain the namespace separator character '%c'",
-                        option.name(), optionSource.getClass().getName(), NAMESPACE_SEPARATOR));
+        OptionClassSchema schema = getSchema(optionSource.getClass());
+        for (OptionFieldDef field : schema.getFieldDefs()) {
+            if (field.mDefinitionError != null) {
+                throw new ConfigurationException(field.mDefinitionError);
             }
-
-            // Make sure the source doesn't use GREATEST or LEAST for a non-Comparable field.
-            final Type type = field.getGenericType();
-            if ((type instanceof Class) && !(type instanceof ParameterizedType)) {
-                // Not a parameterized type
-                if ((option.updateRule() == OptionUpdateRule.GREATEST) ||
-                        (option.updateRule() == OptionUpdateRule.LEAST)) {
-                    Class cType = (Class) type;
-                    if (!(Comparable.class.isAssignableFrom(cType))) {
-                        throw new ConfigurationException(String.format(
-                                "Option '%s' in class '%s' attempts to use updateRule %s with " +
-                                "non-Comparable type '%s'.", option.name(),
-                                optionSource.getClass().getName(), option.updateRule(),
-                                field.getGenericType()));
-                    }
+            for (int i = 0; i < field.mBaseNames.length; i++) {
+                if (schema.mAddToGlobalNamespace) {
+                    addNameToMap(optionMap, optionSource, field.mBaseNames[i], field);
                 }
-
-                // don't allow 'final' for non-Collections
-                if ((field.getModifiers() & Modifier.FINAL) != 0) {
-                    throw new ConfigurationException(String.format(
-                            "Option '%s' in class '%s' is final and cannot be set", option.name(),
-                            optionSource.getClass().getName()));
-                }
-            }
-
-            // Allow classes to opt out of the global Option namespace
-            boolean addToGlobalNamespace = true;
-            if (optionSource.getClass().isAnnotationPresent(OptionClass.class)) {
-                final OptionClass classAnnotation = optionSource.getClass().getAnnotation(
-                        OptionClass.class);
-                addToGlobalNamespace = classAnnotation.global_namespace();
-            }
-
-            if (addToGlobalNamespace) {
-                addNameToMap(optionMap, optionSource, option.name(), field);
-            }
-            addNamespacedOptionToMap(optionMap, optionSource, option.name(), field, index);
-            if (option.shortName() != Option.NO_SHORT_NAME) {
-                if (addToGlobalNamespace) {
-                    addNameToMap(optionMap, optionSource, String.valueOf(option.shortName()),
-                            field);
-                }
-                addNamespacedOptionToMap(optionMap, optionSource,
-                        String.valueOf(option.shortName()), field, index);
-            }
-            if (isBooleanField(field)) {
-                // add the corresponding "no" option to make boolean false
-                if (addToGlobalNamespace) {
-                    addNameToMap(optionMap, optionSource, BOOL_FALSE_PREFIX + option.name(), field);
-                }
-                addNamespacedOptionToMap(optionMap, optionSource, BOOL_FALSE_PREFIX + option.name(),
-                        field, index);
+                addNamespacedOptionToMap(optionMap, optionSource, schema, i, field, index);
             }
         }
     }
@@ -520,25 +694,16 @@ public class OptionSetter {
                 continue;
             }
 
-            for (Map.Entry<Object, Field> fieldEntry : optionFields) {
+            for (Map.Entry<Object, OptionFieldDef> fieldEntry : optionFields) {
                 final Object obj = fieldEntry.getKey();
-                final Field field = fieldEntry.getValue();
-                final Option option = field.getAnnotation(Option.class);
-                if (option == null) {
-                    continue;
-                } else if (!option.mandatory()) {
+                final OptionFieldDef field = fieldEntry.getValue();
+                final Option option = field.getOption();
+                if (!option.mandatory()) {
                     continue;
                 }
 
                 // At this point, we know this is a mandatory field; make sure it's set
-                field.setAccessible(true);
-                final Object value;
-                try {
-                    value = field.get(obj);
-                } catch (IllegalAccessException e) {
-                    throw new ConfigurationException(String.format("internal error: %s",
-                            e.getMessage()));
-                }
+                final Object value = field.getValue(option.name(), obj);
 
                 final String realOptName = String.format("--%s", option.name());
                 if (value == null) {
@@ -566,9 +731,25 @@ public class OptionSetter {
      * @return a {@link Collection} of fields annotated with {@link Option}
      */
     static Collection<Field> getOptionFieldsForClass(final Class<?> optionClass) {
-        Collection<Field> fieldList = new ArrayList<Field>();
-        buildOptionFieldsForClass(optionClass, fieldList);
-        return fieldList;
+        return getSchema(optionClass).getFields();
+    }
+
+    /**
+     * Gets the {@link OptionClassSchema} for given class, building it if necessary.
+     *
+     * @param optionClass the {@link Class} to get schema for
+     * @return the {@link OptionClassSchema}
+     */
+    static OptionClassSchema getSchema(final Class<?> optionClass) {
+        OptionClassSchema schema = sSchemaCache.get(optionClass);
+        if (schema == null) {
+            schema = new OptionClassSchema(optionClass);
+            OptionClassSchema existingSchema = sSchemaCache.putIfAbsent(optionClass, schema);
+            if (existingSchema != null) {
+                schema = existingSchema;
+            }
+        }
+        return schema;
     }
 
     /**
@@ -660,8 +841,7 @@ public class OptionSetter {
     }
 
     public boolean isBooleanOption(String name) throws ConfigurationException {
-        Field field = fieldsForArg(name).getFirstField();
-        return isBooleanField(field);
+        return fieldsForArg(name).getFirstField().getHandler().isBoolean();
     }
 
     static boolean isBooleanField(Field field) throws ConfigurationException {
@@ -669,8 +849,7 @@ public class OptionSetter {
     }
 
     public boolean isMapOption(String name) throws ConfigurationException {
-        Field field = fieldsForArg(name).getFirstField();
-        return isMapField(field);
+        return fieldsForArg(name).getFirstField().getHandler().isMap();
     }
 
     static boolean isMapField(Field field) throws ConfigurationException {
@@ -678,7 +857,7 @@ public class OptionSetter {
     }
 
     private void addNameToMap(Map<String, OptionFieldsForName> optionMap, Object optionSource,
-            String name, Field field) throws ConfigurationException {
+            String name, OptionFieldDef field) throws ConfigurationException {
         OptionFieldsForName fields = optionMap.get(name);
         if (fields == null) {
             fields = new OptionFieldsForName();
@@ -686,11 +865,6 @@ public class OptionSetter {
         }
 
         fields.addField(name, optionSource, field);
-        if (getHandler(field.getGenericType()) == null) {
-            throw new ConfigurationException(String.format(
-                    "Option name '%s' in class '%s' is invalid. Unsupported @Option field type '%s'",
-                    name, optionSource.getClass().getName(), field.getType()));
-        }
     }
 
     /**
@@ -699,34 +873,29 @@ public class OptionSetter {
      * @see {@link #makeOptionMap()} for details on the enumeration scheme
      */
     private void addNamespacedOptionToMap(Map<String, OptionFieldsForName> optionMap,
-            Object optionSource, String name, Field field, int index)
-            throws ConfigurationException {
-        final String className = optionSource.getClass().getName();
+            Object optionSource, OptionClassSchema schema, int nameIndex, OptionFieldDef field,
+            int index) throws ConfigurationException {
+        final String name = field.mBaseNames[nameIndex];
 
-        if (optionSource.getClass().isAnnotationPresent(OptionClass.class)) {
-            final OptionClass classAnnotation = optionSource.getClass().getAnnotation(
-                    OptionClass.class);
-            addNameToMap(optionMap, optionSource, String.format("%s%c%s", classAnnotation.alias(),
-                    NAMESPACE_SEPARATOR, name), field);
+        if (schema.mAlias != null) {
+            addNameToMap(optionMap, optionSource, field.mAliasNames[nameIndex], field);
 
             // Allows use of an enumerated namespace, to enable options to map to specific instances
             // of a class alias, rather than just to all instances of that particular alias.
             // Example option name: alias:2:option-name
-            addNameToMap(optionMap, optionSource, String.format("%s%c%d%c%s",
-                    classAnnotation.alias(), NAMESPACE_SEPARATOR, index, NAMESPACE_SEPARATOR, name),
-                    field);
+            addNameToMap(optionMap, optionSource, schema.mAlias + NAMESPACE_SEPARATOR + index +
+                    NAMESPACE_SEPARATOR + name, field);
         }
 
         // Allows use of a className-delimited namespace.
         // Example option name: com.fully.qualified.ClassName:option-name
-        addNameToMap(optionMap, optionSource, String.format("%s%c%s",
-                className, NAMESPACE_SEPARATOR, name), field);
+        addNameToMap(optionMap, optionSource, field.mClassNames[nameIndex], field);
 
         // Allows use of an enumerated namespace, to enable options to map to specific instances of
         // a className, rather than just to all instances of that particular className.
         // Example option name: com.fully.qualified.ClassName:2:option-name
-        addNameToMap(optionMap, optionSource, String.format("%s%c%d%c%s",
-                className, NAMESPACE_SEPARATOR, index, NAMESPACE_SEPARATOR, name), field);
+        addNameToMap(optionMap, optionSource, schema.getClassName() + NAMESPACE_SEPARATOR + index +
+                NAMESPACE_SEPARATOR + name, field);
     }
 
     private abstract static class Handler {
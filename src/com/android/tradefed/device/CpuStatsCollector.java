@@ -18,13 +18,15 @@ package com.android.tradefed.device;
 
 import com.android.ddmlib.MultiLineReceiver;
 import com.android.tradefed.log.LogUtil.CLog;
-import com.android.tradefed.util.SimpleStats;
+import com.android.tradefed.util.PercentileSketch;
+import com.android.tradefed.util.StreamingStats;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -74,9 +76,11 @@ public class CpuStatsCollector extends Thread {
      * </p>
      */
     public static class CpuStats {
-        public Map<TimeCategory, Integer> mTimeStats = new HashMap<TimeCategory, Integer>();
+        public Map<TimeCategory, Integer> mTimeStats =
+                new EnumMap<TimeCategory, Integer>(TimeCategory.class);
         public Map<Integer, Integer> mFreqStats = new HashMap<Integer, Integer>();
-        private Map<TimeCategory, Double> mPercentageStats = new HashMap<TimeCategory, Double>();
+        private Map<TimeCategory, Double> mPercentageStats =
+                new EnumMap<TimeCategory, Double>(TimeCategory.class);
         private Integer mTotalTime = null;
         private Double mAverageMhz = null;
 
@@ -191,11 +195,143 @@ public class CpuStatsCollector extends Thread {
         }
     }
 
+    /**
+     * Aggregates the {@link CpuStats} of a label as they are parsed, in constant memory.
+     * <p>
+     * Unlike the lists of {@link CpuStats}, summaries can be kept for runs of any length.
+     * </p>
+     */
+    public static class CpuStatsSummary {
+        private final StreamingStats mTotalUsage = new StreamingStats();
+        private final PercentileSketch mTotalUsageSketch = new PercentileSketch();
+        private final Map<TimeCategory, StreamingStats> mPercentages =
+                new EnumMap<TimeCategory, StreamingStats>(TimeCategory.class);
+        private final StreamingStats mEstimatedMhz = new StreamingStats();
+        private final StreamingStats mUsedMhzPercentage = new StreamingStats();
+
+        CpuStatsSummary() {
+            for (TimeCategory category : TimeCategory.values()) {
+                mPercentages.put(category, new StreamingStats());
+            }
+        }
+
+        synchronized void add(CpuStats s) {
+            if (s.getTotalTime() == 0) {
+                // no time elapsed, percentages are undefined
+                return;
+            }
+            mTotalUsage.add(100 * s.getTotalUsage());
+            mTotalUsageSketch.add(100 * s.getTotalUsage());
+            for (TimeCategory category : TimeCategory.values()) {
+                mPercentages.get(category).add(s.getPercentage(category));
+            }
+            if (!s.mFreqStats.isEmpty()) {
+                mEstimatedMhz.add(s.getEstimatedMhz());
+                mUsedMhzPercentage.add(s.getUsedMhzPercentage());
+            }
+        }
+
+        /**
+         * Get the number of {@link CpuStats} aggregated.
+         */
+        public synchronized long getCount() {
+            return mTotalUsage.count();
+        }
+
+        /**
+         * Get the mean of the total CPU usage as a percentage (0 to 100), or {@code null} if no
+         * {@link CpuStats} were aggregated.
+         */
+        public synchronized Double getTotalPercentageMean() {
+            return mTotalUsage.mean();
+        }
+
+        /**
+         * Get the standard deviation of the total CPU usage as a percentage, or {@code null} if no
+         * {@link CpuStats} were aggregated.
+         */
+        public synchronized Double getTotalPercentageStdev() {
+            return mTotalUsage.stdev();
+        }
+
+        /**
+         * Approximate a percentile of the total CPU usage as a percentage (0 to 100).
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return the approximate percentile, or {@code null} if no {@link CpuStats} were
+         *         aggregated
+         */
+        public synchronized Double getTotalPercentagePercentile(double percentile) {
+            return mTotalUsageSketch.percentile(percentile);
+        }
+
+        /**
+         * Get the mean of the user and nice CPU usage as a percentage (0 to 100), or
+         * {@code null} if no {@link CpuStats} were aggregated.
+         */
+        public synchronized Double getUserPercentageMean() {
+            return sumMeans(TimeCategory.USER, TimeCategory.NICE);
+        }
+
+        /**
+         * Get the mean of the system CPU usage as a percentage (0 to 100), or {@code null} if no
+         * {@link CpuStats} were aggregated.
+         */
+        public synchronized Double getSystemPercentageMean() {
+            return mPercentages.get(TimeCategory.SYS).mean();
+        }
+
+        /**
+         * Get the mean of the iow CPU usage as a percentage (0 to 100), or {@code null} if no
+         * {@link CpuStats} were aggregated.
+         */
+        public synchronized Double getIowPercentageMean() {
+            return mPercentages.get(TimeCategory.IOW).mean();
+        }
+
+        /**
+         * Get the mean of the IRQ and SIRQ CPU usage as a percentage (0 to 100), or
+         * {@code null} if no {@link CpuStats} were aggregated.
+         */
+        public synchronized Double getIrqPercentageMean() {
+            return sumMeans(TimeCategory.IRQ, TimeCategory.SIRQ);
+        }
+
+        /**
+         * Get the mean of the estimated MHz, or {@code null} if no frequency stats were
+         * aggregated.
+         *
+         * @see CpuStats#getEstimatedMhz()
+         */
+        public synchronized Double getEstimatedMhzMean() {
+            return mEstimatedMhz.mean();
+        }
+
+        /**
+         * Get the mean of the used MHz as a percentage (0 to 100), or {@code null} if no
+         * frequency stats were aggregated.
+         *
+         * @see CpuStats#getUsedMhzPercentage()
+         */
+        public synchronized Double getUsedMhzPercentageMean() {
+            return mUsedMhzPercentage.mean();
+        }
+
+        private Double sumMeans(TimeCategory category1, TimeCategory category2) {
+            if (mTotalUsage.isEmpty()) {
+                return null;
+            }
+            return mPercentages.get(category1).mean() + mPercentages.get(category2).mean();
+        }
+    }
+
     /**
      * Receiver which parses the output from {@code cpustats} and optionally logs to a file.
      */
     public static class CpuStatsReceiver extends MultiLineReceiver {
         private Map<String, List<CpuStats>> mCpuStats = new HashMap<String, List<CpuStats>>(4);
+        private Map<String, CpuStatsSummary> mSummaries = new HashMap<String, CpuStatsSummary>(4);
+        private boolean mRetainCpuStats = true;
 
         private boolean mIsCancelled = false;
         private File mLogFile = null;
@@ -222,6 +358,15 @@ public class CpuStatsCollector extends Thread {
             }
         }
 
+        /**
+         * Specify whether each parsed {@link CpuStats} is kept, to be returned by
+         * {@link #getCpuStats()}. {@link CpuStatsSummary}s are always kept. Defaults to
+         * <code>true</code>.
+         */
+        public synchronized void setRetainCpuStats(boolean retain) {
+            mRetainCpuStats = retain;
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -258,10 +403,16 @@ public class CpuStatsCollector extends Thread {
                                     Integer.parseInt(args[9 + i]));
                         }
                         synchronized(this) {
-                            if (!mCpuStats.containsKey(args[0])) {
-                                mCpuStats.put(args[0], new LinkedList<CpuStats>());
+                            if (!mSummaries.containsKey(args[0])) {
+                                mSummaries.put(args[0], new CpuStatsSummary());
+                            }
+                            mSummaries.get(args[0]).add(s);
+                            if (mRetainCpuStats) {
+                                if (!mCpuStats.containsKey(args[0])) {
+                                    mCpuStats.put(args[0], new LinkedList<CpuStats>());
+                                }
+                                mCpuStats.get(args[0]).add(s);
                             }
-                            mCpuStats.get(args[0]).add(s);
                         }
                     } catch (NumberFormatException e) {
                         CLog.w("Unexpected input: %s", line.trim());
@@ -313,6 +464,14 @@ public class CpuStatsCollector extends Thread {
             }
             return copy;
         }
+
+        /**
+         * Get the summaries of the parsed data, as a map from label to {@link CpuStatsSummary}.
+         * The summaries keep being updated as output is parsed.
+         */
+        public synchronized Map<String, CpuStatsSummary> getCpuStatsSummaries() {
+            return new HashMap<String, CpuStatsSummary>(mSummaries);
+        }
     }
 
     private CpuStatsReceiver mReceiver = new CpuStatsReceiver();
@@ -385,6 +544,27 @@ public class CpuStatsCollector extends Thread {
         return mReceiver.getCpuStats();
     }
 
+    /**
+     * Get the mapping of labels to {@link CpuStatsSummary}s, which aggregate all the
+     * {@link CpuStats} of a label in constant memory.
+     *
+     * @return a mapping of labels to {@link CpuStatsSummary}s. The labels will include "Total"
+     * and "cpu0"..."cpuN" for each CPU on the device.
+     */
+    public Map<String, CpuStatsSummary> getCpuStatsSummaries() {
+        return mReceiver.getCpuStatsSummaries();
+    }
+
+    /**
+     * Specify whether each {@link CpuStats} is kept, to be returned by {@link #getCpuStats()}.
+     * Long running tests should disable this and use {@link #getCpuStatsSummaries()}, as the
+     * {@link CpuStats} of each output line would otherwise be kept in memory. Defaults to
+     * <code>true</code>.
+     */
+    public void setRetainCpuStats(boolean retain) {
+        mReceiver.setRetainCpuStats(retain);
+    }
+
     /**
      * Get the mean of the total CPU usage for a list of {@link CpuStats}.
      *
@@ -392,7 +572,7 @@ public class CpuStatsCollector extends Thread {
      * @return The average usage as a percentage (0 to 100).
      */
     public static Double getTotalPercentageMean(List<CpuStats> cpuStats) {
-        SimpleStats stats = new SimpleStats();
+        StreamingStats stats = new StreamingStats();
         for (CpuStats s : cpuStats) {
             if (s.getTotalUsage() != null) {
                 stats.add(s.getTotalUsage());
@@ -451,7 +631,7 @@ public class CpuStatsCollector extends Thread {
      * @see CpuStats#getEstimatedMhz()
      */
     public static Double getEstimatedMhzMean(List<CpuStats> cpuStats) {
-        SimpleStats stats = new SimpleStats();
+        StreamingStats stats = new StreamingStats();
         for (CpuStats s : cpuStats) {
             if (!s.mFreqStats.isEmpty()) {
                 stats.add(s.getEstimatedMhz());
@@ -468,7 +648,7 @@ public class CpuStatsCollector extends Thread {
      * @see CpuStats#getUsedMhzPercentage()
      */
     public static Double getUsedMhzPercentageMean(List<CpuStats> cpuStats) {
-        SimpleStats stats = new SimpleStats();
+        StreamingStats stats = new StreamingStats();
         for (CpuStats s : cpuStats) {
             if (!s.mFreqStats.isEmpty()) {
                 stats.add(s.getUsedMhzPercentage());
@@ -481,7 +661,7 @@ public class CpuStatsCollector extends Thread {
      * Helper method for calculating the percentage mean for a {@link TimeCategory}.
      */
     private static Double getPercentageMean(List<CpuStats> cpuStats, TimeCategory category) {
-        SimpleStats stats = new SimpleStats();
+        StreamingStats stats = new StreamingStats();
         for (CpuStats s : cpuStats) {
             stats.add(s.getPercentage(category));
         }
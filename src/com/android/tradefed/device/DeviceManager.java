@@ -26,6 +26,7 @@ import com.android.tradefed.config.GlobalConfiguration;
 import com.android.tradefed.config.IGlobalConfiguration;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.device.IDeviceManager.IFastbootDeviceListener;
 import com.android.tradefed.device.IDeviceMonitor.DeviceLister;
 import com.android.tradefed.device.IManagedTestDevice.DeviceEventResponse;
 import com.android.tradefed.log.LogUtil.CLog;
@@ -71,6 +72,8 @@ public class DeviceManager implements IDeviceManager {
     static final IDeviceSelection ANY_DEVICE_OPTIONS = new DeviceSelectionOptions();
     private static final String NULL_DEVICE_SERIAL_PREFIX = "null-device";
     private static final String EMULATOR_SERIAL_PREFIX = "emulator";
+    private static final Pattern FASTBOOT_DEVICE_PATTERN =
+            Pattern.compile("([\\w\\d]+)\\s+fastboot\\s*");
 
     private DeviceMonitorMultiplexer mDvcMon = new DeviceMonitorMultiplexer();
 
@@ -83,6 +86,9 @@ public class DeviceManager implements IDeviceManager {
     private boolean mFastbootEnabled;
     private Set<IFastbootListener> mFastbootListeners;
     private FastbootMonitor mFastbootMonitor;
+    /** the serials of devices on fastboot at the last update. Only accessed by the monitor */
+    private Set<String> mFastbootSerials = new HashSet<String>();
+    private FastbootUsbWatcher mFastbootUsbWatcher;
     private boolean mIsTerminated = false;
     private IDeviceSelection mGlobalDeviceFilter;
     @Option(name="max-emulators",
@@ -91,6 +97,10 @@ public class DeviceManager implements IDeviceManager {
     @Option(name="max-null-devices",
             description = "the maximum number of no device runs that can be allocated at one time.")
     private int mNumNullDevicesSupported = 1;
+    @Option(name = "fastboot-usb-watch", description = "detect devices in fastboot from USB " +
+            "events and sysfs instead of polling 'fastboot devices'. Only supported on Linux, " +
+            "other hosts fall back to polling.")
+    private boolean mFastbootUsbWatch = true;
 
     private boolean mSynchronousMode = false;
 
@@ -162,6 +172,7 @@ public class DeviceManager implements IDeviceManager {
 
         if (isFastbootAvailable()) {
             mFastbootListeners = Collections.synchronizedSet(new HashSet<IFastbootListener>());
+            mFastbootUsbWatcher = createFastbootUsbWatcher();
             mFastbootMonitor = new FastbootMonitor();
             startFastbootMonitor();
             // don't set fastboot enabled bit until mFastbootListeners has been initialized
@@ -244,6 +255,24 @@ public class DeviceManager implements IDeviceManager {
         mFastbootMonitor.start();
     }
 
+    /**
+     * Creates the {@link FastbootUsbWatcher} to discover fastboot devices with.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @return the {@link FastbootUsbWatcher}, or <code>null</code> to poll 'fastboot devices'
+     */
+    FastbootUsbWatcher createFastbootUsbWatcher() {
+        if (!mFastbootUsbWatch) {
+            return null;
+        }
+        FastbootUsbWatcher watcher = FastbootUsbWatcher.createDefault();
+        if (watcher == null) {
+            CLog.i("USB devices cannot be watched on this host, polling 'fastboot devices'");
+        }
+        return watcher;
+    }
+
     /**
      * Get the {@link IGlobalConfiguration} instance to use.
      * <p />
@@ -759,6 +788,21 @@ public class DeviceManager implements IDeviceManager {
         return serialStates;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getAvailableDeviceCount(IDeviceSelection options) {
+        int count = 0;
+        for (IManagedTestDevice d : mManagedDeviceList) {
+            if (DeviceAllocationState.Available.equals(d.getAllocationState())
+                    && options.matches(d.getIDevice())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     @Override
     public void displayDevicesInfo(PrintWriter stream) {
         ArrayList<List<String>> displayRows = new ArrayList<List<String>>();
@@ -909,6 +953,10 @@ public class DeviceManager implements IDeviceManager {
         checkInit();
         if (mFastbootEnabled) {
             mFastbootListeners.add(listener);
+            // update fastboot state now rather than at the next poll, if it is cheap
+            if (mFastbootUsbWatcher != null) {
+                mFastbootMonitor.requestUpdate();
+            }
         } else {
             throw new UnsupportedOperationException("fastboot is not enabled");
         }
@@ -925,9 +973,24 @@ public class DeviceManager implements IDeviceManager {
         }
     }
 
+    /**
+     * Keeps track of the devices on fastboot while there are fastboot listeners, and notifies
+     * them of changes.
+     * <p/>
+     * If USB devices can be watched, fastboot devices are discovered from sysfs whenever a USB
+     * device is plugged or unplugged, and at least every {@link #FASTBOOT_POLL_WAIT_TIME}.
+     * Otherwise, 'fastboot devices' is polled every {@link #FASTBOOT_POLL_WAIT_TIME}. The state of
+     * all devices is checked at least every {@link #FASTBOOT_POLL_WAIT_TIME}, even while USB
+     * events keep arriving.
+     */
     private class FastbootMonitor extends Thread {
 
-        private boolean mQuit = false;
+        private volatile boolean mQuit = false;
+        /** the last time the state of all devices was checked */
+        private long mLastReconcileTime = 0;
+        private final Object mWaitLock = new Object();
+        private boolean mWaiting = false;
+        private boolean mUpdateRequested = false;
 
         FastbootMonitor() {
             super("FastbootMonitor");
@@ -938,6 +1001,18 @@ public class DeviceManager implements IDeviceManager {
             interrupt();
         }
 
+        /**
+         * Requests an update of fastboot devices without waiting for the next poll.
+         */
+        public void requestUpdate() {
+            synchronized (mWaitLock) {
+                mUpdateRequested = true;
+                if (mWaiting) {
+                    interrupt();
+                }
+            }
+        }
+
         @Override
         public void run() {
             while (!mQuit) {
@@ -946,23 +1021,94 @@ public class DeviceManager implements IDeviceManager {
                 if (!mFastbootListeners.isEmpty()) {
                     Set<String> serials = getDevicesOnFastboot();
                     if (serials != null) {
-                        mManagedDeviceList.updateFastbootStates(serials);
-
-                        // create a copy of listeners for notification to prevent deadlocks
-                        Collection<IFastbootListener> listenersCopy =
-                                new ArrayList<IFastbootListener>(mFastbootListeners.size());
-                        listenersCopy.addAll(mFastbootListeners);
-                        for (IFastbootListener listener : listenersCopy) {
-                            listener.stateUpdated();
+                        long now = System.currentTimeMillis();
+                        boolean reconcile = now - mLastReconcileTime >= FASTBOOT_POLL_WAIT_TIME;
+                        if (reconcile) {
+                            mLastReconcileTime = now;
                         }
+                        updateFastbootDevices(serials, reconcile);
                     }
                 }
-                getRunUtil().sleep(FASTBOOT_POLL_WAIT_TIME);
+                waitForUpdate();
             }
+            if (mFastbootUsbWatcher != null) {
+                mFastbootUsbWatcher.close();
+            }
+        }
+
+        /**
+         * Waits until fastboot devices should be updated.
+         */
+        private void waitForUpdate() {
+            synchronized (mWaitLock) {
+                if (mUpdateRequested) {
+                    mUpdateRequested = false;
+                    return;
+                }
+                mWaiting = true;
+            }
+            try {
+                if (mFastbootUsbWatcher != null) {
+                    mFastbootUsbWatcher.waitForUsbChange(FASTBOOT_POLL_WAIT_TIME);
+                } else {
+                    getRunUtil().sleep(FASTBOOT_POLL_WAIT_TIME);
+                }
+            } catch (InterruptedException e) {
+                // update requested, or terminated
+            } finally {
+                synchronized (mWaitLock) {
+                    mWaiting = false;
+                    mUpdateRequested = false;
+                    // clear an interrupt sent by requestUpdate after the wait ended
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the state of devices that entered or left fastboot, and notifies listeners.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @param serials the devices currently on fastboot
+     * @param reconcile whether to also check the state of all devices. Done on periodic
+     *            updates, so that devices whose state changed while on fastboot are fixed.
+     */
+    void updateFastbootDevices(Set<String> serials, boolean reconcile) {
+        Set<String> added = new HashSet<String>(serials);
+        added.removeAll(mFastbootSerials);
+        Set<String> removed = new HashSet<String>(mFastbootSerials);
+        removed.removeAll(serials);
+        mFastbootSerials = serials;
+        if (reconcile) {
+            mManagedDeviceList.updateFastbootStates(serials);
+        } else {
+            mManagedDeviceList.updateFastbootStates(added, removed);
+        }
+
+        // create a copy of listeners for notification to prevent deadlocks
+        Collection<IFastbootListener> listenersCopy =
+                new ArrayList<IFastbootListener>(mFastbootListeners.size());
+        listenersCopy.addAll(mFastbootListeners);
+        for (IFastbootListener listener : listenersCopy) {
+            if (listener instanceof IFastbootDeviceListener) {
+                IFastbootDeviceListener deviceListener = (IFastbootDeviceListener)listener;
+                for (String serial : removed) {
+                    deviceListener.fastbootDeviceRemoved(serial);
+                }
+                for (String serial : added) {
+                    deviceListener.fastbootDeviceAdded(serial);
+                }
+            }
+            listener.stateUpdated();
         }
     }
 
     private Set<String> getDevicesOnFastboot() {
+        if (mFastbootUsbWatcher != null) {
+            return mFastbootUsbWatcher.getDevicesOnFastboot();
+        }
         CommandResult fastbootResult = getRunUtil().runTimedCmd(FASTBOOT_CMD_TIMEOUT,
                 "fastboot", "devices");
         if (fastbootResult.getStatus().equals(CommandStatus.SUCCESS)) {
@@ -978,8 +1124,7 @@ public class DeviceManager implements IDeviceManager {
 
     static Set<String> parseDevicesOnFastboot(String fastbootOutput) {
         Set<String> serials = new HashSet<String>();
-        Pattern fastbootPattern = Pattern.compile("([\\w\\d]+)\\s+fastboot\\s*");
-        Matcher fastbootMatcher = fastbootPattern.matcher(fastbootOutput);
+        Matcher fastbootMatcher = FASTBOOT_DEVICE_PATTERN.matcher(fastbootOutput);
         while (fastbootMatcher.find()) {
             serials.add(fastbootMatcher.group(1));
         }
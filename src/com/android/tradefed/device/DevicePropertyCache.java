@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.google.common.base.Optional;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A cache of a device's system properties.
+ * <p/>
+ * The cache holds a snapshot of the full property set, as loaded by a single 'getprop' call.
+ * Read-only "ro." properties cannot change once set, so their values are served from the snapshot
+ * until the cache is invalidated, typically on reboot. Read-only properties that are not set are
+ * also known to stay unset once the snapshot was taken after boot completed. Other properties are
+ * only served while the snapshot is younger than the configured time to live.
+ * <p/>
+ * Thread safe.
+ */
+public class DevicePropertyCache {
+
+    /** prefix of properties whose value cannot change until reboot */
+    static final String READ_ONLY_PREFIX = "ro.";
+    /** property set to "1" once device has completed boot */
+    static final String BOOT_COMPLETED_PROP = "sys.boot_completed";
+
+    /** the format of a line of 'getprop' output, eg "[ro.hardware]: [mako]" */
+    private static final Pattern GETPROP_PATTERN = Pattern.compile("^\\[([^\\]]+)\\]: \\[(.*)\\]$");
+
+    private final long mTtlMs;
+    private Map<String, String> mProperties = null;
+    private long mLoadTime = 0;
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mLoadCount = 0;
+
+    /**
+     * Creates a {@link DevicePropertyCache}.
+     *
+     * @param ttlMs the time in ms to serve properties that may change. If 0, only read-only
+     *            properties are cached.
+     */
+    public DevicePropertyCache(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * @return <code>true</code> if the given property can be served by the cache
+     */
+    public boolean isCacheable(String name) {
+        return mTtlMs > 0 || name.startsWith(READ_ONLY_PREFIX);
+    }
+
+    /**
+     * Looks up a property in the cache.
+     *
+     * @param name the property name
+     * @return the property value, {@link Optional#absent()} if the property is known not to be set
+     *         or <code>null</code> if the property is not cached
+     */
+    public synchronized Optional<String> lookup(String name) {
+        if (mProperties != null) {
+            String value = mProperties.get(name);
+            // a read-only property may still get set until boot completes
+            boolean readOnly = name.startsWith(READ_ONLY_PREFIX)
+                    && (value != null || "1".equals(mProperties.get(BOOT_COMPLETED_PROP)));
+            if (readOnly || (mTtlMs > 0 && getCurrentTime() - mLoadTime < mTtlMs)) {
+                mHitCount++;
+                return Optional.fromNullable(value);
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Replaces the cached snapshot with the given property set.
+     */
+    public synchronized void update(Map<String, String> properties) {
+        mProperties = new HashMap<String, String>(properties);
+        mLoadTime = getCurrentTime();
+        mLoadCount++;
+    }
+
+    /**
+     * Discards the cached properties, eg when device reboots.
+     */
+    public synchronized void invalidate() {
+        mProperties = null;
+    }
+
+    /**
+     * @return the number of lookups served from the cache
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of lookups that could not be served from the cache
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of times the property set was loaded into the cache
+     */
+    public synchronized long getLoadCount() {
+        return mLoadCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("%d hits, %d misses, %d loads", mHitCount, mMissCount, mLoadCount);
+    }
+
+    /**
+     * Parses the output of 'getprop'.
+     *
+     * @param output the 'getprop' output
+     * @return a {@link Map} of property names to values
+     */
+    public static Map<String, String> parseGetpropOutput(String output) {
+        Map<String, String> properties = new HashMap<String, String>();
+        for (String line : output.split("\n")) {
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            Matcher m = GETPROP_PATTERN.matcher(line);
+            if (m.matches()) {
+                properties.put(m.group(1), m.group(2));
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Gets the current time in ms. Exposed for unit testing.
+     */
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+}
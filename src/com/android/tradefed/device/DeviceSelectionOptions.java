@@ -275,6 +275,13 @@ public class DeviceSelectionOptions implements IDeviceSelection {
         return mRequireBatteryCheck;
     }
 
+    /**
+     * Gets the requested minimum SDK level
+     */
+    public Integer getMinSdkLevel() {
+        return mMinSdk;
+    }
+
     /**
      * {@inheritDoc}
      */
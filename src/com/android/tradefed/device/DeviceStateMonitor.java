@@ -21,10 +21,9 @@ import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
+import com.android.tradefed.device.DeviceWaitStats.WaitPhase;
 import com.android.tradefed.device.IDeviceManager.IFastbootListener;
 import com.android.tradefed.log.LogUtil.CLog;
-import com.android.tradefed.util.IRunUtil;
-import com.android.tradefed.util.RunUtil;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -35,17 +34,34 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Helper class for monitoring the state of a {@link IDevice}.
+ * <p/>
+ * Waits for a device state are driven by the ddmlib state change callbacks. Waits for device
+ * responsiveness poll the device, starting with a short poll interval that backs off to
+ * {@link #MAX_POLL_TIME}, and are woken up early whenever the device state changes. The time
+ * spent in each wait is recorded in {@link DeviceWaitStats}.
  */
 class DeviceStateMonitor implements IDeviceStateMonitor {
 
     private static final String LOG_TAG = "DeviceStateMonitor";
     static final String BOOTCOMPLETE_PROP = "dev.bootcomplete";
 
+    /** marker printed by {@link #BOOTCOMPLETE_WATCH_CMD} once boot is complete */
+    static final String BOOTCOMPLETE_MARKER = "BOOTCOMPLETE_WATCH_DONE";
+    /**
+     * an on-device loop that only returns once boot is complete, so that boot can be waited for
+     * with a single command. toolbox sleep only supports whole seconds.
+     */
+    static final String BOOTCOMPLETE_WATCH_CMD = String.format(
+            "while [ \"$(getprop %s)\" != \"1\" ]; do sleep 1; done; echo %s",
+            BOOTCOMPLETE_PROP, BOOTCOMPLETE_MARKER);
+
     private IDevice mDevice;
-    private TestDeviceState mDeviceState;
+    private volatile TestDeviceState mDeviceState;
 
-    /** the time in ms to wait between 'poll for responsiveness' attempts */
-    private static final long CHECK_POLL_TIME = 3 * 1000;
+    /** the initial time in ms to wait between 'poll for responsiveness' attempts */
+    static final long MIN_POLL_TIME = 100;
+    /** the maximum time in ms to wait between 'poll for responsiveness' attempts */
+    static final long MAX_POLL_TIME = 1000;
     /** the maximum operation time in ms for a 'poll for responsiveness' command */
     private static final int MAX_OP_TIME = 10 * 1000;
 
@@ -56,6 +72,8 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     private long mDefaultAvailableTimeout = 6 * 60 * 1000;
 
     private List<DeviceStateListener> mStateListeners;
+    /** lock notified on every state change, to wake up pollers */
+    private final Object mStateChangeLock = new Object();
     private IDeviceManager mMgr;
     private final boolean mFastbootEnabled;
 
@@ -68,12 +86,57 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     }
 
     /**
-     * Get the {@link RunUtil} instance to use.
+     * Get the {@link DeviceWaitStats} to record waits in.
      * <p/>
      * Exposed for unit testing.
      */
-    IRunUtil getRunUtil() {
-        return RunUtil.getDefault();
+    DeviceWaitStats getWaitStats() {
+        return DeviceWaitStats.getInstance();
+    }
+
+    /**
+     * Records the result of a wait in {@link DeviceWaitStats}.
+     *
+     * @return the result of the wait
+     */
+    private boolean recordWait(WaitPhase phase, long startTime, boolean success) {
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        CLog.d("Wait for device %s %s %s after %d ms", getSerialNumber(), phase,
+                success ? "succeeded" : "failed", elapsedTime);
+        getWaitStats().recordWait(phase, elapsedTime, success);
+        return success;
+    }
+
+    /**
+     * Gets the time to wait before the poll following one that waited the given time.
+     */
+    static long getNextPollTime(long pollTime) {
+        return Math.min(pollTime * 2, MAX_POLL_TIME);
+    }
+
+    /**
+     * Waits before polling the device again. Returns early if the device state changes or the
+     * deadline is reached.
+     *
+     * @param pollTime the time in ms to wait
+     * @param deadline the time in ms since epoch at which the whole wait ends
+     * @return <code>false</code> if the thread was interrupted, and the whole wait should stop
+     */
+    private boolean waitForNextPoll(long pollTime, long deadline) {
+        long waitTime = Math.min(pollTime, deadline - System.currentTimeMillis());
+        if (waitTime <= 0) {
+            return true;
+        }
+        synchronized (mStateChangeLock) {
+            try {
+                mStateChangeLock.wait(waitTime);
+            } catch (InterruptedException e) {
+                CLog.w("wait for device %s poll interrupted", getSerialNumber());
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -160,14 +223,16 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         CLog.i("Waiting %d ms for device %s shell to be responsive", waitTime,
                 getSerialNumber());
         long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() - startTime < waitTime) {
+        long deadline = startTime + waitTime;
+        long pollTime = MIN_POLL_TIME;
+        while (System.currentTimeMillis() < deadline) {
             final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
             final String cmd = "ls /system/bin/adb";
             try {
                 getIDevice().executeShellCommand(cmd, receiver, MAX_OP_TIME, TimeUnit.MILLISECONDS);
                 String output = receiver.getOutput();
                 if (output.contains("/system/bin/adb")) {
-                    return true;
+                    return recordWait(WaitPhase.SHELL, startTime, true);
                 }
             } catch (IOException e) {
                 CLog.i("%s failed: %s", cmd, e.getMessage());
@@ -178,10 +243,13 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
             } catch (ShellCommandUnresponsiveException e) {
                 CLog.i("%s failed: %s", cmd, e.getMessage());
             }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+            if (!waitForNextPoll(pollTime, deadline)) {
+                break;
+            }
+            pollTime = getNextPollTime(pollTime);
         }
         CLog.w("Device %s shell is unresponsive", getSerialNumber());
-        return false;
+        return recordWait(WaitPhase.SHELL, startTime, false);
     }
 
     /**
@@ -203,20 +271,25 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         long startTime = System.currentTimeMillis();
         IDevice device = waitForDeviceOnline(waitTime);
         if (device == null) {
+            recordWait(WaitPhase.AVAILABLE, startTime, false);
             return null;
         }
         long elapsedTime = System.currentTimeMillis() - startTime;
         if (!waitForBootComplete(waitTime - elapsedTime)) {
+            recordWait(WaitPhase.AVAILABLE, startTime, false);
             return null;
         }
         elapsedTime = System.currentTimeMillis() - startTime;
         if (!waitForPmResponsive(waitTime - elapsedTime)) {
+            recordWait(WaitPhase.AVAILABLE, startTime, false);
             return null;
         }
         elapsedTime = System.currentTimeMillis() - startTime;
         if (!waitForStoreMount(waitTime - elapsedTime)) {
+            recordWait(WaitPhase.AVAILABLE, startTime, false);
             return null;
         }
+        recordWait(WaitPhase.AVAILABLE, startTime, true);
         return device;
     }
 
@@ -235,24 +308,85 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     public boolean waitForBootComplete(final long waitTime) {
         CLog.i("Waiting %d ms for device %s boot complete", waitTime, getSerialNumber());
         long startTime = System.currentTimeMillis();
-        final String cmd = "getprop " + BOOTCOMPLETE_PROP;
-        while ((System.currentTimeMillis() - startTime) < waitTime) {
-            try {
-                String bootFlag = getIDevice().getSystemProperty("dev.bootcomplete").get();
-                if ("1".equals(bootFlag)) {
-                    return true;
+        long deadline = startTime + waitTime;
+        long pollTime = MIN_POLL_TIME;
+        boolean watchSupported = true;
+        while (System.currentTimeMillis() < deadline) {
+            if (isBootFlagSet()) {
+                return recordWait(WaitPhase.BOOT_COMPLETE, startTime, true);
+            }
+            if (watchSupported && TestDeviceState.ONLINE.equals(getDeviceState())) {
+                // block on the device until boot completes rather than polling from the host
+                String output = watchBootComplete(deadline - System.currentTimeMillis());
+                if (output != null) {
+                    if (output.contains(BOOTCOMPLETE_MARKER)) {
+                        return recordWait(WaitPhase.BOOT_COMPLETE, startTime, true);
+                    }
+                    CLog.d("Boot complete watch is not supported on device %s: %s",
+                            getSerialNumber(), output.trim());
+                    watchSupported = false;
                 }
-            } catch (InterruptedException e) {
-                CLog.i("%s on device %s failed: %s", cmd, getSerialNumber(), e.getMessage());
-            } catch (ExecutionException e) {
-                CLog.i("%s on device %s failed: %s", cmd, getSerialNumber(), e.getMessage());
             }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+            if (!waitForNextPoll(pollTime, deadline)) {
+                break;
+            }
+            pollTime = getNextPollTime(pollTime);
         }
         CLog.w("Device %s did not boot after %d ms", getSerialNumber(), waitTime);
+        return recordWait(WaitPhase.BOOT_COMPLETE, startTime, false);
+    }
+
+    /**
+     * @return <code>true</code> if the device boot complete flag is set
+     */
+    private boolean isBootFlagSet() {
+        final String cmd = "getprop " + BOOTCOMPLETE_PROP;
+        try {
+            String bootFlag = getIDevice().getSystemProperty(BOOTCOMPLETE_PROP).get(MAX_OP_TIME,
+                    TimeUnit.MILLISECONDS);
+            return "1".equals(bootFlag);
+        } catch (InterruptedException e) {
+            CLog.w("%s on device %s interrupted", cmd, getSerialNumber());
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            CLog.i("%s on device %s failed: %s", cmd, getSerialNumber(), e.getMessage());
+        } catch (java.util.concurrent.TimeoutException e) {
+            CLog.i("%s on device %s failed: timeout", cmd, getSerialNumber());
+        }
         return false;
     }
 
+    /**
+     * Runs {@link #BOOTCOMPLETE_WATCH_CMD} on the device, which returns once boot is complete.
+     *
+     * @param waitTime the maximum time in ms to wait for the command
+     * @return the command output, or <code>null</code> if the command failed to complete, eg
+     *         because the device disconnected or the wait timed out
+     */
+    private String watchBootComplete(long waitTime) {
+        if (waitTime <= 0) {
+            return null;
+        }
+        final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        try {
+            getIDevice().executeShellCommand(BOOTCOMPLETE_WATCH_CMD, receiver, waitTime,
+                    TimeUnit.MILLISECONDS);
+            return receiver.getOutput();
+        } catch (IOException e) {
+            CLog.i("Boot complete watch on device %s failed: %s", getSerialNumber(),
+                    e.getMessage());
+        } catch (TimeoutException e) {
+            CLog.i("Boot complete watch on device %s failed: timeout", getSerialNumber());
+        } catch (AdbCommandRejectedException e) {
+            CLog.i("Boot complete watch on device %s failed: %s", getSerialNumber(),
+                    e.getMessage());
+        } catch (ShellCommandUnresponsiveException e) {
+            CLog.i("Boot complete watch on device %s did not return after %d ms",
+                    getSerialNumber(), waitTime);
+        }
+        return null;
+    }
+
     /**
      * Waits for the device package manager to be responsive.
      *
@@ -264,7 +398,9 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         CLog.i("Waiting %d ms for device %s package manager",
                 waitTime, getSerialNumber());
         long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() - startTime < waitTime) {
+        long deadline = startTime + waitTime;
+        long pollTime = MIN_POLL_TIME;
+        while (System.currentTimeMillis() < deadline) {
             final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
             final String cmd = "pm path android";
             try {
@@ -272,7 +408,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
                 String output = receiver.getOutput();
                 Log.v(LOG_TAG, String.format("%s returned %s", cmd, output));
                 if (output.contains("package:")) {
-                    return true;
+                    return recordWait(WaitPhase.PACKAGE_MANAGER, startTime, true);
                 }
             } catch (IOException e) {
                 Log.i(LOG_TAG, String.format("%s on device %s failed: %s", cmd, getSerialNumber(),
@@ -287,11 +423,14 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
                 Log.i(LOG_TAG, String.format("%s on device %s failed: %s", cmd, getSerialNumber(),
                         e.getMessage()));
             }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+            if (!waitForNextPoll(pollTime, deadline)) {
+                break;
+            }
+            pollTime = getNextPollTime(pollTime);
         }
         Log.w(LOG_TAG, String.format("Device %s package manager is unresponsive",
                 getSerialNumber()));
-        return false;
+        return recordWait(WaitPhase.PACKAGE_MANAGER, startTime, false);
     }
 
     /**
@@ -305,7 +444,9 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         Log.i(LOG_TAG, String.format("Waiting %d ms for device %s external store", waitTime,
                 getSerialNumber()));
         long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() - startTime < waitTime) {
+        long deadline = startTime + waitTime;
+        long pollTime = MIN_POLL_TIME;
+        while (System.currentTimeMillis() < deadline) {
             final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
             final CollectingOutputReceiver bitBucket = new CollectingOutputReceiver();
             final long number = System.currentTimeMillis();
@@ -332,7 +473,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
                     String output = receiver.getOutput();
                     Log.v(LOG_TAG, String.format("%s returned %s", checkCmd, output));
                     if (output.contains(testString)) {
-                        return true;
+                        return recordWait(WaitPhase.EXTERNAL_STORE, startTime, true);
                     }
                 } catch (IOException e) {
                     Log.i(LOG_TAG,
@@ -354,11 +495,14 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
                 Log.w(LOG_TAG, String.format("Failed to get external store mount point for %s",
                         getSerialNumber()));
             }
-            getRunUtil().sleep(CHECK_POLL_TIME);
+            if (!waitForNextPoll(pollTime, deadline)) {
+                break;
+            }
+            pollTime = getNextPollTime(pollTime);
         }
         Log.w(LOG_TAG, String.format("Device %s external storage is not mounted after %d ms",
                 getSerialNumber(), waitTime));
-        return false;
+        return recordWait(WaitPhase.EXTERNAL_STORE, startTime, false);
     }
 
     /**
@@ -437,23 +581,48 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
 
     private boolean waitForDeviceState(TestDeviceState state, long time) {
         String deviceSerial = getSerialNumber();
+        long startTime = System.currentTimeMillis();
         if (getDeviceState() == state) {
+            // nothing was waited for, so don't skew the wait stats with a 0 ms sample
             Log.i(LOG_TAG, String.format("Device %s is already %s", deviceSerial, state));
             return true;
         }
         Log.i(LOG_TAG, String.format("Waiting for device %s to be %s; it is currently %s...",
                 deviceSerial, state, getDeviceState()));
         DeviceStateListener listener = new DeviceStateListener(state);
+        // register before checking state again, so a state change in between is not missed
         addDeviceStateListener(listener);
+        long deadline = startTime + time;
         synchronized (listener) {
             try {
-                listener.wait(time);
+                long remainingTime = time;
+                while (getDeviceState() != state && remainingTime > 0) {
+                    listener.wait(remainingTime);
+                    remainingTime = deadline - System.currentTimeMillis();
+                }
             } catch (InterruptedException e) {
                 Log.w(LOG_TAG, "wait for device state interrupted");
+                Thread.currentThread().interrupt();
             }
         }
         removeDeviceStateListener(listener);
-        return getDeviceState().equals(state);
+        return recordWait(getWaitPhase(state), startTime, getDeviceState().equals(state));
+    }
+
+    /**
+     * @return the {@link WaitPhase} of a wait for the given state
+     */
+    private static WaitPhase getWaitPhase(TestDeviceState state) {
+        switch (state) {
+            case ONLINE:
+                return WaitPhase.ONLINE;
+            case RECOVERY:
+                return WaitPhase.RECOVERY;
+            case FASTBOOT:
+                return WaitPhase.BOOTLOADER;
+            default:
+                return WaitPhase.NOT_AVAILABLE;
+        }
     }
 
     /**
@@ -490,6 +659,9 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         for (DeviceStateListener listener: listenerCopy) {
             listener.stateChanged(deviceState);
         }
+        synchronized (mStateChangeLock) {
+            mStateChangeLock.notifyAll();
+        }
     }
 
     @Override
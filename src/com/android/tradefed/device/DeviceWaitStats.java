@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency statistics of the waits done by {@link IDeviceStateMonitor}s across all devices, by
+ * wait phase. Makes regressions in boot or flashing time visible.
+ */
+public class DeviceWaitStats {
+
+    /**
+     * The phases of device state waits.
+     */
+    public static enum WaitPhase {
+        /** device becomes visible on adb */
+        ONLINE,
+        /** device disappears from adb */
+        NOT_AVAILABLE,
+        /** device is visible in recovery */
+        RECOVERY,
+        /** device is visible in fastboot */
+        BOOTLOADER,
+        /** device shell is responsive */
+        SHELL,
+        /** device boot complete flag is set */
+        BOOT_COMPLETE,
+        /** device package manager is responsive */
+        PACKAGE_MANAGER,
+        /** device external storage is mounted */
+        EXTERNAL_STORE,
+        /** the whole of a wait for device to be available */
+        AVAILABLE;
+    }
+
+    private static final DeviceWaitStats sInstance = new DeviceWaitStats();
+
+    private final Map<WaitPhase, LatencyHistogram> mHistograms =
+            new EnumMap<WaitPhase, LatencyHistogram>(WaitPhase.class);
+    private final Map<WaitPhase, AtomicLong> mTimeoutCounts =
+            new EnumMap<WaitPhase, AtomicLong>(WaitPhase.class);
+
+    DeviceWaitStats() {
+        for (WaitPhase phase : WaitPhase.values()) {
+            mHistograms.put(phase, new LatencyHistogram());
+            mTimeoutCounts.put(phase, new AtomicLong(0));
+        }
+    }
+
+    /**
+     * @return the {@link DeviceWaitStats} shared by all devices
+     */
+    public static DeviceWaitStats getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Records the result of a wait.
+     *
+     * @param phase the {@link WaitPhase}
+     * @param elapsedMs the time waited in ms
+     * @param success <code>false</code> if the wait timed out
+     */
+    void recordWait(WaitPhase phase, long elapsedMs, boolean success) {
+        if (success) {
+            mHistograms.get(phase).record(elapsedMs);
+        } else {
+            mTimeoutCounts.get(phase).incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the {@link LatencyHistogram} of successful waits for given phase
+     */
+    public LatencyHistogram getHistogram(WaitPhase phase) {
+        return mHistograms.get(phase);
+    }
+
+    /**
+     * @return the number of waits that timed out for given phase
+     */
+    public long getTimeoutCount(WaitPhase phase) {
+        return mTimeoutCounts.get(phase).get();
+    }
+
+    /**
+     * Prints the statistics of every phase.
+     */
+    public void printStats(PrintWriter writer) {
+        for (WaitPhase phase : WaitPhase.values()) {
+            writer.printf("%-16s %s timeouts=%d\n", phase, getHistogram(phase),
+                    getTimeoutCount(phase));
+        }
+        writer.flush();
+    }
+}
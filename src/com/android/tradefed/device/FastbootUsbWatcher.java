@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovers devices in fastboot from the USB devices described in sysfs, without running
+ * 'fastboot devices', and waits for USB devices to be plugged or unplugged by watching their
+ * device nodes.
+ * <p/>
+ * Fastboot devices are identified the way fastboot does: by a USB interface with class 0xff,
+ * subclass 0x42 and protocol 0x03. Only supported on Linux.
+ */
+class FastbootUsbWatcher {
+
+    private static final File SYSFS_USB_DEVICES_DIR = new File("/sys/bus/usb/devices");
+    private static final File DEV_USB_DIR = new File("/dev/bus/usb");
+
+    private static final String FASTBOOT_INTERFACE_CLASS = "ff";
+    private static final String FASTBOOT_INTERFACE_SUBCLASS = "42";
+    private static final String FASTBOOT_INTERFACE_PROTOCOL = "03";
+    /** time to wait in ms for further events after a USB event, as devices enumerate */
+    private static final long SETTLE_TIME = 200;
+    /**
+     * max time to wait in ms for events to settle, so that a steady stream of events, eg while
+     * many devices are flashed, cannot hold off the caller
+     */
+    private static final long MAX_SETTLE_TIME = 1000;
+
+    private final File mUsbDevicesDir;
+    private final File mDevUsbDir;
+    private WatchService mWatchService = null;
+    private final Set<Path> mWatchedDirs = new HashSet<Path>();
+
+    /**
+     * Creates a {@link FastbootUsbWatcher}.
+     *
+     * @param usbDevicesDir the sysfs directory of USB devices and interfaces
+     * @param devUsbDir the directory of USB device nodes, with a sub directory per bus
+     */
+    FastbootUsbWatcher(File usbDevicesDir, File devUsbDir) {
+        mUsbDevicesDir = usbDevicesDir;
+        mDevUsbDir = devUsbDir;
+    }
+
+    /**
+     * @return a {@link FastbootUsbWatcher} of the host's USB devices, or <code>null</code> if not
+     *         supported on this host
+     */
+    static FastbootUsbWatcher createDefault() {
+        if (!SYSFS_USB_DEVICES_DIR.isDirectory()) {
+            return null;
+        }
+        return new FastbootUsbWatcher(SYSFS_USB_DEVICES_DIR, DEV_USB_DIR);
+    }
+
+    /**
+     * Gets the serials of the USB devices currently in fastboot.
+     */
+    Set<String> getDevicesOnFastboot() {
+        Set<String> serials = new HashSet<String>();
+        String[] names = mUsbDevicesDir.list();
+        if (names == null) {
+            CLog.w("Failed to list USB devices in %s", mUsbDevicesDir);
+            return serials;
+        }
+        for (String name : names) {
+            // interfaces are named <device>:<config>.<interface>
+            int separator = name.indexOf(':');
+            if (separator < 0) {
+                continue;
+            }
+            File interfaceDir = new File(mUsbDevicesDir, name);
+            if (FASTBOOT_INTERFACE_CLASS.equals(readAttribute(interfaceDir, "bInterfaceClass"))
+                    && FASTBOOT_INTERFACE_SUBCLASS.equals(
+                            readAttribute(interfaceDir, "bInterfaceSubClass"))
+                    && FASTBOOT_INTERFACE_PROTOCOL.equals(
+                            readAttribute(interfaceDir, "bInterfaceProtocol"))) {
+                String serial = readAttribute(new File(mUsbDevicesDir,
+                        name.substring(0, separator)), "serial");
+                if (serial != null && !serial.isEmpty()) {
+                    serials.add(serial);
+                }
+            }
+        }
+        return serials;
+    }
+
+    /**
+     * Waits for a USB device to be plugged or unplugged. Falls back to waiting for the whole
+     * timeout if USB device nodes cannot be watched.
+     *
+     * @param timeout the max time to wait in ms
+     * @return <code>true</code> if a USB device was plugged or unplugged, <code>false</code> if
+     *         the timeout expired
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean waitForUsbChange(long timeout) throws InterruptedException {
+        if (!registerWatches()) {
+            Thread.sleep(timeout);
+            return false;
+        }
+        WatchKey key = mWatchService.poll(timeout, TimeUnit.MILLISECONDS);
+        if (key == null) {
+            return false;
+        }
+        // let the device enumerate, and coalesce the events of devices plugged together
+        long settleDeadline = System.currentTimeMillis() + MAX_SETTLE_TIME;
+        do {
+            key.pollEvents();
+            if (!key.reset()) {
+                mWatchedDirs.remove(key.watchable());
+            }
+            long settleTime = Math.min(SETTLE_TIME,
+                    settleDeadline - System.currentTimeMillis());
+            if (settleTime <= 0) {
+                break;
+            }
+            key = mWatchService.poll(settleTime, TimeUnit.MILLISECONDS);
+        } while (key != null);
+        return true;
+    }
+
+    /**
+     * Watches the USB device node directory, and the directory of each bus in it.
+     *
+     * @return <code>true</code> if device nodes are being watched
+     */
+    private boolean registerWatches() {
+        try {
+            if (mWatchService == null) {
+                if (!mDevUsbDir.isDirectory()) {
+                    return false;
+                }
+                mWatchService = FileSystems.getDefault().newWatchService();
+            }
+            registerWatch(mDevUsbDir);
+            File[] busDirs = mDevUsbDir.listFiles();
+            if (busDirs != null) {
+                for (File busDir : busDirs) {
+                    if (busDir.isDirectory()) {
+                        registerWatch(busDir);
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            CLog.w("Failed to watch USB devices in %s: %s", mDevUsbDir, e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    private void registerWatch(File dir) throws IOException {
+        Path path = dir.toPath();
+        if (mWatchedDirs.add(path)) {
+            path.register(mWatchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        }
+    }
+
+    /**
+     * Stops watching USB device nodes.
+     */
+    void close() {
+        if (mWatchService != null) {
+            try {
+                mWatchService.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            mWatchService = null;
+            mWatchedDirs.clear();
+        }
+    }
+
+    /**
+     * Reads a sysfs attribute.
+     *
+     * @return the trimmed attribute value, or <code>null</code> if it could not be read
+     */
+    private static String readAttribute(File dir, String attribute) {
+        File file = new File(dir, attribute);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return FileUtil.readStringFromFile(file).trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
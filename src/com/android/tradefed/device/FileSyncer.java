@@ -0,0 +1,652 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.SyncService;
+import com.android.ddmlib.TimeoutException;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes the contents of a local directory to a device over several parallel sync connections.
+ * <p/>
+ * Missing remote directories are created up front in a few batched shell commands. When a manifest
+ * is used, the content hash of each pushed file is recorded in a {@link #MANIFEST_FILE_NAME} file
+ * in the remote directory, and later syncs only push files whose contents changed. The manifest
+ * lives next to the files it describes, so it goes away whenever the directory is wiped.
+ * <p/>
+ * Completed pushes are recorded in small journal files while the transfer is in progress, and
+ * retrying {@link #pushFiles(IDevice)} only pushes the files that have not completed yet, so an
+ * interrupted sync resumes where it left off.
+ * <p/>
+ * A {@link FileSyncer} is intended for a single sync operation.
+ */
+class FileSyncer {
+
+    static final String MANIFEST_FILE_NAME = ".tf_sync_manifest";
+
+    /** max length of a batched shell command */
+    static final int MAX_SHELL_CMD_LENGTH = 1000;
+
+    /** number of completed pushes to record per journal file */
+    static final int JOURNAL_BATCH_SIZE = 500;
+
+    /** hash recorded for files whose remote contents are unknown, eg while being overwritten */
+    static final String UNKNOWN_HASH = "-";
+
+    private static final char MANIFEST_SEPARATOR = '\t';
+
+    /** content hashes of local files, keyed by path, size and last modified time */
+    private static final Cache<String, String> sHashCache = CacheBuilder.newBuilder()
+            .maximumSize(200000).build();
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger(0);
+
+    /**
+     * A local file to sync.
+     */
+    static class SyncEntry {
+        final File mLocalFile;
+        final String mRelativePath;
+        String mHash = null;
+        volatile boolean mDone = false;
+
+        SyncEntry(File localFile, String relativePath) {
+            mLocalFile = localFile;
+            mRelativePath = relativePath;
+        }
+    }
+
+    private final File mLocalDir;
+    private final String mRemoteDir;
+    private final FilenameFilter mFilter;
+    private final boolean mUseManifest;
+    private final int mNumConnections;
+
+    /** relative paths of local directories, parents first. The root is "" */
+    private final List<String> mLocalDirs = new ArrayList<String>();
+    private final List<SyncEntry> mEntries = new ArrayList<SyncEntry>();
+    private final List<SyncEntry> mPendingEntries = new ArrayList<SyncEntry>();
+
+    /** relative paths of existing remote directories, or <code>null</code> if unknown */
+    private Set<String> mRemoteDirs = null;
+    /** relative paths of existing remote files, or <code>null</code> if unknown */
+    private Set<String> mRemoteFiles = null;
+    /** content hashes of remote files as recorded in manifest, by relative path */
+    private final Map<String, String> mManifest = new HashMap<String, String>();
+    private int mManifestLineCount = 0;
+
+    private final String mJournalPrefix;
+    private final AtomicInteger mJournalIndex = new AtomicInteger(0);
+    private final List<String> mJournalLines = new ArrayList<String>();
+    private final AtomicBoolean mAborted = new AtomicBoolean(false);
+    private final AtomicInteger mPushCount = new AtomicInteger(0);
+
+    /**
+     * Creates a {@link FileSyncer}.
+     *
+     * @param localDir the local directory whose contents should be pushed
+     * @param remoteDir the remote directory to push contents into
+     * @param filter the {@link FilenameFilter} for local files, or <code>null</code> to push all
+     * @param useManifest whether to use a content hash manifest to skip unchanged files
+     * @param numConnections the number of parallel sync connections to use
+     */
+    FileSyncer(File localDir, String remoteDir, FilenameFilter filter, boolean useManifest,
+            int numConnections) {
+        mLocalDir = localDir;
+        mRemoteDir = remoteDir.endsWith("/") && remoteDir.length() > 1 ?
+                remoteDir.substring(0, remoteDir.length() - 1) : remoteDir;
+        mFilter = filter;
+        mUseManifest = useManifest;
+        mNumConnections = Math.max(1, numConnections);
+        mJournalPrefix = String.format("%s.%d.", MANIFEST_FILE_NAME, System.currentTimeMillis());
+    }
+
+    String getRemoteDir() {
+        return mRemoteDir;
+    }
+
+    String getManifestPath() {
+        return getRemotePath(MANIFEST_FILE_NAME);
+    }
+
+    /**
+     * Collects the local files and directories to sync.
+     *
+     * @return <code>false</code> if a local directory could not be read
+     */
+    boolean scanLocalFiles() {
+        mLocalDirs.clear();
+        mEntries.clear();
+        return scanLocalDir(mLocalDir, "");
+    }
+
+    private boolean scanLocalDir(File dir, String relativePath) {
+        File[] childFiles = mFilter == null ? dir.listFiles() : dir.listFiles(mFilter);
+        if (childFiles == null) {
+            CLog.e("Could not read files in %s", dir.getAbsolutePath());
+            return false;
+        }
+        mLocalDirs.add(relativePath);
+        List<File> childDirs = new ArrayList<File>();
+        for (File childFile : childFiles) {
+            if (childFile.isDirectory()) {
+                childDirs.add(childFile);
+            } else if (childFile.isFile()) {
+                mEntries.add(new SyncEntry(childFile, getChildPath(relativePath,
+                        childFile.getName())));
+            }
+        }
+        for (File childDir : childDirs) {
+            if (!scanLocalDir(childDir, getChildPath(relativePath, childDir.getName()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the shell command that lists the existing remote files, whose output should be passed
+     * to {@link #parseRemoteListing(String)}.
+     */
+    String getListCommand() {
+        return String.format("ls -R \"%s\"", mRemoteDir);
+    }
+
+    /**
+     * Parses the output of {@link #getListCommand()}.
+     * <p/>
+     * If the output cannot be parsed, the remote directory is treated as empty.
+     */
+    void parseRemoteListing(String output) {
+        mRemoteDirs = new HashSet<String>();
+        mRemoteFiles = new HashSet<String>();
+        final String rootHeader = mRemoteDir + ":";
+        final String childHeaderPrefix = mRemoteDir + "/";
+        String currentDir = null;
+        for (String line : output.split("\n")) {
+            line = trimLineEnd(line);
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.equals(rootHeader)) {
+                currentDir = "";
+                mRemoteDirs.add(currentDir);
+            } else if (line.endsWith(":") && line.startsWith(childHeaderPrefix)) {
+                currentDir = line.substring(childHeaderPrefix.length(), line.length() - 1);
+                mRemoteDirs.add(currentDir);
+            } else if (currentDir != null) {
+                mRemoteFiles.add(getChildPath(currentDir, line));
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if remote directory is known to exist
+     */
+    boolean remoteDirExists() {
+        return mRemoteDirs != null && mRemoteDirs.contains("");
+    }
+
+    /**
+     * Gets the shell command that prints the manifest and any journals left by an interrupted
+     * sync, whose output should be passed to {@link #parseManifest(String)}.
+     */
+    String getReadManifestCommand() {
+        return String.format("cat \"%s\" \"%s\"/%s.*", getManifestPath(), mRemoteDir,
+                MANIFEST_FILE_NAME);
+    }
+
+    /**
+     * Gets the shell command that removes the journals, once a complete manifest was written.
+     */
+    String getRemoveJournalsCommand() {
+        return String.format("rm \"%s\"/%s.*", mRemoteDir, MANIFEST_FILE_NAME);
+    }
+
+    /**
+     * Parses the contents of the remote manifest. Later lines override earlier ones, and lines
+     * that are not manifest entries are ignored.
+     */
+    void parseManifest(String contents) {
+        for (String line : contents.split("\n")) {
+            line = trimLineEnd(line);
+            int sepIndex = line.indexOf(MANIFEST_SEPARATOR);
+            if (sepIndex <= 0 || sepIndex == line.length() - 1) {
+                continue;
+            }
+            mManifestLineCount++;
+            String hash = line.substring(0, sepIndex);
+            String path = line.substring(sepIndex + 1);
+            if (UNKNOWN_HASH.equals(hash)) {
+                mManifest.remove(path);
+            } else {
+                mManifest.put(path, hash);
+            }
+        }
+    }
+
+    /**
+     * Gets the shell commands that create the missing remote directories. If the remote contents
+     * were not listed, all local sub directories are created.
+     */
+    List<String> getMkdirCommands() {
+        List<String> remotePaths = new ArrayList<String>();
+        for (String dir : mLocalDirs) {
+            if (mRemoteDirs == null ? !dir.isEmpty() : !mRemoteDirs.contains(dir)) {
+                remotePaths.add(getRemotePath(dir));
+            }
+        }
+        return buildBatchedCommands("mkdir", remotePaths);
+    }
+
+    /**
+     * Builds commands that run given command over all of the given paths, using as few commands
+     * as possible while keeping each under {@link #MAX_SHELL_CMD_LENGTH}.
+     */
+    static List<String> buildBatchedCommands(String command, List<String> paths) {
+        List<String> commands = new ArrayList<String>();
+        StringBuilder cmdBuilder = new StringBuilder(command);
+        for (String path : paths) {
+            if (cmdBuilder.length() > command.length() &&
+                    cmdBuilder.length() + path.length() + 3 > MAX_SHELL_CMD_LENGTH) {
+                commands.add(cmdBuilder.toString());
+                cmdBuilder.setLength(command.length());
+            }
+            cmdBuilder.append(" \"");
+            cmdBuilder.append(path);
+            cmdBuilder.append('"');
+        }
+        if (cmdBuilder.length() > command.length()) {
+            commands.add(cmdBuilder.toString());
+        }
+        return commands;
+    }
+
+    /**
+     * Determines which local files need to be pushed. When a manifest is used, the local files
+     * are hashed in parallel and compared against the manifest.
+     *
+     * @throws IOException if a local file could not be read
+     */
+    void computePendingFiles() throws IOException {
+        mPendingEntries.clear();
+        if (mUseManifest) {
+            hashLocalFiles();
+        }
+        for (SyncEntry entry : mEntries) {
+            if (!mUseManifest || !isRemoteUpToDate(entry)) {
+                mPendingEntries.add(entry);
+            }
+        }
+        CLog.d("%d of %d files need to be pushed to %s", mPendingEntries.size(), mEntries.size(),
+                mRemoteDir);
+    }
+
+    private boolean isRemoteUpToDate(SyncEntry entry) {
+        if (mRemoteFiles != null && !mRemoteFiles.contains(entry.mRelativePath)) {
+            return false;
+        }
+        return entry.mHash.equals(mManifest.get(entry.mRelativePath));
+    }
+
+    private void hashLocalFiles() throws IOException {
+        int numThreads = Math.min(Runtime.getRuntime().availableProcessors(),
+                Math.max(1, mEntries.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                createThreadFactory("FileSyncer-hash"));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(mEntries.size());
+            for (final SyncEntry entry : mEntries) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        entry.mHash = getContentHash(entry.mLocalFile);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException)e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets the content hash of given local file, reusing a previously computed hash if the file
+     * has not been modified since.
+     */
+    static String getContentHash(File file) throws IOException {
+        String key = String.format("%s:%d:%d", file.getAbsolutePath(), file.length(),
+                file.lastModified());
+        String hash = sHashCache.getIfPresent(key);
+        if (hash == null) {
+            hash = Files.hash(file, Hashing.md5()).toString();
+            sHashCache.put(key, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * @return the number of files that still need to be pushed
+     */
+    int getPendingCount() {
+        int count = 0;
+        for (SyncEntry entry : mPendingEntries) {
+            if (!entry.mDone) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of files pushed so far
+     */
+    int getPushCount() {
+        return mPushCount.get();
+    }
+
+    /**
+     * Pushes the pending files over parallel sync connections. Files that were already pushed
+     * by a previous call are skipped, so this can be retried after a failure.
+     *
+     * @param device the {@link IDevice} to push to
+     * @return <code>true</code> once all files are pushed
+     * @throws TimeoutException, IOException, AdbCommandRejectedException, SyncException if a push
+     *             failed. The remaining pushes are abandoned.
+     */
+    boolean pushFiles(IDevice device) throws TimeoutException, IOException,
+            AdbCommandRejectedException, SyncException {
+        Queue<SyncEntry> queue = new ConcurrentLinkedQueue<SyncEntry>();
+        List<String> invalidatedPaths = new ArrayList<String>();
+        for (SyncEntry entry : mPendingEntries) {
+            if (!entry.mDone) {
+                queue.add(entry);
+                if (mUseManifest && mManifest.remove(entry.mRelativePath) != null) {
+                    invalidatedPaths.add(entry.mRelativePath);
+                }
+            }
+        }
+        if (queue.isEmpty()) {
+            return true;
+        }
+        mAborted.set(false);
+        if (!invalidatedPaths.isEmpty()) {
+            // forget files that are about to be overwritten, in case the push is interrupted
+            // part way through one of them
+            SyncService syncService = openSyncService(device);
+            try {
+                writeJournal(syncService, invalidatedPaths, true);
+            } finally {
+                if (syncService != null) {
+                    syncService.close();
+                }
+            }
+        }
+
+        int numWorkers = Math.min(mNumConnections, queue.size());
+        ExecutorService executor = Executors.newFixedThreadPool(numWorkers,
+                createThreadFactory("FileSyncer-push"));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(numWorkers);
+            for (int i = 0; i < numWorkers; i++) {
+                futures.add(executor.submit(new PushWorker(device, queue)));
+            }
+            Throwable failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                }
+            }
+            if (failure != null) {
+                rethrowPushFailure(failure);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return true;
+    }
+
+    private void rethrowPushFailure(Throwable t) throws TimeoutException, IOException,
+            AdbCommandRejectedException, SyncException {
+        if (t instanceof TimeoutException) {
+            throw (TimeoutException)t;
+        } else if (t instanceof IOException) {
+            throw (IOException)t;
+        } else if (t instanceof AdbCommandRejectedException) {
+            throw (AdbCommandRejectedException)t;
+        } else if (t instanceof SyncException) {
+            throw (SyncException)t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException)t;
+        } else if (t instanceof Error) {
+            throw (Error)t;
+        }
+        throw new IOException(t);
+    }
+
+    /**
+     * Pushes files from a shared queue over its own sync connection.
+     */
+    private class PushWorker implements Callable<Void> {
+        private final IDevice mDevice;
+        private final Queue<SyncEntry> mQueue;
+
+        PushWorker(IDevice device, Queue<SyncEntry> queue) {
+            mDevice = device;
+            mQueue = queue;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            SyncService syncService = null;
+            boolean connected = false;
+            try {
+                SyncEntry entry;
+                while (!mAborted.get() && (entry = mQueue.poll()) != null) {
+                    if (!connected) {
+                        syncService = openSyncService(mDevice);
+                        connected = true;
+                    }
+                    pushFile(syncService, entry.mLocalFile,
+                            getRemotePath(entry.mRelativePath));
+                    entry.mDone = true;
+                    mPushCount.incrementAndGet();
+                    if (mUseManifest) {
+                        recordPush(syncService, entry);
+                    }
+                }
+                if (connected && mUseManifest) {
+                    flushJournal(syncService);
+                }
+                return null;
+            } catch (Exception e) {
+                mAborted.set(true);
+                throw e;
+            } finally {
+                if (syncService != null) {
+                    syncService.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records a completed push, and writes a journal once enough have accumulated.
+     */
+    private void recordPush(SyncService syncService, SyncEntry entry) throws TimeoutException,
+            IOException, SyncException {
+        List<String> lines = null;
+        synchronized (mJournalLines) {
+            mManifest.put(entry.mRelativePath, entry.mHash);
+            mJournalLines.add(formatManifestLine(entry.mHash, entry.mRelativePath));
+            if (mJournalLines.size() >= JOURNAL_BATCH_SIZE) {
+                lines = new ArrayList<String>(mJournalLines);
+                mJournalLines.clear();
+            }
+        }
+        if (lines != null) {
+            writeJournal(syncService, lines, false);
+        }
+    }
+
+    private void flushJournal(SyncService syncService) throws TimeoutException, IOException,
+            SyncException {
+        List<String> lines;
+        synchronized (mJournalLines) {
+            if (mJournalLines.isEmpty()) {
+                return;
+            }
+            lines = new ArrayList<String>(mJournalLines);
+            mJournalLines.clear();
+        }
+        writeJournal(syncService, lines, false);
+    }
+
+    /**
+     * Pushes a journal file containing given entries.
+     *
+     * @param syncService the {@link SyncService} to use
+     * @param lines the manifest lines, or relative paths if <var>invalidate</var> is set
+     * @param invalidate whether the given paths should be recorded with {@link #UNKNOWN_HASH}
+     */
+    private void writeJournal(SyncService syncService, List<String> lines, boolean invalidate)
+            throws TimeoutException, IOException, SyncException {
+        StringBuilder contents = new StringBuilder();
+        for (String line : lines) {
+            contents.append(invalidate ? formatManifestLine(UNKNOWN_HASH, line) : line);
+            contents.append('\n');
+        }
+        // journals must sort in the order they were written
+        String journalName = String.format("%s%05d", mJournalPrefix,
+                mJournalIndex.getAndIncrement());
+        File journalFile = FileUtil.createTempFile("sync_journal", ".txt");
+        try {
+            FileUtil.writeToFile(contents.toString(), journalFile);
+            pushFile(syncService, journalFile, getRemotePath(journalName));
+        } finally {
+            FileUtil.deleteFile(journalFile);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the remote manifest should be rewritten
+     */
+    boolean isManifestChanged() {
+        return mUseManifest && (mPushCount.get() > 0 || mManifestLineCount != mEntries.size());
+    }
+
+    /**
+     * @return the contents of a complete manifest for the synced files
+     */
+    String getManifestContents() {
+        StringBuilder contents = new StringBuilder();
+        for (SyncEntry entry : mEntries) {
+            if (entry.mHash != null && entry.mHash.equals(mManifest.get(entry.mRelativePath))) {
+                contents.append(formatManifestLine(entry.mHash, entry.mRelativePath));
+                contents.append('\n');
+            }
+        }
+        return contents.toString();
+    }
+
+    /**
+     * Opens a new sync connection to device. Exposed for unit testing.
+     */
+    SyncService openSyncService(IDevice device) throws TimeoutException,
+            AdbCommandRejectedException, IOException {
+        return device.getSyncService();
+    }
+
+    /**
+     * Pushes one file over given sync connection. Exposed for unit testing.
+     */
+    void pushFile(SyncService syncService, File localFile, String remotePath)
+            throws TimeoutException, IOException, SyncException {
+        syncService.pushFile(localFile.getAbsolutePath(), remotePath,
+                SyncService.getNullProgressMonitor());
+    }
+
+    private String getRemotePath(String relativePath) {
+        return relativePath.isEmpty() ? mRemoteDir : mRemoteDir + "/" + relativePath;
+    }
+
+    private static String getChildPath(String parentPath, String name) {
+        return parentPath.isEmpty() ? name : parentPath + "/" + name;
+    }
+
+    private static String formatManifestLine(String hash, String relativePath) {
+        return hash + MANIFEST_SEPARATOR + relativePath;
+    }
+
+    private static String trimLineEnd(String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    private static ThreadFactory createThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, String.format("%s-%d", namePrefix,
+                        sThreadCount.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -37,6 +37,26 @@ public interface IDeviceManager {
         public void stateUpdated();
     }
 
+    /**
+     * A {@link IFastbootListener} that is also notified of each device entering or leaving
+     * fastboot.
+     */
+    public static interface IFastbootDeviceListener extends IFastbootListener {
+        /**
+         * Callback when a device entered fastboot. Called before {@link #stateUpdated()}.
+         *
+         * @param serial the serial of the device
+         */
+        public void fastbootDeviceAdded(String serial);
+
+        /**
+         * Callback when a device left fastboot. Called before {@link #stateUpdated()}.
+         *
+         * @param serial the serial of the device
+         */
+        public void fastbootDeviceRemoved(String serial);
+    }
+
     /**
      * Initialize the device manager. This must be called once and only once before any other
      * methods are called.
@@ -173,6 +193,14 @@ public interface IDeviceManager {
      */
     public List<DeviceDescriptor> listAllDevices();
 
+    /**
+     * Returns the number of devices that are available for allocation and match the given
+     * requirements.
+     *
+     * @param options the {@link IDeviceSelection} the devices should match
+     */
+    public int getAvailableDeviceCount(IDeviceSelection options);
+
     /**
      * Output a user-friendly description containing list of known devices, their state, and
      * values for commonly used {@link IDeviceSelection} options.
@@ -569,6 +569,8 @@ public interface ITestDevice {
 
     /**
      * Recursively push directory contents to device.
+     * <p/>
+     * Directories are created up front, and files are pushed over several parallel connections.
      *
      * @param localDir the local directory to push
      * @param deviceFilePath the absolute file path of the remote destination
@@ -582,9 +584,10 @@ public interface ITestDevice {
     /**
      * Incrementally syncs the contents of a local file directory to device.
      * <p/>
-     * Decides which files to push by comparing timestamps of local files with their remote
-     * equivalents. Only 'newer' or non-existent files will be pushed to device. Thus overhead
-     * should be relatively small if file set on device is already up to date.
+     * Decides which files to push by comparing content hashes of local files with a manifest
+     * kept in the remote directory. Only changed or non-existent files will be pushed to device,
+     * over several parallel connections. Thus overhead should be relatively small if file set on
+     * device is already up to date, and a sync that was interrupted resumes where it left off.
      * <p/>
      * Hidden files (with names starting with ".") will be ignored.
      * <p/>
@@ -683,6 +686,28 @@ public interface ITestDevice {
      */
     public InputStreamSource getLogcat(int maxBytes);
 
+    /**
+     * Grabs a snapshot stream of the logcat data captured after <code>offset</code> bytes.
+     * <p/>
+     * Useful for cases when you want to capture the logcat data produced since a previous
+     * snapshot, without reading the data again. If more than <code>maxBytes</code> were captured
+     * since <code>offset</code>, only the last <code>maxBytes</code> are returned.
+     *
+     * @param offset the amount of captured logcat data to skip, as returned by
+     *            {@link #getLogcatSize()}
+     * @param maxBytes the maximum amount of data to return. Should be an amount that can
+     *            comfortably fit in memory
+     */
+    public InputStreamSource getLogcatSince(long offset, int maxBytes);
+
+    /**
+     * Gets the total amount of logcat data captured in the background, including data that has
+     * since been discarded or cleared.
+     *
+     * @return the amount of captured logcat data in bytes, or 0 if logcat is not being captured
+     */
+    public long getLogcatSize();
+
     /**
     * Get a dump of the current logcat for device. Unlike {@link #getLogcat()}, this method will
     * always return a static dump of the logcat.
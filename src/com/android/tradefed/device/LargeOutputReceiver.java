@@ -21,13 +21,9 @@ import com.android.ddmlib.IShellOutputReceiver;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.InputStreamSource;
-import com.android.tradefed.result.SnapshotInputStreamSource;
-import com.android.tradefed.util.FixedByteArrayOutputStream;
 import com.android.tradefed.util.SizeLimitedOutputStream;
-import com.android.tradefed.util.StreamUtil;
 
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * A class designed to help run long running commands collect output.
@@ -44,6 +40,10 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
     private boolean mIsCancelled = false;
     private SizeLimitedOutputStream mOutStream;
     private long mMaxDataSize;
+    /** the total amount of data received, including data since discarded */
+    private long mTotalDataSize = 0;
+    /** the total amount of data received when the current output stream was created */
+    private long mStreamStartSize = 0;
 
     /**
      * Creates a {@link LargeOutputReceiver}.
@@ -69,6 +69,7 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
         }
         try {
             mOutStream.write(data, offset, length);
+            mTotalDataSize += length;
         } catch (IOException e) {
             CLog.w("failed to write %s data for %s.", mDescriptor, mSerialNumber);
         }
@@ -76,17 +77,15 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
 
     /**
      * Gets the collected output as a {@link InputStreamSource}.
+     * <p/>
+     * The returned source is a read-only view of the backing files rather than a copy, and stays
+     * valid until cancelled even if the data is rotated out or deleted.
      *
      * @return The collected output from the command.
      */
     public synchronized InputStreamSource getData() {
         if (mOutStream != null) {
-            try {
-                return new SnapshotInputStreamSource(mOutStream.getData());
-            } catch (IOException e) {
-                CLog.e("failed to get %s data for %s.", mDescriptor, mSerialNumber);
-                CLog.e(e);
-            }
+            return mOutStream.getSnapshot();
         }
 
         // return an empty InputStreamSource
@@ -95,47 +94,49 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
 
     /**
      * Gets the last <var>maxBytes</var> of collected output as a {@link InputStreamSource}.
+     * <p/>
+     * Like {@link #getData()}, the returned source is a view of the backing files, which starts
+     * directly at the requested tail.
      *
-     * @param maxBytes the maximum amount of data to return. Should be an amount that can
-     *            comfortably fit in memory
-     * @return The collected output from the command, stored in memory
+     * @param maxBytes the maximum amount of data to return.
+     * @return The collected output from the command.
      */
     public synchronized InputStreamSource getData(final int maxBytes) {
         if (mOutStream != null) {
-            InputStream fullStream = null;
-            try {
-                fullStream = mOutStream.getData();
-                final FixedByteArrayOutputStream os = new FixedByteArrayOutputStream(maxBytes);
-                StreamUtil.copyStreams(fullStream, os);
-                return new InputStreamSource() {
-
-                    @Override
-                    public InputStream createInputStream()  {
-                        return os.getData();
-                    }
-
-                    @Override
-                    public void cancel() {
-                        // ignore, nothing to do
-                    }
-
-                    @Override
-                    public long size() {
-                        return os.size();
-                    }
-                };
-            } catch (IOException e) {
-                CLog.e("failed to get %s data for %s.", mDescriptor, mSerialNumber);
-                CLog.e(e);
-            } finally {
-                StreamUtil.close(fullStream);
-            }
+            return mOutStream.getSnapshot(maxBytes);
         }
 
         // return an empty InputStreamSource
         return new ByteArrayInputStreamSource(new byte[0]);
     }
 
+    /**
+     * Gets the collected output received after <var>offset</var> bytes as a
+     * {@link InputStreamSource}.
+     * <p/>
+     * If more than <var>maxBytes</var> were received since <var>offset</var>, only the last
+     * <var>maxBytes</var> are returned. If <var>offset</var> is past the received data, the
+     * last <var>maxBytes</var> of collected output are returned.
+     *
+     * @param offset the amount of data to skip, as returned by {@link #getTotalDataSize()}
+     * @param maxBytes the maximum amount of data to return.
+     * @return The collected output from the command.
+     */
+    public synchronized InputStreamSource getDataSince(long offset, int maxBytes) {
+        long available = mTotalDataSize - mStreamStartSize;
+        if (offset > mStreamStartSize && offset <= mTotalDataSize) {
+            available = mTotalDataSize - offset;
+        }
+        return getData((int)Math.min(available, maxBytes));
+    }
+
+    /**
+     * Gets the total amount of output received, including output since discarded or cleared.
+     */
+    public synchronized long getTotalDataSize() {
+        return mTotalDataSize;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -153,6 +154,7 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
     public synchronized void clear() {
         delete();
         mOutStream = createOutputStream();
+        mStreamStartSize = mTotalDataSize;
     }
 
     private SizeLimitedOutputStream createOutputStream() {
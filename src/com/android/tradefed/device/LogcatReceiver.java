@@ -75,6 +75,14 @@ public class LogcatReceiver {
         return mReceiver.getData(maxBytes);
     }
 
+    public InputStreamSource getLogcatDataSince(long offset, int maxBytes) {
+        return mReceiver.getDataSince(offset, maxBytes);
+    }
+
+    public long getLogcatDataSize() {
+        return mReceiver.getTotalDataSize();
+    }
+
     public void clear() {
         mReceiver.clear();
     }
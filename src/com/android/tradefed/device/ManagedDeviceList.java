@@ -23,9 +23,11 @@ import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
 
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -65,6 +67,10 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
     private final ReentrantLock mListLock = new ReentrantLock(true);
     @GuardedBy("mListLock")
     private List<IManagedTestDevice> mList = new LinkedList<IManagedTestDevice>();
+    /** the devices of <var>mList</var> indexed by serial, for updates of a few devices */
+    @GuardedBy("mListLock")
+    private Map<String, IManagedTestDevice> mSerialIndex =
+            new HashMap<String, IManagedTestDevice>();
     private final IManagedTestDeviceFactory mDeviceFactory;
 
     public ManagedDeviceList(IManagedTestDeviceFactory d) {
@@ -146,6 +152,51 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
         }
     }
 
+    /**
+     * Update the {@link TestDevice#getDeviceState()} of devices that entered or left fastboot.
+     * Other devices are not checked.
+     *
+     * @param addedSerials the devices that entered fastboot
+     * @param removedSerials the devices that left fastboot
+     */
+    public void updateFastbootStates(Set<String> addedSerials, Set<String> removedSerials) {
+        if (addedSerials.isEmpty() && removedSerials.isEmpty()) {
+            return;
+        }
+        mListLock.lock();
+        try {
+            for (String serial : addedSerials) {
+                IManagedTestDevice d = getIndexedDevice(serial);
+                if (d != null) {
+                    d.setDeviceState(TestDeviceState.FASTBOOT);
+                }
+            }
+            for (String serial : removedSerials) {
+                IManagedTestDevice d = getIndexedDevice(serial);
+                if (d != null && d.getDeviceState() == TestDeviceState.FASTBOOT) {
+                    d.setDeviceState(TestDeviceState.NOT_AVAILABLE);
+                }
+            }
+        } finally {
+            mListLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the device with given serial from the serial index. Must be called with
+     * <var>mListLock</var> held.
+     *
+     * @return the {@link IManagedTestDevice} or <code>null</code> if not found
+     */
+    private IManagedTestDevice getIndexedDevice(String serial) {
+        IManagedTestDevice d = mSerialIndex.get(serial);
+        // ignore a stale entry, eg if the device was assigned another IDevice
+        if (d != null && serial.equals(d.getSerialNumber())) {
+            return d;
+        }
+        return null;
+    }
+
     /**
      * Attempt to allocate a device from the list
      * @param options
@@ -197,6 +248,7 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
          mListLock.lock();
          try {
              mList.clear();
+             mSerialIndex.clear();
          } finally {
              mListLock.unlock();
          }
@@ -219,6 +271,7 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
             if (d == null) {
                 d = mDeviceFactory.createDevice(idevice);
                 mList.add(d);
+                mSerialIndex.put(d.getSerialNumber(), d);
             }
             return d;
         } finally {
@@ -234,6 +287,7 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
         mListLock.lock();
         try {
             mList.add(device);
+            mSerialIndex.put(device.getSerialNumber(), device);
         } finally {
             mListLock.unlock();
         }
@@ -258,7 +312,9 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
     private void remove(IManagedTestDevice d) {
         mListLock.lock();
         try {
-            mList.remove(d);
+            if (mList.remove(d) && mSerialIndex.get(d.getSerialNumber()) == d) {
+                mSerialIndex.remove(d.getSerialNumber());
+            }
         } finally {
             mListLock.unlock();
         }
@@ -43,14 +43,13 @@ import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.StreamUtil;
+import com.google.common.base.Optional;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -152,6 +151,9 @@ class TestDevice implements IManagedTestDevice {
     private String mWifiPsk = null;
     private boolean mNetworkMonitorEnabled = false;
 
+    /** the cache of device properties, created on first use */
+    private DevicePropertyCache mPropertyCache = null;
+
     /**
      * Interface for a generic device communication attempt.
      */
@@ -229,6 +231,10 @@ class TestDevice implements IManagedTestDevice {
     public void setOptions(TestDeviceOptions options) {
         throwIfNull(options);
         mOptions = options;
+        synchronized (this) {
+            // recreate property cache with the new ttl
+            mPropertyCache = null;
+        }
         mStateMonitor.setDefaultOnlineTimeout(options.getOnlineTimeout());
         mStateMonitor.setDefaultAvailableTimeout(options.getAvailableTimeout());
     }
@@ -272,6 +278,7 @@ class TestDevice implements IManagedTestDevice {
             synchronized (currentDevice) {
                 mIDevice = newDevice;
             }
+            invalidatePropertyCache();
             mStateMonitor.setIDevice(mIDevice);
         }
     }
@@ -312,15 +319,47 @@ class TestDevice implements IManagedTestDevice {
         } else {
             CLog.d("property collection for device %s is null, re-querying for prop %s",
                     getSerialNumber(), description);
-            return getProperty(propName);
+            // query device directly, as these are retried after recovering a device that was
+            // not fully booted, when the property cache may be stale
+            return getPropertySync(propName);
         }
     }
 
     /**
      * {@inheritDoc}
+     * <p/>
+     * Properties are served from the device's {@link DevicePropertyCache} when possible. On a miss
+     * the full property set is loaded with a single 'getprop' call.
      */
     @Override
     public String getProperty(final String name) throws DeviceNotAvailableException {
+        DevicePropertyCache cache = getPropertyCache();
+        if (cache.isCacheable(name)) {
+            Optional<String> value = cache.lookup(name);
+            if (value == null) {
+                Map<String, String> properties = DevicePropertyCache.parseGetpropOutput(
+                        executeShellCommand("getprop"));
+                if (!properties.isEmpty()) {
+                    cache.update(properties);
+                    value = Optional.fromNullable(properties.get(name));
+                }
+            }
+            if (value != null) {
+                return value.orNull();
+            }
+            CLog.d("Could not load properties of %s, querying %s directly", getSerialNumber(),
+                    name);
+        }
+        return getPropertySync(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Always queries the device, bypassing the {@link DevicePropertyCache}.
+     */
+    @Override
+    public String getPropertySync(final String name) throws DeviceNotAvailableException {
         final String[] result = new String[1];
         DeviceAction propAction = new DeviceAction() {
 
@@ -356,11 +395,28 @@ class TestDevice implements IManagedTestDevice {
     }
 
     /**
-     * {@inheritDoc}
+     * Gets the {@link DevicePropertyCache} for this device, whose hit and miss counts show how
+     * effective it is.
      */
-    @Override
-    public String getPropertySync(final String name) throws DeviceNotAvailableException {
-        return getProperty(name);
+    synchronized DevicePropertyCache getPropertyCache() {
+        if (mPropertyCache == null) {
+            mPropertyCache = new DevicePropertyCache(mOptions.getPropertyCacheTtl());
+        }
+        return mPropertyCache;
+    }
+
+    /**
+     * Discards the cached device properties, because device rebooted or changed state.
+     */
+    private void invalidatePropertyCache() {
+        DevicePropertyCache cache;
+        synchronized (this) {
+            cache = mPropertyCache;
+        }
+        if (cache != null) {
+            CLog.d("Invalidating property cache of %s: %s", getSerialNumber(), cache);
+            cache.invalidate();
+        }
     }
 
     /**
@@ -1029,25 +1085,18 @@ class TestDevice implements IManagedTestDevice {
             CLog.e("file %s is not a directory", localFileDir.getAbsolutePath());
             return false;
         }
-        File[] childFiles = localFileDir.listFiles();
-        if (childFiles == null) {
-            CLog.e("Could not read files in %s", localFileDir.getAbsolutePath());
+        FileSyncer syncer = createFileSyncer(localFileDir,
+                interpolatePathVariables(deviceFilePath), null, false);
+        if (!syncer.scanLocalFiles()) {
             return false;
         }
-        for (File childFile : childFiles) {
-            String remotePath = String.format("%s/%s", deviceFilePath, childFile.getName());
-            if (childFile.isDirectory()) {
-                executeShellCommand(String.format("mkdir %s", remotePath));
-                if (!pushDir(childFile, remotePath)) {
-                    return false;
-                }
-            } else if (childFile.isFile()) {
-                if (!pushFile(childFile, remotePath)) {
-                    return false;
-                }
-            }
+        try {
+            syncer.computePendingFiles();
+        } catch (IOException e) {
+            CLog.e("Failed to read files in %s: %s", localFileDir.getAbsolutePath(), e);
+            return false;
         }
-        return true;
+        return pushFiles(syncer);
     }
 
     /**
@@ -1069,80 +1118,76 @@ class TestDevice implements IManagedTestDevice {
         // implementation will add localFileDir.getName() to destination path
         deviceFilePath = String.format("%s/%s", interpolatePathVariables(deviceFilePath),
                 localFileDir.getName());
-        if (!doesFileExist(deviceFilePath)) {
-            executeShellCommand(String.format("mkdir %s", deviceFilePath));
+        FileSyncer syncer = createFileSyncer(localFileDir, deviceFilePath,
+                new NoHiddenFilesFilter(), true);
+        if (!syncer.scanLocalFiles()) {
+            return false;
         }
-        IFileEntry remoteFileEntry = getFileEntry(deviceFilePath);
-        if (remoteFileEntry == null) {
-            CLog.e("Could not find remote file entry %s ", deviceFilePath);
+        syncer.parseRemoteListing(executeShellCommand(syncer.getListCommand()));
+        if (syncer.remoteDirExists()) {
+            syncer.parseManifest(executeShellCommand(syncer.getReadManifestCommand()));
+        }
+        try {
+            syncer.computePendingFiles();
+        } catch (IOException e) {
+            CLog.e("Failed to read files in %s: %s", localFileDir.getAbsolutePath(), e);
             return false;
         }
-
-        return syncFiles(localFileDir, remoteFileEntry);
+        if (!pushFiles(syncer)) {
+            return false;
+        }
+        if (syncer.isManifestChanged()) {
+            // replace the journals written during the push with a complete manifest
+            if (pushString(syncer.getManifestContents(), syncer.getManifestPath())) {
+                executeShellCommand(syncer.getRemoveJournalsCommand());
+            } else {
+                CLog.w("Failed to write sync manifest %s on %s", syncer.getManifestPath(),
+                        getSerialNumber());
+            }
+        }
+        return true;
     }
 
     /**
-     * Recursively sync newer files.
+     * Creates the missing remote directories for given {@link FileSyncer} and pushes its pending
+     * files. If the push fails, the retry attempts resume with the files not pushed yet.
      *
-     * @param localFileDir the local {@link File} directory to sync
-     * @param remoteFileEntry the remote destination {@link IFileEntry}
-     * @return <code>true</code> if files were synced successfully
+     * @param syncer the {@link FileSyncer}
+     * @return <code>true</code> if files were pushed successfully
      * @throws DeviceNotAvailableException
      */
-    private boolean syncFiles(File localFileDir, final IFileEntry remoteFileEntry)
-            throws DeviceNotAvailableException {
-        CLog.d("Syncing %s to %s on %s", localFileDir.getAbsolutePath(),
-                remoteFileEntry.getFullPath(), getSerialNumber());
-        // find newer files to sync
-        File[] localFiles = localFileDir.listFiles(new NoHiddenFilesFilter());
-        ArrayList<String> filePathsToSync = new ArrayList<String>();
-        for (File localFile : localFiles) {
-            IFileEntry entry = remoteFileEntry.findChild(localFile.getName());
-            if (entry == null) {
-                CLog.d("Detected missing file path %s", localFile.getAbsolutePath());
-                filePathsToSync.add(localFile.getAbsolutePath());
-            } else if (localFile.isDirectory()) {
-                // This directory exists remotely. recursively sync it to sync only its newer files
-                // contents
-                if (!syncFiles(localFile, entry)) {
-                    return false;
-                }
-            } else if (isNewer(localFile, entry)) {
-                CLog.d("Detected newer file %s", localFile.getAbsolutePath());
-                filePathsToSync.add(localFile.getAbsolutePath());
-            }
+    private boolean pushFiles(final FileSyncer syncer) throws DeviceNotAvailableException {
+        for (String mkdirCmd : syncer.getMkdirCommands()) {
+            executeShellCommand(mkdirCmd);
         }
-
-        if (filePathsToSync.size() == 0) {
+        if (syncer.getPendingCount() == 0) {
             CLog.d("No files to sync");
             return true;
         }
-        final String files[] = filePathsToSync.toArray(new String[filePathsToSync.size()]);
-        DeviceAction syncAction = new DeviceAction() {
+        DeviceAction pushAction = new DeviceAction() {
             @Override
             public boolean run() throws TimeoutException, IOException, AdbCommandRejectedException,
                     SyncException {
-                SyncService syncService = null;
-                boolean status = false;
                 try {
-                    syncService = getIDevice().getSyncService();
-                    syncService.push(files, remoteFileEntry.getFileEntry(),
-                            SyncService.getNullProgressMonitor());
-                    status = true;
+                    return syncer.pushFiles(getIDevice());
                 } catch (SyncException e) {
-                    CLog.w("Failed to sync files to %s on device %s. Message %s",
-                            remoteFileEntry.getFullPath(), getSerialNumber(), e.getMessage());
+                    CLog.w("Failed to push files to %s on device %s. Message %s",
+                            syncer.getRemoteDir(), getSerialNumber(), e.getMessage());
                     throw e;
-                } finally {
-                    if (syncService != null) {
-                        syncService.close();
-                    }
                 }
-                return status;
             }
         };
-        return performDeviceAction(String.format("sync files %s", remoteFileEntry.getFullPath()),
-                syncAction, MAX_RETRY_ATTEMPTS);
+        return performDeviceAction(String.format("push %d files to %s",
+                syncer.getPendingCount(), syncer.getRemoteDir()), pushAction, MAX_RETRY_ATTEMPTS);
+    }
+
+    /**
+     * Create the {@link FileSyncer} for pushing a directory. Exposed for unit testing.
+     */
+    FileSyncer createFileSyncer(File localDir, String remoteDir, FilenameFilter filter,
+            boolean useManifest) {
+        return new FileSyncer(localDir, remoteDir, filter, useManifest,
+                mOptions.getFileSyncConnections());
     }
 
     /**
@@ -1194,28 +1239,6 @@ class TestDevice implements IManagedTestDevice {
         }
     }
 
-    /**
-     * Return <code>true</code> if local file is newer than remote file.
-     */
-    private boolean isNewer(File localFile, IFileEntry entry) {
-        // remote times are in GMT timezone
-        final String entryTimeString = String.format("%s %s GMT", entry.getDate(), entry.getTime());
-        try {
-            // expected format of a FileEntry's date and time
-            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm zzz");
-            Date remoteDate = format.parse(entryTimeString);
-            // localFile.lastModified has granularity of ms, but remoteDate.getTime only has
-            // granularity of minutes. Shift remoteDate.getTime() backward by one minute so newly
-            // modified files get synced
-            return localFile.lastModified() > (remoteDate.getTime() - 60 * 1000);
-        } catch (ParseException e) {
-            CLog.e("Error converting remote time stamp %s for %s on device %s", entryTimeString,
-                    entry.getFullPath(), getSerialNumber());
-        }
-        // sync file by default
-        return true;
-    }
-
     /**
      * {@inheritDoc}
      */
@@ -1476,6 +1499,7 @@ class TestDevice implements IManagedTestDevice {
             return;
         }
         CLog.i("Attempting recovery on %s", getSerialNumber());
+        invalidatePropertyCache();
         mRecovery.recoverDevice(mStateMonitor, mRecoveryMode.equals(RecoveryMode.ONLINE));
         if (mRecoveryMode.equals(RecoveryMode.AVAILABLE)) {
             // turn off recovery mode to prevent reentrant recovery
@@ -1567,6 +1591,31 @@ class TestDevice implements IManagedTestDevice {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStreamSource getLogcatSince(long offset, int maxBytes) {
+        if (mLogcatReceiver == null) {
+            CLog.w("Not capturing logcat for %s in background, returning a logcat dump "
+                    + "ignoring offset and size", getSerialNumber());
+            return getLogcatDump();
+        } else {
+            return mLogcatReceiver.getLogcatDataSince(offset, maxBytes);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLogcatSize() {
+        if (mLogcatReceiver == null) {
+            return 0;
+        }
+        return mLogcatReceiver.getLogcatDataSize();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1619,7 +1668,9 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public InputStreamSource getBugreport() {
-        CollectingByteOutputReceiver receiver = new CollectingByteOutputReceiver();
+        // stream the bugreport to a host file rather than holding it in memory
+        LargeOutputReceiver receiver = new LargeOutputReceiver("bugreport", getSerialNumber(),
+                Long.MAX_VALUE);
         try {
             executeShellCommand(BUGREPORT_CMD, receiver, BUGREPORT_TIMEOUT, 0 /* don't retry */);
         } catch (DeviceNotAvailableException e) {
@@ -1627,8 +1678,10 @@ class TestDevice implements IManagedTestDevice {
             // goes away
             CLog.e("Device %s became unresponsive while retrieving bugreport", getSerialNumber());
         }
-
-        return new ByteArrayInputStreamSource(receiver.getOutput());
+        // the snapshot keeps the backing file until it is cancelled
+        InputStreamSource bugreport = receiver.getData();
+        receiver.delete();
+        return bugreport;
     }
 
     /**
@@ -2128,6 +2181,7 @@ class TestDevice implements IManagedTestDevice {
      * @throws DeviceNotAvailableException
      */
     void doReboot() throws DeviceNotAvailableException, UnsupportedOperationException {
+        invalidatePropertyCache();
         if (TestDeviceState.FASTBOOT == getDeviceState()) {
             CLog.i("device %s in fastboot. Rebooting to userspace.", getSerialNumber());
             executeFastbootCommand("reboot");
@@ -2186,6 +2240,7 @@ class TestDevice implements IManagedTestDevice {
      * @throws DeviceNotAvailableException
      */
     private void doAdbReboot(final String into) throws DeviceNotAvailableException {
+        invalidatePropertyCache();
         // emulator doesn't support reboot, try just resetting framework and hoping for the best
         if (getIDevice().isEmulator()) {
             CLog.i("since emulator, performing shell stop & start instead of reboot");
@@ -2611,6 +2666,7 @@ class TestDevice implements IManagedTestDevice {
             }
             mState = deviceState;
             CLog.d("Device %s state is now %s", getSerialNumber(), deviceState);
+            invalidatePropertyCache();
             mStateMonitor.setState(deviceState);
         }
     }
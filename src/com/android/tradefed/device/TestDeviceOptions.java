@@ -82,6 +82,14 @@ public class TestDeviceOptions {
             description = "default number of attempts to connect to wifi network.")
     private int mWifiAttempts = 5;
 
+    @Option(name = "file-sync-connections", description =
+            "number of parallel adb sync connections to use when pushing directories to device.")
+    private int mFileSyncConnections = 4;
+
+    @Option(name = "property-cache-ttl", description = "time in ms to cache device properties " +
+            "that may change. Read-only 'ro.' properties are cached until reboot regardless.")
+    private long mPropertyCacheTtl = 0;
+
     /**
      * Check whether adb root should be enabled on boot for this device
      */
@@ -269,4 +277,26 @@ public class TestDeviceOptions {
         mWifiAttempts = wifiAttempts;
     }
 
+    /**
+     * @return the number of parallel sync connections to use when pushing directories.
+     */
+    public int getFileSyncConnections() {
+        return mFileSyncConnections;
+    }
+
+    public void setFileSyncConnections(int fileSyncConnections) {
+        mFileSyncConnections = fileSyncConnections;
+    }
+
+    /**
+     * @return the time in ms to cache device properties that may change.
+     */
+    public long getPropertyCacheTtl() {
+        return mPropertyCacheTtl;
+    }
+
+    public void setPropertyCacheTtl(long propertyCacheTtl) {
+        mPropertyCacheTtl = propertyCacheTtl;
+    }
+
 }
@@ -17,103 +17,427 @@ package com.android.tradefed.invoker;
 
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IBuildInfo;
-import com.android.tradefed.result.CollectingTestListener;
+import com.android.tradefed.invoker.ShardResultAggregator.ShardEvent;
+import com.android.tradefed.invoker.ShardResultAggregator.ShardProgress;
+import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
-import com.android.tradefed.result.TestResult;
-import com.android.tradefed.result.TestResult.TestStatus;
-import com.android.tradefed.result.TestRunResult;
+import com.android.tradefed.result.TestSummary;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
- * A {@link ITestInvocationListener} that collects results from a invocation shard (aka an
- * invocation split to run on multiple resources in parallel), and forwards them to another
- * listener.
+ * A {@link ITestInvocationListener} that forwards results from a invocation shard (aka an
+ * invocation split to run on multiple resources in parallel) to a {@link ShardResultAggregator},
+ * as they arrive.
  */
-class ShardListener extends CollectingTestListener {
+class ShardListener implements ITestInvocationListener {
 
-    private ITestInvocationListener mMasterListener;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** the type tags of the spooled test run callbacks */
+    private static final byte RUN_STARTED = 1;
+    private static final byte TEST_STARTED = 2;
+    private static final byte TEST_FAILED = 3;
+    private static final byte TEST_ENDED = 4;
+    private static final byte RUN_FAILED = 5;
+    private static final byte RUN_STOPPED = 6;
+    private static final byte RUN_ENDED = 7;
+
+    private final ShardResultAggregator mAggregator;
+    private final ShardProgress mProgress;
+    private final int mShardIndex;
 
     /**
      * Create a {@link ShardListener}.
      *
-     * @param master the {@link ITestInvocationListener} the results should be forwarded. To
-     *            prevent collisions with other {@link ShardListener}s, this object will synchronize
-     *            on <var>master</var> when forwarding results. And results will only be sent once
-     *            the invocation shard completes.
+     * @param aggregator the {@link ShardResultAggregator} the results should be forwarded to
+     * @param progress the {@link ShardProgress} to update as results arrive
      */
-    ShardListener(ITestInvocationListener master) {
-        mMasterListener = master;
+    ShardListener(ShardResultAggregator aggregator, ShardProgress progress) {
+        mAggregator = aggregator;
+        mProgress = progress;
+        mShardIndex = progress.getShardIndex();
+    }
+
+    /**
+     * @return the live progress of this shard
+     */
+    ShardProgress getProgress() {
+        return mProgress;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void invocationStarted(IBuildInfo buildInfo) {
-        super.invocationStarted(buildInfo);
-        synchronized (mMasterListener) {
-            mMasterListener.invocationStarted(buildInfo);
-        }
+    public void invocationStarted(final IBuildInfo buildInfo) {
+        mAggregator.post(new ShardEvent(mShardIndex, false, false) {
+            @Override
+            void forward(ITestInvocationListener listener) {
+                listener.invocationStarted(buildInfo);
+            }
+        });
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void invocationFailed(Throwable cause) {
-        super.invocationFailed(cause);
-        synchronized (mMasterListener) {
-            mMasterListener.invocationFailed(cause);
-        }
+    public void testRunStarted(String runName, int testCount) {
+        mProgress.runStarted(runName, testCount);
+        mAggregator.post(createRunStarted(mShardIndex, runName, testCount));
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
-        // forward testLog results immediately, since they are not order dependent and there are
-        // not stored by CollectingTestListener
-        synchronized (mMasterListener) {
-            mMasterListener.testLog(dataName, dataType, dataStream);
-        }
+    public void testStarted(TestIdentifier test) {
+        mAggregator.post(createTestStarted(mShardIndex, test));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+        mProgress.testFailed();
+        mAggregator.post(createTestFailed(mShardIndex, status, test, trace));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        mProgress.testEnded();
+        mAggregator.post(createTestEnded(mShardIndex, test, testMetrics));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunFailed(String errorMessage) {
+        mAggregator.post(createRunFailed(mShardIndex, errorMessage));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStopped(long elapsedTime) {
+        // the run is still open until testRunEnded
+        mAggregator.post(createRunStopped(mShardIndex, elapsedTime));
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void invocationEnded(long elapsedTime) {
-        super.invocationEnded(elapsedTime);
-        synchronized (mMasterListener) {
-            for (TestRunResult runResult : getRunResults()) {
-                mMasterListener.testRunStarted(runResult.getName(), runResult.getNumTests());
-                forwardTestResults(runResult.getTestResults());
-                if (runResult.isRunFailure()) {
-                    mMasterListener.testRunFailed(runResult.getRunFailureMessage());
-                }
-                mMasterListener.testRunEnded(runResult.getElapsedTime(), runResult.getRunMetrics());
-            }
-            mMasterListener.invocationEnded(elapsedTime);
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        mProgress.runEnded();
+        mAggregator.post(createRunEnded(mShardIndex, elapsedTime, runMetrics));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationFailed(final Throwable cause) {
+        mAggregator.post(new ShardEvent(mShardIndex, false, false) {
+            @Override
+            void forward(ITestInvocationListener listener) {
+                listener.invocationFailed(cause);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testLog(final String dataName, final LogDataType dataType,
+            final InputStreamSource dataStream) {
+        // forward testLog results right away, since they are not order dependent. Wait until they
+        // are dispatched, since the caller may cancel the data stream once this returns
+        mAggregator.post(new ShardEvent(mShardIndex, false, true) {
+            @Override
+            void forward(ITestInvocationListener listener) {
+                listener.testLog(dataName, dataType, dataStream);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationEnded(final long elapsedTime) {
+        mProgress.done();
+        CLog.i("Invocation shard completed: %s", mProgress);
+        mAggregator.post(new ShardEvent(mShardIndex, false, false) {
+            @Override
+            void forward(ITestInvocationListener listener) {
+                listener.invocationEnded(elapsedTime);
+            }
+
+            @Override
+            boolean isInvocationEnd() {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestSummary getSummary() {
+        return null;
+    }
+
+    /**
+     * A test run callback, which can be spooled to disk while it is held back.
+     */
+    private abstract static class RunEvent extends ShardEvent {
+        private final byte mType;
+
+        RunEvent(int shardIndex, byte type) {
+            super(shardIndex, true, false);
+            mType = type;
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean isSpoolable() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeByte(mType);
+            writeData(out);
+        }
+
+        /**
+         * Writes the callback arguments, as read back by {@link ShardListener#readEvent}.
+         */
+        abstract void writeData(DataOutput out) throws IOException;
     }
 
-    private void forwardTestResults(Map<TestIdentifier, TestResult> testResults) {
-        for (Map.Entry<TestIdentifier, TestResult> testEntry : testResults.entrySet()) {
-            mMasterListener.testStarted(testEntry.getKey());
-            if (testEntry.getValue().getStatus().equals(TestStatus.ERROR)) {
-                mMasterListener.testFailed(TestFailure.ERROR, testEntry.getKey(),
-                        testEntry.getValue().getStackTrace());
-            } else if (testEntry.getValue().getStatus().equals(TestStatus.FAILURE)) {
-                mMasterListener.testFailed(TestFailure.FAILURE, testEntry.getKey(),
-                        testEntry.getValue().getStackTrace());
+    private static ShardEvent createRunStarted(int shardIndex, final String runName,
+            final int testCount) {
+        return new RunEvent(shardIndex, RUN_STARTED) {
+            @Override
+            void forward(ITestInvocationListener listener) {
+                listener.testRunStarted(runName, testCount);
+            }
+
+            @Override
+            boolean isRunStart() {
+                return true;
             }
-            if (!testEntry.getValue().getStatus().equals(TestStatus.INCOMPLETE)) {
-                mMasterListener.testEnded(testEntry.getKey(), testEntry.getValue().getMetrics());
+
+            @Override
+            void writeData(DataOutput out) throws IOException {
+                writeString(out, runName);
+                out.writeInt(testCount);
+            }
+        };
+    }
+
+    private static ShardEvent createTestStarted(int shardIndex, final TestIdentifier test) {
+        return new RunEvent(shardIndex, TEST_STARTED) {
+            @Override
+            void forward(ITestInvocationListener listener) {
+                listener.testStarted(test);
+            }
+
+            @Override
+            void writeData(DataOutput out) throws IOException {
+                writeTest(out, test);
+            }
+        };
+    }
+
+    private static ShardEvent createTestFailed(int shardIndex, final TestFailure status,
+            final TestIdentifier test, final String trace) {
+        return new RunEvent(shardIndex, TEST_FAILED) {
+            @Override
+            void forward(ITestInvocationListener listener) {
+                listener.testFailed(status, test, trace);
+            }
+
+            @Override
+            void writeData(DataOutput out) throws IOException {
+                writeString(out, status.name());
+                writeTest(out, test);
+                writeString(out, trace);
+            }
+        };
+    }
+
+    private static ShardEvent createTestEnded(int shardIndex, final TestIdentifier test,
+            final Map<String, String> testMetrics) {
+        return new RunEvent(shardIndex, TEST_ENDED) {
+            @Override
+            void forward(ITestInvocationListener listener) {
+                listener.testEnded(test, testMetrics);
+            }
+
+            @Override
+            void writeData(DataOutput out) throws IOException {
+                writeTest(out, test);
+                writeMetrics(out, testMetrics);
+            }
+        };
+    }
+
+    private static ShardEvent createRunFailed(int shardIndex, final String errorMessage) {
+        return new RunEvent(shardIndex, RUN_FAILED) {
+            @Override
+            void forward(ITestInvocationListener listener) {
+                listener.testRunFailed(errorMessage);
+            }
+
+            @Override
+            void writeData(DataOutput out) throws IOException {
+                writeString(out, errorMessage);
+            }
+        };
+    }
+
+    private static ShardEvent createRunStopped(int shardIndex, final long elapsedTime) {
+        return new RunEvent(shardIndex, RUN_STOPPED) {
+            @Override
+            void forward(ITestInvocationListener listener) {
+                listener.testRunStopped(elapsedTime);
             }
+
+            @Override
+            void writeData(DataOutput out) throws IOException {
+                out.writeLong(elapsedTime);
+            }
+        };
+    }
+
+    private static ShardEvent createRunEnded(int shardIndex, final long elapsedTime,
+            final Map<String, String> runMetrics) {
+        return new RunEvent(shardIndex, RUN_ENDED) {
+            @Override
+            void forward(ITestInvocationListener listener) {
+                listener.testRunEnded(elapsedTime, runMetrics);
+            }
+
+            @Override
+            boolean isRunEnd() {
+                return true;
+            }
+
+            @Override
+            void writeData(DataOutput out) throws IOException {
+                out.writeLong(elapsedTime);
+                writeMetrics(out, runMetrics);
+            }
+        };
+    }
+
+    /**
+     * Reads back a test run callback spooled with {@link ShardEvent#write}.
+     *
+     * @param shardIndex the index of the shard which posted the callback
+     * @param in the {@link DataInput} to read from
+     * @return the {@link ShardEvent}
+     * @throws IOException if the callback could not be read
+     */
+    static ShardEvent readEvent(int shardIndex, DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case RUN_STARTED:
+                return createRunStarted(shardIndex, readString(in), in.readInt());
+            case TEST_STARTED:
+                return createTestStarted(shardIndex, readTest(in));
+            case TEST_FAILED:
+                return createTestFailed(shardIndex, TestFailure.valueOf(readString(in)),
+                        readTest(in), readString(in));
+            case TEST_ENDED:
+                return createTestEnded(shardIndex, readTest(in), readMetrics(in));
+            case RUN_FAILED:
+                return createRunFailed(shardIndex, readString(in));
+            case RUN_STOPPED:
+                return createRunStopped(shardIndex, in.readLong());
+            case RUN_ENDED:
+                return createRunEnded(shardIndex, in.readLong(), readMetrics(in));
+            default:
+                throw new IOException(String.format("Unknown spooled callback type %d", type));
+        }
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        // DataOutput#writeUTF is limited to 64K, which stack traces can exceed
+        byte[] data = value.getBytes(UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return new String(data, UTF_8);
+    }
+
+    private static void writeTest(DataOutput out, TestIdentifier test) throws IOException {
+        writeString(out, test.getClassName());
+        writeString(out, test.getTestName());
+    }
+
+    private static TestIdentifier readTest(DataInput in) throws IOException {
+        return new TestIdentifier(readString(in), readString(in));
+    }
+
+    private static void writeMetrics(DataOutput out, Map<String, String> metrics)
+            throws IOException {
+        if (metrics == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(metrics.size());
+        for (Map.Entry<String, String> metric : metrics.entrySet()) {
+            writeString(out, metric.getKey());
+            writeString(out, metric.getValue());
+        }
+    }
+
+    private static Map<String, String> readMetrics(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        Map<String, String> metrics = new LinkedHashMap<String, String>(size);
+        for (int i = 0; i < size; i++) {
+            metrics.put(readString(in), readString(in));
         }
+        return metrics;
     }
 }
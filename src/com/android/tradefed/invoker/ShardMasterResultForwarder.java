@@ -25,8 +25,8 @@ import java.util.List;
  * A {@link ResultForwarder} that combines the results of a sharded test invocations. It only
  * reports completion of the invocation to the listeners once all sharded invocations are complete.
  * <p/>
- * This class is not thread safe. It is expected that clients will lock on this class when sending
- * test results, to prevent invocation callbacks from being called out of order.
+ * This class is not thread safe. It is expected to be called from a single thread, such as the
+ * dispatcher of a {@link ShardResultAggregator}.
  */
 class ShardMasterResultForwarder extends ResultForwarder {
 
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Merges the results of the shards of an invocation into a single master listener, as they
+ * arrive.
+ * <p/>
+ * Each shard's {@link ShardListener} posts its callbacks to a bounded queue, which is drained by
+ * a single dispatcher thread. The master listener is only ever called from the dispatcher thread,
+ * so shards never block each other while results are forwarded.
+ * <p/>
+ * Downstream listeners expect the callbacks of a test run to be contiguous. The dispatcher
+ * forwards the run of one shard live, and holds back the run callbacks of the other shards until
+ * that run ends. Only a bounded number of held back callbacks of each shard are kept in memory,
+ * further test run callbacks are spooled to a host file until they can be forwarded. A shard
+ * therefore never blocks on the test run of another shard.
+ */
+class ShardResultAggregator {
+
+    /** the default maximum number of callbacks waiting to be dispatched */
+    static final int DEFAULT_QUEUE_CAPACITY = 10 * 1000;
+    /** the default maximum number of held back callbacks of a shard to keep in memory */
+    static final int DEFAULT_MAX_BACKLOG_IN_MEMORY = 1000;
+
+    /**
+     * A listener callback posted by a shard.
+     */
+    abstract static class ShardEvent {
+        private final int mShardIndex;
+        private final boolean mRunScoped;
+        private final CountDownLatch mDispatched;
+
+        /**
+         * @param shardIndex the index of the shard which posted the callback
+         * @param runScoped <code>true</code> if the callback is part of a test run, and must not
+         *            be interleaved with the test runs of other shards
+         * @param sync <code>true</code> if the poster should wait until the callback is dispatched
+         */
+        ShardEvent(int shardIndex, boolean runScoped, boolean sync) {
+            mShardIndex = shardIndex;
+            mRunScoped = runScoped;
+            mDispatched = sync ? new CountDownLatch(1) : null;
+        }
+
+        /**
+         * Forwards the callback to the master listener.
+         */
+        abstract void forward(ITestInvocationListener listener);
+
+        /**
+         * @return <code>true</code> if this callback can be spooled to disk with {@link #write}
+         */
+        boolean isSpoolable() {
+            return false;
+        }
+
+        /**
+         * Writes this callback to a spool file.
+         *
+         * @throws IOException if the callback could not be written
+         */
+        void write(DataOutput out) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return <code>true</code> if this starts a test run
+         */
+        boolean isRunStart() {
+            return false;
+        }
+
+        /**
+         * @return <code>true</code> if this ends a test run
+         */
+        boolean isRunEnd() {
+            return false;
+        }
+
+        /**
+         * @return <code>true</code> if this ends the shard
+         */
+        boolean isInvocationEnd() {
+            return false;
+        }
+    }
+
+    /**
+     * Consecutive held back callbacks of a shard, spooled to a host file.
+     */
+    private static class SpooledEvents extends ShardEvent {
+        private final File mFile;
+        private DataOutputStream mOutput;
+        private int mCount = 0;
+
+        SpooledEvents(int shardIndex, File file) throws IOException {
+            super(shardIndex, true, false);
+            mFile = file;
+            mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        /**
+         * Appends a callback to the spool file.
+         *
+         * @return <code>false</code> if the callback could not be spooled, and must be held back
+         *         after this one
+         */
+        boolean append(ShardEvent event) {
+            if (mOutput == null || !event.isSpoolable()) {
+                return false;
+            }
+            try {
+                event.write(mOutput);
+                mCount++;
+                return true;
+            } catch (IOException e) {
+                CLog.e("Failed to spool results of shard %d to %s: %s", event.mShardIndex,
+                        mFile.getAbsolutePath(), e.toString());
+                // data of the failed write is dropped by replaying mCount callbacks only
+                StreamUtil.close(mOutput);
+                mOutput = null;
+                return false;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void forward(ITestInvocationListener listener) {
+            // spooled callbacks are forwarded one by one by replay
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Reads back the spooled callbacks, forwarding them to given aggregator, and deletes the
+         * spool file.
+         */
+        void replay(ShardResultAggregator aggregator) {
+            StreamUtil.close(mOutput);
+            mOutput = null;
+            DataInputStream input = null;
+            int replayed = 0;
+            try {
+                input = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                for (; replayed < mCount; replayed++) {
+                    aggregator.deliver(ShardListener.readEvent(super.mShardIndex, input));
+                }
+            } catch (IOException e) {
+                CLog.e("Failed to read spooled results of shard %d, %d callbacks lost: %s",
+                        super.mShardIndex, mCount - replayed, e.toString());
+            } finally {
+                StreamUtil.close(input);
+                FileUtil.deleteFile(mFile);
+            }
+        }
+    }
+
+    /**
+     * Live progress counters of a shard. Updated by the shard as callbacks are posted, so they do
+     * not lag behind the dispatcher.
+     */
+    static class ShardProgress {
+        private final int mShardIndex;
+        private final AtomicInteger mExpectedTests = new AtomicInteger(0);
+        private final AtomicInteger mCompletedTests = new AtomicInteger(0);
+        private final AtomicInteger mFailedTests = new AtomicInteger(0);
+        private volatile String mCurrentRun = null;
+        private volatile boolean mDone = false;
+
+        ShardProgress(int shardIndex) {
+            mShardIndex = shardIndex;
+        }
+
+        void runStarted(String runName, int testCount) {
+            mCurrentRun = runName;
+            mExpectedTests.addAndGet(testCount);
+        }
+
+        void runEnded() {
+            mCurrentRun = null;
+        }
+
+        void testFailed() {
+            mFailedTests.incrementAndGet();
+        }
+
+        void testEnded() {
+            mCompletedTests.incrementAndGet();
+        }
+
+        void done() {
+            mDone = true;
+            mCurrentRun = null;
+        }
+
+        public int getShardIndex() {
+            return mShardIndex;
+        }
+
+        /**
+         * @return the number of tests announced by the test runs started so far
+         */
+        public int getExpectedTests() {
+            return mExpectedTests.get();
+        }
+
+        public int getCompletedTests() {
+            return mCompletedTests.get();
+        }
+
+        public int getFailedTests() {
+            return mFailedTests.get();
+        }
+
+        /**
+         * @return the name of the test run in progress, or <code>null</code>
+         */
+        public String getCurrentRun() {
+            return mCurrentRun;
+        }
+
+        public boolean isDone() {
+            return mDone;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            String state = mDone ? "done" : (mCurrentRun == null ? "idle" :
+                    String.format("running %s", mCurrentRun));
+            return String.format("shard %d: %d/%d tests, %d failed, %s", mShardIndex,
+                    getCompletedTests(), getExpectedTests(), getFailedTests(), state);
+        }
+    }
+
+    private final ITestInvocationListener mMasterListener;
+    private final int mShardCount;
+    private final BlockingQueue<ShardEvent> mQueue;
+    private final int mMaxBacklogInMemory;
+    private final List<ShardProgress> mProgress = new ArrayList<ShardProgress>();
+    private final CountDownLatch mCompleted = new CountDownLatch(1);
+    private Thread mDispatcher = null;
+
+    // state below is only accessed by the dispatcher thread
+    /** the shard whose test run is being forwarded, or -1 */
+    private int mRunOwner = -1;
+    /** the callbacks held back for each shard, in order of arrival of the first one */
+    private final Map<Integer, LinkedList<ShardEvent>> mBacklogs =
+            new LinkedHashMap<Integer, LinkedList<ShardEvent>>();
+    private int mShardsEnded = 0;
+
+    /**
+     * Creates a {@link ShardResultAggregator}.
+     *
+     * @param master the {@link ITestInvocationListener} to forward the results of all shards to
+     * @param shardCount the number of shards
+     */
+    ShardResultAggregator(ITestInvocationListener master, int shardCount) {
+        this(master, shardCount, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates a {@link ShardResultAggregator}.
+     *
+     * @param master the {@link ITestInvocationListener} to forward the results of all shards to
+     * @param shardCount the number of shards
+     * @param queueCapacity the maximum number of callbacks waiting to be dispatched. Shards block
+     *            when the queue is full.
+     */
+    ShardResultAggregator(ITestInvocationListener master, int shardCount, int queueCapacity) {
+        this(master, shardCount, queueCapacity, DEFAULT_MAX_BACKLOG_IN_MEMORY);
+    }
+
+    /**
+     * Creates a {@link ShardResultAggregator}.
+     *
+     * @param master the {@link ITestInvocationListener} to forward the results of all shards to
+     * @param shardCount the number of shards
+     * @param queueCapacity the maximum number of callbacks waiting to be dispatched. Shards block
+     *            when the queue is full.
+     * @param maxBacklogInMemory the maximum number of held back callbacks of a shard to keep in
+     *            memory. Further test run callbacks are spooled to disk.
+     */
+    ShardResultAggregator(ITestInvocationListener master, int shardCount, int queueCapacity,
+            int maxBacklogInMemory) {
+        mMasterListener = master;
+        mShardCount = shardCount;
+        mQueue = new LinkedBlockingQueue<ShardEvent>(queueCapacity);
+        mMaxBacklogInMemory = maxBacklogInMemory;
+    }
+
+    /**
+     * Starts the dispatcher thread.
+     */
+    synchronized void start() {
+        if (mDispatcher != null) {
+            return;
+        }
+        mDispatcher = new Thread("ShardResultDispatcher") {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        };
+        mDispatcher.setDaemon(true);
+        mDispatcher.start();
+    }
+
+    /**
+     * Creates the {@link ShardListener} for the next shard.
+     */
+    synchronized ShardListener createShardListener() {
+        ShardProgress progress = new ShardProgress(mProgress.size());
+        mProgress.add(progress);
+        return new ShardListener(this, progress);
+    }
+
+    /**
+     * Waits until the results of all shards have been dispatched.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @return <code>true</code> if all shards completed within given time
+     */
+    boolean awaitCompletion(long timeoutMs) {
+        try {
+            return mCompleted.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Posts a callback to be dispatched to the master listener. Blocks while the queue is full,
+     * and until the callback is dispatched if it was created as synchronous.
+     */
+    void post(ShardEvent event) {
+        Uninterruptibles.putUninterruptibly(mQueue, event);
+        if (event.mDispatched != null) {
+            Uninterruptibles.awaitUninterruptibly(event.mDispatched);
+        }
+    }
+
+    private void dispatch() {
+        while (mShardsEnded < mShardCount) {
+            ShardEvent event = Uninterruptibles.takeUninterruptibly(mQueue);
+            try {
+                process(event);
+            } finally {
+                if (event.mDispatched != null) {
+                    event.mDispatched.countDown();
+                }
+            }
+        }
+        CLog.d("Results of all %d shards dispatched", mShardCount);
+        mCompleted.countDown();
+    }
+
+    /**
+     * Forwards or holds back a callback.
+     */
+    private void process(ShardEvent event) {
+        LinkedList<ShardEvent> backlog = mBacklogs.get(event.mShardIndex);
+        boolean heldBack = backlog != null && !backlog.isEmpty();
+        if (heldBack && !event.mRunScoped && event.mDispatched != null) {
+            // poster is waiting, and callback does not depend on order
+            deliver(event);
+        } else if (heldBack || (event.mRunScoped && mRunOwner != -1
+                && mRunOwner != event.mShardIndex)) {
+            if (backlog == null) {
+                backlog = new LinkedList<ShardEvent>();
+                mBacklogs.put(event.mShardIndex, backlog);
+            }
+            holdBack(backlog, event);
+        } else {
+            deliver(event);
+            drainBacklogs();
+        }
+    }
+
+    /**
+     * Adds a callback to the backlog of its shard, spooling it to disk once the backlog holds too
+     * many callbacks in memory.
+     */
+    private void holdBack(LinkedList<ShardEvent> backlog, ShardEvent event) {
+        ShardEvent last = backlog.peekLast();
+        if (last instanceof SpooledEvents && ((SpooledEvents)last).append(event)) {
+            return;
+        }
+        if (backlog.size() >= mMaxBacklogInMemory && event.isSpoolable()) {
+            try {
+                SpooledEvents spool = new SpooledEvents(event.mShardIndex,
+                        FileUtil.createTempFile(String.format("shard%d_results_",
+                                event.mShardIndex), ".bin"));
+                backlog.add(spool);
+                if (spool.append(event)) {
+                    return;
+                }
+            } catch (IOException e) {
+                CLog.e("Failed to create spool file for results of shard %d: %s",
+                        event.mShardIndex, e.toString());
+            }
+        }
+        backlog.add(event);
+    }
+
+    /**
+     * Forwards the held back callbacks of each shard, while no test run is in progress.
+     */
+    private void drainBacklogs() {
+        Iterator<Map.Entry<Integer, LinkedList<ShardEvent>>> iter =
+                mBacklogs.entrySet().iterator();
+        while (mRunOwner == -1 && iter.hasNext()) {
+            LinkedList<ShardEvent> backlog = iter.next().getValue();
+            while (!backlog.isEmpty()) {
+                ShardEvent event = backlog.peek();
+                if (event.mRunScoped && mRunOwner != -1 && mRunOwner != event.mShardIndex) {
+                    break;
+                }
+                event = backlog.remove();
+                if (event instanceof SpooledEvents) {
+                    ((SpooledEvents)event).replay(this);
+                } else {
+                    deliver(event);
+                }
+            }
+            if (backlog.isEmpty()) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Forwards a callback to the master listener, tracking test run ownership.
+     */
+    void deliver(ShardEvent event) {
+        if (event.isInvocationEnd() && mRunOwner == event.mShardIndex) {
+            // shard ended without ending its run, eg because it crashed
+            mMasterListener.testRunEnded(0, new HashMap<String, String>());
+            mRunOwner = -1;
+        }
+        try {
+            event.forward(mMasterListener);
+        } catch (RuntimeException e) {
+            CLog.e("Failed to forward results of shard %d", event.mShardIndex);
+            CLog.e(e);
+        }
+        if (event.isRunStart()) {
+            mRunOwner = event.mShardIndex;
+        } else if (event.isRunEnd() || event.isInvocationEnd()) {
+            mRunOwner = -1;
+        }
+        if (event.isInvocationEnd()) {
+            mShardsEnded++;
+        }
+    }
+}
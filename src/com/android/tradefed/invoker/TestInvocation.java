@@ -21,11 +21,15 @@ import com.android.tradefed.build.BuildRetrievalError;
 import com.android.tradefed.build.ExistingBuildProvider;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.build.IDeviceBuildProvider;
+import com.android.tradefed.command.ICommandOptions;
+import com.android.tradefed.config.GlobalConfiguration;
 import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.DeviceUnresponsiveException;
+import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.TestDeviceState;
+import com.android.tradefed.invoker.ShardResultAggregator.ShardProgress;
 import com.android.tradefed.log.ILeveledLogOutput;
 import com.android.tradefed.log.ILogRegistry;
 import com.android.tradefed.log.LogRegistry;
@@ -39,16 +43,19 @@ import com.android.tradefed.result.InvocationSummaryHelper;
 import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.LogFile;
 import com.android.tradefed.result.ResultForwarder;
+import com.android.tradefed.result.TestDurationStore;
 import com.android.tradefed.targetprep.BuildError;
 import com.android.tradefed.targetprep.ITargetCleaner;
 import com.android.tradefed.targetprep.ITargetPreparer;
 import com.android.tradefed.targetprep.TargetSetupError;
+import com.android.tradefed.testtype.DurationSharder;
 import com.android.tradefed.testtype.IBuildReceiver;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IResumableTest;
 import com.android.tradefed.testtype.IRetriableTest;
 import com.android.tradefed.testtype.IShardableTest;
+import com.android.tradefed.testtype.ITestListShardable;
 
 import junit.framework.Test;
 
@@ -80,6 +87,8 @@ public class TestInvocation implements ITestInvocation {
     static final String BATT_TAG = "[battery level]";
 
     private String mStatus = "(not invoked)";
+    /** the live progress of this invocation, if it runs a shard of another invocation */
+    private volatile ShardProgress mShardProgress = null;
 
     /**
      * A {@link ResultForwarder} for forwarding resumed invocations.
@@ -194,6 +203,11 @@ public class TestInvocation implements ITestInvocation {
                 config.getTestInvocationListeners().size() + extraListeners.length);
         allListeners.addAll(config.getTestInvocationListeners());
         allListeners.addAll(Arrays.asList(extraListeners));
+        for (ITestInvocationListener configListener : allListeners) {
+            if (configListener instanceof ShardListener) {
+                mShardProgress = ((ShardListener)configListener).getProgress();
+            }
+        }
         ITestInvocationListener listener = new LogSaverResultForwarder(config.getLogSaver(),
                 allListeners);
 
@@ -277,20 +291,25 @@ public class TestInvocation implements ITestInvocation {
         mStatus = "sharding";
         List<IRemoteTest> shardableTests = new ArrayList<IRemoteTest>();
         boolean isSharded = false;
+        int autoShardCount = getAutoShardCount(config);
         for (IRemoteTest test : config.getTests()) {
-            isSharded |= shardTest(shardableTests, test);
+            isSharded |= shardTest(shardableTests, test, autoShardCount);
         }
         if (isSharded) {
             // shard this invocation!
 
             // create the TestInvocationListener that will collect results from all the shards,
-            // and forward them to the original set of listeners (minus any ISharddableListeners)
-            // once all shards complete
+            // and forward them to the original set of listeners (minus any ISharddableListeners).
+            // Invocation completion is only reported once all shards complete
             ShardMasterResultForwarder resultCollector = new ShardMasterResultForwarder(
                     buildMasterShardListeners(config), shardableTests.size());
 
             // report invocation started using original buildinfo
             resultCollector.invocationStarted(info);
+            // merge the results of all shards into the collector as they arrive
+            ShardResultAggregator aggregator = new ShardResultAggregator(resultCollector,
+                    shardableTests.size());
+            aggregator.start();
             for (IRemoteTest testShard : shardableTests) {
                 CLog.i("Rescheduling sharded config...");
                 IConfiguration shardConfig = config.clone();
@@ -299,9 +318,11 @@ public class TestInvocation implements ITestInvocation {
                         config.getBuildProvider()));
 
                 shardConfig.setTestInvocationListeners(
-                        buildShardListeners(resultCollector, config.getTestInvocationListeners()));
+                        buildShardListeners(aggregator, config.getTestInvocationListeners()));
                 shardConfig.setLogOutput(config.getLogOutput().clone());
                 shardConfig.setCommandOptions(config.getCommandOptions().clone());
+                // shards must not be split again
+                shardConfig.getCommandOptions().setAutoShard(false);
                 // use the same {@link ITargetPreparer}, {@link IDeviceRecovery} etc as original
                 // config
                 rescheduler.scheduleConfig(shardConfig);
@@ -333,28 +354,66 @@ public class TestInvocation implements ITestInvocation {
      * results to the master shard collector.
      */
     private List<ITestInvocationListener> buildShardListeners(
-            ITestInvocationListener resultCollector, List<ITestInvocationListener> origListeners) {
+            ShardResultAggregator aggregator, List<ITestInvocationListener> origListeners) {
         List<ITestInvocationListener> shardListeners = new ArrayList<ITestInvocationListener>();
         for (ITestInvocationListener l : origListeners) {
             if (l instanceof IShardableListener) {
                 shardListeners.add(((IShardableListener)l).clone());
             }
         }
-        ShardListener origConfigListener = new ShardListener(resultCollector);
+        ShardListener origConfigListener = aggregator.createShardListener();
         shardListeners.add(origConfigListener);
         return shardListeners;
     }
 
+    /**
+     * Gets the number of shards to automatically split tests into, based on the number of
+     * devices available to run them.
+     *
+     * @return the number of shards, or 0 if auto sharding is disabled
+     */
+    private int getAutoShardCount(IConfiguration config) {
+        ICommandOptions options = config.getCommandOptions();
+        if (!options.isAutoShard()) {
+            return 0;
+        }
+        // this invocation's device will also run a shard
+        int shardCount = getDeviceManager().getAvailableDeviceCount(
+                config.getDeviceRequirements()) + 1;
+        if (options.getMaxShards() > 0) {
+            shardCount = Math.min(shardCount, options.getMaxShards());
+        }
+        CLog.d("Auto sharding tests into %d shards", shardCount);
+        return shardCount;
+    }
+
+    /**
+     * Gets the {@link IDeviceManager} to use. Exposed for unit testing.
+     */
+    IDeviceManager getDeviceManager() {
+        return GlobalConfiguration.getDeviceManagerInstance();
+    }
+
     /**
      * Attempt to shard given {@link IRemoteTest}.
      *
      * @param shardableTests the list of {@link IRemoteTest}s to add to
      * @param test the {@link Test} to shard
+     * @param autoShardCount the number of shards to split {@link ITestListShardable}s into
      * @return <code>true</code> if test was sharded
      */
-    private boolean shardTest(List<IRemoteTest> shardableTests, IRemoteTest test) {
+    private boolean shardTest(List<IRemoteTest> shardableTests, IRemoteTest test,
+            int autoShardCount) {
         boolean isSharded = false;
-        if (test instanceof IShardableTest) {
+        if (autoShardCount > 1 && test instanceof ITestListShardable) {
+            Collection<IRemoteTest> shards = DurationSharder.split((ITestListShardable)test,
+                    TestDurationStore.getDefault(), autoShardCount);
+            if (shards != null) {
+                shardableTests.addAll(shards);
+                isSharded = true;
+            }
+        }
+        if (!isSharded && test instanceof IShardableTest) {
             IShardableTest shardableTest = (IShardableTest)test;
             Collection<IRemoteTest> shards = shardableTest.split();
             if (shards != null) {
@@ -690,6 +749,10 @@ public class TestInvocation implements ITestInvocation {
 
     @Override
     public String toString() {
+        ShardProgress shardProgress = mShardProgress;
+        if (shardProgress != null) {
+            return String.format("%s (%s)", mStatus, shardProgress);
+        }
         return mStatus;
     }
 
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes log messages to an {@link OutputStream} and to stdout from a background thread.
+ * <p/>
+ * Logging threads only add messages to a lock-free ring buffer of preallocated slots, where each
+ * slot carries a sequence number telling whether it is free for the next producer or filled for
+ * the consumer. A single writer thread drains the ring in batches, formatting and encoding each
+ * batch into reused buffers, and printing the messages to display on stdout with a single call
+ * per batch. What happens when the ring is full is determined by the {@link OverflowPolicy}.
+ */
+class AsyncLogWriter implements Runnable {
+
+    /**
+     * What to do with a message logged when the queue is full.
+     */
+    public static enum OverflowPolicy {
+        /** wait for the writer thread to make room */
+        BLOCK,
+        /** drop verbose and debug messages, and wait for room for other messages */
+        DROP_VERBOSE,
+        /** drain the queue on the logging thread */
+        SPILL
+    }
+
+    private static final String LOG_TAG = "AsyncLogWriter";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BYTE_BUFFER_SIZE = 64 * 1024;
+    /** max time to wait for more messages before writing pending ones */
+    private static final long IDLE_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    /** time a blocked logging thread waits for the writer thread before checking again */
+    private static final long BLOCK_WAIT_NS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long CLOSE_TIMEOUT_MS = 10 * 1000;
+
+    /** the smallest queue capacity supported */
+    static final int MIN_CAPACITY = 2;
+
+    /**
+     * A log message waiting to be written.
+     */
+    private static class LogEntry {
+        final LogLevel mLogLevel;
+        final String mTag;
+        final String mMessage;
+        final long mTime;
+        final boolean mDisplay;
+
+        LogEntry(LogLevel logLevel, String tag, String message, long time, boolean display) {
+            mLogLevel = logLevel;
+            mTag = tag;
+            mMessage = message;
+            mTime = time;
+            mDisplay = display;
+        }
+    }
+
+    private final OutputStream mLogStream;
+    private final int mCapacity;
+    private final OverflowPolicy mOverflowPolicy;
+    /** the ring slots */
+    private final AtomicReferenceArray<LogEntry> mEntries;
+    /**
+     * the sequence of each slot: equal to the position of the next message to add in the slot
+     * when free, or to that position + 1 once filled
+     */
+    private final AtomicLongArray mSequences;
+    /** the position of the next message to add */
+    private final AtomicLong mTail = new AtomicLong(0);
+    /** the position of the next message to write, only advanced with mDrainLock held */
+    private volatile long mHead = 0;
+    private final AtomicLong mDroppedCount = new AtomicLong(0);
+    /** the number of {@link #add} calls in progress, that {@link #close()} waits for */
+    private final AtomicInteger mActiveAdds = new AtomicInteger(0);
+    private volatile Thread mWriterThread = null;
+    private volatile boolean mClosed = false;
+
+    // state used while draining, guarded by mDrainLock
+    private final ReentrantLock mDrainLock = new ReentrantLock();
+    private final StringBuilder mLogText = new StringBuilder();
+    private final StringBuilder mDisplayText = new StringBuilder();
+    private final CharsetEncoder mEncoder = UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer mByteBuffer = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat(LogUtil.LOG_DATE_FORMAT);
+    private final Date mDate = new Date();
+    private long mFormattedSecond = -1;
+    private String mFormattedDate = null;
+
+    /**
+     * Creates a {@link AsyncLogWriter}. {@link #start()} must be called to start writing.
+     *
+     * @param logStream the {@link OutputStream} to write the log to
+     * @param capacity the max number of messages to queue. Must be at least
+     *            {@link #MIN_CAPACITY}
+     * @param overflowPolicy the {@link OverflowPolicy} to apply when the queue is full
+     * @throws IllegalArgumentException if <var>capacity</var> is too small
+     */
+    AsyncLogWriter(OutputStream logStream, int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < MIN_CAPACITY) {
+            // with a single slot, the sequence marking it filled equals the sequence marking it
+            // free for the next lap, so a producer could overwrite an unread message
+            throw new IllegalArgumentException(String.format(
+                    "capacity must be at least %d, got %d", MIN_CAPACITY, capacity));
+        }
+        mLogStream = logStream;
+        mCapacity = capacity;
+        mOverflowPolicy = overflowPolicy;
+        mEntries = new AtomicReferenceArray<LogEntry>(capacity);
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    void start() {
+        Thread writerThread = new Thread(this, "AsyncLogWriter");
+        writerThread.setDaemon(true);
+        mWriterThread = writerThread;
+        writerThread.start();
+    }
+
+    /**
+     * Queues a message for writing.
+     *
+     * @param logLevel the {@link LogLevel} of the message
+     * @param tag the tag of the message
+     * @param message the message
+     * @param display whether to also print the message to stdout
+     */
+    void add(LogLevel logLevel, String tag, String message, boolean display) {
+        // counted before checking mClosed, so close() cannot miss a message added concurrently
+        mActiveAdds.incrementAndGet();
+        try {
+            if (mClosed) {
+                // nowhere to write the message to anymore, but still display it
+                if (display) {
+                    System.out.print(LogUtil.getLogFormatString(logLevel, tag, message));
+                }
+                return;
+            }
+            LogEntry entry = new LogEntry(logLevel, tag, message, System.currentTimeMillis(),
+                    display);
+            while (!offer(entry)) {
+                if (mOverflowPolicy == OverflowPolicy.DROP_VERBOSE
+                        && logLevel.getPriority() < LogLevel.INFO.getPriority()) {
+                    mDroppedCount.incrementAndGet();
+                    return;
+                } else if (mOverflowPolicy == OverflowPolicy.SPILL || mWriterThread == null
+                        || mClosed) {
+                    // nobody else to make room
+                    flush();
+                } else {
+                    wakeWriter();
+                    LockSupport.parkNanos(this, BLOCK_WAIT_NS);
+                }
+            }
+        } finally {
+            mActiveAdds.decrementAndGet();
+        }
+    }
+
+    /**
+     * Adds a message to the ring, waking up the writer thread if the ring was empty.
+     *
+     * @return <code>false</code> if the ring is full
+     */
+    private boolean offer(LogEntry entry) {
+        while (true) {
+            long position = mTail.get();
+            int slot = (int)(position % mCapacity);
+            long sequence = mSequences.get(slot);
+            if (sequence == position) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mEntries.set(slot, entry);
+                    mSequences.set(slot, position + 1);
+                    if (position == mHead) {
+                        wakeWriter();
+                    }
+                    return true;
+                }
+            } else if (sequence < position) {
+                // slot still holds the message added one lap ago
+                return false;
+            }
+            // another thread claimed this position, retry with the next one
+        }
+    }
+
+    /**
+     * @return the number of messages added and not yet written
+     */
+    private int size() {
+        return (int)(mTail.get() - mHead);
+    }
+
+    /**
+     * Writes all queued messages to the log stream, on the calling thread.
+     */
+    void flush() {
+        mDrainLock.lock();
+        try {
+            drain();
+        } finally {
+            mDrainLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the writer thread, and writes all queued messages.
+     */
+    void close() {
+        mClosed = true;
+        Thread writerThread = mWriterThread;
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // wait for adds that started before close, which flush themselves if the ring is full
+        while (mActiveAdds.get() > 0) {
+            Thread.yield();
+        }
+        flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+        while (!mClosed) {
+            if (size() == 0) {
+                LockSupport.parkNanos(this, IDLE_WAIT_NS);
+            }
+            flush();
+        }
+    }
+
+    private void wakeWriter() {
+        Thread writerThread = mWriterThread;
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Writes queued messages. Must be called with {@link #mDrainLock} held.
+     */
+    private void drain() {
+        while (true) {
+            long position = mHead;
+            int slot = (int)(position % mCapacity);
+            if (mSequences.get(slot) != position + 1) {
+                // slot not filled yet
+                break;
+            }
+            LogEntry entry = mEntries.get(slot);
+            mEntries.set(slot, null);
+            // free the slot for the message added one lap later
+            mSequences.set(slot, position + mCapacity);
+            mHead = position + 1;
+            int start = mLogText.length();
+            appendEntry(mLogText, entry);
+            if (entry.mDisplay) {
+                mDisplayText.append(mLogText, start, mLogText.length());
+            }
+            if (mLogText.length() >= BYTE_BUFFER_SIZE) {
+                writeLogText();
+            }
+        }
+        long droppedCount = mDroppedCount.getAndSet(0);
+        if (droppedCount > 0) {
+            appendEntry(mLogText, new LogEntry(LogLevel.WARN, LOG_TAG, String.format(
+                    "Log queue full, dropped %d verbose and debug messages", droppedCount),
+                    System.currentTimeMillis(), false));
+        }
+        writeLogText();
+        if (mDisplayText.length() > 0) {
+            System.out.print(mDisplayText);
+            mDisplayText.setLength(0);
+        }
+    }
+
+    /**
+     * Encodes and writes the pending log text.
+     */
+    private void writeLogText() {
+        if (mLogText.length() == 0) {
+            return;
+        }
+        CharBuffer chars = CharBuffer.wrap(mLogText);
+        mEncoder.reset();
+        try {
+            while (mEncoder.encode(chars, mByteBuffer, true).isOverflow()) {
+                writeBytes();
+            }
+            while (mEncoder.flush(mByteBuffer).isOverflow()) {
+                writeBytes();
+            }
+            writeBytes();
+        } catch (IOException e) {
+            // cannot log the failure to the log being written
+            System.err.println(String.format("Failed to write log: %s", e));
+            mByteBuffer.clear();
+        }
+        mLogText.setLength(0);
+    }
+
+    private void writeBytes() throws IOException {
+        mLogStream.write(mByteBuffer.array(), 0, mByteBuffer.position());
+        mByteBuffer.clear();
+    }
+
+    /**
+     * Appends a message in the format of {@link LogUtil#getLogFormatString}.
+     */
+    private void appendEntry(StringBuilder text, LogEntry entry) {
+        text.append(formatDate(entry.mTime));
+        text.append(' ');
+        text.append(entry.mLogLevel.getPriorityLetter());
+        text.append('/');
+        text.append(entry.mTag);
+        text.append(": ");
+        text.append(entry.mMessage);
+        text.append('\n');
+    }
+
+    /**
+     * Formats a time, reusing the previous result for times in the same second.
+     */
+    private String formatDate(long time) {
+        long second = time / 1000;
+        if (second != mFormattedSecond) {
+            mDate.setTime(time);
+            mFormattedDate = mDateFormat.format(mDate);
+            mFormattedSecond = second;
+        }
+        return mFormattedDate;
+    }
+}
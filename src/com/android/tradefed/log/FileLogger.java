@@ -19,9 +19,9 @@ import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.log.AsyncLogWriter.OverflowPolicy;
 import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.InputStreamSource;
-import com.android.tradefed.result.SnapshotInputStreamSource;
 import com.android.tradefed.util.SizeLimitedOutputStream;
 import com.android.tradefed.util.StreamUtil;
 
@@ -52,7 +52,21 @@ public class FileLogger implements ILeveledLogOutput {
     @Option(name = "max-log-size", description = "maximum allowable size of tmp log data in mB.")
     private long mMaxLogSizeMbytes = 20;
 
+    @Option(name = "async-log", description =
+            "write the log from a background thread, instead of from the logging thread.")
+    private boolean mAsyncLog = false;
+
+    @Option(name = "async-log-queue-size", description =
+            "the max number of messages waiting to be written by the background thread. " +
+            "Values below 2 are raised to 2.")
+    private int mAsyncLogQueueSize = 8 * 1024;
+
+    @Option(name = "async-log-overflow-policy", description =
+            "what to do with messages logged when the async log queue is full.")
+    private OverflowPolicy mAsyncLogOverflowPolicy = OverflowPolicy.BLOCK;
+
     private SizeLimitedOutputStream mLogStream;
+    private AsyncLogWriter mAsyncLogWriter = null;
 
     /**
      * Adds tags to the log-tag-display list
@@ -73,6 +87,26 @@ public class FileLogger implements ILeveledLogOutput {
     public void init() throws IOException {
         mLogStream = new SizeLimitedOutputStream(mMaxLogSizeMbytes * 1024 * 1024,
                 TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
+        if (mAsyncLog) {
+            mAsyncLogWriter = new AsyncLogWriter(mLogStream,
+                    Math.max(mAsyncLogQueueSize, AsyncLogWriter.MIN_CAPACITY),
+                    mAsyncLogOverflowPolicy);
+            mAsyncLogWriter.start();
+        }
+    }
+
+    /**
+     * Sets whether to write the log from a background thread. Must be called before
+     * {@link #init()}.
+     *
+     * @param asyncLog whether to write the log from a background thread
+     * @param queueSize the max number of messages waiting to be written
+     * @param overflowPolicy what to do with messages logged when the queue is full
+     */
+    void setAsyncLog(boolean asyncLog, int queueSize, OverflowPolicy overflowPolicy) {
+        mAsyncLog = asyncLog;
+        mAsyncLogQueueSize = queueSize;
+        mAsyncLogOverflowPolicy = overflowPolicy;
     }
 
     /**
@@ -87,6 +121,7 @@ public class FileLogger implements ILeveledLogOutput {
         logger.setLogLevelDisplay(mLogLevelDisplay);
         logger.setLogLevel(mLogLevel);
         logger.addLogTagsDisplay(mLogTagsDisplay);
+        logger.setAsyncLog(mAsyncLog, mAsyncLogQueueSize, mAsyncLogOverflowPolicy);
         return logger;
     }
 
@@ -112,10 +147,20 @@ public class FileLogger implements ILeveledLogOutput {
      */
     private void internalPrintLog(LogLevel logLevel, String tag, String message,
             boolean forceStdout) {
-        String outMessage = LogUtil.getLogFormatString(logLevel, tag, message);
-        if (forceStdout
+        boolean display = forceStdout
                 || logLevel.getPriority() >= mLogLevelDisplay.getPriority()
-                || mLogTagsDisplay.contains(tag)) {
+                || mLogTagsDisplay.contains(tag);
+        AsyncLogWriter asyncLogWriter = mAsyncLogWriter;
+        if (asyncLogWriter != null) {
+            asyncLogWriter.add(logLevel, tag, message, display);
+            if (forceStdout) {
+                // the user is waiting for this message
+                asyncLogWriter.flush();
+            }
+            return;
+        }
+        String outMessage = LogUtil.getLogFormatString(logLevel, tag, message);
+        if (display) {
             System.out.print(outMessage);
         }
         try {
@@ -178,15 +223,10 @@ public class FileLogger implements ILeveledLogOutput {
      */
     @Override
     public InputStreamSource getLog() {
+        flushAsyncLog();
         if (mLogStream != null) {
-            try {
-                // create a InputStream from log file
-                mLogStream.flush();
-                return new SnapshotInputStreamSource(mLogStream.getData());
-            } catch (IOException e) {
-                System.err.println("Failed to get log");
-                e.printStackTrace();
-            }
+            // create a read-only view of the log files
+            return mLogStream.getSnapshot();
         }
         return new ByteArrayInputStreamSource(new byte[0]);
     }
@@ -211,6 +251,10 @@ public class FileLogger implements ILeveledLogOutput {
      * @throws IOException
      */
     void doCloseLog() throws IOException {
+        AsyncLogWriter asyncLogWriter = mAsyncLogWriter;
+        if (asyncLogWriter != null) {
+            asyncLogWriter.close();
+        }
         SizeLimitedOutputStream stream = mLogStream;
         mLogStream = null;
         if (stream != null) {
@@ -230,8 +274,20 @@ public class FileLogger implements ILeveledLogOutput {
      * @throws IOException
      */
     void dumpToLog(InputStream inputStream) throws IOException {
+        flushAsyncLog();
         if (mLogStream != null) {
             StreamUtil.copyStreams(inputStream, mLogStream);
         }
     }
+
+    /**
+     * Writes the messages queued by the async log writer, if any, so that the log stream is up to
+     * date.
+     */
+    private void flushAsyncLog() {
+        AsyncLogWriter asyncLogWriter = mAsyncLogWriter;
+        if (asyncLogWriter != null) {
+            asyncLogWriter.flush();
+        }
+    }
 }
@@ -46,6 +46,17 @@ public interface ILogRegistry extends ILogOutput {
      */
     public LogLevel getGlobalLogDisplayLevel();
 
+    /**
+     * Returns whether messages of given level would be printed by the logger in effect for the
+     * current thread.
+     * <p/>
+     * Allows callers to skip building messages that would be discarded.
+     *
+     * @param logLevel the {@link LogLevel} of the message
+     * @return <code>true</code> if messages of given level would be printed
+     */
+    public boolean isLoggable(LogLevel logLevel);
+
     /**
      * Registers the logger as the instance to use for the current thread.
      */
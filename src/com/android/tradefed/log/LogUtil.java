@@ -16,6 +16,7 @@
 
 package com.android.tradefed.log;
 
+import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.config.GlobalConfiguration;
@@ -25,12 +26,17 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A logging utility class.  Useful for code that needs to override static methods from {@link Log}
  */
 public class LogUtil {
 
+    /** the {@link SimpleDateFormat} pattern of log message timestamps */
+    static final String LOG_DATE_FORMAT = "MM-dd HH:mm:ss";
+
     /**
      * Make uninstantiable
      */
@@ -56,7 +62,7 @@ public class LogUtil {
      * {@see Log#getLogFormatString()}
      */
     public static String getLogFormatString(LogLevel logLevel, String tag, String message) {
-        SimpleDateFormat formatter = new SimpleDateFormat("MM-dd HH:mm:ss");
+        SimpleDateFormat formatter = new SimpleDateFormat(LOG_DATE_FORMAT);
         return String.format("%s %c/%s: %s\n", formatter.format(new Date()),
                 logLevel.getPriorityLetter(), tag, message);
     }
@@ -64,11 +70,46 @@ public class LogUtil {
     /**
      * A shim class for {@link Log} that automatically uses the simple classname of the caller as
      * the log tag
+     * <p/>
+     * Messages are only formatted, and their caller looked up, if their level is enabled both in
+     * ddmlib and for the logger of the current invocation. See {@link #isLoggable(LogLevel)}.
      */
     public static class CLog {
 
         protected static final String CLASS_NAME = CLog.class.getName();
         private static IGlobalConfiguration sGlobalConfig = null;
+        private static volatile ILogRegistry sLogRegistry = null;
+        /** cache of full class names to their simple name, to avoid reparsing them per message */
+        private static final Map<String, String> sSimpleClassNames =
+                new ConcurrentHashMap<String, String>();
+
+        /**
+         * Returns whether messages of given level are currently logged.
+         * <p/>
+         * Useful to avoid building expensive messages that would be discarded.
+         *
+         * @param logLevel the {@link LogLevel} of the message
+         * @return <code>true</code> if the level is enabled in ddmlib, and for the logger of the
+         *         current thread if a {@link ILogRegistry} was set
+         */
+        public static boolean isLoggable(LogLevel logLevel) {
+            if (logLevel.getPriority() < DdmPreferences.getLogLevel().getPriority()) {
+                return false;
+            }
+            ILogRegistry registry = sLogRegistry;
+            return registry == null || registry.isLoggable(logLevel);
+        }
+
+        /**
+         * Sets the {@link ILogRegistry} that ddmlib log output is sent to, so that messages
+         * discarded by the logger of the current thread are not built.
+         *
+         * @param registry the {@link ILogRegistry}, or <code>null</code> to only check the ddmlib
+         *            log level
+         */
+        public static void setLogRegistry(ILogRegistry registry) {
+            sLogRegistry = registry;
+        }
 
         /**
          * The shim version of {@link Log#v(String, String)}.
@@ -76,20 +117,24 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void v(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.v(getClassName(2), message);
+            if (isLoggable(LogLevel.VERBOSE)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.v(getClassName(2), message);
+            }
         }
 
         /**
          * The shim version of {@link Log#v(String, String)}.  Also calls String.format for
-         * convenience.
+         * convenience, if the message is to be logged.
          *
          * @param format A format string for the message to log
          * @param args The format string arguments
          */
         public static void v(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.v(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.VERBOSE)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.v(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -98,20 +143,24 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void d(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.d(getClassName(2), message);
+            if (isLoggable(LogLevel.DEBUG)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.d(getClassName(2), message);
+            }
         }
 
         /**
          * The shim version of {@link Log#d(String, String)}.  Also calls String.format for
-         * convenience.
+         * convenience, if the message is to be logged.
          *
          * @param format A format string for the message to log
          * @param args The format string arguments
          */
         public static void d(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.d(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.DEBUG)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.d(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -120,20 +169,24 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void i(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.i(getClassName(2), message);
+            if (isLoggable(LogLevel.INFO)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.i(getClassName(2), message);
+            }
         }
 
         /**
          * The shim version of {@link Log#i(String, String)}.  Also calls String.format for
-         * convenience.
+         * convenience, if the message is to be logged.
          *
          * @param format A format string for the message to log
          * @param args The format string arguments
          */
         public static void i(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.i(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.INFO)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.i(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -142,20 +195,24 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void w(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.w(getClassName(2), message);
+            if (isLoggable(LogLevel.WARN)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.w(getClassName(2), message);
+            }
         }
 
         /**
          * The shim version of {@link Log#w(String, String)}.  Also calls String.format for
-         * convenience.
+         * convenience, if the message is to be logged.
          *
          * @param format A format string for the message to log
          * @param args The format string arguments
          */
         public static void w(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.w(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.WARN)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.w(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -164,20 +221,24 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void e(String message) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.e(getClassName(2), message);
+            if (isLoggable(LogLevel.ERROR)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.e(getClassName(2), message);
+            }
         }
 
         /**
          * The shim version of {@link Log#e(String, String)}.  Also calls String.format for
-         * convenience.
+         * convenience, if the message is to be logged.
          *
          * @param format A format string for the message to log
          * @param args The format string arguments
          */
         public static void e(String format, Object... args) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.e(getClassName(2), String.format(format, args));
+            if (isLoggable(LogLevel.ERROR)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.e(getClassName(2), String.format(format, args));
+            }
         }
 
         /**
@@ -186,8 +247,10 @@ public class LogUtil {
          * @param t the {@link Throwable} to output.
          */
         public static void e(Throwable t) {
-            // frame 2: skip frames 0 (#getClassName) and 1 (this method)
-            Log.e(getClassName(2), t);
+            if (isLoggable(LogLevel.ERROR)) {
+                // frame 2: skip frames 0 (#getClassName) and 1 (this method)
+                Log.e(getClassName(2), t);
+            }
         }
 
         /**
@@ -311,7 +374,19 @@ public class LogUtil {
          */
         public static String getClassName(int frame) {
             StackTraceElement[] frames = (new Throwable()).getStackTrace();
-            return parseClassName(frames[frame].getClassName());
+            return getSimpleClassName(frames[frame].getClassName());
+        }
+
+        /**
+         * Same as {@link #parseClassName(String)}, but caches the result.
+         */
+        private static String getSimpleClassName(String fullName) {
+            String simpleName = sSimpleClassNames.get(fullName);
+            if (simpleName == null) {
+                simpleName = parseClassName(fullName);
+                sSimpleClassNames.put(fullName, simpleName);
+            }
+            return simpleName;
         }
 
         /**
@@ -354,7 +429,7 @@ public class LogUtil {
                 }
             }
 
-            return parseClassName(className);
+            return getSimpleClassName(className);
         }
 
         /**
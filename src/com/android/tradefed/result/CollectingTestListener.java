@@ -18,6 +18,7 @@ package com.android.tradefed.result;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.config.Option;
+import com.android.tradefed.result.MetricStore.Aggregation;
 import com.android.tradefed.result.TestResult.TestStatus;
 
 import java.util.Collection;
@@ -44,6 +45,10 @@ public class CollectingTestListener implements ITestInvocationListener {
         "attempt to add test metrics values for test runs with the same name." )
     private boolean mIsAggregateMetrics = false;
 
+    @Option(name = "metrics-aggregation", description =
+        "how to aggregate test metrics values when aggregate-metrics is set." )
+    private Aggregation mMetricsAggregation = Aggregation.SUM;
+
     private IBuildInfo mBuildInfo;
 
     /**
@@ -55,6 +60,15 @@ public class CollectingTestListener implements ITestInvocationListener {
         mIsAggregateMetrics = aggregate;
     }
 
+    /**
+     * Set how metrics are aggregated
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setMetricsAggregation(Aggregation aggregation) {
+        mMetricsAggregation = aggregation;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -128,7 +142,7 @@ public class CollectingTestListener implements ITestInvocationListener {
     @Override
     public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
         mCurrentResults.setRunComplete(true);
-        mCurrentResults.addMetrics(runMetrics, mIsAggregateMetrics);
+        mCurrentResults.addMetrics(runMetrics, mIsAggregateMetrics, mMetricsAggregation);
         mCurrentResults.addElapsedTime(elapsedTime);
     }
 
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link ResultForwarder} that captures bugreports, logcat and screenshots when tests fail,
+ * without stalling the test run.
+ * <p/>
+ * Captures are done on a single background thread per device, fed by a bounded queue. Captures
+ * requested while an identical one is still pending are coalesced into it, bugreports are
+ * captured at most once per configured interval, and each logcat capture only contains the lines
+ * logged since the previous one. Captured data is kept in host files, and is forwarded with
+ * {@link #testLog} from the thread calling this listener, at the next callback.
+ * <p/>
+ * {@link #close()} must be called once tests are done, to forward the remaining captures and stop
+ * the background thread.
+ */
+public class FailureArtifactCollector extends ResultForwarder {
+
+    /** the default maximum number of captures waiting to be done */
+    static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** the max time to wait for pending captures when a test run ends */
+    private static final long PENDING_CAPTURE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /** length of the "MM-DD HH:MM:SS.mmm" timestamp prefix of threadtime logcat lines */
+    private static final int LOGCAT_TIMESTAMP_LENGTH = 18;
+
+    /**
+     * A captured artifact, waiting to be forwarded.
+     */
+    private static class Artifact {
+        final String mName;
+        final LogDataType mType;
+        final InputStreamSource mSource;
+        final File mFile;
+
+        Artifact(String name, LogDataType type, InputStreamSource source, File file) {
+            mName = name;
+            mType = type;
+            mSource = source;
+            mFile = file;
+        }
+    }
+
+    private final ITestDevice mDevice;
+    private final ThreadPoolExecutor mExecutor;
+    private final List<Future<?>> mPendingCaptures = new ArrayList<Future<?>>();
+    private final Queue<Artifact> mCapturedArtifacts = new ConcurrentLinkedQueue<Artifact>();
+
+    private boolean mBugreportOnFailure = false;
+    private long mBugreportIntervalMs = 0;
+    private long mLastBugreportTime = 0;
+    private int mLogcatMaxBytes = 0;
+    private boolean mScreenshotOnFailure = false;
+
+    private final AtomicBoolean mBugreportPending = new AtomicBoolean(false);
+    private final AtomicBoolean mLogcatPending = new AtomicBoolean(false);
+    private final AtomicBoolean mScreenshotPending = new AtomicBoolean(false);
+    /** the last logcat line captured. Only accessed from the capture thread */
+    private String mLastLogcatLine = null;
+    /** the logcat size at the last capture. Only accessed from the capture thread */
+    private long mLogcatOffset = 0;
+    private int mDroppedCaptures = 0;
+
+    /**
+     * Creates a {@link FailureArtifactCollector}.
+     *
+     * @param listener the {@link ITestInvocationListener} to forward results and artifacts to
+     * @param device the {@link ITestDevice} to capture artifacts from
+     */
+    public FailureArtifactCollector(ITestInvocationListener listener, ITestDevice device) {
+        this(listener, device, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates a {@link FailureArtifactCollector}.
+     *
+     * @param listener the {@link ITestInvocationListener} to forward results and artifacts to
+     * @param device the {@link ITestDevice} to capture artifacts from
+     * @param queueCapacity the maximum number of captures waiting to be done. Further captures
+     *            are dropped.
+     */
+    public FailureArtifactCollector(ITestInvocationListener listener, ITestDevice device,
+            int queueCapacity) {
+        super(listener);
+        mDevice = device;
+        final String threadName = String.format("FailureArtifactCollector-%s",
+                device.getSerialNumber());
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Captures a bugreport on test failures.
+     *
+     * @param minIntervalMs the minimum time between two bugreports. Failures within this interval
+     *            share the previous bugreport.
+     */
+    public void setBugreportOnFailure(long minIntervalMs) {
+        mBugreportOnFailure = true;
+        mBugreportIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * Captures the logcat logged since the previous capture on test failures.
+     *
+     * @param maxBytes the maximum amount of logcat data to capture at once
+     */
+    public void setLogcatOnFailure(int maxBytes) {
+        mLogcatMaxBytes = maxBytes;
+    }
+
+    /**
+     * Captures a screenshot on test failures.
+     */
+    public void setScreenshotOnFailure(boolean screenshotOnFailure) {
+        mScreenshotOnFailure = screenshotOnFailure;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(TestIdentifier test) {
+        forwardCapturedArtifacts();
+        super.testStarted(test);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testFailed(TestFailure status, TestIdentifier test, String trace) {
+        super.testFailed(status, test, trace);
+        String testName = String.format("%s_%s", test.getClassName(), test.getTestName());
+        if (mScreenshotOnFailure) {
+            scheduleScreenshot(testName);
+        }
+        if (mLogcatMaxBytes > 0) {
+            scheduleLogcat(testName);
+        }
+        if (mBugreportOnFailure) {
+            scheduleBugreport(testName);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        super.testEnded(test, testMetrics);
+        forwardCapturedArtifacts();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        // attach the captures of this run before it ends
+        waitForPendingCaptures();
+        super.testRunEnded(elapsedTime, runMetrics);
+    }
+
+    /**
+     * Forwards all pending captures, and stops the capture thread.
+     */
+    public void close() {
+        waitForPendingCaptures();
+        mExecutor.shutdownNow();
+        if (mDroppedCaptures > 0) {
+            CLog.w("Dropped %d failure captures on %s, capture queue was full", mDroppedCaptures,
+                    mDevice.getSerialNumber());
+        }
+    }
+
+    private void scheduleScreenshot(final String testName) {
+        if (!mScreenshotPending.compareAndSet(false, true)) {
+            CLog.d("Screenshot for %s coalesced with pending screenshot", testName);
+            return;
+        }
+        schedule(mScreenshotPending, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStreamSource screenshot = mDevice.getScreenshot();
+                    if (screenshot != null) {
+                        mCapturedArtifacts.add(new Artifact(String.format("screenshot-%s",
+                                testName), LogDataType.PNG, screenshot, null));
+                    }
+                } catch (DeviceNotAvailableException e) {
+                    CLog.e("Device %s became unavailable while capturing screenshot, %s",
+                            mDevice.getSerialNumber(), e.toString());
+                }
+            }
+        });
+    }
+
+    private void scheduleLogcat(final String testName) {
+        if (!mLogcatPending.compareAndSet(false, true)) {
+            // the pending capture will include the logs of this failure
+            CLog.d("Logcat for %s coalesced with pending capture", testName);
+            return;
+        }
+        schedule(mLogcatPending, new Runnable() {
+            @Override
+            public void run() {
+                captureLogcat(String.format("logcat-%s", testName));
+            }
+        });
+    }
+
+    private void scheduleBugreport(final String testName) {
+        long now = getCurrentTime();
+        if (mLastBugreportTime != 0 && now - mLastBugreportTime < mBugreportIntervalMs) {
+            CLog.d("Skipping bugreport for %s, last one was captured %d ms ago", testName,
+                    now - mLastBugreportTime);
+            return;
+        }
+        if (!mBugreportPending.compareAndSet(false, true)) {
+            CLog.d("Bugreport for %s coalesced with pending bugreport", testName);
+            return;
+        }
+        mLastBugreportTime = now;
+        schedule(mBugreportPending, new Runnable() {
+            @Override
+            public void run() {
+                InputStreamSource bugreport = mDevice.getBugreport();
+                mCapturedArtifacts.add(new Artifact(String.format("bugreport-%s", testName),
+                        LogDataType.BUGREPORT, bugreport, null));
+            }
+        });
+    }
+
+    /**
+     * Queues a capture, clearing its pending flag once done.
+     */
+    private void schedule(final AtomicBoolean pendingFlag, final Runnable capture) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    capture.run();
+                } catch (RuntimeException e) {
+                    CLog.e("Failed to capture failure artifact on %s", mDevice.getSerialNumber());
+                    CLog.e(e);
+                } finally {
+                    pendingFlag.set(false);
+                }
+            }
+        };
+        try {
+            mPendingCaptures.add(mExecutor.submit(task));
+        } catch (RejectedExecutionException e) {
+            pendingFlag.set(false);
+            mDroppedCaptures++;
+        }
+    }
+
+    /**
+     * Captures the logcat lines logged since the previous capture to a host file.
+     */
+    private void captureLogcat(String name) {
+        // get the size first, so that data captured meanwhile is read again by the next capture
+        // and skipped as a duplicate, rather than missed
+        long logcatSize = mDevice.getLogcatSize();
+        InputStreamSource logcat = mDevice.getLogcatSince(mLogcatOffset, mLogcatMaxBytes);
+        File deltaFile = null;
+        InputStream input = null;
+        try {
+            deltaFile = FileUtil.createTempFile("logcat_delta_", ".txt");
+            input = logcat.createInputStream();
+            if (input == null) {
+                FileUtil.deleteFile(deltaFile);
+                return;
+            }
+            String lastLine;
+            try (OutputStream output = new BufferedOutputStream(
+                    new FileOutputStream(deltaFile))) {
+                lastLine = copyLogcatDelta(input, output, mLastLogcatLine);
+            }
+            mLogcatOffset = logcatSize;
+            if (lastLine == null) {
+                CLog.d("No new logcat data for %s", name);
+                FileUtil.deleteFile(deltaFile);
+                return;
+            }
+            mLastLogcatLine = lastLine;
+            mCapturedArtifacts.add(new Artifact(name, LogDataType.TEXT,
+                    new FileInputStreamSource(deltaFile), deltaFile));
+        } catch (IOException e) {
+            CLog.e("Failed to capture logcat for %s: %s", name, e.getMessage());
+            FileUtil.deleteFile(deltaFile);
+        } finally {
+            StreamUtil.close(input);
+            logcat.cancel();
+        }
+    }
+
+    /**
+     * Copies the threadtime logcat lines that follow <var>previousLastLine</var>.
+     * <p/>
+     * Lines older than the previous last line are skipped, based on their timestamp. Lines with
+     * the same timestamp are skipped up to the previous last line itself.
+     *
+     * @param input the logcat data
+     * @param output the stream to copy new lines to
+     * @param previousLastLine the last line of the previous capture, or <code>null</code> to copy
+     *            all lines
+     * @return the last line copied, or <code>null</code> if no line was copied
+     */
+    static String copyLogcatDelta(InputStream input, OutputStream output, String previousLastLine)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, UTF_8));
+        Writer writer = new OutputStreamWriter(output, UTF_8);
+        String previousTimestamp = getLogcatTimestamp(previousLastLine);
+        boolean skipping = previousTimestamp != null;
+        String lastLine = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (skipping) {
+                String timestamp = getLogcatTimestamp(line);
+                if (line.equals(previousLastLine)) {
+                    skipping = false;
+                    continue;
+                } else if (timestamp == null || timestamp.compareTo(previousTimestamp) <= 0) {
+                    continue;
+                }
+                skipping = false;
+            }
+            writer.write(line);
+            writer.write('\n');
+            lastLine = line;
+        }
+        writer.flush();
+        return lastLine;
+    }
+
+    /**
+     * @return the timestamp of a threadtime logcat line, or <code>null</code> if it has none
+     */
+    private static String getLogcatTimestamp(String line) {
+        if (line == null || line.length() < LOGCAT_TIMESTAMP_LENGTH
+                || !Character.isDigit(line.charAt(0)) || line.charAt(2) != '-') {
+            return null;
+        }
+        return line.substring(0, LOGCAT_TIMESTAMP_LENGTH);
+    }
+
+    /**
+     * Waits for queued captures to complete, and forwards them.
+     */
+    private void waitForPendingCaptures() {
+        long deadline = getCurrentTime() + PENDING_CAPTURE_TIMEOUT_MS;
+        for (Future<?> capture : mPendingCaptures) {
+            try {
+                capture.get(Math.max(0, deadline - getCurrentTime()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                CLog.w("Timed out waiting for failure captures on %s",
+                        mDevice.getSerialNumber());
+                break;
+            } catch (InterruptedException e) {
+                CLog.w("Interrupted waiting for failure captures on %s",
+                        mDevice.getSerialNumber());
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // errors are logged by the capture itself
+            }
+        }
+        mPendingCaptures.clear();
+        forwardCapturedArtifacts();
+    }
+
+    /**
+     * Forwards the artifacts captured so far. Called from the thread calling this listener.
+     */
+    private void forwardCapturedArtifacts() {
+        Artifact artifact;
+        while ((artifact = mCapturedArtifacts.poll()) != null) {
+            try {
+                super.testLog(artifact.mName, artifact.mType, artifact.mSource);
+            } finally {
+                artifact.mSource.cancel();
+                FileUtil.deleteFile(artifact.mFile);
+            }
+        }
+        // drop references to completed captures
+        for (int i = mPendingCaptures.size() - 1; i >= 0; i--) {
+            if (mPendingCaptures.get(i).isDone()) {
+                mPendingCaptures.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Gets the current time in ms. Exposed for unit testing.
+     */
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+}
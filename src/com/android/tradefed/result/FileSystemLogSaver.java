@@ -22,17 +22,26 @@ import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
+import com.google.common.util.concurrent.Uninterruptibles;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Save logs to a file system.
@@ -41,6 +50,8 @@ import java.util.zip.ZipOutputStream;
 public class FileSystemLogSaver implements ILogSaver {
 
     private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String SPOOL_EXT = ".spool";
+    private static final AtomicInteger sThreadCount = new AtomicInteger(0);
 
     @Option(name = "log-file-path", description = "root file system path to store log files.")
     private File mRootReportDir = new File(System.getProperty("java.io.tmpdir"));
@@ -58,7 +69,106 @@ public class FileSystemLogSaver implements ILogSaver {
             "whether to compress files which are not already compressed")
     private boolean mCompressFiles = true;
 
+    @Option(name = "log-compression", description =
+            "the codec to compress files with, if compress-files is set.")
+    private LogCompression mCompression = LogCompression.ZIP;
+
+    @Option(name = "async-log-compression", description =
+            "whether to compress files in the background. Files are saved uncompressed first, " +
+            "and their compressed version is complete once the invocation ends.")
+    private boolean mAsyncCompression = false;
+
+    @Option(name = "log-compression-threads", description =
+            "the number of threads to compress files with, in the background or in parallel.")
+    private int mCompressionThreads = Runtime.getRuntime().availableProcessors();
+
     private File mLogReportDir = null;
+    /** runs background compressions */
+    private ExecutorService mCompressionExecutor = null;
+    /** compresses blocks of data for parallel codecs */
+    private ExecutorService mBlockExecutor = null;
+    private final List<Future<?>> mPendingCompressions = new LinkedList<Future<?>>();
+    private final Map<LogDataType, CompressionStats> mCompressionStats =
+            new EnumMap<LogDataType, CompressionStats>(LogDataType.class);
+
+    /**
+     * Compression statistics of a {@link LogDataType}.
+     */
+    public static class CompressionStats {
+        private int mFileCount = 0;
+        private long mInputBytes = 0;
+        private long mOutputBytes = 0;
+        private long mElapsedNs = 0;
+
+        CompressionStats() {
+        }
+
+        CompressionStats(CompressionStats other) {
+            mFileCount = other.mFileCount;
+            mInputBytes = other.mInputBytes;
+            mOutputBytes = other.mOutputBytes;
+            mElapsedNs = other.mElapsedNs;
+        }
+
+        void add(long inputBytes, long outputBytes, long elapsedNs) {
+            mFileCount++;
+            mInputBytes += inputBytes;
+            mOutputBytes += outputBytes;
+            mElapsedNs += elapsedNs;
+        }
+
+        /**
+         * @return the number of files compressed
+         */
+        public int getFileCount() {
+            return mFileCount;
+        }
+
+        /**
+         * @return the total size of the files before compression, in bytes
+         */
+        public long getInputBytes() {
+            return mInputBytes;
+        }
+
+        /**
+         * @return the total size of the files after compression, in bytes
+         */
+        public long getOutputBytes() {
+            return mOutputBytes;
+        }
+
+        /**
+         * @return the total time spent compressing, in ms
+         */
+        public long getElapsedTime() {
+            return mElapsedNs / 1000000;
+        }
+
+        /**
+         * @return the size before compression divided by the size after compression
+         */
+        public double getCompressionRatio() {
+            return mOutputBytes == 0 ? 0 : (double)mInputBytes / mOutputBytes;
+        }
+
+        /**
+         * @return the number of bytes compressed per second
+         */
+        public double getThroughput() {
+            return mElapsedNs == 0 ? 0 : mInputBytes * 1e9 / mElapsedNs;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return String.format("%d files, %d -> %d bytes (ratio %.2f), %.1f MB/s", mFileCount,
+                    mInputBytes, mOutputBytes, getCompressionRatio(),
+                    getThroughput() / (1024 * 1024));
+        }
+    }
 
     /**
      * {@inheritDoc}
@@ -78,41 +188,186 @@ public class FileSystemLogSaver implements ILogSaver {
      */
     @Override
     public void invocationEnded(long elapsedTime) {
-        // Ignore, no clean up needed.
+        waitForPendingCompressions();
+        synchronized (this) {
+            shutdownExecutors();
+            for (Map.Entry<LogDataType, CompressionStats> entry : mCompressionStats.entrySet()) {
+                CLog.i("Compressed %s logs: %s", entry.getKey(), entry.getValue());
+            }
+        }
     }
 
     /**
      * {@inheritDoc}
      * <p>
-     * Will zip and save the log file if {@link LogDataType#isCompressed()} returns false for
-     * {@code dataType} and {@code compressed-files} is set, otherwise, the stream will be saved
-     * uncompressed.
+     * Will compress and save the log file with the {@code log-compression} codec if
+     * {@link LogDataType#isCompressed()} returns false for {@code dataType} and
+     * {@code compressed-files} is set, otherwise, the stream will be saved uncompressed.
+     * </p><p>
+     * If {@code async-log-compression} is set, the stream is saved uncompressed to a spool file,
+     * and the returned {@link LogFile} points to a file which is written in the background, and
+     * complete once {@link #invocationEnded(long)} returns.
      * </p>
      */
     @Override
     public LogFile saveLogData(String dataName, LogDataType dataType, InputStream dataStream)
             throws IOException {
-        if (!mCompressFiles || dataType.isCompressed()) {
+        if (!mCompressFiles || dataType.isCompressed() ||
+                mCompression == LogCompression.STORE) {
             return saveLogDataRaw(dataName, dataType.getFileExt(), dataStream);
         }
-        BufferedInputStream bufferedDataStream = null;
-        ZipOutputStream outputStream = null;
         // add underscore to end of data name to make generated name more readable
         final String saneDataName = sanitizeFilename(dataName);
-        File log = FileUtil.createTempFile(saneDataName + "_", "." + LogDataType.ZIP.getFileExt(),
-                mLogReportDir);
-        try {
-            bufferedDataStream = new BufferedInputStream(dataStream);
-            outputStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(log),
-                    BUFFER_SIZE));
-            outputStream.putNextEntry(new ZipEntry(saneDataName + "." + dataType.getFileExt()));
-            StreamUtil.copyStreams(bufferedDataStream, outputStream);
+        final File log = FileUtil.createTempFile(saneDataName + "_",
+                "." + mCompression.getFileExt(dataType), mLogReportDir);
+        final String entryName = saneDataName + "." + dataType.getFileExt();
+        final LogCompression compression = mCompression;
+        if (!mAsyncCompression) {
+            compress(dataStream, log, entryName, dataType, compression);
             CLog.i("Saved log file %s", log.getAbsolutePath());
             return new LogFile(log.getAbsolutePath(), getUrl(log));
+        }
+        // the stream may not be valid once this returns, so spool it before compressing
+        final File spool = FileUtil.createTempFile(saneDataName + "_",
+                "." + dataType.getFileExt() + SPOOL_EXT, mLogReportDir);
+        try {
+            FileUtil.writeToFile(dataStream, spool);
+        } catch (IOException e) {
+            FileUtil.deleteFile(spool);
+            FileUtil.deleteFile(log);
+            throw e;
+        }
+        synchronized (this) {
+            mPendingCompressions.add(getCompressionExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    InputStream spoolStream = null;
+                    try {
+                        spoolStream = new FileInputStream(spool);
+                        compress(spoolStream, log, entryName, dataType, compression);
+                        CLog.i("Saved log file %s", log.getAbsolutePath());
+                    } catch (IOException e) {
+                        CLog.e("Failed to compress log file %s", log.getAbsolutePath());
+                        CLog.e(e);
+                    } finally {
+                        StreamUtil.close(spoolStream);
+                        FileUtil.deleteFile(spool);
+                    }
+                }
+            }));
+        }
+        return new LogFile(log.getAbsolutePath(), getUrl(log));
+    }
+
+    /**
+     * Compresses a stream into a file, and records its {@link CompressionStats}.
+     */
+    private void compress(InputStream dataStream, File log, String entryName,
+            LogDataType dataType, LogCompression compression) throws IOException {
+        long startTime = System.nanoTime();
+        long inputBytes = 0;
+        OutputStream outputStream = null;
+        try {
+            ExecutorService blockExecutor = null;
+            if (compression.isParallel() && mCompressionThreads > 1) {
+                blockExecutor = getBlockExecutor();
+            }
+            outputStream = compression.wrap(new BufferedOutputStream(new FileOutputStream(log),
+                    BUFFER_SIZE), entryName, blockExecutor, mCompressionThreads);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = dataStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+                inputBytes += read;
+            }
+            outputStream.close();
+            outputStream = null;
         } finally {
-            StreamUtil.close(bufferedDataStream);
             StreamUtil.close(outputStream);
         }
+        long elapsedNs = System.nanoTime() - startTime;
+        synchronized (this) {
+            CompressionStats stats = mCompressionStats.get(dataType);
+            if (stats == null) {
+                stats = new CompressionStats();
+                mCompressionStats.put(dataType, stats);
+            }
+            stats.add(inputBytes, log.length(), elapsedNs);
+        }
+    }
+
+    /**
+     * Waits for the background compressions started so far to complete.
+     */
+    void waitForPendingCompressions() {
+        while (true) {
+            Future<?> pending;
+            synchronized (this) {
+                if (mPendingCompressions.isEmpty()) {
+                    return;
+                }
+                pending = mPendingCompressions.remove(0);
+            }
+            try {
+                Uninterruptibles.getUninterruptibly(pending);
+            } catch (ExecutionException e) {
+                CLog.e(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Gets the compression statistics of the logs saved so far.
+     *
+     * @return a {@link Map} of {@link LogDataType} to the {@link CompressionStats} of the logs of
+     *         that type. Background compressions still pending are not included.
+     */
+    public synchronized Map<LogDataType, CompressionStats> getCompressionStats() {
+        Map<LogDataType, CompressionStats> stats =
+                new EnumMap<LogDataType, CompressionStats>(LogDataType.class);
+        for (Map.Entry<LogDataType, CompressionStats> entry : mCompressionStats.entrySet()) {
+            stats.put(entry.getKey(), new CompressionStats(entry.getValue()));
+        }
+        return stats;
+    }
+
+    private synchronized ExecutorService getCompressionExecutor() {
+        if (mCompressionExecutor == null) {
+            mCompressionExecutor = Executors.newFixedThreadPool(Math.max(1, mCompressionThreads),
+                    createThreadFactory("LogCompression"));
+        }
+        return mCompressionExecutor;
+    }
+
+    private synchronized ExecutorService getBlockExecutor() {
+        if (mBlockExecutor == null) {
+            mBlockExecutor = Executors.newFixedThreadPool(mCompressionThreads,
+                    createThreadFactory("LogBlockCompression"));
+        }
+        return mBlockExecutor;
+    }
+
+    private synchronized void shutdownExecutors() {
+        if (mCompressionExecutor != null) {
+            mCompressionExecutor.shutdown();
+            mCompressionExecutor = null;
+        }
+        if (mBlockExecutor != null) {
+            mBlockExecutor.shutdown();
+            mBlockExecutor = null;
+        }
+    }
+
+    private static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, String.format("%s-%d", name,
+                        sThreadCount.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
     }
 
     /**
@@ -286,4 +541,13 @@ public class FileSystemLogSaver implements ILogSaver {
     void setLogRetentionDays(int logRetentionDays) {
         mLogRetentionDays = logRetentionDays;
     }
+
+    /**
+     * Set the compression codec, threads and mode. Exposed for unit testing.
+     */
+    void setCompression(LogCompression compression, int threads, boolean async) {
+        mCompression = compression;
+        mCompressionThreads = threads;
+        mAsyncCompression = async;
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.util.ParallelGzipOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The codecs {@link FileSystemLogSaver} can compress logs with.
+ */
+public enum LogCompression {
+    /** no compression, logs are saved as is */
+    STORE {
+        @Override
+        public String getFileExt(LogDataType dataType) {
+            return dataType.getFileExt();
+        }
+
+        @Override
+        OutputStream wrap(OutputStream out, String entryName, ExecutorService blockExecutor,
+                int numThreads) {
+            return out;
+        }
+    },
+    /** a single entry zip file, at the default compression level */
+    ZIP {
+        @Override
+        public String getFileExt(LogDataType dataType) {
+            return LogDataType.ZIP.getFileExt();
+        }
+
+        @Override
+        OutputStream wrap(OutputStream out, String entryName, ExecutorService blockExecutor,
+                int numThreads) throws IOException {
+            return createZipStream(out, entryName, Deflater.DEFAULT_COMPRESSION);
+        }
+    },
+    /** a single entry zip file, at the fastest compression level */
+    FAST_ZIP {
+        @Override
+        public String getFileExt(LogDataType dataType) {
+            return LogDataType.ZIP.getFileExt();
+        }
+
+        @Override
+        OutputStream wrap(OutputStream out, String entryName, ExecutorService blockExecutor,
+                int numThreads) throws IOException {
+            return createZipStream(out, entryName, Deflater.BEST_SPEED);
+        }
+    },
+    /** a gzip file */
+    GZIP {
+        @Override
+        public String getFileExt(LogDataType dataType) {
+            return dataType.getFileExt() + GZIP_EXT;
+        }
+
+        @Override
+        OutputStream wrap(OutputStream out, String entryName, ExecutorService blockExecutor,
+                int numThreads) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+    },
+    /** a gzip file, compressed in blocks by multiple threads */
+    PARALLEL_GZIP {
+        @Override
+        public String getFileExt(LogDataType dataType) {
+            return dataType.getFileExt() + GZIP_EXT;
+        }
+
+        @Override
+        OutputStream wrap(OutputStream out, String entryName, ExecutorService blockExecutor,
+                int numThreads) throws IOException {
+            if (blockExecutor == null) {
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            }
+            return new ParallelGzipOutputStream(out, Deflater.DEFAULT_COMPRESSION, blockExecutor,
+                    numThreads * 2);
+        }
+
+        @Override
+        boolean isParallel() {
+            return true;
+        }
+    };
+
+    private static final String GZIP_EXT = ".gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Gets the extension of files compressed with this codec.
+     *
+     * @param dataType the {@link LogDataType} of the uncompressed data
+     * @return the file extension, without the leading '.'
+     */
+    public abstract String getFileExt(LogDataType dataType);
+
+    /**
+     * Wraps an {@link OutputStream} into one that compresses data written to it. Closing the
+     * returned stream completes the compressed data and closes out.
+     *
+     * @param out the {@link OutputStream} to write compressed data to
+     * @param entryName the name of the data within the archive, for archive formats
+     * @param blockExecutor the {@link ExecutorService} to compress blocks of data with, for
+     *            parallel codecs. May be <code>null</code>.
+     * @param numThreads the number of threads of blockExecutor
+     */
+    abstract OutputStream wrap(OutputStream out, String entryName, ExecutorService blockExecutor,
+            int numThreads) throws IOException;
+
+    /**
+     * @return <code>true</code> if this codec compresses data using multiple threads
+     */
+    boolean isParallel() {
+        return false;
+    }
+
+    private static OutputStream createZipStream(OutputStream out, String entryName, int level)
+            throws IOException {
+        ZipOutputStream zipStream = new ZipOutputStream(out);
+        zipStream.setLevel(level);
+        zipStream.putNextEntry(new ZipEntry(entryName));
+        return zipStream;
+    }
+}
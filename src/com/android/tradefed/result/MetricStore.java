@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A store of test run metrics that keeps numeric values as primitives, so that the metrics of
+ * many runs can be aggregated without parsing and formatting them at each update.
+ * <p/>
+ * Values are reported and read as {@link String}s, as on {@link ITestInvocationListener}, but
+ * are only parsed when aggregated, and only formatted when read. A value that was not
+ * aggregated is read back exactly as reported. Numbers are recognized without relying on
+ * {@link NumberFormatException}s, and aggregating into an existing metric does not box or
+ * format values.
+ * <p/>
+ * Aggregating a value that is not a number replaces the current value, as does aggregating a
+ * number into a value that is not a number.
+ * <p/>
+ * Not thread safe.
+ */
+public class MetricStore {
+
+    /**
+     * The ways values reported for the same metric are aggregated.
+     */
+    public enum Aggregation {
+        /** the sum of the values */
+        SUM,
+        /** the smallest value */
+        MIN,
+        /** the largest value */
+        MAX,
+        /** the number of values reported */
+        COUNT,
+        /** the mean of the values */
+        MEAN
+    }
+
+    private enum ValueType {
+        LONG,
+        DOUBLE,
+        STRING
+    }
+
+    /**
+     * The value of a metric.
+     */
+    private static class Cell {
+        /** the reported value, if it was not aggregated since */
+        String mReported;
+        /** the type of the value, <code>null</code> if the reported value was not parsed yet */
+        ValueType mType;
+        long mLong;
+        double mDouble;
+        /** the number of numbers aggregated in the value */
+        long mNumberCount;
+        /** the number of values reported, for {@link Aggregation#COUNT} */
+        long mReportCount;
+        Aggregation mAggregation;
+
+        void set(String value) {
+            mReported = value;
+            mType = null;
+            mReportCount = 1;
+            mAggregation = null;
+        }
+    }
+
+    private final Map<String, Cell> mCells = new LinkedHashMap<String, Cell>();
+    /** the cached result of {@link #toStringMap()}, <code>null</code> when stale */
+    private Map<String, String> mStringMap = null;
+
+    // the result of the last parseValue call, kept in fields to avoid allocating
+    private long mParsedLong;
+    private double mParsedDouble;
+
+    /**
+     * Sets the value of a metric, replacing any current value.
+     */
+    public void set(String key, String value) {
+        Cell cell = mCells.get(key);
+        if (cell == null) {
+            cell = new Cell();
+            mCells.put(key, cell);
+        }
+        cell.set(value);
+        mStringMap = null;
+    }
+
+    /**
+     * Sets the values of metrics, replacing any current values.
+     */
+    public void setAll(Map<String, String> metrics) {
+        for (Map.Entry<String, String> entry : metrics.entrySet()) {
+            set(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Aggregates a value into the current value of a metric. The value is set if the metric has
+     * no current value.
+     *
+     * @param key the metric key
+     * @param value the reported value
+     * @param aggregation how to aggregate the values
+     */
+    public void aggregate(String key, String value, Aggregation aggregation) {
+        Cell cell = mCells.get(key);
+        if (cell == null) {
+            set(key, value);
+            mCells.get(key).mAggregation = aggregation;
+            return;
+        }
+        mStringMap = null;
+        cell.mAggregation = aggregation;
+        cell.mReportCount++;
+        if (cell.mType == null) {
+            parseReportedValue(cell);
+        }
+        ValueType type = parseValue(value);
+        if (type == ValueType.STRING || cell.mType == ValueType.STRING) {
+            long reportCount = cell.mReportCount;
+            cell.set(value);
+            cell.mReportCount = reportCount;
+            cell.mAggregation = aggregation;
+            return;
+        }
+        cell.mReported = null;
+        cell.mNumberCount++;
+        if (cell.mType == ValueType.LONG && type == ValueType.LONG) {
+            switch (aggregation) {
+                case SUM:
+                case MEAN:
+                    cell.mLong += mParsedLong;
+                    break;
+                case MIN:
+                    cell.mLong = Math.min(cell.mLong, mParsedLong);
+                    break;
+                case MAX:
+                    cell.mLong = Math.max(cell.mLong, mParsedLong);
+                    break;
+                case COUNT:
+                    break;
+            }
+        } else {
+            double current = cell.mType == ValueType.LONG ? cell.mLong : cell.mDouble;
+            double newValue = type == ValueType.LONG ? mParsedLong : mParsedDouble;
+            cell.mType = ValueType.DOUBLE;
+            switch (aggregation) {
+                case SUM:
+                case MEAN:
+                    cell.mDouble = current + newValue;
+                    break;
+                case MIN:
+                    cell.mDouble = Math.min(current, newValue);
+                    break;
+                case MAX:
+                    cell.mDouble = Math.max(current, newValue);
+                    break;
+                case COUNT:
+                    cell.mDouble = current;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Aggregates the values of metrics into their current values.
+     *
+     * @see #aggregate(String, String, Aggregation)
+     */
+    public void aggregateAll(Map<String, String> metrics, Aggregation aggregation) {
+        for (Map.Entry<String, String> entry : metrics.entrySet()) {
+            aggregate(entry.getKey(), entry.getValue(), aggregation);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the metric has a value
+     */
+    public boolean contains(String key) {
+        return mCells.containsKey(key);
+    }
+
+    /**
+     * @return the number of metrics
+     */
+    public int size() {
+        return mCells.size();
+    }
+
+    /**
+     * Gets the value of a metric as a {@link String}.
+     *
+     * @return the value, or <code>null</code> if the metric has no value
+     */
+    public String getString(String key) {
+        Cell cell = mCells.get(key);
+        return cell == null ? null : format(cell);
+    }
+
+    /**
+     * Gets the value of a metric as a number.
+     *
+     * @return the value, or <code>null</code> if the metric has no value or is not a number
+     */
+    public Double getDouble(String key) {
+        Cell cell = mCells.get(key);
+        if (cell == null) {
+            return null;
+        }
+        if (cell.mType == null) {
+            parseReportedValue(cell);
+        }
+        if (cell.mAggregation == Aggregation.COUNT) {
+            return (double)cell.mReportCount;
+        }
+        double value;
+        switch (cell.mType) {
+            case LONG:
+                value = cell.mLong;
+                break;
+            case DOUBLE:
+                value = cell.mDouble;
+                break;
+            default:
+                return null;
+        }
+        if (cell.mAggregation == Aggregation.MEAN) {
+            value /= cell.mNumberCount;
+        }
+        return value;
+    }
+
+    /**
+     * Gets the metrics as a map of keys to {@link String} values, as reported to
+     * {@link ITestInvocationListener}s.
+     *
+     * @return a read-only {@link Map}, kept until metrics are updated
+     */
+    public Map<String, String> toStringMap() {
+        if (mStringMap == null) {
+            Map<String, String> stringMap = new LinkedHashMap<String, String>(mCells.size() * 2);
+            for (Map.Entry<String, Cell> entry : mCells.entrySet()) {
+                stringMap.put(entry.getKey(), format(entry.getValue()));
+            }
+            mStringMap = Collections.unmodifiableMap(stringMap);
+        }
+        return mStringMap;
+    }
+
+    private String format(Cell cell) {
+        if (cell.mAggregation == Aggregation.COUNT) {
+            return Long.toString(cell.mReportCount);
+        }
+        if (cell.mReported != null) {
+            return cell.mReported;
+        }
+        if (cell.mAggregation == Aggregation.MEAN) {
+            double sum = cell.mType == ValueType.LONG ? cell.mLong : cell.mDouble;
+            return Double.toString(sum / cell.mNumberCount);
+        }
+        if (cell.mType == ValueType.LONG) {
+            return Long.toString(cell.mLong);
+        }
+        return Double.toString(cell.mDouble);
+    }
+
+    private void parseReportedValue(Cell cell) {
+        cell.mType = parseValue(cell.mReported);
+        cell.mLong = mParsedLong;
+        cell.mDouble = mParsedDouble;
+        cell.mNumberCount = cell.mType == ValueType.STRING ? 0 : 1;
+    }
+
+    /**
+     * Determines the type of a reported value, and stores its number in {@link #mParsedLong} or
+     * {@link #mParsedDouble}.
+     * <p/>
+     * Values accepted by {@link Long#parseLong(String)} are longs, and other values accepted by
+     * {@link Double#parseDouble(String)} are doubles, except for hexadecimal notation.
+     */
+    private ValueType parseValue(String value) {
+        if (value == null) {
+            return ValueType.STRING;
+        }
+        if (parseLong(value)) {
+            return ValueType.LONG;
+        }
+        if (isDecimal(value)) {
+            mParsedDouble = Double.parseDouble(value);
+            return ValueType.DOUBLE;
+        }
+        return ValueType.STRING;
+    }
+
+    /**
+     * Parses a decimal long into {@link #mParsedLong}, accumulating negatively like
+     * {@link Long#parseLong(String)} to handle {@link Long#MIN_VALUE}.
+     *
+     * @return <code>true</code> if the value is a long
+     */
+    private boolean parseLong(String value) {
+        int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            i++;
+        }
+        if (i == length) {
+            return false;
+        }
+        long result = 0;
+        for (; i < length; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+                // not a digit, or overflow
+                return false;
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative && result == Long.MIN_VALUE) {
+            return false;
+        }
+        mParsedLong = negative ? result : -result;
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if the value is a decimal number accepted by
+     *         {@link Double#parseDouble(String)}
+     */
+    private static boolean isDecimal(String value) {
+        int start = 0;
+        int end = value.length();
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int i = start;
+        if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+            i++;
+        }
+        if (value.startsWith("NaN", i)) {
+            return i + 3 == end;
+        }
+        if (value.startsWith("Infinity", i)) {
+            return i + 8 == end;
+        }
+        int intDigits = skipDigits(value, i, end) - i;
+        i += intDigits;
+        int fractionDigits = 0;
+        if (i < end && value.charAt(i) == '.') {
+            i++;
+            fractionDigits = skipDigits(value, i, end) - i;
+            i += fractionDigits;
+        }
+        if (intDigits + fractionDigits == 0) {
+            return false;
+        }
+        if (i < end && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            if (i < end && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+                i++;
+            }
+            int exponentStart = i;
+            i = skipDigits(value, i, end);
+            if (i == exponentStart) {
+                return false;
+            }
+        }
+        if (i < end && "fFdD".indexOf(value.charAt(i)) >= 0) {
+            i++;
+        }
+        return i == end;
+    }
+
+    private static int skipDigits(String value, int from, int to) {
+        while (from < to && value.charAt(from) >= '0' && value.charAt(from) <= '9') {
+            from++;
+        }
+        return from;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link ResultForwarder} that records the duration of each completed test in a
+ * {@link TestDurationStore} when the test run ends.
+ * <p/>
+ * If the recorded runs cover every test of the key, the first run is treated as complete when it
+ * did not fail and every test it reported ended, and stale durations of tests it did not run are
+ * pruned from the store. Later runs, such as reruns of incomplete tests, are always partial.
+ */
+public class TestDurationRecorder extends ResultForwarder {
+
+    private final TestDurationStore mStore;
+    private final String mKey;
+    private final boolean mCoversAllTests;
+    private int mRunCount = 0;
+    private int mExpectedTestCount = 0;
+    private boolean mRunFailed = false;
+    private final Map<TestIdentifier, Long> mStartTimes = new HashMap<TestIdentifier, Long>();
+    private final Map<TestIdentifier, Long> mDurations =
+            new LinkedHashMap<TestIdentifier, Long>();
+
+    /**
+     * Creates a {@link TestDurationRecorder}.
+     *
+     * @param listener the {@link ITestInvocationListener} to forward results to
+     * @param store the {@link TestDurationStore} to record durations in
+     * @param key the key to record durations under
+     */
+    public TestDurationRecorder(ITestInvocationListener listener, TestDurationStore store,
+            String key) {
+        this(listener, store, key, false);
+    }
+
+    /**
+     * Creates a {@link TestDurationRecorder}.
+     *
+     * @param listener the {@link ITestInvocationListener} to forward results to
+     * @param store the {@link TestDurationStore} to record durations in
+     * @param key the key to record durations under
+     * @param coversAllTests <code>true</code> if the runs are expected to include every test of
+     *            <var>key</var>, rather than a filtered subset
+     */
+    public TestDurationRecorder(ITestInvocationListener listener, TestDurationStore store,
+            String key, boolean coversAllTests) {
+        super(listener);
+        mStore = store;
+        mKey = key;
+        mCoversAllTests = coversAllTests;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        mRunCount++;
+        mExpectedTestCount = testCount;
+        mRunFailed = false;
+        super.testRunStarted(runName, testCount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(TestIdentifier test) {
+        mStartTimes.put(test, getCurrentTime());
+        super.testStarted(test);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        Long startTime = mStartTimes.remove(test);
+        if (startTime != null) {
+            mDurations.put(test, getCurrentTime() - startTime);
+        }
+        super.testEnded(test, testMetrics);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunFailed(String errorMessage) {
+        mRunFailed = true;
+        super.testRunFailed(errorMessage);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        super.testRunEnded(elapsedTime, runMetrics);
+        boolean completeRun = mCoversAllTests && mRunCount == 1 && !mRunFailed &&
+                mStartTimes.isEmpty() && mDurations.size() == mExpectedTestCount;
+        mStartTimes.clear();
+        mStore.recordDurations(mKey, mDurations, completeRun);
+        mDurations.clear();
+    }
+
+    /**
+     * Gets the current time in ms. Exposed for unit testing.
+     */
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+}
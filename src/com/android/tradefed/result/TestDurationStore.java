@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A local store of the durations of tests in previous invocations, used to balance test shards.
+ * <p/>
+ * Durations are grouped by a key identifying a set of tests, such as an instrumentation package,
+ * and each key is stored in its own file. Recorded durations are averaged with the previously
+ * stored ones, to smooth out variance between runs. Tests missing from a complete run of a key are
+ * dropped, so deleted or renamed tests do not skew future shards.
+ * <p/>
+ * Thread safe. Files are replaced atomically, so concurrent invocations never see a partially
+ * written file, though concurrent updates from different processes may overwrite each other.
+ */
+public class TestDurationStore {
+
+    private static final String DEFAULT_STORE_DIR_NAME = "tradefed-test-durations";
+    private static final String STORE_FILE_EXT = ".txt";
+
+    private static TestDurationStore sDefaultStore = null;
+
+    private final File mStoreDir;
+
+    /**
+     * Creates a {@link TestDurationStore}.
+     *
+     * @param storeDir the directory to keep duration files in
+     */
+    public TestDurationStore(File storeDir) {
+        mStoreDir = storeDir;
+    }
+
+    /**
+     * @return the {@link TestDurationStore} kept in the system tmp directory
+     */
+    public static synchronized TestDurationStore getDefault() {
+        if (sDefaultStore == null) {
+            sDefaultStore = new TestDurationStore(new File(System.getProperty("java.io.tmpdir"),
+                    DEFAULT_STORE_DIR_NAME));
+        }
+        return sDefaultStore;
+    }
+
+    /**
+     * Gets the stored test durations of given key.
+     *
+     * @param key the key identifying the set of tests
+     * @return a {@link Map} of tests to their expected duration in ms, in the order they were
+     *         first recorded. Empty if no durations are known.
+     */
+    public synchronized Map<TestIdentifier, Long> getDurations(String key) {
+        Map<TestIdentifier, Long> durations = new LinkedHashMap<TestIdentifier, Long>();
+        File storeFile = getStoreFile(key);
+        if (!storeFile.exists()) {
+            return durations;
+        }
+        try {
+            for (String line : FileUtil.readStringFromFile(storeFile).split("\n")) {
+                String[] fields = line.split("\t");
+                int methodIndex = fields[0].indexOf('#');
+                if (fields.length != 2 || methodIndex < 0) {
+                    continue;
+                }
+                try {
+                    durations.put(new TestIdentifier(fields[0].substring(0, methodIndex),
+                            fields[0].substring(methodIndex + 1)), Long.parseLong(fields[1]));
+                } catch (NumberFormatException e) {
+                    CLog.w("Ignoring malformed test duration '%s' in %s", line, storeFile);
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to read test durations from %s: %s", storeFile, e.getMessage());
+        }
+        return durations;
+    }
+
+    /**
+     * Records test durations of a partial run, averaging them with the stored durations of the
+     * same tests.
+     *
+     * @param key the key identifying the set of tests
+     * @param durations a {@link Map} of tests to their duration in ms
+     */
+    public void recordDurations(String key, Map<TestIdentifier, Long> durations) {
+        recordDurations(key, durations, false);
+    }
+
+    /**
+     * Records test durations, averaging them with the stored durations of the same tests.
+     *
+     * @param key the key identifying the set of tests
+     * @param durations a {@link Map} of tests to their duration in ms
+     * @param completeRun <code>true</code> if <var>durations</var> holds every test of the key,
+     *            in which case stored durations of tests that were not run are removed
+     */
+    public synchronized void recordDurations(String key, Map<TestIdentifier, Long> durations,
+            boolean completeRun) {
+        if (durations.isEmpty()) {
+            return;
+        }
+        Map<TestIdentifier, Long> storedDurations = getDurations(key);
+        if (completeRun) {
+            storedDurations.keySet().retainAll(durations.keySet());
+        }
+        for (Map.Entry<TestIdentifier, Long> entry : durations.entrySet()) {
+            Long storedDuration = storedDurations.get(entry.getKey());
+            long duration = entry.getValue();
+            if (storedDuration != null) {
+                duration = (storedDuration + duration) / 2;
+            }
+            storedDurations.put(entry.getKey(), duration);
+        }
+        StringBuilder contents = new StringBuilder();
+        for (Map.Entry<TestIdentifier, Long> entry : storedDurations.entrySet()) {
+            contents.append(entry.getKey().toString());
+            contents.append('\t');
+            contents.append(entry.getValue());
+            contents.append('\n');
+        }
+        File storeFile = getStoreFile(key);
+        File tmpFile = null;
+        try {
+            mStoreDir.mkdirs();
+            tmpFile = FileUtil.createTempFile(storeFile.getName(), ".tmp", mStoreDir);
+            FileUtil.writeToFile(contents.toString(), tmpFile);
+            if (!tmpFile.renameTo(storeFile)) {
+                CLog.w("Failed to replace test durations file %s", storeFile);
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to write test durations to %s: %s", storeFile, e.getMessage());
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    /**
+     * Gets the file storing durations for given key.
+     */
+    File getStoreFile(String key) {
+        return new File(mStoreDir, key.replaceAll("[^a-zA-Z0-9._-]", "_") + STORE_FILE_EXT);
+    }
+}
@@ -17,10 +17,10 @@ package com.android.tradefed.result;
 
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.MetricStore.Aggregation;
 import com.android.tradefed.result.TestResult.TestStatus;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
@@ -35,7 +35,7 @@ public class TestRunResult {
     // Uses a LinkedHashmap to have predictable iteration order
     private Map<TestIdentifier, TestResult> mTestResults =
         Collections.synchronizedMap(new LinkedHashMap<TestIdentifier, TestResult>());
-    private Map<String, String> mRunMetrics = new HashMap<String, String>();
+    private MetricStore mRunMetrics = new MetricStore();
     private boolean mIsRunComplete = false;
     private long mElapsedTime = 0;
     private int mNumFailedTests = 0;
@@ -84,49 +84,39 @@ public class TestRunResult {
      * the same key.
      */
     public void addMetrics(Map<String, String> runMetrics, boolean aggregateMetrics) {
+        addMetrics(runMetrics, aggregateMetrics, Aggregation.SUM);
+    }
+
+    /**
+     * Adds test run metrics.
+     * <p/>
+     * @param runMetrics the run metrics
+     * @param aggregateMetrics if <code>true</code>, attempt to aggregate given metrics values
+     * with any currently stored values. If <code>false</code>, replace any currently stored
+     * metrics with the same key.
+     * @param aggregation how to aggregate metrics values
+     */
+    public void addMetrics(Map<String, String> runMetrics, boolean aggregateMetrics,
+            Aggregation aggregation) {
         if (aggregateMetrics) {
-            for (Map.Entry<String, String> entry : runMetrics.entrySet()) {
-                String existingValue = mRunMetrics.get(entry.getKey());
-                String combinedValue = combineValues(existingValue, entry.getValue());
-                mRunMetrics.put(entry.getKey(), combinedValue);
-            }
+            mRunMetrics.aggregateAll(runMetrics, aggregation);
         } else {
-            mRunMetrics.putAll(runMetrics);
+            mRunMetrics.setAll(runMetrics);
         }
     }
 
     /**
-     * Combine old and new metrics value
-     *
-     * @param existingValue
-     * @param value
-     * @return
+     * @return a read-only {@link Map} of the test test run metrics.
      */
-    private String combineValues(String existingValue, String newValue) {
-        if (existingValue != null) {
-            try {
-                Long existingLong = Long.parseLong(existingValue);
-                Long newLong = Long.parseLong(newValue);
-                return Long.toString(existingLong + newLong);
-            } catch (NumberFormatException e) {
-                // not a long, skip to next
-            }
-            try {
-               Double existingDouble = Double.parseDouble(existingValue);
-               Double newDouble = Double.parseDouble(newValue);
-               return Double.toString(existingDouble + newDouble);
-            } catch (NumberFormatException e) {
-                // not a double either, fall through
-            }
-        }
-        // default to overriding existingValue
-        return newValue;
+    public Map<String, String> getRunMetrics() {
+        return mRunMetrics.toStringMap();
     }
 
     /**
-     * @return a {@link Map} of the test test run metrics.
+     * @return the {@link MetricStore} of the test run metrics, to read numeric metrics without
+     *         parsing them.
      */
-    public Map<String, String> getRunMetrics() {
+    public MetricStore getRunMetricStore() {
         return mRunMetrics;
     }
 
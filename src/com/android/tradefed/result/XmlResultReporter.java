@@ -20,19 +20,27 @@ import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.TestResult.TestStatus;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
 
 import org.kxml2.io.KXmlSerializer;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TimeZone;
 
@@ -43,18 +51,28 @@ import java.util.TimeZone;
  * Unlike Ant's formatter, this class does not report the execution time of
  * tests.
  * <p/>
- * Collects all test info in memory, then dumps to file when invocation is complete.
+ * Each test case is appended to an on-disk journal as soon as it ends, so memory use does not
+ * grow with the number of tests. When invocation is complete, the summary header and the journal
+ * are streamed to the log saver in one pass. The journal is flushed after every test and synced
+ * to disk at the end of every test run, and is kept if the report cannot be saved. It holds a
+ * sequence of &lt;testcase&gt; elements, which can be recovered by wrapping them in a
+ * &lt;testsuite&gt; element. If the journal file cannot be created, the test cases are buffered
+ * in memory instead.
+ * <p/>
+ * Tests that start but do not end are held back until invocation is complete, since they may be
+ * rerun, and are then reported as errors.
  * <p/>
  * Ported from dalvik runner XmlReportPrinter.
  * <p/>
  * Result files will be stored in path constructed via [--output-file-path]/[build_id]
  */
 @OptionClass(alias = "xml")
-public class XmlResultReporter extends CollectingTestListener implements ILogSaverListener {
+public class XmlResultReporter implements ITestInvocationListener, ILogSaverListener {
 
     private static final String LOG_TAG = "XmlResultReporter";
 
     private static final String TEST_RESULT_FILE_PREFIX = "test_result_";
+    private static final String JOURNAL_FILE_PREFIX = "test_result_journal_";
 
     private static final String TESTSUITE = "testsuite";
     private static final String TESTCASE = "testcase";
@@ -75,67 +93,287 @@ public class XmlResultReporter extends CollectingTestListener implements ILogSav
     /** the XML namespace */
     private static final String ns = null;
 
+    @Option(name = "journal-dir", description =
+            "directory to write the test result journal to. Defaults to the tmp directory.")
+    private File mJournalDir = null;
+
     private ILogSaver mLogSaver;
     private IBuildInfo mBuildInfo;
 
+    /** the tests that have started but not ended yet */
+    private Map<TestIdentifier, TestResult> mPendingTests =
+            new LinkedHashMap<TestIdentifier, TestResult>();
+    /** the tests that did not end before their run ended, and have not ended since */
+    private Map<TestIdentifier, TestResult> mIncompleteTests =
+            new LinkedHashMap<TestIdentifier, TestResult>();
+    private int mNumTests = 0;
+    private int mNumFailedTests = 0;
+    private int mNumErrorTests = 0;
+
+    /** the journal file, or <code>null</code> if the journal is kept in memory */
+    private File mJournalFile = null;
+    private OutputStream mJournalStream = null;
+    private ByteArrayOutputStream mJournalBuffer = null;
+    private KXmlSerializer mJournalSerializer = null;
+
     /**
      * {@inheritDoc}
      */
     @Override
-    public void invocationEnded(long elapsedTime) {
-        super.invocationEnded(elapsedTime);
-        generateSummary(elapsedTime);
+    public void invocationStarted(IBuildInfo buildInfo) {
+        mBuildInfo = buildInfo;
+        mPendingTests.clear();
+        mIncompleteTests.clear();
+        mNumTests = 0;
+        mNumFailedTests = 0;
+        mNumErrorTests = 0;
+        closeJournal();
+        FileUtil.deleteFile(mJournalFile);
+        mJournalFile = null;
+        mJournalBuffer = null;
+        try {
+            mJournalFile = FileUtil.createTempFile(JOURNAL_FILE_PREFIX, ".xml", mJournalDir);
+            mJournalStream = new FileOutputStream(mJournalFile);
+        } catch (IOException e) {
+            CLog.e("Failed to create test result journal, buffering results in memory");
+            CLog.e(e);
+            StreamUtil.close(mJournalStream);
+            FileUtil.deleteFile(mJournalFile);
+            mJournalFile = null;
+            mJournalBuffer = new ByteArrayOutputStream();
+            mJournalStream = mJournalBuffer;
+        }
+        try {
+            mJournalSerializer = new KXmlSerializer();
+            mJournalSerializer.setOutput(mJournalStream, "UTF-8");
+            mJournalSerializer.setFeature(
+                    "http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        } catch (IOException e) {
+            CLog.e("Failed to create test result journal");
+            CLog.e(e);
+            closeJournal();
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void invocationStarted(IBuildInfo buildInfo) {
-        super.invocationStarted(buildInfo);
+    public void testRunStarted(String runName, int testCount) {
+        holdPendingTests();
+    }
 
-        mBuildInfo = buildInfo;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(TestIdentifier test) {
+        mPendingTests.put(test, new TestResult());
     }
 
+    /**
+     * {@inheritDoc}
+     */
     @Override
     public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-        super.testFailed(status, test, trace);
         CLog.d("%s %s: %s", test, status, trace);
+        TestResult result = mPendingTests.get(test);
+        if (result == null) {
+            CLog.w("Received failure for %s, which was not started", test);
+            return;
+        }
+        result.setStatus(TestFailure.ERROR.equals(status) ? TestStatus.ERROR : TestStatus.FAILURE);
+        result.setStackTrace(trace);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+        TestResult result = mPendingTests.remove(test);
+        // a rerun that ends replaces an earlier incomplete result
+        mIncompleteTests.remove(test);
+        if (result == null) {
+            CLog.w("Received test ended for %s, which was not started", test);
+            return;
+        }
+        if (TestStatus.INCOMPLETE.equals(result.getStatus())) {
+            result.setStatus(TestStatus.PASSED);
+        }
+        mNumTests++;
+        if (TestStatus.FAILURE.equals(result.getStatus())) {
+            mNumFailedTests++;
+        } else if (TestStatus.ERROR.equals(result.getStatus())) {
+            mNumErrorTests++;
+        }
+        writeToJournal(test, result);
+    }
+
+    /**
+     * Holds back the tests that started but did not end as incomplete, until they end in a rerun
+     * or invocation is complete.
+     */
+    private void holdPendingTests() {
+        mIncompleteTests.putAll(mPendingTests);
+        mPendingTests.clear();
+    }
+
+    /**
+     * Writes the tests that never ended, which are reported and counted as errors.
+     */
+    private void writeIncompleteTests() {
+        holdPendingTests();
+        for (Map.Entry<TestIdentifier, TestResult> incomplete : mIncompleteTests.entrySet()) {
+            mNumTests++;
+            mNumErrorTests++;
+            writeToJournal(incomplete.getKey(), incomplete.getValue());
+        }
+        mIncompleteTests.clear();
+    }
+
+    private void writeToJournal(TestIdentifier test, TestResult result) {
+        if (mJournalSerializer != null) {
+            try {
+                print(mJournalSerializer, test, result);
+                mJournalSerializer.flush();
+            } catch (IOException e) {
+                CLog.e("Failed to write %s to test result journal", test);
+                CLog.e(e);
+                closeJournal();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunFailed(String errorMessage) {
+        syncJournal();
     }
 
     /**
-     * Creates a report file and populates it with the report data from the completed tests.
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStopped(long elapsedTime) {
+        syncJournal();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        holdPendingTests();
+        syncJournal();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationFailed(Throwable cause) {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationEnded(long elapsedTime) {
+        writeIncompleteTests();
+        generateSummary(elapsedTime);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestSummary getSummary() {
+        return null;
+    }
+
+    /**
+     * Syncs the journal to disk, so it survives a host crash.
+     */
+    private void syncJournal() {
+        if (mJournalStream instanceof FileOutputStream) {
+            try {
+                ((FileOutputStream)mJournalStream).getFD().sync();
+            } catch (IOException e) {
+                CLog.w("Failed to sync test result journal %s: %s", mJournalFile,
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes the journal, leaving its file in place.
+     */
+    private void closeJournal() {
+        if (mJournalSerializer != null) {
+            try {
+                mJournalSerializer.flush();
+            } catch (IOException e) {
+                // ignore
+            }
+            mJournalSerializer = null;
+        }
+        syncJournal();
+        StreamUtil.close(mJournalStream);
+        mJournalStream = null;
+    }
+
+    /**
+     * Creates a report file and populates it with the summary header and the journaled tests.
      */
     private void generateSummary(long elapsedTime) {
+        if (mJournalSerializer == null) {
+            Log.e(LOG_TAG, String.format("Failed to generate report data: journal %s is not " +
+                    "available", mJournalFile != null ? mJournalFile : "buffer"));
+            return;
+        }
+        closeJournal();
         String timestamp = getTimestamp();
 
-        ByteArrayOutputStream outputStream = null;
         InputStream inputStream = null;
-
         try {
-            outputStream = createOutputStream();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
             KXmlSerializer serializer = new KXmlSerializer();
             serializer.setOutput(outputStream, "UTF-8");
             serializer.startDocument("UTF-8", null);
             serializer.setFeature(
                     "http://xmlpull.org/v1/doc/features.html#indent-output", true);
             // TODO: insert build info
-            printTestResults(serializer, timestamp, elapsedTime);
+            printTestSuiteHeader(serializer, timestamp, elapsedTime);
+            serializer.flush();
+            byte[] header = outputStream.toByteArray();
+            outputStream.reset();
+            serializer.endTag(ns, TESTSUITE);
             serializer.endDocument();
+            byte[] footer = outputStream.toByteArray();
 
-            inputStream = new ByteArrayInputStream(outputStream.toByteArray());
+            InputStream journalStream = mJournalFile != null ? new FileInputStream(mJournalFile)
+                    : new ByteArrayInputStream(mJournalBuffer.toByteArray());
+            inputStream = new SequenceInputStream(new ByteArrayInputStream(header),
+                    new SequenceInputStream(journalStream, new ByteArrayInputStream(footer)));
             LogFile log = mLogSaver.saveLogData(TEST_RESULT_FILE_PREFIX, LogDataType.XML,
                     inputStream);
 
             String msg = String.format("XML test result file generated at %s. Total tests %d, " +
-                    "Failed %d, Error %d", log.getPath(), getNumTotalTests(), getNumFailedTests(),
-                    getNumErrorTests());
+                    "Failed %d, Error %d", log.getPath(), mNumTests, mNumFailedTests,
+                    mNumErrorTests);
             Log.logAndDisplay(LogLevel.INFO, LOG_TAG, msg);
+            FileUtil.deleteFile(mJournalFile);
+            mJournalFile = null;
+            mJournalBuffer = null;
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Failed to generate report data");
+            Log.e(LOG_TAG, String.format("Failed to generate report data, results are kept in %s",
+                    mJournalFile));
             // TODO: consider throwing exception
         } finally {
-            StreamUtil.close(outputStream);
             StreamUtil.close(inputStream);
         }
     }
@@ -153,34 +391,20 @@ public class XmlResultReporter extends CollectingTestListener implements ILogSav
     }
 
     /**
-     * Creates the output stream to use for test results. Exposed for mocking.
+     * Prints the opening testsuite element, leaving it open for the test cases.
      */
-    ByteArrayOutputStream createOutputStream() {
-        return new ByteArrayOutputStream();
-    }
-
-    void printTestResults(KXmlSerializer serializer, String timestamp, long elapsedTime)
+    void printTestSuiteHeader(KXmlSerializer serializer, String timestamp, long elapsedTime)
             throws IOException {
         serializer.startTag(ns, TESTSUITE);
         serializer.attribute(ns, ATTR_NAME, mBuildInfo.getTestTag());
-        serializer.attribute(ns, ATTR_TESTS, Integer.toString(getNumTotalTests()));
-        serializer.attribute(ns, ATTR_FAILURES, Integer.toString(getNumFailedTests()));
-        serializer.attribute(ns, ATTR_ERRORS, Integer.toString(getNumErrorTests()));
+        serializer.attribute(ns, ATTR_TESTS, Integer.toString(mNumTests));
+        serializer.attribute(ns, ATTR_FAILURES, Integer.toString(mNumFailedTests));
+        serializer.attribute(ns, ATTR_ERRORS, Integer.toString(mNumErrorTests));
         serializer.attribute(ns, ATTR_TIME, Long.toString(elapsedTime));
         serializer.attribute(ns, TIMESTAMP, timestamp);
         serializer.attribute(ns, HOSTNAME, "localhost");
         serializer.startTag(ns, PROPERTIES);
         serializer.endTag(ns, PROPERTIES);
-
-        for (TestRunResult runResult : getRunResults()) {
-            // TODO: add test run summaries as TESTSUITES ?
-            Map<TestIdentifier, TestResult> testResults = runResult.getTestResults();
-            for (Map.Entry<TestIdentifier, TestResult> testEntry : testResults.entrySet()) {
-                print(serializer, testEntry.getKey(), testEntry.getValue());
-            }
-        }
-
-        serializer.endTag(ns, TESTSUITE);
     }
 
     void print(KXmlSerializer serializer, TestIdentifier testId, TestResult testResult)
@@ -213,6 +437,9 @@ public class XmlResultReporter extends CollectingTestListener implements ILogSav
      * Returns the text in a format that is safe for use in an XML document.
      */
     private String sanitize(String text) {
+        if (text == null) {
+            return "";
+        }
         return text.replace("\0", "<\\0>");
     }
 
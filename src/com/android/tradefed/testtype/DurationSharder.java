@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.TestDurationStore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Splits tests into shards with balanced expected durations, using longest processing time
+ * first bin packing: tests are assigned from longest to shortest, each to the shard with the
+ * lowest expected duration so far.
+ */
+public class DurationSharder {
+
+    /**
+     * A shard being filled.
+     */
+    private static class Bin<T> {
+        final int mIndex;
+        final List<T> mItems = new ArrayList<T>();
+        long mDuration = 0;
+
+        Bin(int index) {
+            mIndex = index;
+        }
+    }
+
+    /**
+     * Partitions items into bins of balanced total duration.
+     *
+     * @param items the items to partition
+     * @param durations the expected duration of items. Items without a known duration are
+     *            expected to take the mean duration of the known ones.
+     * @param binCount the number of bins to create. Fewer are created if there are fewer items.
+     * @return the bins, in creation order
+     */
+    public static <T> List<List<T>> partition(Collection<T> items, final Map<T, Long> durations,
+            int binCount) {
+        List<Bin<T>> bins = fillBins(items, durations, binCount);
+        List<List<T>> partitions = new ArrayList<List<T>>(bins.size());
+        for (Bin<T> bin : bins) {
+            partitions.add(bin.mItems);
+        }
+        return partitions;
+    }
+
+    /**
+     * Fills bins of balanced total duration with items.
+     *
+     * @return the bins with their expected total duration, in creation order
+     */
+    private static <T> List<Bin<T>> fillBins(Collection<T> items, final Map<T, Long> durations,
+            int binCount) {
+        long knownTotal = 0;
+        int knownCount = 0;
+        for (T item : items) {
+            Long duration = durations.get(item);
+            if (duration != null) {
+                knownTotal += duration;
+                knownCount++;
+            }
+        }
+        final long defaultDuration = knownCount == 0 ? 1 : Math.max(1, knownTotal / knownCount);
+
+        List<T> sortedItems = new ArrayList<T>(items);
+        // stable sort, so that items of equal duration keep their order
+        Collections.sort(sortedItems, new Comparator<T>() {
+            @Override
+            public int compare(T item1, T item2) {
+                return Long.compare(getDuration(item2, durations, defaultDuration),
+                        getDuration(item1, durations, defaultDuration));
+            }
+        });
+
+        PriorityQueue<Bin<T>> queue = new PriorityQueue<Bin<T>>(Math.max(1, binCount),
+                new Comparator<Bin<T>>() {
+            @Override
+            public int compare(Bin<T> bin1, Bin<T> bin2) {
+                int result = Long.compare(bin1.mDuration, bin2.mDuration);
+                return result != 0 ? result : Integer.compare(bin1.mIndex, bin2.mIndex);
+            }
+        });
+        List<Bin<T>> bins = new ArrayList<Bin<T>>();
+        for (int i = 0; i < binCount && i < sortedItems.size(); i++) {
+            Bin<T> bin = new Bin<T>(i);
+            queue.add(bin);
+            bins.add(bin);
+        }
+        for (T item : sortedItems) {
+            Bin<T> bin = queue.poll();
+            bin.mItems.add(item);
+            bin.mDuration += getDuration(item, durations, defaultDuration);
+            queue.add(bin);
+        }
+        return bins;
+    }
+
+    private static <T> long getDuration(T item, Map<T, Long> durations, long defaultDuration) {
+        Long duration = durations.get(item);
+        return duration != null ? duration : defaultDuration;
+    }
+
+    /**
+     * Splits a test into shards of balanced expected duration.
+     * <p/>
+     * If the test does not know its test list before running, the tests recorded in the store
+     * are partitioned instead, and the shard with the lowest expected duration also runs any test
+     * not assigned to another shard, such as tests that were added since the last run.
+     *
+     * @param test the {@link ITestListShardable} to split
+     * @param store the {@link TestDurationStore} holding the durations of previous runs
+     * @param shardCount the number of shards to create
+     * @return the shards, or <code>null</code> if test cannot be split
+     */
+    public static List<IRemoteTest> split(ITestListShardable test, TestDurationStore store,
+            int shardCount) {
+        if (shardCount <= 1) {
+            return null;
+        }
+        Map<TestIdentifier, Long> durations = store.getDurations(test.getDurationKey());
+        Collection<TestIdentifier> tests = test.getTestList();
+        boolean testListKnown = tests != null;
+        if (!testListKnown) {
+            tests = durations.keySet();
+        }
+        if (tests.size() <= 1) {
+            CLog.d("Not enough known tests to shard %s", test.getDurationKey());
+            return null;
+        }
+        List<Bin<TestIdentifier>> bins = fillBins(tests, durations, shardCount);
+        int catchAllIndex = -1;
+        if (!testListKnown) {
+            catchAllIndex = 0;
+            for (Bin<TestIdentifier> bin : bins) {
+                if (bin.mDuration < bins.get(catchAllIndex).mDuration) {
+                    catchAllIndex = bin.mIndex;
+                }
+            }
+        }
+        List<IRemoteTest> shards = new ArrayList<IRemoteTest>(bins.size());
+        for (Bin<TestIdentifier> bin : bins) {
+            CLog.i("Shard %d of %s has %d tests, expected to take %d ms", bin.mIndex,
+                    test.getDurationKey(), bin.mItems.size(), bin.mDuration);
+            if (bin.mIndex == catchAllIndex) {
+                Set<TestIdentifier> excludedTests = new HashSet<TestIdentifier>();
+                for (Bin<TestIdentifier> otherBin : bins) {
+                    if (otherBin.mIndex != catchAllIndex) {
+                        excludedTests.addAll(otherBin.mItems);
+                    }
+                }
+                shards.add(test.createShard(null, excludedTests));
+            } else {
+                shards.add(test.createShard(bin.mItems, null));
+            }
+        }
+        return shards;
+    }
+}
@@ -15,9 +15,8 @@
  */
 package com.android.tradefed.testtype;
 
-import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
-import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.testtype.testdefs.XmlDefsTest;
@@ -27,8 +26,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Parses the 'raw output mode' results of native tests using GTest that run from shell, and informs
@@ -86,7 +83,7 @@ import java.util.regex.Pattern;
  *
  * All other lines are ignored.
  */
-public class GTestResultParser extends MultiLineReceiver {
+public class GTestResultParser extends NativeTestOutputReceiver {
     private static final String LOG_TAG = "GTestResultParser";
 
     // Variables to keep track of state
@@ -108,13 +105,26 @@ public class GTestResultParser extends MultiLineReceiver {
 
     private String mCoverageTarget = null;
 
+    /** True if all output lines should be logged. */
+    private final boolean mLogOutput;
+
+    /**
+     * The output of the current test, kept as raw bytes and only decoded if the test fails.
+     * Reused across tests.
+     */
+    private byte[] mTraceBuffer = new byte[INITIAL_TRACE_BUFFER_SIZE];
+    private int mTraceLength = NO_TRACE;
+
+    private static final int INITIAL_TRACE_BUFFER_SIZE = 1024;
+    private static final int NO_TRACE = -1;
+    private static final byte[] TRACE_LINE_SEPARATOR = toBytes("\r\n");
+
     /**
      * Test result data
      */
     private static class TestResult {
         private String mTestName = null;
         private String mTestClass = null;
-        private StringBuilder mStackTrace = null;
         @SuppressWarnings("unused")
         private Long mRunTime = null;
 
@@ -126,30 +136,6 @@ public class GTestResultParser extends MultiLineReceiver {
             return mTestName != null && mTestClass != null;
         }
 
-        /** Returns whether there is currently a stack trace
-         *
-         * @return true if there is currently a stack trace, false otherwise
-         */
-        boolean hasStackTrace() {
-            return mStackTrace != null;
-        }
-
-        /**
-         * Returns the stack trace of the current test.
-         *
-         * @return a String representation of the current test's stack trace; if there is not
-         * a current stack trace, it returns an error string. Use {@link TestResult#hasStackTrace}
-         * if you need to know whether there is a stack trace.
-         */
-        String getTrace() {
-            if (hasStackTrace()) {
-                return mStackTrace.toString();
-            } else {
-                Log.e(LOG_TAG, "Could not find stack trace for failed test");
-                return new Throwable("Unknown failure").toString();
-            }
-        }
-
         /** Provides a more user readable string for TestResult, if possible */
         @Override
         public String toString() {
@@ -168,28 +154,63 @@ public class GTestResultParser extends MultiLineReceiver {
         }
     }
 
-    /** Internal helper struct to store parsed test info. */
+    /**
+     * Internal helper struct to store the position of parsed test info in a line. Reused across
+     * lines.
+     */
     private static class ParsedTestInfo {
-        String mTestName = null;
-        String mTestClassName = null;
-        String mTestRunTime = null;
+        int mClassStart;
+        int mClassEnd;
+        int mNameStart;
+        int mNameEnd;
+        /** the test run time in ms, or -1 if none was found */
+        long mTestRunTime;
+
+        boolean isValid() {
+            return mClassStart >= 0;
+        }
+
+        boolean matches(TestResult testResult, byte[] buffer) {
+            return matchesName(testResult.mTestClass, buffer, mClassStart, mClassEnd)
+                    && matchesName(testResult.mTestName, buffer, mNameStart, mNameEnd);
+        }
+
+        String getClassName(byte[] buffer) {
+            return isValid() ? decode(buffer, mClassStart, mClassEnd) : "UNKNOWN_CLASS";
+        }
 
-        public ParsedTestInfo(String testName, String testClassName, String testRunTime) {
-            mTestName = testName;
-            mTestClassName = testClassName;
-            mTestRunTime = testRunTime;
+        String getTestName(byte[] buffer) {
+            return isValid() ? decode(buffer, mNameStart, mNameEnd) : "UNKNOWN_TEST";
+        }
+
+        private static boolean matchesName(String name, byte[] buffer, int from, int to) {
+            return equalsAscii(name, buffer, from, to) || decode(buffer, from, to).equals(name);
         }
     }
 
+    private final ParsedTestInfo mParsedTestInfo = new ParsedTestInfo();
+
     /** Prefixes used to demarcate and identify output. */
     private static class Prefixes {
         @SuppressWarnings("unused")
-        private static final String INFORMATIONAL_MARKER = "[----------]";
-        private static final String START_TEST_RUN_MARKER = "[==========] Running";
-        private static final String TEST_RUN_MARKER = "[==========]";
-        private static final String START_TEST_MARKER = "[ RUN      ]";
-        private static final String OK_TEST_MARKER = "[       OK ]";
-        private static final String FAILED_TEST_MARKER = "[  FAILED  ]";
+        private static final byte[] INFORMATIONAL_MARKER = toBytes("[----------]");
+        private static final byte[] START_TEST_RUN_MARKER = toBytes("[==========] Running");
+        private static final byte[] TEST_RUN_MARKER = toBytes("[==========]");
+        private static final byte[] START_TEST_MARKER = toBytes("[ RUN      ]");
+        private static final byte[] OK_TEST_MARKER = toBytes("[       OK ]");
+        private static final byte[] FAILED_TEST_MARKER = toBytes("[  FAILED  ]");
+    }
+
+    /** Markers of the values parsed from tagged lines. */
+    private static class Markers {
+        /** eg: Running XX tests from 1 test case. */
+        private static final byte[] RUNNING = toBytes("Running ");
+        private static final byte[] TEST = toBytes(" test");
+        private static final byte[] FROM = toBytes(" from ");
+        /** eg: (XX ms) */
+        private static final byte[] TIME_END = toBytes(" ms)");
+        /** eg: (XX ms total) */
+        private static final byte[] TOTAL_TIME_END = toBytes(" ms total)");
     }
 
     /**
@@ -202,6 +223,7 @@ public class GTestResultParser extends MultiLineReceiver {
     public GTestResultParser(String testRunName, Collection<ITestRunListener> listeners) {
         mTestRunName = testRunName;
         mTestListeners = new ArrayList<ITestRunListener>(listeners);
+        mLogOutput = isLoggable(LogLevel.VERBOSE);
     }
 
     /**
@@ -215,6 +237,7 @@ public class GTestResultParser extends MultiLineReceiver {
         mTestRunName = testRunName;
         mTestListeners = new ArrayList<ITestRunListener>(1);
         mTestListeners.add(listener);
+        mLogOutput = isLoggable(LogLevel.VERBOSE);
     }
 
     /**
@@ -235,62 +258,58 @@ public class GTestResultParser extends MultiLineReceiver {
      */
     private void clearCurrentTestResult() {
         mCurrentTestResult = null;
+        mTraceLength = NO_TRACE;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void processNewLines(String[] lines) {
-        for (String line : lines) {
-            parse(line);
-            // in verbose mode, dump all adb output to log
-            Log.v(LOG_TAG, line);
+    protected void processLine(byte[] buffer, int offset, int length) {
+        parse(buffer, offset, offset + length);
+        // in verbose mode, dump all adb output to log
+        if (mLogOutput) {
+            Log.v(LOG_TAG, decode(buffer, offset, offset + length));
         }
     }
 
     /**
      * Parse an individual output line.
      *
-     * @param line  Text output line
+     * @param buffer the buffer containing the line
+     * @param from the start of the line in buffer
+     * @param to the end of the line in buffer
      */
-    private void parse(String line) {
-        String message = null;
-
-        if (mTestRunInProgress || line.startsWith(Prefixes.TEST_RUN_MARKER)) {
-            if (line.startsWith(Prefixes.START_TEST_MARKER)) {
+    private void parse(byte[] buffer, int from, int to) {
+        if (mTestRunInProgress || startsWith(buffer, from, to, Prefixes.TEST_RUN_MARKER)) {
+            if (startsWith(buffer, from, to, Prefixes.START_TEST_MARKER)) {
                 // Individual test started
-                message = line.substring(Prefixes.START_TEST_MARKER.length()).trim();
-                processTestStartedTag(message);
+                processTestStartedTag(buffer, from + Prefixes.START_TEST_MARKER.length, to);
             }
-            else if (line.startsWith(Prefixes.OK_TEST_MARKER)) {
+            else if (startsWith(buffer, from, to, Prefixes.OK_TEST_MARKER)) {
                 // Individual test completed successfully
-                message = line.substring(Prefixes.OK_TEST_MARKER.length()).trim();
-                processOKTag(message);
+                processOKTag(buffer, from + Prefixes.OK_TEST_MARKER.length, to);
                 clearCurrentTestResult();
             }
-            else if (line.startsWith(Prefixes.FAILED_TEST_MARKER)) {
+            else if (startsWith(buffer, from, to, Prefixes.FAILED_TEST_MARKER)) {
                 // Individual test completed with failure
-                message = line.substring(Prefixes.FAILED_TEST_MARKER.length()).trim();
-                processFailedTag(message);
+                processFailedTag(buffer, from + Prefixes.FAILED_TEST_MARKER.length, to);
                 clearCurrentTestResult();
             }
-            else if (line.startsWith(Prefixes.START_TEST_RUN_MARKER)) {
+            else if (startsWith(buffer, from, to, Prefixes.START_TEST_RUN_MARKER)) {
                 // Test run started
                 // Make sure to leave the "Running" in the string
-                message = line.substring(Prefixes.TEST_RUN_MARKER.length()).trim();
-                processRunStartedTag(message);
+                processRunStartedTag(buffer, from + Prefixes.TEST_RUN_MARKER.length, to);
             }
-            else if (line.startsWith(Prefixes.TEST_RUN_MARKER)) {
+            else if (startsWith(buffer, from, to, Prefixes.TEST_RUN_MARKER)) {
                 // Test run ended
                 // This is for the end of the test suite run, so make sure this else-if is after the
                 // check for START_TEST_SUITE_MARKER
-                message = line.substring(Prefixes.TEST_RUN_MARKER.length()).trim();
-                processRunCompletedTag(message);
+                processRunCompletedTag(buffer, from + Prefixes.TEST_RUN_MARKER.length, to);
             }
             else if (testInProgress()) {
                 // Note this does not handle the case of an error outside an actual test run
-                appendTestOutputLine(line);
+                appendTestOutputLine(buffer, from, to);
             }
         }
     }
@@ -378,62 +397,113 @@ public class GTestResultParser extends MultiLineReceiver {
     }
 
     /**
-     * Parse the test identifier (class and test name), and optional time info.
+     * Parse the test identifier (class and test name), and optional time info, into
+     * {@link #mParsedTestInfo}.
      *
-     * @param identifier Raw identifier of the form classname.testname, with an optional time
-     *          element in the format of (XX ms) at the end
-     * @return A ParsedTestInfo representing the parsed info from the identifier string.
+     * @param buffer the buffer containing the identifier
+     * @param from the start of the raw identifier, of the form classname.testname, with an
+     *          optional time element in the format of (XX ms) at the end
+     * @param to the end of the raw identifier
+     * @return A ParsedTestInfo representing the parsed info from the identifier.
      *
-     *          If no time tag was detected, then the third element in the array (time_in_ms) will
-     *          be null. If the line failed to parse properly (eg: could not determine name of
-     *          test/class) then an "UNKNOWN" string value will be returned for the classname and
-     *          testname. This method guarantees a string will always be returned for the class and
-     *          test names (but not for the time value).
+     *          If no time tag was detected, then the time will be -1. If the line failed to parse
+     *          properly (eg: could not determine name of test/class) then an "UNKNOWN" string
+     *          value will be returned for the classname and testname.
      */
-    private ParsedTestInfo parseTestIdentifier(String identifier) {
-        ParsedTestInfo returnInfo = new ParsedTestInfo("UNKNOWN_CLASS", "UNKNOWN_TEST", null);
-
-        Pattern timePattern = Pattern.compile(".*(\\((\\d+) ms\\))");  // eg: (XX ms)
-        Matcher time = timePattern.matcher(identifier);
+    private ParsedTestInfo parseTestIdentifier(byte[] buffer, int from, int to) {
+        ParsedTestInfo info = mParsedTestInfo;
+        info.mClassStart = -1;
+        info.mTestRunTime = -1;
 
         // Try to find a time
-        if (time.find()) {
-            String timeString = time.group(2);  // the "XX" in "(XX ms)"
-            String discardPortion = time.group(1);  // everything after the test class/name
-            identifier = identifier.substring(0, identifier.lastIndexOf(discardPortion)).trim();
-            returnInfo.mTestRunTime = timeString;
+        int timeStart = findParenthesizedNumber(buffer, from, to, Markers.TIME_END);
+        if (timeStart >= 0) {
+            info.mTestRunTime = parseLong(buffer, timeStart + 1,
+                    skipDigits(buffer, timeStart + 1, to));
+            to = timeStart;
         }
+        from = skipWhitespace(buffer, from, to);
+        to = trimEnd(buffer, from, to);
 
-        String[] testId = identifier.split("\\.");
-        if (testId.length < 2) {
+        int classEnd = indexOf(buffer, from, to, (byte)'.');
+        int nameEnd = classEnd < 0 ? -1 : indexOf(buffer, classEnd + 1, to, (byte)'.');
+        if (nameEnd < 0) {
+            nameEnd = to;
+        }
+        if (classEnd < 0 || !hasNonDotByte(buffer, classEnd + 1, to)) {
             Log.e(LOG_TAG, "Could not detect the test class and test name, received: " +
-                    identifier);
+                    decode(buffer, from, to));
         }
         else {
-            returnInfo.mTestClassName = testId[0];
-            returnInfo.mTestName = testId[1];
+            info.mClassStart = from;
+            info.mClassEnd = classEnd;
+            info.mNameStart = classEnd + 1;
+            info.mNameEnd = nameEnd;
         }
-        return returnInfo;
+        return info;
     }
 
     /**
-     * Parses and stores the test identifier (class and test name).
+     * @return <code>true</code> if the range [from, to) of buffer contains a byte other than '.'
+     */
+    private static boolean hasNonDotByte(byte[] buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] != '.') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the last occurrence of a number in parentheses followed by given suffix, eg "(XX ms)".
      *
-     * @param identifier Raw identifier
+     * @return the index of the opening parenthesis, or -1 if not found
      */
-    private void processRunStartedTag(String identifier) {
-        // eg: (Running XX tests from 1 test case.)
-        Pattern numTestsPattern = Pattern.compile("Running (\\d+) test[s]? from .*");
-        Matcher numTests = numTestsPattern.matcher(identifier);
+    private static int findParenthesizedNumber(byte[] buffer, int from, int to, byte[] suffix) {
+        int suffixStart = lastIndexOf(buffer, from, to, suffix);
+        while (suffixStart >= 0) {
+            int numberStart = suffixStart;
+            while (numberStart > from && buffer[numberStart - 1] >= '0'
+                    && buffer[numberStart - 1] <= '9') {
+                numberStart--;
+            }
+            if (numberStart < suffixStart && numberStart > from
+                    && buffer[numberStart - 1] == '(') {
+                return numberStart - 1;
+            }
+            suffixStart = lastIndexOf(buffer, from, suffixStart + suffix.length - 1, suffix);
+        }
+        return -1;
+    }
 
-        // Try to find number of tests
-        if (numTests.find()) {
-            try {
-                mNumTestsExpected = Integer.parseInt(numTests.group(1));
+    /**
+     * Parses and stores the number of tests expected in the run.
+     *
+     * @param buffer the buffer containing the line
+     * @param from the start of the raw identifier
+     * @param to the end of the raw identifier
+     */
+    private void processRunStartedTag(byte[] buffer, int from, int to) {
+        // eg: (Running XX tests from 1 test case.)
+        int numberStart = indexOf(buffer, from, to, Markers.RUNNING);
+        if (numberStart >= 0) {
+            numberStart += Markers.RUNNING.length;
+            int numberEnd = skipDigits(buffer, numberStart, to);
+            int fromStart = numberEnd + Markers.TEST.length;
+            if (fromStart < to && buffer[fromStart] == 's') {
+                fromStart++;
             }
-            catch (NumberFormatException e) {
-                Log.e(LOG_TAG, "Unable to determine number of tests expected, received: " +
-                        numTests.group(1));
+            // Try to find number of tests
+            if (numberEnd > numberStart && startsWith(buffer, numberEnd, to, Markers.TEST)
+                    && startsWith(buffer, fromStart, to, Markers.FROM)) {
+                long numTests = parseLong(buffer, numberStart, numberEnd);
+                if (numTests >= 0 && numTests <= Integer.MAX_VALUE) {
+                    mNumTestsExpected = (int)numTests;
+                } else {
+                    Log.e(LOG_TAG, "Unable to determine number of tests expected, received: " +
+                            decode(buffer, numberStart, numberEnd));
+                }
             }
         }
         if (mNumTestsExpected > 0) {
@@ -446,20 +516,23 @@ public class GTestResultParser extends MultiLineReceiver {
     /**
      * Processes and informs listener when we encounter a tag indicating that a test suite is done.
      *
-     * @param identifier Raw log output from the suite ended tag
+     * @param buffer the buffer containing the line
+     * @param from the start of the raw log output from the suite ended tag
+     * @param to the end of the raw log output
      */
-    private void processRunCompletedTag(String identifier) {
-        Pattern timePattern = Pattern.compile(".*\\((\\d+) ms total\\)");  // eg: (XX ms total)
-        Matcher time = timePattern.matcher(identifier);
+    private void processRunCompletedTag(byte[] buffer, int from, int to) {
+        // eg: (XX ms total)
+        int timeStart = findParenthesizedNumber(buffer, from, to, Markers.TOTAL_TIME_END);
 
         // Try to find the total run time
-        if (time.find()) {
-            try {
-                mTotalRunTime = Long.parseLong(time.group(1));
-            }
-            catch (NumberFormatException e) {
+        if (timeStart >= 0) {
+            int numberEnd = skipDigits(buffer, timeStart + 1, to);
+            long runTime = parseLong(buffer, timeStart + 1, numberEnd);
+            if (runTime >= 0) {
+                mTotalRunTime = runTime;
+            } else {
                 Log.e(LOG_TAG, "Unable to determine the total running time, received: " +
-                        time.group(1));
+                        decode(buffer, timeStart + 1, numberEnd));
             }
         }
         reportTestRunEnded();
@@ -469,13 +542,16 @@ public class GTestResultParser extends MultiLineReceiver {
     /**
      * Processes and informs listener when we encounter a tag indicating that a test has started.
      *
-     * @param identifier Raw log output of the form classname.testname, with an optional time (x ms)
+     * @param buffer the buffer containing the line
+     * @param from the start of the raw log output of the form classname.testname, with an
+     *          optional time (x ms)
+     * @param to the end of the raw log output
      */
-    private void processTestStartedTag(String identifier) {
-        ParsedTestInfo parsedResults = parseTestIdentifier(identifier);
+    private void processTestStartedTag(byte[] buffer, int from, int to) {
+        ParsedTestInfo parsedResults = parseTestIdentifier(buffer, from, to);
         TestResult testResult = getCurrentTestResult();
-        testResult.mTestClass = parsedResults.mTestClassName;
-        testResult.mTestName = parsedResults.mTestName;
+        testResult.mTestClass = parsedResults.getClassName(buffer);
+        testResult.mTestName = parsedResults.getTestName(buffer);
 
         TestIdentifier testId = new TestIdentifier(testResult.mTestClass, testResult.mTestName);
 
@@ -488,31 +564,28 @@ public class GTestResultParser extends MultiLineReceiver {
     /**
      * Helper method to do the work necessary when a test has ended.
      *
-     * @param identifier Raw log output of the form "classname.testname" with an optional (XX ms)
-     *          at the end indicating the running time.
+     * @param buffer the buffer containing the line
+     * @param from the start of the raw log output of the form "classname.testname" with an
+     *          optional (XX ms) at the end indicating the running time.
+     * @param to the end of the raw log output
      * @param testPassed Indicates whether the test passed or failed (set to true if passed, false
      *          if failed)
      */
-    private void doTestEnded(String identifier, boolean testPassed) {
-        ParsedTestInfo parsedResults = parseTestIdentifier(identifier);
+    private void doTestEnded(byte[] buffer, int from, int to, boolean testPassed) {
+        ParsedTestInfo parsedResults = parseTestIdentifier(buffer, from, to);
         TestResult testResult = getCurrentTestResult();
         TestIdentifier testId = new TestIdentifier(testResult.mTestClass, testResult.mTestName);
 
         // Error - trying to end a test when one isn't in progress
         if (!testInProgress()) {
-            Log.e(LOG_TAG, "Test currently not in progress when trying to end test: " + identifier);
+            Log.e(LOG_TAG, "Test currently not in progress when trying to end test: " +
+                    decode(buffer, from, to).trim());
             return;
         }
 
         // Save the run time for this test if one exists
-        if (parsedResults.mTestRunTime != null) {
-            try {
-                testResult.mRunTime = new Long(parsedResults.mTestRunTime);
-            }
-            catch (NumberFormatException e) {
-                Log.e(LOG_TAG, "Test run time value is invalid, received: " +
-                        parsedResults.mTestRunTime);
-            }
+        if (parsedResults.mTestRunTime >= 0) {
+            testResult.mRunTime = parsedResults.mTestRunTime;
         }
 
         // Check that the test result is for the same test/class we're expecting it to be for
@@ -520,35 +593,27 @@ public class GTestResultParser extends MultiLineReceiver {
         if (!testResult.isComplete()) {
             Log.e(LOG_TAG, "No test/class name is currently recorded as running!");
         }
-        else {
-            if (testResult.mTestClass.compareTo(parsedResults.mTestClassName) != 0) {
-                Log.e(LOG_TAG, "Name for current test class does not match class we started " +
-                        "with, expected: " + testResult.mTestClass + " but got: " +
-                        parsedResults.mTestClassName);
-                encounteredUnexpectedTest = true;
-            }
-            if (testResult.mTestName.compareTo(parsedResults.mTestName) != 0) {
-                Log.e(LOG_TAG, "Name for current test does not match test we started with," +
-                        "expected: " + testResult.mTestName + " bug got: " +
-                        parsedResults.mTestName);
-                encounteredUnexpectedTest = true;
-            }
+        else if (!parsedResults.isValid() || !parsedResults.matches(testResult, buffer)) {
+            Log.e(LOG_TAG, "Name for current test does not match test we started with, " +
+                    "expected: " + testResult + " but got: " +
+                    parsedResults.getClassName(buffer) + "#" + parsedResults.getTestName(buffer));
+            encounteredUnexpectedTest = true;
         }
 
         if (encounteredUnexpectedTest) {
             // If the test name of the result changed from what we started with, report that
             // the last known test failed, regardless of whether we received a pass or fail tag.
+            String trace = getTrace();
             for (ITestRunListener listener : mTestListeners) {
-                listener.testFailed(ITestRunListener.TestFailure.ERROR, testId,
-                                mCurrentTestResult.getTrace());
+                listener.testFailed(ITestRunListener.TestFailure.ERROR, testId, trace);
             }
             // Report error as failure.
             ++mTotalNumberOfTestFailed;
         }
         else if (!testPassed) {  // test failed
+            String trace = getTrace();
             for (ITestRunListener listener : mTestListeners) {
-                listener.testFailed(ITestRunListener.TestFailure.FAILURE, testId,
-                                mCurrentTestResult.getTrace());
+                listener.testFailed(ITestRunListener.TestFailure.FAILURE, testId, trace);
             }
 
             ++mTotalNumberOfTestFailed;
@@ -566,38 +631,68 @@ public class GTestResultParser extends MultiLineReceiver {
 
     /**
      * Processes and informs listener when we encounter the OK tag.
-     *
-     * @param identifier Raw log output of the form "classname.testname" with an optional (XX ms)
-     *          at the end indicating the running time.
      */
-    private void processOKTag(String identifier) {
-        doTestEnded(identifier, true);
+    private void processOKTag(byte[] buffer, int from, int to) {
+        doTestEnded(buffer, from, to, true);
     }
 
     /**
      * Processes and informs listener when we encounter the FAILED tag.
-     *
-     * @param identifier Raw log output of the form "classname.testname" with an optional (XX ms)
-     *          at the end indicating the running time.
      */
-    private void processFailedTag(String identifier) {
-        doTestEnded(identifier, false);
+    private void processFailedTag(byte[] buffer, int from, int to) {
+        doTestEnded(buffer, from, to, false);
     }
 
     /**
-     * Appends the test output to the current TestResult.
+     * Appends the test output to the trace of the current test.
      *
-     * @param line Raw test result line of output.
+     * @param buffer the buffer containing the line
+     * @param from the start of the raw test result line of output
+     * @param to the end of the line
      */
-    private void appendTestOutputLine(String line) {
-        TestResult testResult = getCurrentTestResult();
-        if (testResult.mStackTrace == null) {
-            testResult.mStackTrace = new StringBuilder();
+    private void appendTestOutputLine(byte[] buffer, int from, int to) {
+        getCurrentTestResult();
+        if (mTraceLength == NO_TRACE) {
+            mTraceLength = 0;
         }
         else {
-            testResult.mStackTrace.append("\r\n");
+            appendToTrace(TRACE_LINE_SEPARATOR, 0, TRACE_LINE_SEPARATOR.length);
+        }
+        appendToTrace(buffer, from, to - from);
+    }
+
+    private void appendToTrace(byte[] buffer, int offset, int length) {
+        if (mTraceLength + length > mTraceBuffer.length) {
+            byte[] newBuffer = new byte[Math.max(mTraceBuffer.length * 2, mTraceLength + length)];
+            System.arraycopy(mTraceBuffer, 0, newBuffer, 0, mTraceLength);
+            mTraceBuffer = newBuffer;
+        }
+        System.arraycopy(buffer, offset, mTraceBuffer, mTraceLength, length);
+        mTraceLength += length;
+    }
+
+    /** Returns whether there is currently a stack trace
+     *
+     * @return true if there is currently a stack trace, false otherwise
+     */
+    private boolean hasStackTrace() {
+        return mTraceLength != NO_TRACE;
+    }
+
+    /**
+     * Returns the stack trace of the current test.
+     *
+     * @return a String representation of the current test's stack trace; if there is not
+     * a current stack trace, it returns an error string. Use {@link #hasStackTrace}
+     * if you need to know whether there is a stack trace.
+     */
+    private String getTrace() {
+        if (hasStackTrace()) {
+            return decode(mTraceBuffer, 0, mTraceLength);
+        } else {
+            Log.e(LOG_TAG, "Could not find stack trace for failed test");
+            return new Throwable("Unknown failure").toString();
         }
-        testResult.mStackTrace.append(line);
     }
 
     /**
@@ -620,8 +715,8 @@ public class GTestResultParser extends MultiLineReceiver {
             // If there was any stack trace during the test run, append it to the "test failed"
             // error message so we have an idea of what caused the crash/failure.
             Map<String, String> emptyMap = Collections.emptyMap();
-            if (mCurrentTestResult.hasStackTrace()) {
-                testRunStackTrace = mCurrentTestResult.getTrace();
+            if (hasStackTrace()) {
+                testRunStackTrace = getTrace();
             }
             for (ITestRunListener listener : mTestListeners) {
                 listener.testFailed(ITestRunListener.TestFailure.ERROR, testId,
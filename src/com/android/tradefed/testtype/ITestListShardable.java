@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.result.TestDurationStore;
+
+import java.util.Collection;
+
+/**
+ * A {@link IRemoteTest} that exposes the list of tests it runs, so that it can be split into
+ * shards of balanced expected duration by {@link DurationSharder}.
+ */
+public interface ITestListShardable extends IRemoteTest {
+
+    /**
+     * Gets the key identifying this test's tests in a {@link TestDurationStore}.
+     */
+    public String getDurationKey();
+
+    /**
+     * Gets the tests this test will run.
+     * <p/>
+     * This will be called before test execution, so the list may not be known yet.
+     *
+     * @return the tests to run, or <code>null</code> if they are only known once the test runs.
+     *         In that case, the tests recorded in the {@link TestDurationStore} are used instead.
+     */
+    public Collection<TestIdentifier> getTestList();
+
+    /**
+     * Creates a shard of this test, that runs a subset of its tests.
+     *
+     * @param tests the tests to run, or <code>null</code> to run every test of this test except
+     *            <var>excludedTests</var>
+     * @param excludedTests the tests not to run, when <var>tests</var> is <code>null</code>
+     * @return the shard
+     */
+    public IRemoteTest createShard(Collection<TestIdentifier> tests,
+            Collection<TestIdentifier> excludedTests);
+}
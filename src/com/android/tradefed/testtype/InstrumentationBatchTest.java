@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.TimeUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Re-runs a set of instrumentation tests in batches, each batch running in a single
+ * instrumentation process via {@link InstrumentationFileTest}.
+ * <p/>
+ * A batch that is interrupted after running some of its tests is resumed from the first test that
+ * did not run. A batch that fails to run any test is bisected, so the test that crashes the
+ * instrumentation is isolated in a few runs rather than one run per test. A single test that still
+ * fails to run is handed over to {@link InstrumentationSerialTest}, which reports it as failed.
+ * <p/>
+ * Note: Requires a runner that supports test execution from a file.
+ */
+class InstrumentationBatchTest implements IRemoteTest {
+
+    private final InstrumentationTest mInstrumentationTest;
+
+    /** the set of tests to run */
+    private final Collection<TestIdentifier> mTests;
+
+    private final int mBatchSize;
+
+    private final List<Long> mBatchTimes = new ArrayList<Long>();
+    private int mBisectCount = 0;
+
+    /**
+     * Creates a {@link InstrumentationBatchTest}.
+     *
+     * @param instrumentationTest {@link InstrumentationTest} used to configure this class
+     * @param testsToRun a {@link Collection} of tests to run. Note this {@link Collection} will be
+     *            used as is, and tests are removed from it as they complete.
+     * @param batchSize the maximum number of tests to run in one instrumentation process
+     */
+    InstrumentationBatchTest(InstrumentationTest instrumentationTest,
+            Collection<TestIdentifier> testsToRun, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+        mInstrumentationTest = instrumentationTest;
+        mTests = testsToRun;
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
+        if (mInstrumentationTest.getDevice() == null) {
+            throw new IllegalArgumentException("Device has not been set");
+        }
+        LinkedList<List<TestIdentifier>> batches = new LinkedList<List<TestIdentifier>>();
+        List<TestIdentifier> batch = new ArrayList<TestIdentifier>(mBatchSize);
+        for (TestIdentifier test : mTests) {
+            batch.add(test);
+            if (batch.size() == mBatchSize) {
+                batches.add(batch);
+                batch = new ArrayList<TestIdentifier>(mBatchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        CLog.i("Re-running %d tests in %d batches of up to %d tests", mTests.size(),
+                batches.size(), mBatchSize);
+
+        long startTime = System.currentTimeMillis();
+        int testCount = mTests.size();
+        while (!batches.isEmpty()) {
+            batch = batches.removeFirst();
+            List<TestIdentifier> remainingTests = runTimedBatch(batch, listener);
+            if (remainingTests.isEmpty()) {
+                continue;
+            }
+            if (remainingTests.size() < batch.size()) {
+                // instrumentation crashed part way, resume after the tests that ran
+                batches.addFirst(remainingTests);
+            } else if (batch.size() > 1) {
+                // no test ran, isolate the test preventing the batch from running
+                mBisectCount++;
+                int middle = batch.size() / 2;
+                batches.addFirst(new ArrayList<TestIdentifier>(batch.subList(middle,
+                        batch.size())));
+                batches.addFirst(new ArrayList<TestIdentifier>(batch.subList(0, middle)));
+            } else {
+                CLog.w("Test %s failed to run from file, running it on its own", batch.get(0));
+                runSerially(batch, listener);
+                // serial runs report tests that failed to run, so none remain
+                mTests.removeAll(batch);
+            }
+        }
+        CLog.i("Re-ran %d tests in %d batches (%d bisections) in %s", testCount,
+                mBatchTimes.size(), mBisectCount,
+                TimeUtil.formatElapsedTime(System.currentTimeMillis() - startTime));
+    }
+
+    private List<TestIdentifier> runTimedBatch(List<TestIdentifier> batch,
+            ITestInvocationListener listener) throws DeviceNotAvailableException {
+        long startTime = System.currentTimeMillis();
+        List<TestIdentifier> remainingTests = new ArrayList<TestIdentifier>(batch);
+        try {
+            runBatch(remainingTests, listener);
+        } finally {
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            mBatchTimes.add(elapsedTime);
+            CLog.i("Batch %d ran %d of %d tests in %s", mBatchTimes.size(),
+                    batch.size() - remainingTests.size(), batch.size(),
+                    TimeUtil.formatElapsedTime(elapsedTime));
+            List<TestIdentifier> completedTests = new ArrayList<TestIdentifier>(batch);
+            completedTests.removeAll(remainingTests);
+            mTests.removeAll(completedTests);
+        }
+        return remainingTests;
+    }
+
+    /**
+     * @return the time in ms taken by each batch run so far, including bisected batches
+     */
+    List<Long> getBatchTimes() {
+        return Collections.unmodifiableList(mBatchTimes);
+    }
+
+    /**
+     * @return the number of batches that were bisected
+     */
+    int getBisectCount() {
+        return mBisectCount;
+    }
+
+    /**
+     * Runs a batch of tests in a single instrumentation process. Exposed for unit testing.
+     *
+     * @param tests the tests to run. Tests that completed are removed from it.
+     */
+    void runBatch(Collection<TestIdentifier> tests, ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        try {
+            InstrumentationFileTest fileTest = new InstrumentationFileTest(mInstrumentationTest,
+                    tests);
+            fileTest.setRetryRemaining(false);
+            fileTest.run(listener);
+        } catch (ConfigurationException e) {
+            CLog.e("Failed to create InstrumentationFileTest", e);
+            runSerially(tests, listener);
+            tests.clear();
+        }
+    }
+
+    /**
+     * Runs tests one by one, reporting tests that fail to run as failed. Exposed for unit
+     * testing.
+     */
+    void runSerially(Collection<TestIdentifier> tests, ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        try {
+            new InstrumentationSerialTest(mInstrumentationTest, tests).run(listener);
+        } catch (ConfigurationException e) {
+            CLog.e("Failed to create InstrumentationSerialTest", e);
+        }
+    }
+}
@@ -54,6 +54,8 @@ class InstrumentationFileTest implements IRemoteTest {
 
     private String mFilePathOnDevice = null;
 
+    private boolean mRetryRemaining = true;
+
     /**
      * Creates a {@link InstrumentationFileTest}.
      *
@@ -70,12 +72,23 @@ class InstrumentationFileTest implements IRemoteTest {
         mInstrumentationTest.setDevice(instrumentationTest.getDevice());
         mInstrumentationTest.setForceAbi(instrumentationTest.getForceAbi());
         mInstrumentationTest.setReRunUsingTestFile(true);
+        mInstrumentationTest.setRerunBatchSize(0);
+        // durations are recorded by the original InstrumentationTest
+        mInstrumentationTest.setRecordTestDurations(false);
         // no need to rerun when executing tests one by one
         mInstrumentationTest.setRerunMode(false);
         // keep local copy of tests to be run
         mTests = testsToRun;
     }
 
+    /**
+     * Sets whether tests that did not run should be retried, from file then serially. If not,
+     * they are left in the {@link Collection} of tests given at creation.
+     */
+    void setRetryRemaining(boolean retryRemaining) {
+        mRetryRemaining = retryRemaining;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -141,10 +154,11 @@ class InstrumentationFileTest implements IRemoteTest {
             deleteTestFileFromDevice(mFilePathOnDevice);
             Collection<TestIdentifier> completedTests =
                     testTracker.getCurrentRunResults().getCompletedTests();
-            if (mTests.removeAll(completedTests) && !mTests.isEmpty()) {
+            boolean progressed = mTests.removeAll(completedTests);
+            if (mRetryRemaining && progressed && !mTests.isEmpty()) {
                 // re-run remaining tests from file
                 writeTestsToFileAndRun(mTests, listener);
-            } else if (!mTests.isEmpty()) {
+            } else if (mRetryRemaining && !mTests.isEmpty()) {
                 CLog.e("all remaining tests failed to run from file, re-running tests serially");
                 reRunTestsSerially(runner, listener);
             }
@@ -72,6 +72,9 @@ class InstrumentationSerialTest implements IRemoteTest {
         runner.setForceAbi(instrumentationTest.getForceAbi());
         // ensure testFile is not used.
         runner.setReRunUsingTestFile(false);
+        runner.setRerunBatchSize(0);
+        // durations are recorded by the original InstrumentationTest
+        runner.setRecordTestDurations(false);
         // no need to rerun when executing tests one by one
         runner.setRerunMode(false);
         return runner;
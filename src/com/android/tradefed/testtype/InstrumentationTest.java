@@ -32,20 +32,22 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.BugreportCollector;
 import com.android.tradefed.result.CollectingTestListener;
+import com.android.tradefed.result.FailureArtifactCollector;
 import com.android.tradefed.result.ITestInvocationListener;
-import com.android.tradefed.result.InputStreamSource;
-import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.ResultForwarder;
+import com.android.tradefed.result.TestDurationRecorder;
+import com.android.tradefed.result.TestDurationStore;
 import com.android.tradefed.result.TestRunResult;
 import com.android.tradefed.util.AbiFormatter;
-import com.android.tradefed.util.RunUtil;
 import com.android.tradefed.util.StringEscapeUtils;
 
 import junit.framework.Assert;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -53,7 +55,7 @@ import java.util.concurrent.TimeUnit;
  * A Test that runs an instrumentation test package on given device.
  */
 @OptionClass(alias = "instrumentation")
-public class InstrumentationTest implements IDeviceTest, IResumableTest {
+public class InstrumentationTest implements IDeviceTest, IResumableTest, ITestListShardable {
 
     private static final String LOG_TAG = "InstrumentationTest";
 
@@ -128,6 +130,11 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             "collector, so use the EACH setting with due caution.")
     private BugreportCollector.Freq mBugreportFrequency = null;
 
+    @Option(name = "bugreport-on-failure-interval", description = "The minimum time in ms " +
+            "between two bugreports collected with --bugreport-on-failure EACH. Failures within " +
+            "this interval share the previous bugreport.")
+    private long mBugreportIntervalMs = 5 * 60 * 1000;
+
     @Option(name = "screenshot-on-failure", description = "Take a screenshot on every test failure")
     private boolean mScreenshotOnFailure = false;
 
@@ -145,11 +152,22 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             "each remaining test")
     private boolean mReRunUsingTestFile = false;
 
+    @Option(name = "rerun-batch-size", description =
+            "Re-run remaining tests in batches of this size using test files, bisecting batches " +
+            "that fail to run, instead of executing separate adb commands for each remaining " +
+            "test. Requires a runner that supports test files. 0 to disable.")
+    private int mRerunBatchSize = 0;
+
     @Option(name = AbiFormatter.FORCE_ABI_STRING,
             description = AbiFormatter.FORCE_ABI_DESCRIPTION,
             importance = Importance.IF_UNSET)
     private String mForceAbi = null;
 
+    @Option(name = "record-test-durations", description =
+            "Record the duration of each test in the tmp directory, to balance shards of " +
+            "future runs.")
+    private boolean mRecordTestDurations = false;
+
     private ITestDevice mDevice = null;
 
     private IRemoteAndroidTestRunner mRunner;
@@ -169,6 +187,8 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
 
     private boolean mForceBatchMode = false;
 
+    private Collection<TestIdentifier> mExcludedTests = null;
+
     /**
      * {@inheritDoc}
      */
@@ -459,6 +479,87 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         mReRunUsingTestFile = reRunUsingTestFile;
     }
 
+    public void setRerunBatchSize(int rerunBatchSize) {
+        mRerunBatchSize = rerunBatchSize;
+    }
+
+    public void setRecordTestDurations(boolean recordTestDurations) {
+        mRecordTestDurations = recordTestDurations;
+    }
+
+    /**
+     * Set the tests that should not be run by this InstrumentationTest. The tests of the package
+     * are collected from the device, and all except the excluded ones are run using a test file.
+     *
+     * @param excludedTests the tests to skip
+     */
+    public void setExcludedTests(Collection<TestIdentifier> excludedTests) {
+        mExcludedTests = excludedTests;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDurationKey() {
+        StringBuilder key = new StringBuilder(String.valueOf(mPackageName));
+        if (mTestClassName != null) {
+            key.append('-').append(mTestClassName);
+            if (mTestMethodName != null) {
+                key.append('-').append(mTestMethodName);
+            }
+        } else if (mTestPackageName != null) {
+            key.append('-').append(mTestPackageName);
+        }
+        if (mTestSize != null) {
+            key.append('-').append(mTestSize);
+        }
+        return key.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<TestIdentifier> getTestList() {
+        if (mRemainingTests == null) {
+            // tests are only known once collected from device
+            return null;
+        }
+        return new ArrayList<TestIdentifier>(mRemainingTests);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public IRemoteTest createShard(Collection<TestIdentifier> tests,
+            Collection<TestIdentifier> excludedTests) {
+        InstrumentationTest shard = new InstrumentationTest();
+        try {
+            OptionCopier.copyOptions(this, shard);
+        } catch (ConfigurationException e) {
+            throw new RuntimeException(String.format("Failed to copy options of %s",
+                    mPackageName), e);
+        }
+        shard.setForceAbi(getForceAbi());
+        if (tests != null) {
+            // run the tests in one batch from a test file
+            shard.setTestsToRun(new ArrayList<TestIdentifier>(tests), false);
+            shard.setReRunUsingTestFile(true);
+        } else {
+            shard.setExcludedTests(new HashSet<TestIdentifier>(excludedTests));
+        }
+        return shard;
+    }
+
+    /**
+     * Gets the {@link TestDurationStore} to record test durations in. Exposed for unit testing.
+     */
+    TestDurationStore getDurationStore() {
+        return TestDurationStore.getDefault();
+    }
+
     /**
      * @return the {@link IRemoteAndroidTestRunner} to use.
      * @throws DeviceNotAvailableException
@@ -483,7 +584,7 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
      * {@inheritDoc}
      */
     @Override
-    public void run(final ITestInvocationListener listener) throws DeviceNotAvailableException {
+    public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
         if (mPackageName == null) {
             throw new IllegalArgumentException("package name has not been set");
         }
@@ -516,6 +617,14 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             mRunner.addInstrumentationArg(argEntry.getKey(), argEntry.getValue());
         }
 
+        if (mRecordTestDurations) {
+            // runs of a filtered or resumed test set only cover part of the key's tests
+            boolean coversAllTests = mExcludedTests == null && mTestFilePathOnDevice == null &&
+                    mRemainingTests == null;
+            listener = new TestDurationRecorder(listener, getDurationStore(), getDurationKey(),
+                    coversAllTests);
+        }
+
         if (mInstallFile != null) {
             Assert.assertNull(mDevice.installPackage(mInstallFile, true));
             doTestRun(listener);
@@ -542,35 +651,49 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         if (mRemainingTests == null) {
             mRemainingTests = collectTestsToRun(mRunner);
         }
-        if (mBugreportFrequency != null) {
-            // Collect a bugreport after EACH/FIRST failed testcase
-            BugreportCollector.Predicate pred = new BugreportCollector.Predicate(
-                    BugreportCollector.Relation.AFTER,
-                    mBugreportFrequency,
-                    BugreportCollector.Noun.FAILED_TESTCASE);
-            BugreportCollector collector  = new BugreportCollector(listener, mDevice);
-            collector.addPredicate(pred);
-            listener = collector;
-        }
-        if (mScreenshotOnFailure) {
-            FailedTestScreenshotGenerator screenListener = new FailedTestScreenshotGenerator(
-                    listener, getDevice());
-            listener = screenListener;
+        boolean runSubset = false;
+        if (mExcludedTests != null) {
+            if (mRemainingTests == null) {
+                CLog.w("Failed to collect tests of %s, running all tests including %d excluded",
+                        mPackageName, mExcludedTests.size());
+            } else {
+                mRemainingTests.removeAll(mExcludedTests);
+                runSubset = true;
+            }
         }
-        if (mLogcatOnFailure) {
-            FailedTestLogcatGenerator logcatListener = new FailedTestLogcatGenerator(
-                    listener, getDevice(), mMaxLogcatBytes);
-            listener = logcatListener;
+        FailureArtifactCollector artifactCollector = null;
+        if (mBugreportFrequency != null || mScreenshotOnFailure || mLogcatOnFailure) {
+            // capture failure artifacts in the background, so failures don't stall the run
+            artifactCollector = new FailureArtifactCollector(listener, mDevice);
+            if (mBugreportFrequency != null) {
+                artifactCollector.setBugreportOnFailure(
+                        mBugreportFrequency == BugreportCollector.Freq.FIRST ? Long.MAX_VALUE :
+                        mBugreportIntervalMs);
+            }
+            artifactCollector.setScreenshotOnFailure(mScreenshotOnFailure);
+            if (mLogcatOnFailure) {
+                artifactCollector.setLogcatOnFailure(mMaxLogcatBytes);
+            }
+            listener = artifactCollector;
         }
 
-        if (mRemainingTests == null) {
-            // failed to collect the tests or collection is off. Just try to run them all
-            mDevice.runInstrumentationTests(mRunner, listener);
-        } else if (mRemainingTests.size() != 0) {
-            runWithRerun(listener, mRemainingTests);
+        try {
+            if (mRemainingTests == null) {
+                // failed to collect the tests or collection is off. Just try to run them all
+                mDevice.runInstrumentationTests(mRunner, listener);
+            } else if (runSubset && mRemainingTests.size() != 0) {
+                // running all tests of the package would include the excluded ones
+                reRunTestsFromFile(listener);
+            } else if (!runSubset && mRemainingTests.size() != 0) {
+                runWithRerun(listener, mRemainingTests);
 
-        } else {
-            Log.i(LOG_TAG, String.format("No tests expected for %s, skipping", mPackageName));
+            } else {
+                Log.i(LOG_TAG, String.format("No tests expected for %s, skipping", mPackageName));
+            }
+        } finally {
+            if (artifactCollector != null) {
+                artifactCollector.close();
+            }
         }
     }
 
@@ -601,7 +724,9 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
     private void rerunTests(final ITestInvocationListener listener)
             throws DeviceNotAvailableException {
         if (mRemainingTests.size() > 0) {
-            if (mReRunUsingTestFile) {
+            if (mRerunBatchSize > 0) {
+                reRunTestsInBatches(listener);
+            } else if (mReRunUsingTestFile) {
                 reRunTestsFromFile(listener);
             } else {
                 reRunTestsSerially(listener);
@@ -629,6 +754,22 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         }
     }
 
+    /**
+     * re-runs tests in batches via {@link InstrumentationBatchTest}
+     */
+    private void reRunTestsInBatches(final ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        CLog.i("Running remaining tests in batches using test files");
+        InstrumentationBatchTest testReRunner = new InstrumentationBatchTest(this,
+                mRemainingTests, mRerunBatchSize);
+        CollectingTestListener testTracker = new CollectingTestListener();
+        try {
+            testReRunner.run(new ResultForwarder(listener, testTracker));
+        } finally {
+            calculateRemainingTests(mRemainingTests, testTracker);
+        }
+    }
+
     /**
      * re-runs tests one by one via {@link InstrumentationSerialTest}
      */
@@ -745,60 +886,4 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
                 mPackageName, mDevice.getSerialNumber());
         return null;
     }
-
-    /**
-     * A {@link ResultForwarder} that will forward a screenshot on test failures.
-     */
-    private static class FailedTestScreenshotGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
-
-        public FailedTestScreenshotGenerator(ITestInvocationListener listener,
-                ITestDevice device) {
-            super(listener);
-            mDevice = device;
-        }
-
-        @Override
-        public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-            super.testFailed(status, test, trace);
-
-            try {
-                InputStreamSource screenSource = mDevice.getScreenshot();
-                super.testLog(String.format("screenshot-%s_%s", test.getClassName(),
-                        test.getTestName()), LogDataType.PNG, screenSource);
-                screenSource.cancel();
-            } catch (DeviceNotAvailableException e) {
-                // TODO: rethrow this somehow
-                CLog.e("Device %s became unavailable while capturing screenshot, %s",
-                        mDevice.getSerialNumber(), e.toString());
-            }
-        }
-    }
-
-    /**
-     * A {@link ResultForwarder} that will forward a logcat snapshot on each failed test.
-     */
-    private static class FailedTestLogcatGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
-        private int mNumLogcatBytes;
-
-        public FailedTestLogcatGenerator(ITestInvocationListener listener, ITestDevice device,
-                int maxLogcatBytes) {
-            super(listener);
-            mDevice = device;
-            mNumLogcatBytes = maxLogcatBytes;
-        }
-
-        @Override
-        public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-            super.testFailed(status, test, trace);
-            // sleep a small amount of time to ensure test failure stack trace makes it into logcat
-            // capture
-            RunUtil.getDefault().sleep(10);
-            InputStreamSource logSource = mDevice.getLogcat(mNumLogcatBytes);
-            super.testLog(String.format("logcat-%s_%s", test.getClassName(), test.getTestName()),
-                    LogDataType.TEXT, logSource);
-            logSource.cancel();
-        }
-    }
 }
@@ -17,12 +17,10 @@ package com.android.tradefed.testtype;
 
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
-import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.Log.LogLevel;
 
 import java.text.DecimalFormat;
 import java.text.ParseException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
 * A {@link IShellOutputReceiver} that parses the benchmark test data output, collecting metrics on
@@ -34,15 +32,14 @@ import java.util.regex.Pattern;
 * Time per iteration min: X avg: Y max: Z
 * </code>
 */
-public class NativeBenchmarkTestParser extends MultiLineReceiver {
+public class NativeBenchmarkTestParser extends NativeTestOutputReceiver {
 
     private final static String LOG_TAG = "NativeBenchmarkTestParser";
 
-    // just parse any string
-    private final static String FLOAT_STRING = "\\s*(.*)\\s*";
-    private final static String COMPLETE_STRING = String.format(
-            "Time per iteration min:%savg:%smax:%s", FLOAT_STRING, FLOAT_STRING, FLOAT_STRING);
-    private final static Pattern COMPLETE_PATTERN = Pattern.compile(COMPLETE_STRING);
+    // values are any string between the markers
+    private final static byte[] COMPLETE_MARKER = toBytes("Time per iteration min:");
+    private final static byte[] AVG_MARKER = toBytes("avg:");
+    private final static byte[] MAX_MARKER = toBytes("max:");
 
     private final String mTestRunName;
     private boolean mIsCanceled = false;
@@ -63,21 +60,28 @@ public class NativeBenchmarkTestParser extends MultiLineReceiver {
      * {@inheritDoc}
      */
     @Override
-    public void processNewLines(String[] lines) {
-        for (String line : lines) {
-            parseLine(line);
+    protected void processLine(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        if (isLoggable(LogLevel.DEBUG)) {
+            Log.d(LOG_TAG, decode(buffer, offset, end));
         }
-    }
-
-    private void parseLine(String line) {
-        Log.d(LOG_TAG, line);
-        Matcher matcher = COMPLETE_PATTERN.matcher(line);
-        if (matcher.find()) {
-            Log.i(LOG_TAG, String.format("Found result for benchmark %s: %s", getRunName(), line));
-            mMinOpTime = parseDoubleValue(line, matcher.group(1));
-            mAvgOpTime = parseDoubleValue(line, matcher.group(2));
-            mMaxOpTime = parseDoubleValue(line, matcher.group(3));
+        int minStart = indexOf(buffer, offset, end, COMPLETE_MARKER);
+        if (minStart < 0) {
+            return;
+        }
+        minStart += COMPLETE_MARKER.length;
+        int maxMarker = lastIndexOf(buffer, minStart, end, MAX_MARKER);
+        int avgMarker = maxMarker < 0 ? -1 : lastIndexOf(buffer, minStart, maxMarker, AVG_MARKER);
+        if (avgMarker < 0) {
+            return;
         }
+        String line = decode(buffer, offset, end);
+        Log.i(LOG_TAG, String.format("Found result for benchmark %s: %s", getRunName(), line));
+        mMinOpTime = parseDoubleValue(line, decode(buffer, minStart, avgMarker).trim());
+        mAvgOpTime = parseDoubleValue(line,
+                decode(buffer, avgMarker + AVG_MARKER.length, maxMarker).trim());
+        mMaxOpTime = parseDoubleValue(line,
+                decode(buffer, maxMarker + MAX_MARKER.length, end).trim());
     }
 
     private double parseDoubleValue(String line, String valueString) {
@@ -17,10 +17,6 @@ package com.android.tradefed.testtype;
 
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
-import com.android.ddmlib.MultiLineReceiver;
-
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
 * A {@link IShellOutputReceiver} that parses the stress test data output, collecting metrics on
@@ -37,12 +33,14 @@ import java.util.regex.Pattern;
 * <br/>
 * where 'X' refers to the iteration number
 */
-public class NativeStressTestParser extends MultiLineReceiver {
+public class NativeStressTestParser extends NativeTestOutputReceiver {
 
     private final static String LOG_TAG = "NativeStressTestParser";
 
-    private final static Pattern ITERATION_COMPLETE_PATTERN = Pattern.compile(
-            "^====\\s*Completed\\s*pass:\\s*(\\d+)");
+    // matches "^====\\s*Completed\\s*pass:\\s*(\\d+)"
+    private final static byte[] ITERATION_MARKER = toBytes("====");
+    private final static byte[] COMPLETED_MARKER = toBytes("Completed");
+    private final static byte[] PASS_MARKER = toBytes("pass:");
 
     private final String mTestRunName;
     private boolean mIsCanceled = false;
@@ -61,27 +59,35 @@ public class NativeStressTestParser extends MultiLineReceiver {
      * {@inheritDoc}
      */
     @Override
-    public void processNewLines(String[] lines) {
-        for (String line : lines) {
-            parseLine(line);
+    protected void processLine(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        if (!startsWith(buffer, offset, end, ITERATION_MARKER)) {
+            return;
         }
-    }
-
-    private void parseLine(String line) {
-        Matcher matcher = ITERATION_COMPLETE_PATTERN.matcher(line);
-        if (matcher.find()) {
-            parseIterationValue(line, matcher.group(1));
+        int pos = skipWhitespace(buffer, offset + ITERATION_MARKER.length, end);
+        if (!startsWith(buffer, pos, end, COMPLETED_MARKER)) {
+            return;
+        }
+        pos = skipWhitespace(buffer, pos + COMPLETED_MARKER.length, end);
+        if (!startsWith(buffer, pos, end, PASS_MARKER)) {
+            return;
+        }
+        pos = skipWhitespace(buffer, pos + PASS_MARKER.length, end);
+        int iterationEnd = skipDigits(buffer, pos, end);
+        if (iterationEnd > pos) {
+            parseIterationValue(buffer, offset, end, pos, iterationEnd);
         }
     }
 
-    private void parseIterationValue(String line, String iterationString) {
-        try {
-            int currentIteration = Integer.parseInt(iterationString);
+    private void parseIterationValue(byte[] buffer, int lineStart, int lineEnd,
+            int iterationStart, int iterationEnd) {
+        long currentIteration = parseLong(buffer, iterationStart, iterationEnd);
+        if (currentIteration >= 0 && currentIteration <= Integer.MAX_VALUE) {
             Log.i(LOG_TAG, String.format("%s: pass %d", mTestRunName, currentIteration));
             mTotalIterations++;
-        } catch (NumberFormatException e) {
-            // this should never happen, since regular expression matches on digits
-            Log.e(LOG_TAG, String.format("Unexpected iteration content %s", line));
+        } else {
+            Log.e(LOG_TAG, String.format("Unexpected iteration content %s",
+                    decode(buffer, lineStart, lineEnd)));
         }
     }
 
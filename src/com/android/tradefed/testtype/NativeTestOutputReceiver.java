@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.DdmPreferences;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.Log.LogLevel;
+
+import java.nio.charset.Charset;
+
+/**
+ * Base class for {@link IShellOutputReceiver}s that parse the output of native tests line by
+ * line, directly from the raw output bytes.
+ * <p/>
+ * Unlike {@link com.android.ddmlib.MultiLineReceiver}, lines are not decoded into
+ * {@link String}s. Each line is handed to {@link #processLine(byte[], int, int)} as a range of a
+ * byte buffer, which is only valid for the duration of the call. Lines entirely contained in an
+ * output chunk are passed without copying; only lines split across chunks are copied into a
+ * reused buffer. Subclasses match lines against markers precomputed with {@link #toBytes(String)},
+ * and decode only the parts they report.
+ * <p/>
+ * As with {@link com.android.ddmlib.MultiLineReceiver}, lines received through
+ * {@link #addOutput(byte[], int, int)} are trimmed of leading and trailing whitespace, including
+ * the '\r' of "\r\n" line terminators.
+ */
+public abstract class NativeTestOutputReceiver implements IShellOutputReceiver {
+
+    /** the charset native test output is decoded with */
+    protected static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_LINE_BUFFER_SIZE = 256;
+
+    /** the partial line carried over from the previous output chunk */
+    private byte[] mLineBuffer = new byte[INITIAL_LINE_BUFFER_SIZE];
+    private int mLineLength = 0;
+
+    /**
+     * Processes a line of output.
+     *
+     * @param buffer the buffer containing the line. Must not be kept after the call returns.
+     * @param offset the offset of the line in buffer
+     * @param length the length of the line, excluding line terminators and surrounding
+     *          whitespace
+     */
+    protected abstract void processLine(byte[] buffer, int offset, int length);
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (mLineLength > 0) {
+                // complete the line carried over from the previous chunk
+                appendToLineBuffer(data, lineStart, i - lineStart);
+                dispatchLine(mLineBuffer, 0, mLineLength);
+                mLineLength = 0;
+            } else {
+                dispatchLine(data, lineStart, i - lineStart);
+            }
+            lineStart = i + 1;
+        }
+        if (lineStart < end) {
+            appendToLineBuffer(data, lineStart, end - lineStart);
+        }
+    }
+
+    /**
+     * Processes lines that have already been decoded, eg read from a file. Slower than
+     * {@link #addOutput(byte[], int, int)}.
+     *
+     * @param lines the lines to process, without line terminators
+     */
+    public void processNewLines(String[] lines) {
+        for (String line : lines) {
+            byte[] bytes = line.getBytes(UTF_8);
+            processLine(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Processes the unfinished last line, if any, then calls {@link #done()}.
+     * <p/>
+     * As with {@link com.android.ddmlib.MultiLineReceiver#flush()}, this is called when the
+     * output ends, including when the command fails or is interrupted.
+     */
+    @Override
+    public void flush() {
+        if (mLineLength > 0) {
+            int from = skipWhitespace(mLineBuffer, 0, mLineLength);
+            String line = decode(mLineBuffer, from, trimEnd(mLineBuffer, from, mLineLength));
+            mLineLength = 0;
+            processNewLines(new String[] {line});
+        }
+        done();
+    }
+
+    /**
+     * Terminates the processing of the output, once the last lines have been processed.
+     * Processes the last line if it was not terminated and {@link #flush()} was not called.
+     * Subclasses overriding this must call it.
+     */
+    public void done() {
+        if (mLineLength > 0) {
+            dispatchLine(mLineBuffer, 0, mLineLength);
+            mLineLength = 0;
+        }
+    }
+
+    private void dispatchLine(byte[] buffer, int offset, int length) {
+        int from = skipWhitespace(buffer, offset, offset + length);
+        processLine(buffer, from, trimEnd(buffer, from, offset + length) - from);
+    }
+
+    private void appendToLineBuffer(byte[] data, int offset, int length) {
+        if (mLineLength + length > mLineBuffer.length) {
+            byte[] newBuffer = new byte[Math.max(mLineBuffer.length * 2, mLineLength + length)];
+            System.arraycopy(mLineBuffer, 0, newBuffer, 0, mLineLength);
+            mLineBuffer = newBuffer;
+        }
+        System.arraycopy(data, offset, mLineBuffer, mLineLength, length);
+        mLineLength += length;
+    }
+
+    /**
+     * @return <code>true</code> if messages of given level are currently logged. Useful to avoid
+     *         decoding lines only to log them.
+     */
+    protected static boolean isLoggable(LogLevel level) {
+        return level.getPriority() >= DdmPreferences.getLogLevel().getPriority();
+    }
+
+    /**
+     * Converts a marker to match against output to bytes.
+     */
+    protected static byte[] toBytes(String marker) {
+        return marker.getBytes(UTF_8);
+    }
+
+    /**
+     * Decodes a range of bytes.
+     */
+    protected static String decode(byte[] buffer, int from, int to) {
+        return new String(buffer, from, to - from, UTF_8);
+    }
+
+    /**
+     * @return <code>true</code> if the range [from, to) of buffer starts with prefix
+     */
+    protected static boolean startsWith(byte[] buffer, int from, int to, byte[] prefix) {
+        return regionMatches(buffer, from, to, prefix);
+    }
+
+    /**
+     * @return <code>true</code> if the range [from, to) of buffer ends with suffix
+     */
+    protected static boolean endsWith(byte[] buffer, int from, int to, byte[] suffix) {
+        return to - suffix.length >= from && regionMatches(buffer, to - suffix.length, to, suffix);
+    }
+
+    private static boolean regionMatches(byte[] buffer, int from, int to, byte[] target) {
+        if (to - from < target.length) {
+            return false;
+        }
+        for (int i = 0; i < target.length; i++) {
+            if (buffer[from + i] != target[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the first occurrence of target in the range [from, to) of buffer, or
+     *         -1
+     */
+    protected static int indexOf(byte[] buffer, int from, int to, byte[] target) {
+        for (int i = from; i <= to - target.length; i++) {
+            if (regionMatches(buffer, i, to, target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the first occurrence of b in the range [from, to) of buffer, or -1
+     */
+    protected static int indexOf(byte[] buffer, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the last occurrence of target in the range [from, to) of buffer, or
+     *         -1
+     */
+    protected static int lastIndexOf(byte[] buffer, int from, int to, byte[] target) {
+        for (int i = to - target.length; i >= from; i--) {
+            if (regionMatches(buffer, i, to, target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the first non whitespace byte at or after from, or to
+     */
+    protected static int skipWhitespace(byte[] buffer, int from, int to) {
+        while (from < to && buffer[from] >= 0 && buffer[from] <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * @return the index after the last non whitespace byte before to, or from
+     */
+    protected static int trimEnd(byte[] buffer, int from, int to) {
+        while (to > from && buffer[to - 1] >= 0 && buffer[to - 1] <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    /**
+     * @return the index of the first non digit byte at or after from, or to
+     */
+    protected static int skipDigits(byte[] buffer, int from, int to) {
+        while (from < to && buffer[from] >= '0' && buffer[from] <= '9') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Parses the decimal number in the range [from, to) of buffer.
+     *
+     * @return the number, or -1 if the range is empty, contains a non digit byte or overflows
+     */
+    protected static long parseLong(byte[] buffer, int from, int to) {
+        if (from >= to) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buffer[i];
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+            if (value < 0) {
+                return -1;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return <code>true</code> if the range [from, to) of buffer equals the ASCII string s
+     */
+    protected static boolean equalsAscii(String s, byte[] buffer, int from, int to) {
+        if (s == null || s.length() != to - from) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != buffer[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
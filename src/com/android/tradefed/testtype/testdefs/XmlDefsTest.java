@@ -22,6 +22,8 @@ import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.TestDurationStore;
+import com.android.tradefed.testtype.DurationSharder;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.testtype.IResumableTest;
@@ -40,7 +42,6 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 
 /**
  * Runs a set of instrumentation test's defined in test_defs.xml files.
@@ -98,6 +99,11 @@ public class XmlDefsTest implements IDeviceTest, IResumableTest,
             description = "Shard this test into given number of separately runnable chunks.")
     private int mNumShards = 0;
 
+    @Option(name = "record-test-durations", description =
+            "Record the duration of each test in the tmp directory, to balance shards of " +
+            "future runs.")
+    private boolean mRecordTestDurations = false;
+
     private List<InstrumentationTest> mTests = null;
 
     public XmlDefsTest() {
@@ -217,6 +223,7 @@ public class XmlDefsTest implements IDeviceTest, IResumableTest,
                     test.setTestSize(getTestSize());
                     test.setTestTimeout(getTestTimeout());
                     test.setCoverageTarget(def.getCoverageTarget());
+                    test.setRecordTestDurations(mRecordTestDurations);
                     mTests.add(test);
                 }
             }
@@ -364,20 +371,33 @@ public class XmlDefsTest implements IDeviceTest, IResumableTest,
             return null;
         }
 
-        // treat shardQueue as a circular queue, to sequentially distribute tests among shards
-        Queue<IRemoteTest> shardQueue = new LinkedList<IRemoteTest>();
-        // don't create more shards than the number of tests we have!
-        for (int i = 0; i < mNumShards && i < mTests.size(); i++) {
-            XmlDefsTest shard = new XmlDefsTest();
-            shard.mTests = new LinkedList<InstrumentationTest>();
-            shardQueue.add(shard);
+        // balance shards by the recorded durations of each test package
+        TestDurationStore store = getDurationStore();
+        Map<InstrumentationTest, Long> durations = new HashMap<InstrumentationTest, Long>();
+        for (InstrumentationTest test : mTests) {
+            long duration = 0;
+            for (Long testDuration : store.getDurations(test.getDurationKey()).values()) {
+                duration += testDuration;
+            }
+            if (duration > 0) {
+                durations.put(test, duration);
+            }
         }
-        while (!mTests.isEmpty()) {
-            InstrumentationTest test = mTests.remove(0);
-            XmlDefsTest shard = (XmlDefsTest)shardQueue.poll();
-            shard.mTests.add(test);
-            shardQueue.add(shard);
+        Collection<IRemoteTest> shards = new ArrayList<IRemoteTest>(mNumShards);
+        for (List<InstrumentationTest> tests : DurationSharder.partition(mTests, durations,
+                mNumShards)) {
+            XmlDefsTest shard = new XmlDefsTest();
+            shard.mTests = new LinkedList<InstrumentationTest>(tests);
+            shards.add(shard);
         }
-        return shardQueue;
+        mTests.clear();
+        return shards;
+    }
+
+    /**
+     * Gets the {@link TestDurationStore} to balance shards with. Exposed for unit testing.
+     */
+    TestDurationStore getDurationStore() {
+        return TestDurationStore.getDefault();
     }
 }
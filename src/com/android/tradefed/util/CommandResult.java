@@ -15,6 +15,10 @@
  */
 package com.android.tradefed.util;
 
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Contains the result of a command.
@@ -24,6 +28,8 @@ public class CommandResult {
     private CommandStatus mCmdStatus = CommandStatus.TIMED_OUT;
     private String mStdout = null;
     private String mStderr = null;
+    private File mStdoutFile = null;
+    private File mStderrFile = null;
 
     /**
      * Create a {@link CommandResult} with the default {@link CommandStatus#TIMED_OUT} status.
@@ -55,10 +61,16 @@ public class CommandResult {
 
     /**
      * Get the standard output produced by command.
+     * <p/>
+     * If the output was spilled to a file, it is read back into memory. Callers that expect large
+     * output should use {@link #getStdoutFile()} instead.
      *
      * @return the standard output or <code>null</code> if output could not be retrieved
      */
     public String getStdout() {
+        if (mStdout == null && mStdoutFile != null) {
+            return readSpilledOutput(mStdoutFile);
+        }
         return mStdout;
     }
 
@@ -72,10 +84,54 @@ public class CommandResult {
      * @return the standard error or <code>null</code> if output could not be retrieved
      */
     public String getStderr() {
+        if (mStderr == null && mStderrFile != null) {
+            return readSpilledOutput(mStderrFile);
+        }
         return mStderr;
     }
 
     public void setStderr(String stderr) {
         mStderr = stderr;
     }
-}
\ No newline at end of file
+
+    /**
+     * Get the file containing the standard output produced by command, if it was too large to be
+     * kept in memory.
+     * <p/>
+     * Callers are responsible for deleting the file.
+     *
+     * @return the {@link File} or <code>null</code> if output was not spilled to a file
+     */
+    public File getStdoutFile() {
+        return mStdoutFile;
+    }
+
+    public void setStdoutFile(File stdoutFile) {
+        mStdoutFile = stdoutFile;
+    }
+
+    /**
+     * Get the file containing the standard error output produced by command, if it was too large
+     * to be kept in memory.
+     * <p/>
+     * Callers are responsible for deleting the file.
+     *
+     * @return the {@link File} or <code>null</code> if output was not spilled to a file
+     */
+    public File getStderrFile() {
+        return mStderrFile;
+    }
+
+    public void setStderrFile(File stderrFile) {
+        mStderrFile = stderrFile;
+    }
+
+    private String readSpilledOutput(File outputFile) {
+        try {
+            return FileUtil.readStringFromFile(outputFile);
+        } catch (IOException e) {
+            CLog.e("Failed to read command output from %s", outputFile.getAbsolutePath());
+            return null;
+        }
+    }
+}
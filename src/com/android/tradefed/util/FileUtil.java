@@ -31,11 +31,19 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.ZipFile;
 
 /**
@@ -54,6 +62,26 @@ public class FileUtil {
         + " 0 to disable checking.")
     private static long mMinDiskSpaceMb = 100;
 
+    /** the number of files processed by each task in a parallel tree copy */
+    private static final int FILE_BATCH_SIZE = 64;
+
+    private static final Pattern OCTAL_MODE_PATTERN = Pattern.compile("([0-7])?([0-7]{3})");
+
+    private static final Pattern SYMBOLIC_MODE_PATTERN =
+            Pattern.compile("([ugoa]+)([+=-])([rwx]*)");
+
+    /** permissions indexed by user class (user, group, other) and then by read, write, execute */
+    private static final PosixFilePermission[][] PERMISSION_TABLE = {
+        {PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+                PosixFilePermission.OWNER_EXECUTE},
+        {PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE,
+                PosixFilePermission.GROUP_EXECUTE},
+        {PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_WRITE,
+                PosixFilePermission.OTHERS_EXECUTE}
+    };
+
+    private static ForkJoinPool sFileTreePool = null;
+
     private static final char[] SIZE_SPECIFIERS = {
             ' ', 'K', 'M', 'G', 'T'
     };
@@ -134,14 +162,99 @@ public class FileUtil {
         return success;
     }
 
+    /**
+     * Change the permissions of given file.
+     * <p/>
+     * Octal modes, and symbolic modes with an explicit user class (ie "ug+rw,o-w") are applied
+     * in-process via {@link PosixFileAttributeView}. Other modes, or platforms without POSIX file
+     * attributes, fall back to running the 'chmod' system command.
+     *
+     * @param file the {@link File} to change
+     * @param perms the mode, in the format accepted by 'chmod'
+     * @return <code>true</code> if permissions were changed successfully, <code>false</code>
+     *         otherwise
+     */
     public static boolean chmod(File file, String perms) {
         Log.d(LOG_TAG, String.format("Attempting to chmod %s to %s",
                 file.getAbsolutePath(), perms));
+        PosixFileAttributeView view = Files.getFileAttributeView(file.toPath(),
+                PosixFileAttributeView.class);
+        if (view != null) {
+            try {
+                Set<PosixFilePermission> newPerms = applyPermissionMode(
+                        view.readAttributes().permissions(), perms);
+                if (newPerms != null) {
+                    view.setPermissions(newPerms);
+                    return true;
+                }
+            } catch (IOException e) {
+                Log.d(LOG_TAG, String.format("Failed to chmod %s: %s", file.getAbsolutePath(),
+                        e.toString()));
+                return false;
+            }
+        }
         CommandResult result = RunUtil.getDefault().runTimedCmd(10 * 1000, "chmod", perms,
                 file.getAbsolutePath());
         return result.getStatus().equals(CommandStatus.SUCCESS);
     }
 
+    /**
+     * Apply a 'chmod' style mode to a set of permissions.
+     * <p/>
+     * Exposed for unit testing
+     *
+     * @param perms the current permissions
+     * @param mode the octal or symbolic mode to apply
+     * @return the resulting permissions, or <code>null</code> if mode is not supported
+     */
+    static Set<PosixFilePermission> applyPermissionMode(Set<PosixFilePermission> perms,
+            String mode) {
+        Set<PosixFilePermission> newPerms = EnumSet.noneOf(PosixFilePermission.class);
+        Matcher octalMatcher = OCTAL_MODE_PATTERN.matcher(mode);
+        if (octalMatcher.matches()) {
+            if (octalMatcher.group(1) != null && Integer.parseInt(octalMatcher.group(1)) != 0) {
+                // setuid, setgid and sticky bits are not supported
+                return null;
+            }
+            String digits = octalMatcher.group(2);
+            for (int classIndex = 0; classIndex < 3; classIndex++) {
+                int digit = digits.charAt(classIndex) - '0';
+                for (int permIndex = 0; permIndex < 3; permIndex++) {
+                    if ((digit & (4 >> permIndex)) != 0) {
+                        newPerms.add(PERMISSION_TABLE[classIndex][permIndex]);
+                    }
+                }
+            }
+            return newPerms;
+        }
+        newPerms.addAll(perms);
+        for (String clause : mode.split(",")) {
+            Matcher symbolicMatcher = SYMBOLIC_MODE_PATTERN.matcher(clause);
+            if (!symbolicMatcher.matches()) {
+                // an empty user class depends on umask, so leave that to 'chmod' too
+                return null;
+            }
+            String classes = symbolicMatcher.group(1).replace("a", "ugo");
+            char op = symbolicMatcher.group(2).charAt(0);
+            String permChars = symbolicMatcher.group(3);
+            for (int classIndex = 0; classIndex < 3; classIndex++) {
+                if (classes.indexOf("ugo".charAt(classIndex)) < 0) {
+                    continue;
+                }
+                for (int permIndex = 0; permIndex < 3; permIndex++) {
+                    PosixFilePermission perm = PERMISSION_TABLE[classIndex][permIndex];
+                    boolean specified = permChars.indexOf("rwx".charAt(permIndex)) >= 0;
+                    if (specified && op != '-') {
+                        newPerms.add(perm);
+                    } else if (specified || op == '=') {
+                        newPerms.remove(perm);
+                    }
+                }
+            }
+        }
+        return newPerms;
+    }
+
     /**
      * Performs a best effort attempt to make given file group readable and writable.
      * <p/>
@@ -300,39 +413,45 @@ public class FileUtil {
             throw new IOException(String.format("Cannot hardlink %s. File does not exist",
                     origFile.getAbsolutePath()));
         }
-        // `ln src dest` will create a hardlink (note: not `ln -s src dest`, which creates symlink)
-        // note that this will fail across filesystem boundaries
-        // FIXME: should probably just fall back to normal copy if this fails
-        CommandResult result = RunUtil.getDefault().runTimedCmd(10 * 1000, "ln",
-                origFile.getAbsolutePath(), destFile.getAbsolutePath());
-        if (!result.getStatus().equals(CommandStatus.SUCCESS)) {
+        try {
+            Files.createLink(destFile.toPath(), origFile.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            // note that this will fail across filesystem boundaries
             throw new IOException(String.format(
                     "Failed to hardlink %s to %s.  Across filesystem boundary?",
-                    origFile.getAbsolutePath(), destFile.getAbsolutePath()));
+                    origFile.getAbsolutePath(), destFile.getAbsolutePath()), e);
         }
     }
 
     /**
      * Recursively hardlink folder contents.
      * <p/>
-     * Only supports copying of files and directories - symlinks are not copied.
+     * Only supports copying of files and directories - symlinks are not copied. Directories are
+     * processed in parallel. If <var>destDir</var> is on a different filesystem than
+     * <var>sourceDir</var>, or a file cannot be hardlinked, its contents are copied instead.
      *
      * @param sourceDir the folder that contains the files to copy
      * @param destDir the destination folder
      * @throws IOException
      */
     public static void recursiveHardlink(File sourceDir, File destDir) throws IOException {
-        for (File childFile : sourceDir.listFiles()) {
-            File destChild = new File(destDir, childFile.getName());
-            if (childFile.isDirectory()) {
-                if (!destChild.mkdir()) {
-                    throw new IOException(String.format("Could not create directory %s",
-                            destChild.getAbsolutePath()));
-                }
-                recursiveHardlink(childFile, destChild);
-            } else if (childFile.isFile()) {
-                hardlinkFile(childFile, destChild);
-            }
+        boolean hardlink = isSameFileStore(sourceDir, destDir);
+        if (!hardlink) {
+            CLog.d("%s and %s are on different filesystems, copying instead of hardlinking",
+                    sourceDir.getAbsolutePath(), destDir.getAbsolutePath());
+        }
+        invokeTreeAction(new TreeCopyAction(sourceDir, destDir, hardlink));
+    }
+
+    /**
+     * Determine if both files are stored on the same filesystem.
+     */
+    private static boolean isSameFileStore(File file1, File file2) {
+        try {
+            return Files.getFileStore(file1.toPath()).equals(Files.getFileStore(file2.toPath()));
+        } catch (IOException e) {
+            // let per-file hardlink attempts decide
+            return true;
         }
     }
 
@@ -350,29 +469,144 @@ public class FileUtil {
     /**
      * Recursively copy folder contents.
      * <p/>
-     * Only supports copying of files and directories - symlinks are not copied.
+     * Only supports copying of files and directories - symlinks are not copied. Directories are
+     * processed in parallel.
      *
      * @param sourceDir the folder that contains the files to copy
      * @param destDir the destination folder
      * @throws IOException
      */
     public static void recursiveCopy(File sourceDir, File destDir) throws IOException {
-        File[] childFiles = sourceDir.listFiles();
-        if (childFiles == null) {
-            throw new IOException(String.format(
-                    "Failed to recursively copy. Could not determine contents for directory '%s'",
-                    sourceDir.getAbsolutePath()));
-        }
-        for (File childFile : childFiles) {
-            File destChild = new File(destDir, childFile.getName());
-            if (childFile.isDirectory()) {
-                if (!destChild.mkdir()) {
-                    throw new IOException(String.format("Could not create directory %s",
-                            destChild.getAbsolutePath()));
+        invokeTreeAction(new TreeCopyAction(sourceDir, destDir, false));
+    }
+
+    /**
+     * Gets the {@link ForkJoinPool} used to process file trees.
+     */
+    private static synchronized ForkJoinPool getFileTreePool() {
+        if (sFileTreePool == null) {
+            // file operations are mostly IO bound, so use more threads than cores
+            sFileTreePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors() * 2);
+        }
+        return sFileTreePool;
+    }
+
+    /**
+     * Run given {@link TreeCopyAction} to completion, rethrowing any {@link IOException}.
+     */
+    private static void invokeTreeAction(TreeCopyAction action) throws IOException {
+        try {
+            getFileTreePool().invoke(action);
+        } catch (FileTreeException e) {
+            // exception may be wrapped again when rethrown across threads
+            Throwable cause = e;
+            while (cause != null && !(cause instanceof IOException)) {
+                cause = cause.getCause();
+            }
+            if (cause == null) {
+                throw e;
+            }
+            throw (IOException)cause;
+        }
+    }
+
+    /**
+     * Unchecked wrapper for {@link IOException}s thrown during a {@link TreeCopyAction}.
+     */
+    @SuppressWarnings("serial")
+    private static class FileTreeException extends RuntimeException {
+        FileTreeException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * A {@link RecursiveAction} that copies or hardlinks the contents of one directory, forking
+     * a sub task for each child directory and each batch of child files.
+     */
+    @SuppressWarnings("serial")
+    private static class TreeCopyAction extends RecursiveAction {
+        private final File mSourceDir;
+        private final File mDestDir;
+        private final boolean mHardlink;
+
+        TreeCopyAction(File sourceDir, File destDir, boolean hardlink) {
+            mSourceDir = sourceDir;
+            mDestDir = destDir;
+            mHardlink = hardlink;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void compute() {
+            File[] childFiles = mSourceDir.listFiles();
+            if (childFiles == null) {
+                throw new FileTreeException(new IOException(String.format(
+                        "Failed to recursively copy. Could not determine contents for directory"
+                        + " '%s'", mSourceDir.getAbsolutePath())));
+            }
+            List<RecursiveAction> subTasks = new ArrayList<RecursiveAction>();
+            List<File> batch = new ArrayList<File>(FILE_BATCH_SIZE);
+            for (File childFile : childFiles) {
+                if (childFile.isDirectory()) {
+                    File destChild = new File(mDestDir, childFile.getName());
+                    if (!destChild.mkdir()) {
+                        throw new FileTreeException(new IOException(String.format(
+                                "Could not create directory %s", destChild.getAbsolutePath())));
+                    }
+                    subTasks.add(new TreeCopyAction(childFile, destChild, mHardlink));
+                } else if (childFile.isFile()) {
+                    batch.add(childFile);
+                    if (batch.size() == FILE_BATCH_SIZE) {
+                        subTasks.add(new FileBatchAction(batch, mDestDir, mHardlink));
+                        batch = new ArrayList<File>(FILE_BATCH_SIZE);
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                subTasks.add(new FileBatchAction(batch, mDestDir, mHardlink));
+            }
+            invokeAll(subTasks);
+        }
+    }
+
+    /**
+     * A {@link RecursiveAction} that copies or hardlinks a batch of files into a directory.
+     */
+    @SuppressWarnings("serial")
+    private static class FileBatchAction extends RecursiveAction {
+        private final List<File> mFiles;
+        private final File mDestDir;
+        private final boolean mHardlink;
+
+        FileBatchAction(List<File> files, File destDir, boolean hardlink) {
+            mFiles = files;
+            mDestDir = destDir;
+            mHardlink = hardlink;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void compute() {
+            try {
+                for (File file : mFiles) {
+                    File destFile = new File(mDestDir, file.getName());
+                    if (mHardlink) {
+                        try {
+                            hardlinkFile(file, destFile);
+                            continue;
+                        } catch (IOException e) {
+                            // fall through to copy
+                        }
+                    }
+                    copyFile(file, destFile);
                 }
-                recursiveCopy(childFile, destChild);
-            } else if (childFile.isFile()) {
-                copyFile(childFile, destChild);
+            } catch (IOException e) {
+                throw new FileTreeException(e);
             }
         }
     }
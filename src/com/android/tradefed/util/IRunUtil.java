@@ -16,6 +16,8 @@
 
 package com.android.tradefed.util;
 
+import com.android.ddmlib.IShellOutputReceiver;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
@@ -74,6 +76,41 @@ public interface IRunUtil {
      */
     public CommandResult runTimedCmd(final long timeout, final String... command);
 
+    /**
+     * Sets the max number of bytes of a command's stdout and stderr, each, to buffer in memory.
+     * <p/>
+     * Output beyond this amount is spilled to a temporary file, available via
+     * {@link CommandResult#getStdoutFile()} and {@link CommandResult#getStderrFile()}. Default is
+     * to keep all output in memory.
+     *
+     * @param numBytes the threshold in bytes, or 0 to disable spilling
+     */
+    public void setOutputSpillThreshold(long numBytes);
+
+    /**
+     * Sets the max number of bytes of a command's stdout and stderr, each, to capture.
+     * <p/>
+     * Output beyond this amount is discarded. Default is to capture all output.
+     *
+     * @param numBytes the limit in bytes, or 0 for no limit
+     */
+    public void setMaxOutputSize(long numBytes);
+
+    /**
+     * Helper method to execute a system command, streaming its stdout to given receiver as it is
+     * read, and aborting if it takes longer than a specified time.
+     * <p/>
+     * The stdout is not stored in the returned {@link CommandResult}. The command is aborted if
+     * <var>receiver</var> is cancelled.
+     *
+     * @param timeout maximum time to wait in ms
+     * @param receiver the {@link IShellOutputReceiver} to pass stdout to
+     * @param command the specified system command and optionally arguments to exec
+     * @return a {@link CommandResult} containing result from command run
+     */
+    public CommandResult runTimedCmd(final long timeout, IShellOutputReceiver receiver,
+            final String... command);
+
     /**
      * Helper method to execute a system command, and aborting if it takes longer than a specified
      * time. Similar to {@link #runTimedCmd(long, String...)}, but does not log any errors on
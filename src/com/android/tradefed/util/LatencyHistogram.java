@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe histogram of latencies in ms, using fixed buckets on a 1-2-5 scale.
+ * <p/>
+ * Percentiles are approximated by the upper bound of the bucket that contains them.
+ */
+public class LatencyHistogram {
+
+    /** the upper bounds of each bucket, in ms. The last bucket is unbounded */
+    private static final long[] BUCKET_BOUNDS = new long[] {10, 20, 50, 100, 200, 500, 1000, 2000,
+        5000, 10 * 1000, 20 * 1000, 50 * 1000, 100 * 1000, 200 * 1000, 500 * 1000};
+
+    private final AtomicLongArray mBucketCounts = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+    private final AtomicLong mCount = new AtomicLong(0);
+    private final AtomicLong mSum = new AtomicLong(0);
+    private final AtomicLong mMax = new AtomicLong(0);
+
+    /**
+     * Records a latency.
+     *
+     * @param latencyMs the latency in ms
+     */
+    public void record(long latencyMs) {
+        latencyMs = Math.max(0, latencyMs);
+        mBucketCounts.incrementAndGet(getBucketIndex(latencyMs));
+        mCount.incrementAndGet();
+        mSum.addAndGet(latencyMs);
+        long max;
+        while ((max = mMax.get()) < latencyMs && !mMax.compareAndSet(max, latencyMs)) {
+            // retry
+        }
+    }
+
+    private static int getBucketIndex(long latencyMs) {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            if (latencyMs <= BUCKET_BOUNDS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS.length;
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return the largest latency recorded, in ms
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return the mean latency in ms, or 0 if none were recorded
+     */
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * Gets an upper bound of the given percentile.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound in ms of the bucket containing the percentile, the max latency if
+     *         it falls in the last bucket, or 0 if no latencies were recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            seen += mBucketCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(BUCKET_BOUNDS[i], getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%dms p50<=%dms p90<=%dms p99<=%dms max=%dms",
+                getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99),
+                getMax());
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A {@link OutputStream} that writes data in the gzip format, compressing blocks of data in
+ * parallel.
+ * <p/>
+ * Like pigz, data is split in fixed size blocks, each compressed independently by a
+ * {@link ExecutorService} using the end of the previous block as dictionary, and flushed to a byte
+ * boundary so that the compressed blocks can be concatenated into a single deflate stream. Output
+ * is readable by any gzip decompressor, and only slightly larger than with
+ * {@link java.util.zip.GZIPOutputStream}.
+ * <p/>
+ * Not thread safe.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    private static final int BLOCK_SIZE = 128 * 1024;
+    /** the max size of a deflate dictionary */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int OS_UNKNOWN = 0xff;
+
+    private final OutputStream mOut;
+    private final int mCompressionLevel;
+    private final ExecutorService mExecutor;
+    private final int mMaxPendingBlocks;
+    private final LinkedList<Future<byte[]>> mPendingBlocks = new LinkedList<Future<byte[]>>();
+    private final CRC32 mCrc = new CRC32();
+    private long mSize = 0;
+    private byte[] mBlock = new byte[BLOCK_SIZE];
+    private int mBlockLength = 0;
+    private byte[] mPreviousBlock = null;
+    private boolean mClosed = false;
+
+    /**
+     * Creates a {@link ParallelGzipOutputStream}, and writes the gzip header.
+     *
+     * @param out the {@link OutputStream} to write compressed data to
+     * @param compressionLevel the {@link Deflater} compression level
+     * @param executor the {@link ExecutorService} to compress blocks with
+     * @param maxPendingBlocks the max number of blocks being compressed at once. Bounds memory use
+     *            to about twice this number of blocks.
+     * @throws IOException if failed to write the header
+     */
+    public ParallelGzipOutputStream(OutputStream out, int compressionLevel,
+            ExecutorService executor, int maxPendingBlocks) throws IOException {
+        mOut = out;
+        mCompressionLevel = compressionLevel;
+        mExecutor = executor;
+        mMaxPendingBlocks = maxPendingBlocks;
+        writeHeader();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+        mCrc.update(b, off, len);
+        mSize += len;
+        while (len > 0) {
+            int copied = Math.min(len, BLOCK_SIZE - mBlockLength);
+            System.arraycopy(b, off, mBlock, mBlockLength, copied);
+            mBlockLength += copied;
+            off += copied;
+            len -= copied;
+            if (mBlockLength == BLOCK_SIZE) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Flushes the blocks already compressed. Data in the block being filled is not flushed.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!mPendingBlocks.isEmpty() && mPendingBlocks.getFirst().isDone()) {
+            writeNextBlock();
+        }
+        mOut.flush();
+    }
+
+    /**
+     * Compresses the remaining data, writes the gzip trailer, and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            submitBlock(true);
+            while (!mPendingBlocks.isEmpty()) {
+                writeNextBlock();
+            }
+            writeTrailer();
+        } finally {
+            for (Future<byte[]> block : mPendingBlocks) {
+                block.cancel(true);
+            }
+            mOut.close();
+        }
+    }
+
+    private void submitBlock(final boolean last) throws IOException {
+        final byte[] block = mBlock;
+        final int blockLength = mBlockLength;
+        final byte[] dictionary = mPreviousBlock;
+        mPendingBlocks.add(mExecutor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return deflateBlock(block, blockLength, dictionary, last);
+            }
+        }));
+        mPreviousBlock = block;
+        mBlock = new byte[BLOCK_SIZE];
+        mBlockLength = 0;
+        while (mPendingBlocks.size() > mMaxPendingBlocks) {
+            writeNextBlock();
+        }
+    }
+
+    private void writeNextBlock() throws IOException {
+        try {
+            mOut.write(Uninterruptibles.getUninterruptibly(mPendingBlocks.removeFirst()));
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Compresses a block.
+     *
+     * @param block the data to compress
+     * @param blockLength the length of the data in block
+     * @param dictionary the previous block, or <code>null</code> if first
+     * @param last <code>true</code> if this is the last block, to end the deflate stream
+     * @return the compressed data
+     */
+    private byte[] deflateBlock(byte[] block, int blockLength, byte[] dictionary,
+            boolean last) {
+        Deflater deflater = new Deflater(mCompressionLevel, true /* no zlib wrapper */);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE,
+                        DICTIONARY_SIZE);
+            }
+            deflater.setInput(block, 0, blockLength);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(blockLength / 2 + 64);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // flush to a byte boundary, so the next block can be appended
+                int deflated;
+                do {
+                    deflated = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, deflated);
+                } while (deflated == buffer.length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        mOut.write(new byte[] {
+                (byte)GZIP_MAGIC, (byte)(GZIP_MAGIC >> 8),
+                Deflater.DEFLATED,
+                0, // flags
+                0, 0, 0, 0, // modification time
+                0, // extra flags
+                (byte)OS_UNKNOWN
+        });
+    }
+
+    private void writeTrailer() throws IOException {
+        writeInt((int)mCrc.getValue());
+        // size modulo 2^32
+        writeInt((int)mSize);
+    }
+
+    private void writeInt(int value) throws IOException {
+        mOut.write(new byte[] {
+                (byte)value, (byte)(value >> 8), (byte)(value >> 16), (byte)(value >> 24)
+        });
+    }
+}
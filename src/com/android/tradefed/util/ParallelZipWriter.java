@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip file, compressing its entries in parallel.
+ * <p/>
+ * Each file is compressed independently by a pool of threads, into memory or, for large files, a
+ * temporary file. The compressed entries are then written to the zip file in order, by the calling
+ * thread. Only a bounded number of entries are compressed ahead of the one being written, to bound
+ * memory and temporary disk usage.
+ * <p/>
+ * Does not support the ZIP64 format: zip files with more than 65535 entries or larger than 4GB
+ * can't be written. See {@link #canWrite(int, long)}.
+ */
+class ParallelZipWriter {
+
+    /** the max number of entries of a zip file without ZIP64 */
+    private static final int MAX_ENTRIES = 0xFFFF;
+    /** the max size and offset of zip entries without ZIP64 */
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+    /** the max compressed size of an entry kept in memory until written */
+    private static final int MAX_IN_MEMORY_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIR_SIZE = 22;
+    private static final short VERSION = 20;
+    /** general purpose flag indicating names are UTF-8 encoded */
+    private static final short FLAG_UTF8 = 0x0800;
+    private static final short METHOD_STORED = 0;
+    private static final short METHOD_DEFLATED = 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger(0);
+
+    /**
+     * A file or directory to add to the zip file.
+     */
+    static class Entry {
+        final String mName;
+        final File mFile;
+
+        /**
+         * @param name the name of the entry in the zip file, ending with '/' for directories
+         * @param file the file or directory to add
+         */
+        Entry(String name, File file) {
+            mName = name;
+            mFile = file;
+        }
+    }
+
+    /**
+     * A compressed entry, ready to be written to the zip file.
+     */
+    private static class CompressedEntry {
+        byte[] mName;
+        long mDosTime;
+        short mMethod;
+        long mCrc;
+        long mSize;
+        long mCompressedSize;
+        /** the compressed data, if kept in memory */
+        ByteArrayOutputStream mData = null;
+        /** the file holding the compressed data if not in memory, or the original file if stored */
+        File mDataFile = null;
+        boolean mDeleteDataFile = false;
+        /** the offset of the local header of the entry in the zip file */
+        long mOffset;
+
+        void cleanUp() {
+            if (mDeleteDataFile) {
+                FileUtil.deleteFile(mDataFile);
+            }
+        }
+    }
+
+    /**
+     * An {@link OutputStream} that keeps data in memory, until it grows larger than
+     * {@link #MAX_IN_MEMORY_SIZE}, then writes it to a temporary file.
+     */
+    private static class SpillOutputStream extends OutputStream {
+        private final ByteArrayOutputStream mMemoryStream = new ByteArrayOutputStream();
+        private File mFile = null;
+        private OutputStream mFileStream = null;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mFileStream == null && mMemoryStream.size() + len > MAX_IN_MEMORY_SIZE) {
+                mFile = FileUtil.createTempFile("zip-entry", ".tmp");
+                mFileStream = new FileOutputStream(mFile);
+                mMemoryStream.writeTo(mFileStream);
+                mMemoryStream.reset();
+            }
+            if (mFileStream != null) {
+                mFileStream.write(b, off, len);
+            } else {
+                mMemoryStream.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            StreamUtil.close(mFileStream);
+        }
+    }
+
+    private final int mCompressionLevel;
+    private final int mNumThreads;
+
+    /**
+     * Creates a {@link ParallelZipWriter}.
+     *
+     * @param compressionLevel the {@link Deflater} compression level. If
+     *            {@link Deflater#NO_COMPRESSION}, files are stored without compression.
+     * @param numThreads the number of threads to compress with
+     */
+    ParallelZipWriter(int compressionLevel, int numThreads) {
+        mCompressionLevel = compressionLevel;
+        mNumThreads = numThreads;
+    }
+
+    /**
+     * Returns whether a zip file can be written without ZIP64.
+     *
+     * @param numEntries the number of entries of the zip file
+     * @param totalSize the total uncompressed size of the entries
+     */
+    static boolean canWrite(int numEntries, long totalSize) {
+        // leave room for headers, and for incompressible data growing slightly when deflated
+        long maxZipSize = totalSize + totalSize / 100 + numEntries * 1024L;
+        return numEntries <= MAX_ENTRIES && maxZipSize < MAX_SIZE;
+    }
+
+    /**
+     * Writes a zip file.
+     *
+     * @param entries the {@link Entry}s to add, in order
+     * @param zipFile the zip file to write
+     * @throws IOException if failed to read an entry or to write the zip file
+     */
+    void write(List<Entry> entries, File zipFile) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(mNumThreads,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, String.format("ParallelZipWriter-%d",
+                                sThreadCount.incrementAndGet()));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        LinkedList<Future<CompressedEntry>> pending = new LinkedList<Future<CompressedEntry>>();
+        List<CompressedEntry> written = new ArrayList<CompressedEntry>(entries.size());
+        FileOutputStream out = new FileOutputStream(zipFile);
+        try {
+            FileChannel channel = out.getChannel();
+            int nextEntry = 0;
+            int maxPending = mNumThreads * 2;
+            while (nextEntry < entries.size() || !pending.isEmpty()) {
+                while (nextEntry < entries.size() && pending.size() < maxPending) {
+                    final Entry entry = entries.get(nextEntry++);
+                    pending.add(executor.submit(new Callable<CompressedEntry>() {
+                        @Override
+                        public CompressedEntry call() throws IOException {
+                            return compress(entry);
+                        }
+                    }));
+                }
+                CompressedEntry compressedEntry = getResult(pending.removeFirst());
+                try {
+                    writeLocalEntry(channel, compressedEntry);
+                } finally {
+                    compressedEntry.cleanUp();
+                }
+                written.add(compressedEntry);
+            }
+            writeCentralDirectory(channel, written);
+        } finally {
+            // shutdownNow() leaves the futures of tasks that never started incomplete, so
+            // cancel them to avoid waiting on them forever below
+            for (Runnable neverStarted : executor.shutdownNow()) {
+                ((Future<?>)neverStarted).cancel(false);
+            }
+            StreamUtil.close(out);
+            // clean up entries compressed ahead of a failure. Tasks that were already running
+            // still complete, and may have spilled to a temp file
+            for (Future<CompressedEntry> future : pending) {
+                if (future.isCancelled()) {
+                    continue;
+                }
+                try {
+                    getResult(future).cleanUp();
+                } catch (IOException e) {
+                    // ignore
+                } catch (CancellationException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static CompressedEntry getResult(Future<CompressedEntry> future) throws IOException {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Compresses an entry, computing its checksum.
+     */
+    private CompressedEntry compress(Entry entry) throws IOException {
+        CompressedEntry compressedEntry = new CompressedEntry();
+        compressedEntry.mName = entry.mName.getBytes(UTF_8);
+        compressedEntry.mDosTime = toDosTime(entry.mFile.lastModified());
+        compressedEntry.mMethod = METHOD_STORED;
+        if (entry.mFile.isDirectory()) {
+            return compressedEntry;
+        }
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(entry.mFile);
+        try {
+            if (mCompressionLevel == Deflater.NO_COMPRESSION) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, read);
+                    compressedEntry.mSize += read;
+                }
+                // the file is copied as is when written
+                compressedEntry.mCompressedSize = compressedEntry.mSize;
+                compressedEntry.mDataFile = entry.mFile;
+            } else {
+                compressedEntry.mMethod = METHOD_DEFLATED;
+                deflate(in, crc, buffer, compressedEntry);
+            }
+        } finally {
+            StreamUtil.close(in);
+        }
+        compressedEntry.mCrc = crc.getValue();
+        return compressedEntry;
+    }
+
+    private void deflate(InputStream in, CRC32 crc, byte[] buffer,
+            CompressedEntry compressedEntry) throws IOException {
+        Deflater deflater = new Deflater(mCompressionLevel, true /* no zlib wrapper */);
+        SpillOutputStream out = new SpillOutputStream();
+        byte[] outBuffer = new byte[BUFFER_SIZE];
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                compressedEntry.mSize += read;
+                deflater.setInput(buffer, 0, read);
+                while (!deflater.needsInput()) {
+                    int deflated = deflater.deflate(outBuffer);
+                    out.write(outBuffer, 0, deflated);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                int deflated = deflater.deflate(outBuffer);
+                out.write(outBuffer, 0, deflated);
+            }
+            compressedEntry.mCompressedSize = deflater.getBytesWritten();
+        } finally {
+            deflater.end();
+            out.close();
+            if (out.mFile != null) {
+                compressedEntry.mDataFile = out.mFile;
+                compressedEntry.mDeleteDataFile = true;
+            } else {
+                compressedEntry.mData = out.mMemoryStream;
+            }
+        }
+    }
+
+    private static void writeLocalEntry(FileChannel channel, CompressedEntry entry)
+            throws IOException {
+        entry.mOffset = channel.position();
+        if (entry.mOffset > MAX_SIZE || entry.mCompressedSize > MAX_SIZE
+                || entry.mSize > MAX_SIZE) {
+            throw new IOException("Zip file too large, ZIP64 is not supported");
+        }
+        ByteBuffer header = newBuffer(LOCAL_HEADER_SIZE + entry.mName.length);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort(VERSION);
+        header.putShort(FLAG_UTF8);
+        header.putShort(entry.mMethod);
+        header.putInt((int)entry.mDosTime);
+        header.putInt((int)entry.mCrc);
+        header.putInt((int)entry.mCompressedSize);
+        header.putInt((int)entry.mSize);
+        header.putShort((short)entry.mName.length);
+        header.putShort((short)0);
+        header.put(entry.mName);
+        writeBuffer(channel, header);
+        if (entry.mData != null) {
+            entry.mData.writeTo(Channels.newOutputStream(channel));
+        } else if (entry.mDataFile != null) {
+            FileInputStream in = new FileInputStream(entry.mDataFile);
+            try {
+                FileChannel inChannel = in.getChannel();
+                long position = 0;
+                while (position < entry.mCompressedSize) {
+                    long transferred = inChannel.transferTo(position,
+                            entry.mCompressedSize - position, channel);
+                    if (transferred <= 0) {
+                        throw new IOException(String.format("%s changed while being zipped",
+                                entry.mDataFile));
+                    }
+                    position += transferred;
+                }
+            } finally {
+                StreamUtil.close(in);
+            }
+        }
+    }
+
+    private static void writeCentralDirectory(FileChannel channel, List<CompressedEntry> entries)
+            throws IOException {
+        long centralDirOffset = channel.position();
+        for (CompressedEntry entry : entries) {
+            ByteBuffer header = newBuffer(CENTRAL_HEADER_SIZE + entry.mName.length);
+            header.putInt(CENTRAL_HEADER_SIGNATURE);
+            header.putShort(VERSION);
+            header.putShort(VERSION);
+            header.putShort(FLAG_UTF8);
+            header.putShort(entry.mMethod);
+            header.putInt((int)entry.mDosTime);
+            header.putInt((int)entry.mCrc);
+            header.putInt((int)entry.mCompressedSize);
+            header.putInt((int)entry.mSize);
+            header.putShort((short)entry.mName.length);
+            // extra field length, comment length, disk number, internal and external attributes
+            header.putShort((short)0);
+            header.putShort((short)0);
+            header.putShort((short)0);
+            header.putShort((short)0);
+            header.putInt(0);
+            header.putInt((int)entry.mOffset);
+            header.put(entry.mName);
+            writeBuffer(channel, header);
+        }
+        long centralDirSize = channel.position() - centralDirOffset;
+        if (centralDirOffset + centralDirSize > MAX_SIZE) {
+            throw new IOException("Zip file too large, ZIP64 is not supported");
+        }
+        ByteBuffer end = newBuffer(END_OF_CENTRAL_DIR_SIZE);
+        end.putInt(END_OF_CENTRAL_DIR_SIGNATURE);
+        // disk numbers
+        end.putShort((short)0);
+        end.putShort((short)0);
+        end.putShort((short)entries.size());
+        end.putShort((short)entries.size());
+        end.putInt((int)centralDirSize);
+        end.putInt((int)centralDirOffset);
+        // comment length
+        end.putShort((short)0);
+        writeBuffer(channel, end);
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void writeBuffer(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Converts a java time to the MS-DOS date and time format used by zip files.
+     */
+    static long toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        long year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            // 1980-01-01, the earliest MS-DOS date
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+}
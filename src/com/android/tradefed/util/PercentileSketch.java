@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+/**
+ * Approximates percentiles of a stream of measurements in bounded memory, without storing them.
+ * <p/>
+ * Measurements are counted in log-linear buckets, as in an HDR histogram: each power of two is
+ * split in 2^precisionBits buckets of equal width, so percentiles are approximated within a
+ * relative error of 2^-(precisionBits + 1), whatever the magnitude of the measurements. The
+ * buckets of a power of two are only allocated when a measurement falls in it, taking
+ * 8 * 2^precisionBits bytes.
+ * <p/>
+ * Percentiles are defined with the nearest-rank method.
+ */
+public class PercentileSketch {
+
+    /** the default precision, for a relative error of 0.4% */
+    public static final int DEFAULT_PRECISION_BITS = 7;
+
+    private static final int MANTISSA_BITS = 52;
+    /** the number of powers of two, including both signs, that doubles can take */
+    private static final int EXPONENT_COUNT = 1 << 12;
+
+    private final int mPrecisionBits;
+    private final int mShift;
+    /** bucket counts, by sign and exponent then by bucket within the power of two */
+    private final long[][] mCounts = new long[EXPONENT_COUNT][];
+    private long mCount = 0;
+    private double mMin = Double.POSITIVE_INFINITY;
+    private double mMax = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Creates a {@link PercentileSketch} with {@link #DEFAULT_PRECISION_BITS}.
+     */
+    public PercentileSketch() {
+        this(DEFAULT_PRECISION_BITS);
+    }
+
+    /**
+     * Creates a {@link PercentileSketch}.
+     *
+     * @param precisionBits the log2 of the number of buckets in each power of two, between 0 and
+     *            16
+     */
+    public PercentileSketch(int precisionBits) {
+        if (precisionBits < 0 || precisionBits > 16) {
+            throw new IllegalArgumentException("precisionBits must be between 0 and 16");
+        }
+        mPrecisionBits = precisionBits;
+        mShift = MANTISSA_BITS - precisionBits;
+    }
+
+    /**
+     * Add a measurement.
+     *
+     * @throws IllegalArgumentException if the measurement is infinite or NaN
+     */
+    public void add(double meas) {
+        if (Double.isNaN(meas) || Double.isInfinite(meas)) {
+            throw new IllegalArgumentException("Cannot add " + meas);
+        }
+        long key = toSortableBits(meas) >> mShift;
+        int exponentIndex = getExponentIndex(key);
+        long[] counts = mCounts[exponentIndex];
+        if (counts == null) {
+            counts = new long[1 << mPrecisionBits];
+            mCounts[exponentIndex] = counts;
+        }
+        counts[(int)(key & ((1 << mPrecisionBits) - 1))]++;
+        mCount++;
+        mMin = Math.min(mMin, meas);
+        mMax = Math.max(mMax, meas);
+    }
+
+    /**
+     * Return how many measurements were added.
+     */
+    public long count() {
+        return mCount;
+    }
+
+    /**
+     * Approximate a percentile of the measurements.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the approximate percentile, or {@code null} if there are no measurements
+     */
+    public Double percentile(double percentile) {
+        if (mCount == 0) {
+            return null;
+        }
+        if (percentile <= 0) {
+            return mMin;
+        }
+        if (percentile >= 100) {
+            return mMax;
+        }
+        long rank = Math.max(1, (long)Math.ceil(mCount * percentile / 100));
+        long seen = 0;
+        for (int exponentIndex = 0; exponentIndex < EXPONENT_COUNT; exponentIndex++) {
+            long[] counts = mCounts[exponentIndex];
+            if (counts == null) {
+                continue;
+            }
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    long key = ((long)(exponentIndex - EXPONENT_COUNT / 2) << mPrecisionBits) | i;
+                    return Math.min(mMax, Math.max(mMin, getBucketValue(key)));
+                }
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Return the minimum measurement, or {@code null} if there are none.
+     */
+    public Double min() {
+        return mCount == 0 ? null : mMin;
+    }
+
+    /**
+     * Return the maximum measurement, or {@code null} if there are none.
+     */
+    public Double max() {
+        return mCount == 0 ? null : mMax;
+    }
+
+    /**
+     * Maps a bucket key to the index of its power of two in {@link #mCounts}.
+     */
+    private int getExponentIndex(long key) {
+        return (int)(key >> mPrecisionBits) + EXPONENT_COUNT / 2;
+    }
+
+    /**
+     * Gets the value representing a bucket, the middle of its range.
+     */
+    private double getBucketValue(long key) {
+        if (key == 0 || key == -1) {
+            // the buckets around 0 also hold the smallest subnormal numbers, but 0 is much more
+            // likely to have been measured
+            return 0;
+        }
+        long lower = key << mShift;
+        long middle = mShift == 0 ? lower : lower + (1L << (mShift - 1));
+        return fromSortableBits(middle);
+    }
+
+    /**
+     * Converts a double to a long with the same ordering, by flipping the non-sign bits of
+     * negative numbers.
+     */
+    private static long toSortableBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    private static double fromSortableBits(long sortable) {
+        return Double.longBitsToDouble(sortable ^ ((sortable >> 63) & Long.MAX_VALUE));
+    }
+}
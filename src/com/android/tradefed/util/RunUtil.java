@@ -16,19 +16,28 @@
 
 package com.android.tradefed.util;
 
+import com.android.ddmlib.IShellOutputReceiver;
 import com.android.tradefed.log.LogUtil.CLog;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A collection of helper methods for executing operations.
@@ -39,6 +48,12 @@ public class RunUtil implements IRunUtil {
     private static IRunUtil sDefaultInstance = null;
     private File mWorkingDir = null;
     private Map<String, String> mEnvVariables = new HashMap<String, String>();
+    private long mOutputSpillThreshold = 0;
+    private long mOutputMaxSize = 0;
+
+    /** size of buffer used to read process output */
+    private static final int PUMP_BUFFER_SIZE = 16 * 1024;
+    private static ExecutorService sOutputPumpExecutor = null;
 
     /**
      * Create a new {@link RunUtil} object to use.
@@ -83,6 +98,43 @@ public class RunUtil implements IRunUtil {
         mEnvVariables.put(name, value);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setOutputSpillThreshold(long numBytes) {
+        if (this.equals(sDefaultInstance)) {
+            throw new UnsupportedOperationException(
+                    "Cannot setOutputSpillThreshold on default RunUtil");
+        }
+        mOutputSpillThreshold = numBytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setMaxOutputSize(long numBytes) {
+        if (this.equals(sDefaultInstance)) {
+            throw new UnsupportedOperationException("Cannot setMaxOutputSize on default RunUtil");
+        }
+        mOutputMaxSize = numBytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CommandResult runTimedCmd(final long timeout, IShellOutputReceiver receiver,
+            final String... command) {
+        final CommandResult result = new CommandResult();
+        IRunUtil.IRunnableResult osRunnable = new RunnableResult(result, null,
+                createProcessBuilder(command), receiver);
+        CommandStatus status = runTimed(timeout, osRunnable, true);
+        result.setStatus(status);
+        return result;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -333,53 +385,95 @@ public class RunUtil implements IRunUtil {
         private final ProcessBuilder mProcessBuilder;
         private final CommandResult mCommandResult;
         private final String mInput;
+        private final IShellOutputReceiver mStdoutReceiver;
+        private final long mSpillThreshold;
+        private final long mMaxOutputSize;
         private Process mProcess = null;
 
         RunnableResult(final CommandResult result, final String input,
                 final ProcessBuilder processBuilder) {
+            this(result, input, processBuilder, null);
+        }
+
+        RunnableResult(final CommandResult result, final String input,
+                final ProcessBuilder processBuilder, final IShellOutputReceiver stdoutReceiver) {
             mProcessBuilder = processBuilder;
             mInput = input;
             mCommandResult = result;
+            mStdoutReceiver = stdoutReceiver;
+            synchronized (RunUtil.this) {
+                mSpillThreshold = mOutputSpillThreshold;
+                mMaxOutputSize = mOutputMaxSize;
+            }
         }
 
         @Override
         public boolean run() throws Exception {
             CLog.d("Running %s", mProcessBuilder.command());
             mProcess = mProcessBuilder.start();
+            final Process process = mProcess;
+            // Redirect IO, so that the buffer for the spawn process does not fill up and cause
+            // deadlock. Start pumping before writing input, in case process produces output
+            // before it has consumed all input. Without input, stdout is read on this thread
+            // rather than on the pool, which would otherwise sit idle in waitFor()
+            CapturedOutput stdOut = null;
+            OutputStream stdOutDest;
+            if (mStdoutReceiver != null) {
+                stdOutDest = new ReceiverOutputStream(mStdoutReceiver, process);
+            } else {
+                stdOut = new CapturedOutput(mSpillThreshold, mMaxOutputSize);
+                stdOutDest = stdOut;
+            }
+            CapturedOutput stdErr = new CapturedOutput(mSpillThreshold, mMaxOutputSize);
+            Future<?> stdoutPump = null;
             if (mInput != null) {
-                BufferedOutputStream processStdin = new BufferedOutputStream(
-                        mProcess.getOutputStream());
-                processStdin.write(mInput.getBytes("UTF-8"));
-                processStdin.flush();
-                processStdin.close();
+                stdoutPump = pumpStream(process.getInputStream(), stdOutDest);
             }
-            // Redirect IO, so that the buffer for the spawn process does not fill up and cause
-            // deadlock.
-            ByteArrayOutputStream stdOut = new ByteArrayOutputStream();
-            ByteArrayOutputStream stdErr = new ByteArrayOutputStream();
-            Thread stdoutThread = inheritIO(mProcess.getInputStream(), stdOut);
-            Thread stderrThread = inheritIO(mProcess.getErrorStream(), stdErr);
-            // Wait for process to complete.
-            int rc = mProcess.waitFor();
-            synchronized (this) {
-                if (mProcess != null) {
-                    // wait for stdout and stderr to be read
-                    stdoutThread.join();
-                    stderrThread.join();
-                    // Write out the streams to the result.
-                    mCommandResult.setStdout(stdOut.toString("UTF-8"));
-                    mCommandResult.setStderr(stdErr.toString("UTF-8"));
-                    stdOut.close();
-                    stdErr.close();
+            Future<?> stderrPump = pumpStream(process.getErrorStream(), stdErr);
+            try {
+                if (mInput != null) {
+                    BufferedOutputStream processStdin = new BufferedOutputStream(
+                            process.getOutputStream());
+                    processStdin.write(mInput.getBytes("UTF-8"));
+                    processStdin.flush();
+                    processStdin.close();
+                } else {
+                    copyStream(process.getInputStream(), stdOutDest);
+                }
+                // Wait for process to complete.
+                int rc = process.waitFor();
+                synchronized (this) {
+                    if (mProcess != null) {
+                        // wait for stdout and stderr to be read
+                        if (stdoutPump != null) {
+                            stdoutPump.get();
+                        }
+                        stderrPump.get();
+                        // Write out the streams to the result.
+                        if (stdOut != null) {
+                            stdOut.writeTo(mCommandResult, true);
+                        }
+                        stdErr.writeTo(mCommandResult, false);
+                    }
                 }
-            }
 
-            if (rc == 0) {
-                return true;
-            } else {
-                CLog.i("%s command failed. return code %d", mProcessBuilder.command(), rc);
+                if (rc == 0) {
+                    return true;
+                } else {
+                    CLog.i("%s command failed. return code %d", mProcessBuilder.command(), rc);
+                }
+                return false;
+            } finally {
+                // stops the pumps if command was aborted
+                if (stdoutPump != null) {
+                    stdoutPump.cancel(true);
+                }
+                stderrPump.cancel(true);
+                if (stdOut != null) {
+                    stdOut.discard();
+                }
+                stdErr.discard();
             }
-            return false;
         }
 
         @Override
@@ -393,34 +487,224 @@ public class RunUtil implements IRunUtil {
         }
     };
 
+    /**
+     * Gets the shared {@link ExecutorService} used to read process output.
+     */
+    private static synchronized ExecutorService getOutputPumpExecutor() {
+        if (sOutputPumpExecutor == null) {
+            // threads are reused across commands, and exit after being idle for a while. The
+            // pool is not bounded: a pump blocks for the lifetime of its process, and a process
+            // whose output is queued rather than read can fill its pipe and never exit
+            sOutputPumpExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(0);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, String.format("RunUtil-output-%d",
+                                    mCount.incrementAndGet()));
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return sOutputPumpExecutor;
+    }
+
     /**
      * Helper method to redirect input stream.
+     * <p/>
+     * The stream is read in bulk on a thread from a shared pool.
+     *
      * @param src {@link InputStream} to inherit/redirect from
-     * @param dest {@link BufferedOutputStream} to inherit/redirect to
+     * @param dest {@link OutputStream} to inherit/redirect to. Will be closed once
+     *            <var>src</var> is exhausted
+     * @return the {@link Future} that completes once <var>src</var> has been read
      */
-    private static Thread inheritIO(final InputStream src, final OutputStream dest) {
-        Thread t = new Thread(new Runnable() {
+    private static Future<?> pumpStream(final InputStream src, final OutputStream dest) {
+        return getOutputPumpExecutor().submit(new Runnable() {
             @Override
             public void run() {
-                // Buffer the input stream.
-                BufferedInputStream s = new BufferedInputStream(src);
-                 int i;
-                 try {
-                     while((i = s.read()) != -1) {
-                         dest.write(i);
-                     }
-                 } catch (IOException e) {
-                     CLog.e("Failed to read input stream.");
-                 } finally {
-                     try {
-                         s.close();
-                     } catch (IOException ex) {
-                         CLog.e("Failed to close input stream.");
-                     }
-                 }
+                copyStream(src, dest);
             }
         });
-        t.start();
-        return t;
+    }
+
+    /**
+     * Reads an input stream in bulk until it is exhausted.
+     *
+     * @param src {@link InputStream} to read from
+     * @param dest {@link OutputStream} to write to. Will be closed once <var>src</var> is
+     *            exhausted
+     */
+    private static void copyStream(InputStream src, OutputStream dest) {
+        byte[] buffer = new byte[PUMP_BUFFER_SIZE];
+        int count;
+        try {
+            while ((count = src.read(buffer)) != -1) {
+                dest.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            CLog.e("Failed to read input stream.");
+        } finally {
+            StreamUtil.close(src);
+            StreamUtil.close(dest);
+        }
+    }
+
+    /**
+     * An {@link OutputStream} that collects the output of one process stream, in memory up to a
+     * threshold and then in a temporary file.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static class CapturedOutput extends OutputStream {
+        private final long mSpillThreshold;
+        private final long mMaxSize;
+        private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+        private File mSpillFile = null;
+        private OutputStream mSpillStream = null;
+        private long mSize = 0;
+        private boolean mTruncated = false;
+        private boolean mDiscarded = false;
+
+        /**
+         * @param spillThreshold max bytes to keep in memory, or 0 to never spill
+         * @param maxSize max bytes to keep, or 0 for no limit
+         */
+        CapturedOutput(long spillThreshold, long maxSize) {
+            mSpillThreshold = spillThreshold;
+            mMaxSize = maxSize;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (mDiscarded) {
+                return;
+            }
+            if (mMaxSize > 0 && mSize + len > mMaxSize) {
+                len = (int)(mMaxSize - mSize);
+                if (!mTruncated) {
+                    CLog.w("Command output exceeded %d bytes, discarding the rest", mMaxSize);
+                    mTruncated = true;
+                }
+            }
+            if (len <= 0) {
+                return;
+            }
+            if (mSpillStream == null && mSpillThreshold > 0 && mSize + len > mSpillThreshold) {
+                mSpillFile = FileUtil.createTempFile("runutil_output", ".txt");
+                mSpillStream = new BufferedOutputStream(new FileOutputStream(mSpillFile));
+                mBuffer.writeTo(mSpillStream);
+                mBuffer = null;
+            }
+            if (mSpillStream != null) {
+                mSpillStream.write(b, off, len);
+            } else {
+                mBuffer.write(b, off, len);
+            }
+            mSize += len;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (mSpillStream != null) {
+                mSpillStream.close();
+            }
+        }
+
+        /**
+         * Store the collected output in given {@link CommandResult}. Ownership of any spill file
+         * passes to the result.
+         */
+        synchronized void writeTo(CommandResult result, boolean isStdout)
+                throws UnsupportedEncodingException {
+            if (mSpillFile != null) {
+                if (isStdout) {
+                    result.setStdoutFile(mSpillFile);
+                } else {
+                    result.setStderrFile(mSpillFile);
+                }
+                mSpillFile = null;
+            } else {
+                String output = mBuffer.toString("UTF-8");
+                if (isStdout) {
+                    result.setStdout(output);
+                } else {
+                    result.setStderr(output);
+                }
+            }
+        }
+
+        /**
+         * Delete any spill file that was not passed to a {@link CommandResult}.
+         */
+        synchronized void discard() {
+            mDiscarded = true;
+            StreamUtil.close(mSpillStream);
+            FileUtil.deleteFile(mSpillFile);
+            mSpillFile = null;
+        }
+    }
+
+    /**
+     * An {@link OutputStream} that forwards data to a {@link IShellOutputReceiver}, and aborts
+     * the process when the receiver is cancelled.
+     */
+    private static class ReceiverOutputStream extends OutputStream {
+        private final IShellOutputReceiver mReceiver;
+        private final Process mProcess;
+
+        ReceiverOutputStream(IShellOutputReceiver receiver, Process process) {
+            mReceiver = receiver;
+            mProcess = process;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mReceiver.isCancelled()) {
+                mProcess.destroy();
+                return;
+            }
+            if (off == 0) {
+                mReceiver.addOutput(b, off, len);
+            } else {
+                // ddmlib receivers do not all honour offset, so pass a copy
+                mReceiver.addOutput(Arrays.copyOfRange(b, off, off + len), 0, len);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() {
+            mReceiver.flush();
+        }
     }
 }
@@ -15,20 +15,42 @@
  */
 package com.android.tradefed.util;
 
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * A small utility class that calculates a few statistical measures given a numerical dataset.  The
- * values are stored internally as {@link Double}s.
+ * values are stored internally as primitive {@code double}s, in a growable array.
+ * <p />
+ * For datasets too large to be kept in memory, see {@link StreamingStats},
+ * {@link PercentileSketch} and {@link WindowedStats}.
  */
 public class SimpleStats {
-    private List<Double> mData = new LinkedList<Double>();
+    private static final int INITIAL_CAPACITY = 16;
+
+    private double[] mData;
+    private int mSize = 0;
+    /** whether mData is known to be sorted, as sorting is needed for the median */
+    private boolean mSorted = true;
 
     // cached values
-    private double mSum = 0;
+    private final StreamingStats mStats = new StreamingStats();
+
+    /**
+     * Creates an empty {@link SimpleStats}.
+     */
+    public SimpleStats() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates an empty {@link SimpleStats}, with room for the given number of measurements.
+     */
+    public SimpleStats(int initialCapacity) {
+        mData = new double[Math.max(1, initialCapacity)];
+    }
 
     /**
      * Add a number of measurements to the dataset.
@@ -48,40 +70,63 @@ public class SimpleStats {
      * Add a measurement to the dataset.
      */
     public void add(double meas) {
-        mData.add(meas);
-        mSum += meas;
+        if (mSize == mData.length) {
+            mData = Arrays.copyOf(mData, mSize * 2);
+        }
+        if (mSize > 0 && meas < mData[mSize - 1]) {
+            mSorted = false;
+        }
+        mData[mSize++] = meas;
+        mStats.add(meas);
     }
 
     /**
-     * Retrieve the dataset.
+     * Retrieve the dataset, as a read-only view. The order of the measurements may change when
+     * calculating the median.
      */
     public List<Double> getData() {
-        return mData;
+        return new AbstractList<Double>() {
+            @Override
+            public Double get(int index) {
+                if (index < 0 || index >= mSize) {
+                    throw new IndexOutOfBoundsException(Integer.toString(index));
+                }
+                return mData[index];
+            }
+
+            @Override
+            public int size() {
+                return mSize;
+            }
+        };
+    }
+
+    /**
+     * Retrieve a copy of the dataset.
+     */
+    public double[] toArray() {
+        return Arrays.copyOf(mData, mSize);
     }
 
     /**
      * Check if the dataset is empty.
      */
     public boolean isEmpty() {
-        return mData.isEmpty();
+        return mSize == 0;
     }
 
     /**
      * Check how many elements are in the dataset.
      */
     public int size() {
-        return mData.size();
+        return mSize;
     }
 
     /**
      * Calculate and return the mean of the dataset, or {@code null} if the dataset is empty.
      */
     public Double mean() {
-        if (isEmpty()) {
-            return null;
-        }
-
-        return mSum / size();
+        return mStats.mean();
     }
 
     /**
@@ -92,41 +137,61 @@ public class SimpleStats {
             return null;
         }
 
-        Collections.sort(mData);
-        if ((mData.size() & 0x1) == 1) {
+        sort();
+        if ((mSize & 0x1) == 1) {
             // odd count of items, pick the middle element.  Note that we don't +1 since indices
             // are zero-based rather than one-based
             int idx = size() / 2;
-            return mData.get(idx);
+            return mData[idx];
         } else {
             // even count of items, average the two middle elements
             int idx = size() / 2;
-            return (mData.get(idx - 1) + mData.get(idx)) / 2;
+            return (mData[idx - 1] + mData[idx]) / 2;
         }
     }
 
     /**
-     * Return the minimum value in the dataset, or {@code null} if the dataset is empty.
+     * Calculate and return a percentile of the dataset, with the nearest-rank method, or
+     * {@code null} if the dataset is empty.
+     *
+     * @param percentile the percentile, between 0 and 100
      */
-    public Double min() {
+    public Double percentile(double percentile) {
         if (isEmpty()) {
             return null;
         }
 
-        Collections.sort(mData);
-        return mData.get(0);
+        sort();
+        return mData[getNearestRankIndex(mSize, percentile)];
     }
 
     /**
-     * Return the maximum value in the dataset, or {@code null} if the dataset is empty.
+     * Gets the index of a percentile in a sorted dataset, with the nearest-rank method.
      */
-    public Double max() {
-        if (isEmpty()) {
-            return null;
+    static int getNearestRankIndex(int size, double percentile) {
+        int rank = (int)Math.ceil(size * Math.min(100, percentile) / 100);
+        return Math.max(1, rank) - 1;
+    }
+
+    private void sort() {
+        if (!mSorted) {
+            Arrays.sort(mData, 0, mSize);
+            mSorted = true;
         }
+    }
+
+    /**
+     * Return the minimum value in the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double min() {
+        return mStats.min();
+    }
 
-        Collections.sort(mData);
-        return mData.get(size() - 1);
+    /**
+     * Return the maximum value in the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double max() {
+        return mStats.max();
     }
 
     /**
@@ -137,18 +202,7 @@ public class SimpleStats {
      * {@link SimpleStats} instance.
      */
     public Double stdev() {
-        if (isEmpty()) {
-            return null;
-        }
-
-        Double avg = mean();
-        Double ssd = 0.0;  // sum of squared differences
-        for (Double meas : mData) {
-            Double diff = meas - avg;
-            ssd += diff * diff;
-        }
-
-        return Math.sqrt(ssd / size());
+        return mStats.stdev();
     }
 
     /**
@@ -164,13 +218,14 @@ public class SimpleStats {
             return null;
         }
 
-        Double avg = mean();
-        Double std = stdev();
-        Double upper = avg + std;
-        Double lower = avg - std;
-        Double sum = 0.0;
+        double avg = mean();
+        double std = stdev();
+        double upper = avg + std;
+        double lower = avg - std;
+        double sum = 0.0;
         int count = 0;
-        for (Double meas : mData) {
+        for (int i = 0; i < mSize; i++) {
+            double meas = mData[i];
             if (meas > lower && meas < upper) {
                 sum += meas;
                 count++;
@@ -179,4 +234,3 @@ public class SimpleStats {
         return sum / count;
     }
 }
-
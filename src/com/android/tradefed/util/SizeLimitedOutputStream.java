@@ -18,6 +18,8 @@
 package com.android.tradefed.util;
 
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.InputStreamSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CountingOutputStream;
 
 import java.io.BufferedOutputStream;
@@ -30,6 +32,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.SequenceInputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * A thread safe file backed {@link OutputStream} that limits the maximum amount of data that can be
@@ -38,6 +48,11 @@ import java.io.SequenceInputStream;
  * This is implemented by keeping a circular list of Files of fixed size. Once a File has reached a
  * certain size, the class jumps to use the next File in the list. If the next File is non empty, it
  * is deleted, and a new file created.
+ * <p/>
+ * Backing files are reference counted, so that read-only snapshots of the data can be handed out
+ * via {@link #getSnapshot()} without copying. A file that is rotated out while a snapshot still
+ * references it is only deleted once that snapshot is cancelled, or once the snapshot is no longer
+ * reachable, so that callers that drop a snapshot without cancelling it do not pin files forever.
  */
 public class SizeLimitedOutputStream extends OutputStream {
 
@@ -46,8 +61,151 @@ public class SizeLimitedOutputStream extends OutputStream {
     /** The max number of bytes to store in the buffer */
     private static final int BUFF_SIZE = 32 * 1024;
 
+    /**
+     * A backing file, which is deleted when the last reference to it is released.
+     */
+    private static class Segment {
+        private final File mFile;
+        private int mRefCount = 1;
+
+        Segment(File file) {
+            mFile = file;
+        }
+
+        synchronized void acquire() {
+            mRefCount++;
+        }
+
+        synchronized void release() {
+            mRefCount--;
+            if (mRefCount == 0) {
+                FileUtil.deleteFile(mFile);
+            }
+        }
+    }
+
+    /**
+     * Tracks the {@link Segment}s referenced by a {@link SegmentSnapshot}, so that they can be
+     * released once the snapshot is cancelled or no longer reachable.
+     */
+    private static class SnapshotReference extends PhantomReference<SegmentSnapshot> {
+        private Segment[] mSegments;
+
+        SnapshotReference(SegmentSnapshot snapshot, Segment[] segments) {
+            super(snapshot, sDroppedSnapshots);
+            mSegments = segments;
+            sSnapshotReferences.add(this);
+        }
+
+        /**
+         * Releases the referenced segments. Only the first call has an effect.
+         */
+        synchronized void release() {
+            if (mSegments != null) {
+                for (Segment segment : mSegments) {
+                    segment.release();
+                }
+                mSegments = null;
+                sSnapshotReferences.remove(this);
+                clear();
+            }
+        }
+    }
+
+    /** the snapshots that were not cancelled and are no longer reachable */
+    private static final ReferenceQueue<SegmentSnapshot> sDroppedSnapshots =
+            new ReferenceQueue<SegmentSnapshot>();
+    /** keeps the {@link SnapshotReference}s reachable until they are released */
+    private static final Set<SnapshotReference> sSnapshotReferences =
+            Collections.synchronizedSet(new HashSet<SnapshotReference>());
+
+    /**
+     * Releases the segments of the snapshots that were dropped without being cancelled.
+     */
+    private static void releaseDroppedSnapshots() {
+        Reference<? extends SegmentSnapshot> ref;
+        while ((ref = sDroppedSnapshots.poll()) != null) {
+            ((SnapshotReference)ref).release();
+        }
+    }
+
+    /**
+     * A read-only view of a fixed range of the data, that holds a reference to each {@link Segment}
+     * it covers until cancelled or no longer reachable.
+     * <p/>
+     * The backing files are opened when a stream is created, so streams stay readable after the
+     * snapshot is released.
+     */
+    private static class SegmentSnapshot implements InputStreamSource {
+        private final Segment[] mSegments;
+        private final long[] mLengths;
+        /** the offset into the first segment the view starts at */
+        private final long mStartOffset;
+        private final SnapshotReference mReference;
+        private boolean mIsCancelled = false;
+
+        SegmentSnapshot(Segment[] segments, long[] lengths, long startOffset) {
+            mSegments = segments;
+            mLengths = lengths;
+            mStartOffset = startOffset;
+            mReference = new SnapshotReference(this, segments);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized InputStream createInputStream() {
+            if (mIsCancelled) {
+                return null;
+            }
+            InputStream combinedStream = new ByteArrayInputStream(new byte[0]);
+            try {
+                for (int i = 0; i < mSegments.length; i++) {
+                    InputStream fStream = new FileInputStream(mSegments[i].mFile);
+                    long length = mLengths[i];
+                    if (i == 0 && mStartOffset > 0) {
+                        // FileInputStream#skip seeks, no data is read
+                        fStream.skip(mStartOffset);
+                        length -= mStartOffset;
+                    }
+                    // segments can still be appended to, so bound the view to the snapshot size
+                    combinedStream = new SequenceInputStream(combinedStream,
+                            ByteStreams.limit(fStream, length));
+                }
+            } catch (IOException e) {
+                StreamUtil.close(combinedStream);
+                return null;
+            }
+            return combinedStream;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void cancel() {
+            if (!mIsCancelled) {
+                mIsCancelled = true;
+                mReference.release();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long size() {
+            long size = -mStartOffset;
+            for (long length : mLengths) {
+                size += length;
+            }
+            return size;
+        }
+    }
+
     // circular array of backing files
-    private final File[] mFiles;
+    private final Segment[] mFiles;
     private final long mMaxFileSize;
     private CountingOutputStream mCurrentOutputStream;
     private int mCurrentFilePos = 0;
@@ -67,7 +225,7 @@ public class SizeLimitedOutputStream extends OutputStream {
     public SizeLimitedOutputStream(long maxDataSize, int numFiles, String tempFilePrefix,
             String tempFileSuffix) {
         mMaxFileSize = maxDataSize / numFiles;
-        mFiles = new File[numFiles];
+        mFiles = new Segment[numFiles];
         mCurrentFilePos = numFiles;
         mTempFilePrefix = tempFilePrefix;
         mTempFileSuffix = tempFileSuffix;
@@ -99,7 +257,7 @@ public class SizeLimitedOutputStream extends OutputStream {
             int currentPos = (mCurrentFilePos + i + 1) % mFiles.length;
             if (mFiles[currentPos] != null) {
                 @SuppressWarnings("resource")
-                FileInputStream fStream = new FileInputStream(mFiles[currentPos]);
+                FileInputStream fStream = new FileInputStream(mFiles[currentPos].mFile);
                 if (combinedStream == null) {
                     combinedStream = fStream;
                 } else {
@@ -114,6 +272,62 @@ public class SizeLimitedOutputStream extends OutputStream {
 
     }
 
+    /**
+     * Gets a read-only snapshot of the collected output, without copying it.
+     * <p/>
+     * The snapshot reflects the data written so far, and remains valid even if the backing files
+     * are rotated out or {@link #delete()} is called. Callers should call
+     * {@link InputStreamSource#cancel()} when done to release the backing files promptly;
+     * otherwise they are only released once the snapshot is garbage collected.
+     *
+     * @return a {@link InputStreamSource} of the collected output
+     */
+    public InputStreamSource getSnapshot() {
+        return getSnapshot(Long.MAX_VALUE);
+    }
+
+    /**
+     * Gets a read-only snapshot of the last <var>maxBytes</var> of collected output, without
+     * copying it.
+     * <p/>
+     * Only the backing files that contain the requested tail are referenced, and the returned
+     * streams seek directly to the start of the tail.
+     *
+     * @param maxBytes the maximum amount of data to include
+     * @return a {@link InputStreamSource} of the collected output
+     * @see #getSnapshot()
+     */
+    public synchronized InputStreamSource getSnapshot(long maxBytes) {
+        releaseDroppedSnapshots();
+        flush();
+        List<Segment> segments = new ArrayList<Segment>(mFiles.length);
+        List<Long> lengths = new ArrayList<Long>(mFiles.length);
+        long remaining = maxBytes;
+        long startOffset = 0;
+        // walk from newest to oldest file, until enough data is covered
+        for (int i = 0; i < mFiles.length && remaining > 0; i++) {
+            int currentPos = (mCurrentFilePos - i + mFiles.length) % mFiles.length;
+            Segment segment = mFiles[currentPos];
+            if (segment == null) {
+                break;
+            }
+            long length = segment.mFile.length();
+            if (length > remaining) {
+                startOffset = length - remaining;
+            }
+            remaining -= length;
+            segment.acquire();
+            segments.add(0, segment);
+            lengths.add(0, length);
+        }
+        long[] lengthArray = new long[lengths.size()];
+        for (int i = 0; i < lengthArray.length; i++) {
+            lengthArray[i] = lengths.get(i);
+        }
+        return new SegmentSnapshot(segments.toArray(new Segment[segments.size()]), lengthArray,
+                startOffset);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -136,9 +350,13 @@ public class SizeLimitedOutputStream extends OutputStream {
      */
     public void delete() {
         close();
-        for (int i = 0; i < mFiles.length; i++) {
-            FileUtil.deleteFile(mFiles[i]);
-            mFiles[i] = null;
+        synchronized (this) {
+            for (int i = 0; i < mFiles.length; i++) {
+                if (mFiles[i] != null) {
+                    mFiles[i].release();
+                    mFiles[i] = null;
+                }
+            }
         }
     }
 
@@ -171,13 +389,16 @@ public class SizeLimitedOutputStream extends OutputStream {
     synchronized void generateNextFile() throws IOException, FileNotFoundException {
         // close current stream
         close();
+        releaseDroppedSnapshots();
         mCurrentFilePos = getNextIndex(mCurrentFilePos);
         if (mFiles[mCurrentFilePos] != null) {
-            mFiles[mCurrentFilePos].delete();
+            // file is only deleted once no snapshot references it anymore
+            mFiles[mCurrentFilePos].release();
         }
-        mFiles[mCurrentFilePos] = FileUtil.createTempFile(mTempFilePrefix, mTempFileSuffix);
+        mFiles[mCurrentFilePos] = new Segment(FileUtil.createTempFile(mTempFilePrefix,
+                mTempFileSuffix));
         mCurrentOutputStream = new CountingOutputStream(new BufferedOutputStream(
-                new FileOutputStream(mFiles[mCurrentFilePos]), BUFF_SIZE));
+                new FileOutputStream(mFiles[mCurrentFilePos].mFile), BUFF_SIZE));
     }
 
     /**
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+/**
+ * Calculates the count, mean, standard deviation, min and max of a stream of measurements in
+ * constant memory, without storing them.
+ * <p/>
+ * The mean and variance are updated with Welford's algorithm, which unlike summing squares stays
+ * accurate over millions of measurements.
+ */
+public class StreamingStats {
+    private long mCount = 0;
+    private double mMean = 0;
+    /** the sum of squared differences from the current mean */
+    private double mSumSquaredDiffs = 0;
+    private double mSum = 0;
+    private double mMin = Double.POSITIVE_INFINITY;
+    private double mMax = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Add a measurement.
+     */
+    public void add(double meas) {
+        mCount++;
+        double diff = meas - mMean;
+        mMean += diff / mCount;
+        mSumSquaredDiffs += diff * (meas - mMean);
+        mSum += meas;
+        mMin = Math.min(mMin, meas);
+        mMax = Math.max(mMax, meas);
+    }
+
+    /**
+     * Add all the measurements of another {@link StreamingStats}, as if they had been added to
+     * this one.
+     */
+    public void addAll(StreamingStats other) {
+        if (other.mCount == 0) {
+            return;
+        }
+        long count = mCount + other.mCount;
+        double diff = other.mMean - mMean;
+        mSumSquaredDiffs += other.mSumSquaredDiffs + diff * diff * mCount * other.mCount / count;
+        mMean += diff * other.mCount / count;
+        mCount = count;
+        mSum += other.mSum;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    /**
+     * Check if no measurements were added.
+     */
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Return how many measurements were added.
+     */
+    public long count() {
+        return mCount;
+    }
+
+    /**
+     * Return the sum of the measurements.
+     */
+    public double sum() {
+        return mSum;
+    }
+
+    /**
+     * Return the mean of the measurements, or {@code null} if there are none.
+     */
+    public Double mean() {
+        if (isEmpty()) {
+            return null;
+        }
+        return mMean;
+    }
+
+    /**
+     * Return the population standard deviation of the measurements, or {@code null} if there
+     * are none.
+     */
+    public Double stdev() {
+        if (isEmpty()) {
+            return null;
+        }
+        return Math.sqrt(Math.max(0, mSumSquaredDiffs) / mCount);
+    }
+
+    /**
+     * Return the minimum measurement, or {@code null} if there are none.
+     */
+    public Double min() {
+        if (isEmpty()) {
+            return null;
+        }
+        return mMin;
+    }
+
+    /**
+     * Return the maximum measurement, or {@code null} if there are none.
+     */
+    public Double max() {
+        if (isEmpty()) {
+            return null;
+        }
+        return mMax;
+    }
+
+    /**
+     * Remove all measurements.
+     */
+    public void clear() {
+        mCount = 0;
+        mMean = 0;
+        mSumSquaredDiffs = 0;
+        mSum = 0;
+        mMin = Double.POSITIVE_INFINITY;
+        mMax = Double.NEGATIVE_INFINITY;
+    }
+}
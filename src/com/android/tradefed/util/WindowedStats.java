@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.util.Arrays;
+
+/**
+ * Calculates statistical measures over the most recent measurements of a stream, in constant
+ * memory.
+ * <p/>
+ * Only the last windowSize measurements are kept, in a circular buffer of primitives. Useful to
+ * monitor the current behavior of long running tests, eg the cpu usage of the last minute.
+ */
+public class WindowedStats {
+    private final double[] mWindow;
+    /** the index the next measurement is written at */
+    private int mNext = 0;
+    private int mSize = 0;
+    private long mTotalCount = 0;
+
+    /**
+     * Creates a {@link WindowedStats}.
+     *
+     * @param windowSize the number of most recent measurements to keep
+     */
+    public WindowedStats(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+        mWindow = new double[windowSize];
+    }
+
+    /**
+     * Add a measurement, evicting the oldest one if the window is full.
+     */
+    public void add(double meas) {
+        mWindow[mNext] = meas;
+        mNext = (mNext + 1) % mWindow.length;
+        mSize = Math.min(mSize + 1, mWindow.length);
+        mTotalCount++;
+    }
+
+    /**
+     * Check if the window is empty.
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Return how many measurements are in the window.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Return how many measurements were added in total, including evicted ones.
+     */
+    public long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Return the measurements in the window, oldest first.
+     */
+    public double[] getWindow() {
+        double[] window = new double[mSize];
+        int oldest = (mNext - mSize + mWindow.length) % mWindow.length;
+        int firstPart = Math.min(mSize, mWindow.length - oldest);
+        System.arraycopy(mWindow, oldest, window, 0, firstPart);
+        System.arraycopy(mWindow, 0, window, firstPart, mSize - firstPart);
+        return window;
+    }
+
+    /**
+     * Calculate the {@link StreamingStats} of the measurements in the window.
+     */
+    public StreamingStats getStats() {
+        StreamingStats stats = new StreamingStats();
+        for (int i = 0; i < mSize; i++) {
+            stats.add(mWindow[i]);
+        }
+        return stats;
+    }
+
+    /**
+     * Calculate and return the mean of the window, or {@code null} if it is empty.
+     */
+    public Double mean() {
+        return getStats().mean();
+    }
+
+    /**
+     * Calculate and return the standard deviation of the window, or {@code null} if it is empty.
+     */
+    public Double stdev() {
+        return getStats().stdev();
+    }
+
+    /**
+     * Return the minimum value in the window, or {@code null} if it is empty.
+     */
+    public Double min() {
+        return getStats().min();
+    }
+
+    /**
+     * Return the maximum value in the window, or {@code null} if it is empty.
+     */
+    public Double max() {
+        return getStats().max();
+    }
+
+    /**
+     * Calculate a percentile of the window, with the nearest-rank method.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the percentile, or {@code null} if the window is empty
+     */
+    public Double percentile(double percentile) {
+        if (isEmpty()) {
+            return null;
+        }
+        double[] sorted = Arrays.copyOf(mWindow, mSize);
+        Arrays.sort(sorted);
+        return sorted[SimpleStats.getNearestRankIndex(mSize, percentile)];
+    }
+}
@@ -16,8 +16,8 @@
 package com.android.tradefed.util;
 
 import com.android.tradefed.log.LogUtil.CLog;
+import com.google.common.util.concurrent.Uninterruptibles;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -25,9 +25,35 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
@@ -39,6 +65,38 @@ import java.util.zip.ZipOutputStream;
  */
 public class ZipUtil {
 
+    /** the default number of threads to extract or create zip files with */
+    private static final int DEFAULT_NUM_THREADS =
+            Math.min(Runtime.getRuntime().availableProcessors(), 8);
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int LOCAL_HEADER_NAME_LENGTH_OFFSET = 26;
+    private static final int LOCAL_HEADER_EXTRA_LENGTH_OFFSET = 28;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIR_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIR_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_END_OF_CENTRAL_DIR_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIR_SIZE = 56;
+    private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+    private static final long ZIP64_MAGIC_VALUE = 0xFFFFFFFFL;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger(0);
+
+    /** a buffer per extracting thread */
+    private static final ThreadLocal<byte[]> sCopyBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
+
     /**
      * Utility method to verify that a zip file is not corrupt.
      *
@@ -61,7 +119,8 @@ public class ZipUtil {
                 // Reading the entire file is the only way to detect CRC errors within the archive
                 final File extractDir = FileUtil.createTempDir("extract-" + zipFile.getName());
                 try {
-                    extractZip(z, extractDir);
+                    // copying uncompressed entries as is would skip their checksum
+                    extractZip(z, extractDir, null, DEFAULT_NUM_THREADS, false);
                 } finally {
                     FileUtil.recursiveDelete(extractDir);
                 }
@@ -77,22 +136,300 @@ public class ZipUtil {
 
     /**
      * Utility method to extract entire contents of zip file into given directory
+     * <p/>
+     * Entries are extracted in parallel.
      *
      * @param zipFile the {@link ZipFile} to extract
      * @param destDir the local dir to extract file to
      * @throws IOException if failed to extract file
      */
     public static void extractZip(ZipFile zipFile, File destDir) throws IOException {
+        extractZip(zipFile, destDir, null);
+    }
+
+    /**
+     * Utility method to extract the entries of a zip file matching any of given glob patterns
+     * into given directory.
+     * <p/>
+     * Entries are extracted in parallel. Uncompressed entries are copied directly from the zip
+     * file, without verifying their checksum.
+     *
+     * @param zipFile the {@link ZipFile} to extract
+     * @param destDir the local dir to extract file to
+     * @param includeGlobs the glob patterns, in the syntax of
+     *            {@link FileSystem#getPathMatcher(String)}, matched against entry names, eg
+     *            "DATA/app/**.apk". <code>null</code> to extract all entries.
+     * @throws IOException if failed to extract file
+     */
+    public static void extractZip(ZipFile zipFile, File destDir, Collection<String> includeGlobs)
+            throws IOException {
+        extractZip(zipFile, destDir, includeGlobs, DEFAULT_NUM_THREADS, true);
+    }
+
+    /**
+     * Extracts the entries of a zip file matching any of given glob patterns.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @param numThreads the number of threads to extract with
+     * @param copyStored whether to copy uncompressed entries directly from the zip file. If
+     *            <code>false</code>, their checksum is verified.
+     */
+    static void extractZip(final ZipFile zipFile, File destDir, Collection<String> includeGlobs,
+            int numThreads, boolean copyStored) throws IOException {
+        List<PathMatcher> matchers = null;
+        if (includeGlobs != null) {
+            matchers = new ArrayList<PathMatcher>(includeGlobs.size());
+            for (String glob : includeGlobs) {
+                matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+            }
+        }
+        List<ZipEntry> fileEntries = new ArrayList<ZipEntry>();
+        Set<File> dirs = new LinkedHashSet<File>();
         Enumeration<? extends ZipEntry> entries = zipFile.entries();
         while (entries.hasMoreElements()) {
-
             ZipEntry entry = entries.nextElement();
+            if (matchers != null && !matchesAny(matchers, entry.getName())) {
+                continue;
+            }
             File childFile = new File(destDir, entry.getName());
-            childFile.getParentFile().mkdirs();
             if (entry.isDirectory()) {
-                continue;
+                dirs.add(childFile);
             } else {
-                FileUtil.writeToFile(zipFile.getInputStream(entry), childFile);
+                dirs.add(childFile.getParentFile());
+                fileEntries.add(entry);
+            }
+        }
+        // create each directory once up front, rather than once per entry
+        for (File dir : dirs) {
+            dir.mkdirs();
+        }
+        if (fileEntries.isEmpty()) {
+            return;
+        }
+        // extract largest entries first, so that the last ones to complete are small
+        Collections.sort(fileEntries, new Comparator<ZipEntry>() {
+            @Override
+            public int compare(ZipEntry e1, ZipEntry e2) {
+                return Long.compare(e2.getCompressedSize(), e1.getCompressedSize());
+            }
+        });
+
+        RandomAccessFile rawZipFile = null;
+        final Map<String, Long> storedEntryOffsets;
+        if (copyStored) {
+            rawZipFile = new RandomAccessFile(zipFile.getName(), "r");
+            storedEntryOffsets = readStoredEntryOffsets(rawZipFile.getChannel());
+        } else {
+            storedEntryOffsets = Collections.emptyMap();
+        }
+        final FileChannel rawZipChannel = rawZipFile == null ? null : rawZipFile.getChannel();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(numThreads, fileEntries.size())), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, String.format("ZipUtil-extract-%d",
+                                sThreadCount.incrementAndGet()));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(fileEntries.size());
+            for (final ZipEntry entry : fileEntries) {
+                final File childFile = new File(destDir, entry.getName());
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        Long localHeaderOffset = storedEntryOffsets.get(entry.getName());
+                        if (localHeaderOffset == null || !copyStoredEntry(rawZipChannel,
+                                localHeaderOffset, entry.getSize(), childFile)) {
+                            extractEntry(zipFile, entry, childFile);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException)e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            StreamUtil.close(rawZipFile);
+        }
+    }
+
+    private static boolean matchesAny(List<PathMatcher> matchers, String entryName) {
+        Path path = Paths.get(entryName);
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Extracts a zip entry through a decompressing stream.
+     */
+    private static void extractEntry(ZipFile zipFile, ZipEntry entry, File destFile)
+            throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = zipFile.getInputStream(entry);
+            out = new FileOutputStream(destFile);
+            byte[] buffer = sCopyBuffer.get();
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            StreamUtil.close(in);
+            StreamUtil.close(out);
+        }
+    }
+
+    /**
+     * Copies the data of an uncompressed entry directly from the zip file.
+     *
+     * @param zipChannel the {@link FileChannel} of the zip file
+     * @param localHeaderOffset the offset of the local header of the entry in the zip file
+     * @param size the size of the entry
+     * @param destFile the file to copy the entry to
+     * @return <code>false</code> if the local header of the entry was not found
+     */
+    private static boolean copyStoredEntry(FileChannel zipChannel, long localHeaderOffset,
+            long size, File destFile) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(zipChannel, header, localHeaderOffset);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            return false;
+        }
+        long position = localHeaderOffset + LOCAL_HEADER_SIZE
+                + (header.getShort(LOCAL_HEADER_NAME_LENGTH_OFFSET) & 0xFFFF)
+                + (header.getShort(LOCAL_HEADER_EXTRA_LENGTH_OFFSET) & 0xFFFF);
+        long end = position + size;
+        FileOutputStream out = new FileOutputStream(destFile);
+        try {
+            FileChannel outChannel = out.getChannel();
+            while (position < end) {
+                long transferred = zipChannel.transferTo(position, end - position, outChannel);
+                if (transferred <= 0) {
+                    throw new ZipException(String.format("Unexpected end of zip file reading %s",
+                            destFile.getName()));
+                }
+                position += transferred;
+            }
+        } finally {
+            StreamUtil.close(out);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the central directory of a zip file, to find the local header offsets of its
+     * uncompressed entries.
+     *
+     * @param zipChannel the {@link FileChannel} of the zip file
+     * @return a {@link Map} of entry names to the offset of their local header. Empty if the
+     *         central directory could not be read.
+     */
+    static Map<String, Long> readStoredEntryOffsets(FileChannel zipChannel) throws IOException {
+        Map<String, Long> offsets = new HashMap<String, Long>();
+        long zipSize = zipChannel.size();
+        int tailSize = (int)Math.min(zipSize, END_OF_CENTRAL_DIR_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(zipChannel, tail, zipSize - tailSize);
+        int endOffset = tailSize - END_OF_CENTRAL_DIR_SIZE;
+        while (endOffset >= 0 && tail.getInt(endOffset) != END_OF_CENTRAL_DIR_SIGNATURE) {
+            endOffset--;
+        }
+        if (endOffset < 0) {
+            return offsets;
+        }
+        long centralDirSize = tail.getInt(endOffset + 12) & 0xFFFFFFFFL;
+        long centralDirOffset = tail.getInt(endOffset + 16) & 0xFFFFFFFFL;
+        int zip64LocatorOffset = endOffset - ZIP64_LOCATOR_SIZE;
+        if (zip64LocatorOffset >= 0
+                && tail.getInt(zip64LocatorOffset) == ZIP64_LOCATOR_SIGNATURE) {
+            ByteBuffer zip64End = ByteBuffer.allocate(ZIP64_END_OF_CENTRAL_DIR_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(zipChannel, zip64End, tail.getLong(zip64LocatorOffset + 8));
+            if (zip64End.getInt(0) != ZIP64_END_OF_CENTRAL_DIR_SIGNATURE) {
+                return offsets;
+            }
+            centralDirSize = zip64End.getLong(40);
+            centralDirOffset = zip64End.getLong(48);
+        }
+        if (centralDirSize > Integer.MAX_VALUE) {
+            return offsets;
+        }
+        ByteBuffer centralDir = ByteBuffer.allocate((int)centralDirSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        readFully(zipChannel, centralDir, centralDirOffset);
+        int pos = 0;
+        while (pos + CENTRAL_HEADER_SIZE <= centralDirSize
+                && centralDir.getInt(pos) == CENTRAL_HEADER_SIGNATURE) {
+            int method = centralDir.getShort(pos + 10) & 0xFFFF;
+            long compressedSize = centralDir.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = centralDir.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = centralDir.getShort(pos + 28) & 0xFFFF;
+            int extraLength = centralDir.getShort(pos + 30) & 0xFFFF;
+            int commentLength = centralDir.getShort(pos + 32) & 0xFFFF;
+            long localHeaderOffset = centralDir.getInt(pos + 42) & 0xFFFFFFFFL;
+            int namePos = pos + CENTRAL_HEADER_SIZE;
+            if (localHeaderOffset == ZIP64_MAGIC_VALUE) {
+                localHeaderOffset = readZip64Offset(centralDir, namePos + nameLength,
+                        extraLength, size == ZIP64_MAGIC_VALUE,
+                        compressedSize == ZIP64_MAGIC_VALUE);
+            }
+            if (method == ZipEntry.STORED && localHeaderOffset >= 0) {
+                String name = new String(centralDir.array(), namePos, nameLength, UTF_8);
+                offsets.put(name, localHeaderOffset);
+            }
+            pos = namePos + nameLength + extraLength + commentLength;
+        }
+        return offsets;
+    }
+
+    /**
+     * Reads the local header offset from the ZIP64 extra field of a central directory entry.
+     *
+     * @return the offset, or -1 if not found
+     */
+    private static long readZip64Offset(ByteBuffer centralDir, int extraPos, int extraLength,
+            boolean hasSize, boolean hasCompressedSize) {
+        int pos = extraPos;
+        while (pos + 4 <= extraPos + extraLength) {
+            int id = centralDir.getShort(pos) & 0xFFFF;
+            int length = centralDir.getShort(pos + 2) & 0xFFFF;
+            if (id == ZIP64_EXTRA_FIELD_ID) {
+                // the field only holds the values that did not fit in the header, in order
+                int offsetPos = pos + 4 + (hasSize ? 8 : 0) + (hasCompressedSize ? 8 : 0);
+                if (offsetPos + 8 <= pos + 4 + length) {
+                    return centralDir.getLong(offsetPos);
+                }
+                return -1;
+            }
+            pos += 4 + length;
+        }
+        return -1;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new ZipException("Unexpected end of zip file");
             }
         }
     }
@@ -139,22 +476,90 @@ public class ZipUtil {
      * @throws IOException if failed to create zip file
      */
     public static void createZip(File dir, File zipFile) throws IOException {
-        ZipOutputStream out = null;
+        createZip(dir, zipFile, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Utility method to create a zip file containing the given directory and
+     * all its contents, compressing files in parallel.
+     *
+     * @param dir the directory to zip
+     * @param zipFile the zip file to create - it should not already exist
+     * @param compressionLevel the {@link Deflater} compression level, from
+     *            {@link Deflater#NO_COMPRESSION}, to store files as is, to
+     *            {@link Deflater#BEST_COMPRESSION}.
+     * @throws IOException if failed to create zip file
+     */
+    public static void createZip(File dir, File zipFile, int compressionLevel)
+            throws IOException {
+        createZip(dir, zipFile, compressionLevel, DEFAULT_NUM_THREADS);
+    }
+
+    /**
+     * Creates a zip file containing the given directory and all its contents.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @param numThreads the number of threads to compress with
+     */
+    static void createZip(File dir, File zipFile, int compressionLevel, int numThreads)
+            throws IOException {
         try {
-            FileOutputStream fileStream = new FileOutputStream(zipFile);
-            out = new ZipOutputStream(new BufferedOutputStream(fileStream));
-            addToZip(out, dir, new LinkedList<String>());
+            List<ParallelZipWriter.Entry> entries = new ArrayList<ParallelZipWriter.Entry>();
+            long totalSize = listZipEntries(dir, "", entries);
+            if (numThreads > 1 && ParallelZipWriter.canWrite(entries.size(), totalSize)) {
+                new ParallelZipWriter(compressionLevel, numThreads).write(entries, zipFile);
+                return;
+            }
+            // fall back to ZipOutputStream, which supports ZIP64
+            ZipOutputStream out = null;
+            try {
+                FileOutputStream fileStream = new FileOutputStream(zipFile);
+                out = new ZipOutputStream(new BufferedOutputStream(fileStream));
+                out.setLevel(compressionLevel);
+                addToZip(out, dir, new LinkedList<String>());
+            } finally {
+                StreamUtil.close(out);
+            }
         } catch (IOException e) {
             zipFile.delete();
             throw e;
         } catch (RuntimeException e) {
             zipFile.delete();
             throw e;
-        } finally {
-            StreamUtil.close(out);
         }
     }
 
+    /**
+     * Recursively lists given file and its contents, in the order {@link #addToZip} adds them.
+     *
+     * @param file the {@link File} to list
+     * @param parentPath the path of the parent of file in the zip file, including separators
+     * @param entries the {@link List} to add entries to
+     * @return the total size of the listed files
+     * @throws IOException if failed to list a directory
+     */
+    private static long listZipEntries(File file, String parentPath,
+            List<ParallelZipWriter.Entry> entries) throws IOException {
+        if (!file.isDirectory()) {
+            entries.add(new ParallelZipWriter.Entry(parentPath + file.getName(), file));
+            return file.length();
+        }
+        // note: it appears even on windows, ZipEntry expects '/' as a path separator
+        String path = parentPath + file.getName() + "/";
+        entries.add(new ParallelZipWriter.Entry(path, file));
+        File[] subFiles = file.listFiles();
+        if (subFiles == null) {
+            throw new IOException(String.format("Could not read directory %s",
+                    file.getAbsolutePath()));
+        }
+        long totalSize = 0;
+        for (File subFile : subFiles) {
+            totalSize += listZipEntries(subFile, path, entries);
+        }
+        return totalSize;
+    }
+
     /**
      * Recursively adds given file and its contents to ZipOutputStream
      *
@@ -243,8 +648,13 @@ public class ZipUtil {
     private static void writeToStream(File file, OutputStream out) throws IOException {
         InputStream inputStream = null;
         try {
-            inputStream = new BufferedInputStream(new FileInputStream(file));
-            StreamUtil.copyStreams(inputStream, out);
+            inputStream = new FileInputStream(file);
+            // copy in large chunks: deflating streams are slow to write to byte by byte
+            byte[] buffer = sCopyBuffer.get();
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
         } finally {
             StreamUtil.close(inputStream);
         }
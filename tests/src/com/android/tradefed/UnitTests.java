@@ -23,6 +23,7 @@ import com.android.tradefed.build.KernelBuildInfoTest;
 import com.android.tradefed.build.KernelDeviceBuildInfoTest;
 import com.android.tradefed.build.OtaZipfileBuildProviderTest;
 import com.android.tradefed.build.SdkBuildInfoTest;
+import com.android.tradefed.command.CommandAllocationIndexTest;
 import com.android.tradefed.command.CommandFileParserTest;
 import com.android.tradefed.command.CommandSchedulerTest;
 import com.android.tradefed.command.ConsoleTest;
@@ -38,29 +39,37 @@ import com.android.tradefed.config.OptionSetterTest;
 import com.android.tradefed.config.OptionUpdateRuleTest;
 import com.android.tradefed.device.CpuStatsCollectorTest;
 import com.android.tradefed.device.DeviceManagerTest;
+import com.android.tradefed.device.DevicePropertyCacheTest;
 import com.android.tradefed.device.DeviceSelectionOptionsTest;
 import com.android.tradefed.device.DeviceStateMonitorTest;
 import com.android.tradefed.device.DeviceUtilStatsMonitorTest;
 import com.android.tradefed.device.DumpsysPackageReceiverTest;
+import com.android.tradefed.device.FastbootUsbWatcherTest;
+import com.android.tradefed.device.FileSyncerTest;
 import com.android.tradefed.device.ManagedDeviceListTest;
 import com.android.tradefed.device.ReconnectingRecoveryTest;
 import com.android.tradefed.device.TestDeviceTest;
 import com.android.tradefed.device.WaitDeviceRecoveryTest;
 import com.android.tradefed.device.WifiHelperTest;
+import com.android.tradefed.invoker.ShardResultAggregatorTest;
 import com.android.tradefed.invoker.TestInvocationTest;
+import com.android.tradefed.log.AsyncLogWriterTest;
 import com.android.tradefed.log.FileLoggerTest;
 import com.android.tradefed.log.LogRegistryTest;
 import com.android.tradefed.log.TerribleFailureEmailHandlerTest;
 import com.android.tradefed.result.BugreportCollectorTest;
 import com.android.tradefed.result.CollectingTestListenerTest;
 import com.android.tradefed.result.EmailResultReporterTest;
+import com.android.tradefed.result.FailureArtifactCollectorTest;
 import com.android.tradefed.result.FailureEmailResultReporterTest;
 import com.android.tradefed.result.FileSystemLogSaverTest;
 import com.android.tradefed.result.InvocationFailureEmailResultReporterTest;
 import com.android.tradefed.result.InvocationToJUnitResultForwarderTest;
 import com.android.tradefed.result.JUnitToInvocationResultForwarderTest;
 import com.android.tradefed.result.LogFileSaverTest;
+import com.android.tradefed.result.MetricStoreTest;
 import com.android.tradefed.result.SnapshotInputStreamSourceTest;
+import com.android.tradefed.result.TestDurationStoreTest;
 import com.android.tradefed.result.TestFailureEmailResultReporterTest;
 import com.android.tradefed.result.TestSummaryTest;
 import com.android.tradefed.result.XmlResultReporterTest;
@@ -77,16 +86,19 @@ import com.android.tradefed.targetprep.StopServicesSetupTest;
 import com.android.tradefed.targetprep.SystemUpdaterDeviceFlasherTest;
 import com.android.tradefed.testtype.DeviceTestCaseTest;
 import com.android.tradefed.testtype.DeviceTestSuite;
+import com.android.tradefed.testtype.DurationSharderTest;
 import com.android.tradefed.testtype.FakeTestTest;
 import com.android.tradefed.testtype.GTestResultParserTest;
 import com.android.tradefed.testtype.GTestTest;
 import com.android.tradefed.testtype.HostTestTest;
+import com.android.tradefed.testtype.InstrumentationBatchTestTest;
 import com.android.tradefed.testtype.InstrumentationFileTestTest;
 import com.android.tradefed.testtype.InstrumentationSerialTestTest;
 import com.android.tradefed.testtype.InstrumentationTestTest;
 import com.android.tradefed.testtype.NativeBenchmarkTestParserTest;
 import com.android.tradefed.testtype.NativeStressTestParserTest;
 import com.android.tradefed.testtype.NativeStressTestTest;
+import com.android.tradefed.testtype.NativeTestOutputReceiverTest;
 import com.android.tradefed.testtype.testdefs.XmlDefsParserTest;
 import com.android.tradefed.testtype.testdefs.XmlDefsTestTest;
 import com.android.tradefed.util.AaptParserTest;
@@ -97,13 +109,18 @@ import com.android.tradefed.util.ConditionPriorityBlockingQueueTest;
 import com.android.tradefed.util.EmailTest;
 import com.android.tradefed.util.FileUtilTest;
 import com.android.tradefed.util.JUnitXmlParserTest;
+import com.android.tradefed.util.LatencyHistogramTest;
 import com.android.tradefed.util.MultiMapTest;
 import com.android.tradefed.util.NullUtilTest;
 import com.android.tradefed.util.PairTest;
+import com.android.tradefed.util.ParallelGzipOutputStreamTest;
+import com.android.tradefed.util.PercentileSketchTest;
 import com.android.tradefed.util.QuotationAwareTokenizerTest;
 import com.android.tradefed.util.RegexTrieTest;
 import com.android.tradefed.util.RunUtilTest;
 import com.android.tradefed.util.SizeLimitedOutputStreamTest;
+import com.android.tradefed.util.StreamingStatsTest;
+import com.android.tradefed.util.WindowedStatsTest;
 import com.android.tradefed.util.net.HttpMultipartPostTest;
 import com.android.tradefed.util.xml.AndroidManifestWriterTest;
 
@@ -129,6 +146,7 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(SdkBuildInfoTest.class);
 
         // command
+        addTestSuite(CommandAllocationIndexTest.class);
         addTestSuite(CommandFileParserTest.class);
         addTestSuite(CommandSchedulerTest.class);
         addTestSuite(ConsoleTest.class);
@@ -150,20 +168,25 @@ public class UnitTests extends DeviceTestSuite {
         // device
         addTestSuite(CpuStatsCollectorTest.class);
         addTestSuite(DeviceManagerTest.class);
+        addTestSuite(DevicePropertyCacheTest.class);
         addTestSuite(ManagedDeviceListTest.class);
         addTestSuite(DeviceSelectionOptionsTest.class);
         addTestSuite(DeviceStateMonitorTest.class);
         addTestSuite(DeviceUtilStatsMonitorTest.class);
         addTestSuite(DumpsysPackageReceiverTest.class);
+        addTestSuite(FastbootUsbWatcherTest.class);
+        addTestSuite(FileSyncerTest.class);
         addTestSuite(ReconnectingRecoveryTest.class);
         addTestSuite(TestDeviceTest.class);
         addTestSuite(WaitDeviceRecoveryTest.class);
         addTestSuite(WifiHelperTest.class);
 
         // invoker
+        addTestSuite(ShardResultAggregatorTest.class);
         addTestSuite(TestInvocationTest.class);
 
         // log
+        addTestSuite(AsyncLogWriterTest.class);
         addTestSuite(FileLoggerTest.class);
         addTestSuite(LogRegistryTest.class);
         addTestSuite(TerribleFailureEmailHandlerTest.class);
@@ -172,13 +195,16 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(BugreportCollectorTest.class);
         addTestSuite(CollectingTestListenerTest.class);
         addTestSuite(EmailResultReporterTest.class);
+        addTestSuite(FailureArtifactCollectorTest.class);
         addTestSuite(FailureEmailResultReporterTest.class);
         addTestSuite(FileSystemLogSaverTest.class);
         addTestSuite(InvocationFailureEmailResultReporterTest.class);
         addTestSuite(InvocationToJUnitResultForwarderTest.class);
         addTestSuite(JUnitToInvocationResultForwarderTest.class);
         addTestSuite(LogFileSaverTest.class);
+        addTestSuite(MetricStoreTest.class);
         addTestSuite(SnapshotInputStreamSourceTest.class);
+        addTestSuite(TestDurationStoreTest.class);
         addTestSuite(TestSummaryTest.class);
         addTestSuite(TestFailureEmailResultReporterTest.class);
         addTestSuite(XmlResultReporterTest.class);
@@ -198,16 +224,19 @@ public class UnitTests extends DeviceTestSuite {
 
         // testtype
         addTestSuite(DeviceTestCaseTest.class);
+        addTestSuite(DurationSharderTest.class);
         addTestSuite(FakeTestTest.class);
         addTestSuite(GTestResultParserTest.class);
         addTestSuite(GTestTest.class);
         addTestSuite(HostTestTest.class);
+        addTestSuite(InstrumentationBatchTestTest.class);
         addTestSuite(InstrumentationSerialTestTest.class);
         addTestSuite(InstrumentationFileTestTest.class);
         addTestSuite(InstrumentationTestTest.class);
         addTestSuite(NativeBenchmarkTestParserTest.class);
         addTestSuite(NativeStressTestParserTest.class);
         addTestSuite(NativeStressTestTest.class);
+        addTestSuite(NativeTestOutputReceiverTest.class);
 
         // testtype/testdefs
         addTestSuite(XmlDefsParserTest.class);
@@ -223,13 +252,18 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(FileUtilTest.class);
         addTestSuite(HttpMultipartPostTest.class);
         addTestSuite(JUnitXmlParserTest.class);
+        addTestSuite(LatencyHistogramTest.class);
         addTestSuite(MultiMapTest.class);
         addTestSuite(NullUtilTest.class);
         addTestSuite(PairTest.class);
+        addTestSuite(ParallelGzipOutputStreamTest.class);
+        addTestSuite(PercentileSketchTest.class);
         addTestSuite(QuotationAwareTokenizerTest.class);
         addTestSuite(RegexTrieTest.class);
         addTestSuite(RunUtilTest.class);
         addTestSuite(SizeLimitedOutputStreamTest.class);
+        addTestSuite(StreamingStatsTest.class);
+        addTestSuite(WindowedStatsTest.class);
 
         // util subdirs
         addTestSuite(AndroidManifestWriterTest.class);
@@ -26,6 +26,11 @@ import org.easymock.IAnswer;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link FileDownloadCache}.
@@ -34,6 +39,7 @@ public class FileDownloadCacheTest extends TestCase {
 
     private static final String REMOTE_PATH = "foo/path";
     private static final String DOWNLOADED_CONTENTS = "downloaded contents";
+    private static final long TIMEOUT_MS = 10 * 1000;
 
     private IFileDownloader mMockDownloader;
 
@@ -91,10 +97,150 @@ public class FileDownloadCacheTest extends TestCase {
         setDownloadExpections();
         EasyMock.replay(mMockDownloader);
         assertFetchRemoteFile(remotePath2);
-        // now retrieve another file, which will exceed size of cache
-        assertFetchRemoteFile();
+        // now retrieve another file, which will exceed size of cache. Keep the copy around so
+        // its cached file is in use
+        File fileCopy = mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH);
+        try {
+            mCache.waitForMaintenance();
+            assertNotNull(mCache.getCachedFile(REMOTE_PATH));
+            assertNull(mCache.getCachedFile(remotePath2));
+        } finally {
+            fileCopy.delete();
+        }
+        EasyMock.verify(mMockDownloader);
+    }
+
+    /**
+     * Test that eviction skips cached files that have live copies, and removes them once their
+     * copies are deleted.
+     */
+    public void testFetchRemoteFile_evictInUse() throws Exception {
+        mCache.setMaxCacheSize(DOWNLOADED_CONTENTS.length() - 1);
+        setDownloadExpections();
+        EasyMock.replay(mMockDownloader);
+        File fileCopy = mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH);
+        mCache.waitForMaintenance();
         assertNotNull(mCache.getCachedFile(REMOTE_PATH));
-        assertNull(mCache.getCachedFile(remotePath2));
+        fileCopy.delete();
+        // trigger another eviction attempt
+        new FileDownloadCache(mCacheDir) {
+            @Override
+            long getMaxFileCacheSize() {
+                return DOWNLOADED_CONTENTS.length() - 2;
+            }
+        };
+        assertFalse(new File(mCacheDir, REMOTE_PATH).exists());
+        EasyMock.verify(mMockDownloader);
+    }
+
+    /**
+     * Test that concurrent requests for the same file share one download.
+     */
+    public void testFetchRemoteFile_singleDownload() throws Exception {
+        final CountDownLatch downloadStarted = new CountDownLatch(1);
+        final CountDownLatch downloadRelease = new CountDownLatch(1);
+        final CountDownLatch downloadWaited = new CountDownLatch(1);
+        mCache = new FileDownloadCache(mCacheDir) {
+            @Override
+            void onWaitForDownload(String remotePath) {
+                downloadWaited.countDown();
+            }
+        };
+        mMockDownloader.downloadFile(EasyMock.eq(REMOTE_PATH), EasyMock.<File>anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                downloadStarted.countDown();
+                downloadRelease.await();
+                File fileArg =  (File) EasyMock.getCurrentArguments()[1];
+                FileUtil.writeToFile(DOWNLOADED_CONTENTS, fileArg);
+                return null;
+            }
+        });
+        EasyMock.replay(mMockDownloader);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread fetchThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    assertFetchRemoteFile();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        fetchThread.start();
+        downloadStarted.await();
+        Thread waitThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    assertFetchRemoteFile();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        waitThread.start();
+        // only complete the download once the second fetch waits for it
+        assertTrue(downloadWaited.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        downloadRelease.countDown();
+        fetchThread.join();
+        waitThread.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+        EasyMock.verify(mMockDownloader);
+    }
+
+    /**
+     * Test that a cache hit saves the index with the updated access time.
+     */
+    public void testFetchRemoteFile_cacheHitPersisted() throws Exception {
+        setDownloadExpections();
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile();
+        mCache.waitForMaintenance();
+        File indexFile = new File(mCacheDir, FileDownloadCache.INDEX_FILE_NAME);
+        String index = FileUtil.readStringFromFile(indexFile);
+        // make sure the hit gets a different access time
+        Thread.sleep(10);
+        assertFetchRemoteFile();
+        mCache.waitForMaintenance();
+        assertFalse(index.equals(FileUtil.readStringFromFile(indexFile)));
+        EasyMock.verify(mMockDownloader);
+    }
+
+    /**
+     * Test that cache contents are reloaded from the persisted index.
+     */
+    public void testConstructor_loadIndex() throws Exception {
+        setDownloadExpections();
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile();
+        mCache.waitForMaintenance();
+        assertTrue(new File(mCacheDir, FileDownloadCache.INDEX_FILE_NAME).exists());
+        FileDownloadCache cache = new FileDownloadCache(mCacheDir);
+        assertNotNull(cache.getCachedFile(REMOTE_PATH));
+        // a file removed outside of the cache is dropped from the index
+        cache.getCachedFile(REMOTE_PATH).delete();
+        cache = new FileDownloadCache(mCacheDir);
+        assertNull(cache.getCachedFile(REMOTE_PATH));
+        EasyMock.verify(mMockDownloader);
+    }
+
+    /**
+     * Test that a truncated index is ignored, and the cache is rebuilt from its contents.
+     */
+    public void testConstructor_corruptedIndex() throws Exception {
+        setDownloadExpections();
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile();
+        mCache.waitForMaintenance();
+        File indexFile = new File(mCacheDir, FileDownloadCache.INDEX_FILE_NAME);
+        String index = FileUtil.readStringFromFile(indexFile);
+        // cut the entry line in half, dropping its remote path
+        FileUtil.writeToFile(index.substring(0, index.indexOf('\n') + 4), indexFile);
+        FileDownloadCache cache = new FileDownloadCache(mCacheDir);
+        assertNotNull(cache.getCachedFile(REMOTE_PATH));
         EasyMock.verify(mMockDownloader);
     }
 
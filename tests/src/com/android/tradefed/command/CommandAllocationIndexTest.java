@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.ddmlib.IDevice;
+import com.android.tradefed.device.DeviceSelectionOptions;
+import com.android.tradefed.device.FreeDeviceState;
+import com.android.tradefed.device.IDeviceSelection;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.MockDeviceManager;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link CommandAllocationIndex}.
+ */
+public class CommandAllocationIndexTest extends TestCase {
+
+    /**
+     * A {@link MockDeviceManager} that counts allocation attempts.
+     */
+    private static class CountingDeviceManager extends MockDeviceManager {
+        int mAllocCount = 0;
+
+        CountingDeviceManager(int numDevices) {
+            super(numDevices);
+        }
+
+        @Override
+        public ITestDevice allocateDevice(IDeviceSelection options) {
+            mAllocCount++;
+            return super.allocateDevice(options);
+        }
+    }
+
+    /**
+     * A {@link MockDeviceManager} holding devices of given product types, that counts allocation
+     * attempts.
+     */
+    private static class ProductDeviceManager extends MockDeviceManager {
+        final List<ITestDevice> mAvailable = new ArrayList<ITestDevice>();
+        int mAllocCount = 0;
+
+        ProductDeviceManager(String... productTypes) {
+            super(0);
+            for (int i = 0; i < productTypes.length; i++) {
+                IDevice iDevice = EasyMock.createNiceMock(IDevice.class);
+                EasyMock.expect(iDevice.getSerialNumber()).andStubReturn("serial" + i);
+                EasyMock.expect(iDevice.getProperty(DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY))
+                        .andStubReturn(productTypes[i]);
+                ITestDevice device = EasyMock.createNiceMock(ITestDevice.class);
+                EasyMock.expect(device.getSerialNumber()).andStubReturn("serial" + i);
+                EasyMock.expect(device.getIDevice()).andStubReturn(iDevice);
+                EasyMock.replay(iDevice, device);
+                mAvailable.add(device);
+            }
+        }
+
+        @Override
+        public ITestDevice allocateDevice(IDeviceSelection options) {
+            mAllocCount++;
+            for (ITestDevice device : mAvailable) {
+                if (options.matches(device.getIDevice())) {
+                    mAvailable.remove(device);
+                    return device;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void freeDevice(ITestDevice device, FreeDeviceState state) {
+            mAvailable.add(device);
+        }
+    }
+
+    /** orders commands by their integer value, lowest first */
+    private static final Comparator<Integer> PRIORITY = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+            return o1.compareTo(o2);
+        }
+    };
+
+    private CommandAllocationIndex<Integer> mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new CommandAllocationIndex<Integer>(PRIORITY);
+    }
+
+    /**
+     * Test that commands with equal requirements share a bucket.
+     */
+    public void testAdd_bucketing() {
+        mIndex.add(1, new DeviceSelectionOptions());
+        mIndex.add(2, new DeviceSelectionOptions());
+        mIndex.add(3, createSerialOptions("serial0"));
+        mIndex.add(4, createSerialOptions("serial0"));
+        assertEquals(4, mIndex.size());
+        assertEquals(2, mIndex.getBucketCount());
+        assertTrue(mIndex.remove(3));
+        assertTrue(mIndex.remove(4));
+        assertFalse(mIndex.remove(4));
+        assertEquals(1, mIndex.getBucketCount());
+        mIndex.clear();
+        assertEquals(0, mIndex.size());
+    }
+
+    /**
+     * Test that the highest priority command is allocated first.
+     */
+    public void testAllocate_priority() {
+        CountingDeviceManager manager = new CountingDeviceManager(1);
+        mIndex.add(5, new DeviceSelectionOptions());
+        mIndex.add(2, new DeviceSelectionOptions());
+        mIndex.add(7, new DeviceSelectionOptions());
+        Map<Integer, ITestDevice> allocated = mIndex.allocate(manager);
+        assertEquals(1, allocated.size());
+        assertTrue(allocated.containsKey(2));
+        assertEquals(2, mIndex.size());
+    }
+
+    /**
+     * Test that buckets competing for the same devices are allocated in global priority order,
+     * rather than one bucket taking every device ahead of a higher priority command.
+     */
+    public void testAllocate_priorityAcrossBuckets() {
+        CountingDeviceManager manager = new CountingDeviceManager(2);
+        mIndex.add(1, new DeviceSelectionOptions());
+        mIndex.add(8, new DeviceSelectionOptions());
+        mIndex.add(9, new DeviceSelectionOptions());
+        DeviceSelectionOptions bothSerials = createSerialOptions("serial0");
+        bothSerials.addSerial("serial1");
+        mIndex.add(2, bothSerials);
+        assertEquals(2, mIndex.getBucketCount());
+        Map<Integer, ITestDevice> allocated = mIndex.allocate(manager);
+        assertEquals(2, allocated.size());
+        assertTrue(allocated.containsKey(1));
+        assertTrue(allocated.containsKey(2));
+        assertEquals(2, mIndex.size());
+    }
+
+    /**
+     * Test that a bucket that failed to match is not re-evaluated until a device it could use
+     * becomes available.
+     */
+    public void testAllocate_eventDriven() {
+        CountingDeviceManager manager = new CountingDeviceManager(2);
+        ITestDevice device0 = manager.allocateDevice(createSerialOptions("serial0"));
+        ITestDevice device1 = manager.allocateDevice(createSerialOptions("serial1"));
+        manager.mAllocCount = 0;
+        mIndex.add(1, createSerialOptions("serial0"));
+        mIndex.add(2, createSerialOptions("serial0"));
+        mIndex.add(3, createSerialOptions("serial1"));
+        assertTrue(mIndex.allocate(manager).isEmpty());
+        // one attempt per bucket
+        assertEquals(2, manager.mAllocCount);
+        assertTrue(mIndex.allocate(manager).isEmpty());
+        assertEquals(2, manager.mAllocCount);
+
+        // only the serial0 bucket should be evaluated
+        manager.freeDevice(device0, FreeDeviceState.AVAILABLE);
+        mIndex.notifyDeviceAvailable("serial0");
+        Map<Integer, ITestDevice> allocated = mIndex.allocate(manager);
+        assertEquals(3, manager.mAllocCount);
+        assertEquals(1, allocated.size());
+        assertEquals(device0, allocated.get(1));
+
+        // a full rescan evaluates all buckets again
+        manager.freeDevice(device1, FreeDeviceState.AVAILABLE);
+        mIndex.markAllDirty();
+        allocated = mIndex.allocate(manager);
+        assertEquals(1, allocated.size());
+        assertEquals(device1, allocated.get(3));
+        assertEquals(1, mIndex.size());
+    }
+
+    /**
+     * Test that a newly available device goes to the highest priority candidate bucket.
+     */
+    public void testAllocate_deviceAvailablePriority() {
+        CountingDeviceManager manager = new CountingDeviceManager(1);
+        ITestDevice device = manager.allocateDevice(new DeviceSelectionOptions());
+        mIndex.add(4, new DeviceSelectionOptions());
+        mIndex.add(3, createSerialOptions("serial0"));
+        mIndex.add(1, createSerialOptions("serial1"));
+        assertTrue(mIndex.allocate(manager).isEmpty());
+
+        manager.freeDevice(device, FreeDeviceState.AVAILABLE);
+        mIndex.notifyDeviceAvailable("serial0");
+        Map<Integer, ITestDevice> allocated = mIndex.allocate(manager);
+        assertEquals(1, allocated.size());
+        assertEquals(device, allocated.get(3));
+    }
+
+    /**
+     * Test that the cost of offering a device to waiting commands depends on the number of
+     * distinct requirements, not on the number of commands.
+     */
+    public void testAllocate_manyCommands() {
+        CountingDeviceManager manager = new CountingDeviceManager(10);
+        ITestDevice device = manager.allocateDevice(createSerialOptions("serial0"));
+        for (int i = 1; i < 10; i++) {
+            manager.allocateDevice(createSerialOptions("serial" + i));
+        }
+        manager.mAllocCount = 0;
+        for (int i = 0; i < 3000; i++) {
+            // a few hundred commands for each serial, and as many for a product no device has
+            if (i % 11 == 10) {
+                mIndex.add(i, createProductOptions("product"));
+            } else {
+                mIndex.add(i, createSerialOptions("serial" + (i % 11)));
+            }
+        }
+        assertEquals(11, mIndex.getBucketCount());
+        assertTrue(mIndex.allocate(manager).isEmpty());
+        assertEquals(11, manager.mAllocCount);
+
+        manager.freeDevice(device, FreeDeviceState.AVAILABLE);
+        mIndex.notifyDeviceAvailable("serial0");
+        Map<Integer, ITestDevice> allocated = mIndex.allocate(manager);
+        assertEquals(1, allocated.size());
+        assertEquals(device, allocated.get(0));
+        // only the highest priority candidate bucket should be evaluated
+        assertEquals(12, manager.mAllocCount);
+    }
+
+    /**
+     * Test that a newly available device is only offered to the buckets requesting its product
+     * type, once its product type is known.
+     */
+    public void testAllocate_productTypeIndex() {
+        ProductDeviceManager manager = new ProductDeviceManager("mako", "flo");
+        mIndex.add(1, createProductOptions("mako"));
+        mIndex.add(2, createProductOptions("flo"));
+        Map<Integer, ITestDevice> allocated = mIndex.allocate(manager);
+        assertEquals(2, allocated.size());
+        ITestDevice floDevice = allocated.get(2);
+        assertEquals("serial1", floDevice.getSerialNumber());
+
+        mIndex.add(3, createProductOptions("mako"));
+        mIndex.add(4, createProductOptions("flo"));
+        assertTrue(mIndex.allocate(manager).isEmpty());
+        manager.mAllocCount = 0;
+
+        // the higher priority mako bucket should not be evaluated
+        manager.freeDevice(floDevice, FreeDeviceState.AVAILABLE);
+        mIndex.notifyDeviceAvailable("serial1");
+        allocated = mIndex.allocate(manager);
+        assertEquals(1, manager.mAllocCount);
+        assertEquals(1, allocated.size());
+        assertEquals(floDevice, allocated.get(4));
+        assertEquals(1, mIndex.size());
+    }
+
+    /**
+     * Test that {@link CommandAllocationIndex#getRequirementKey(IDeviceSelection)} distinguishes
+     * different criteria.
+     */
+    public void testGetRequirementKey() {
+        DeviceSelectionOptions o1 = new DeviceSelectionOptions();
+        DeviceSelectionOptions o2 = new DeviceSelectionOptions();
+        assertEquals(CommandAllocationIndex.getRequirementKey(o1),
+                CommandAllocationIndex.getRequirementKey(o2));
+        o2.addProductType("foo");
+        assertFalse(CommandAllocationIndex.getRequirementKey(o1).equals(
+                CommandAllocationIndex.getRequirementKey(o2)));
+        o1.addProductType("foo");
+        o1.setMinBatteryLevel(20);
+        assertFalse(CommandAllocationIndex.getRequirementKey(o1).equals(
+                CommandAllocationIndex.getRequirementKey(o2)));
+    }
+
+    private DeviceSelectionOptions createProductOptions(String productType) {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addProductType(productType);
+        return options;
+    }
+
+    private DeviceSelectionOptions createSerialOptions(String serial) {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.addSerial(serial);
+        return options;
+    }
+}
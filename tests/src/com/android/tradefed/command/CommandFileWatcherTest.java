@@ -17,18 +17,25 @@
 package com.android.tradefed.command;
 
 import com.android.tradefed.command.CommandFileWatcher.ICommandFileListener;
+import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Unit tests for {@link CommandFileWatcher}.  Mocks all filesystem accesses.
+ * Unit tests for {@link CommandFileWatcher}.  Mocks all filesystem accesses, except for
+ * {@link #testWaitForChange()}.
  */
 public class CommandFileWatcherTest extends TestCase {
     private static final List<String> EMPTY_ARGS = Collections.<String>emptyList();
@@ -143,6 +150,40 @@ public class CommandFileWatcherTest extends TestCase {
         EasyMock.verify(mMockListener);
     }
 
+    /**
+     * Test that {@link CommandFileWatcher#waitForChange} returns when a watched file is modified,
+     * using the real file system.
+     */
+    public void testWaitForChange() throws Exception {
+        File tmpDir = FileUtil.createTempDir("cmdfilewatcher");
+        WatchService watchService = mWatcher.createWatchService();
+        try {
+            if (watchService == null) {
+                // file system does not support watching, files are polled
+                return;
+            }
+            File cmdFile = new File(tmpDir, "cmdfile.txt");
+            FileUtil.writeToFile("foo", cmdFile);
+            mWatcher.addCmdFile(cmdFile, EMPTY_ARGS, EMPTY_DEPENDENCIES);
+            Map<Path, WatchKey> watchedDirs = new HashMap<Path, WatchKey>();
+            assertFalse(mWatcher.waitForChange(watchService, watchedDirs, 10));
+            assertEquals(1, watchedDirs.size());
+
+            FileUtil.writeToFile("bar", cmdFile);
+            assertTrue(mWatcher.waitForChange(watchService, watchedDirs, 10 * 1000));
+
+            // directories of files no longer watched are no longer registered
+            mWatcher.removeAllFiles();
+            assertFalse(mWatcher.waitForChange(watchService, watchedDirs, 10));
+            assertTrue(watchedDirs.isEmpty());
+        } finally {
+            if (watchService != null) {
+                watchService.close();
+            }
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
     /**
      * A File extension that allows a list of modtimes to be set.
      */
@@ -543,6 +543,70 @@ public class CommandSchedulerTest extends TestCase {
         Assert.assertArrayEquals(cmdFile2Args, cmds.get(1).getArgs());
     }
 
+    /**
+     * Test that reloading a command file only replaces the commands whose lines changed, and
+     * that the commands of unchanged lines keep their tracker and execution time.
+     */
+    public void testAddCommandFile_reloadUnchanged() throws ConfigurationException {
+        // set number of devices to 0 so we can verify command presence
+        mMockManager.setNumDevices(0);
+        List<String> extraArgs = Arrays.asList("--bar");
+
+        String[] keptArgs = new String[] {"kept", "--bar"};
+        setCreateConfigExpectations(keptArgs, 1);
+        String[] cmdFile1Args = new String[] {"fromFile1", "--bar"};
+        setCreateConfigExpectations(cmdFile1Args, 1);
+        String[] cmdFile2Args = new String[] {"fromFile2", "--bar"};
+        setCreateConfigExpectations(cmdFile2Args, 1);
+
+        mMockConfiguration.validateOptions();
+        EasyMock.expectLastCall().times(3);
+
+        final List<CommandLine> cmdFileContent1 = Arrays.asList(
+                new CommandLine(Arrays.asList("kept")),
+                new CommandLine(Arrays.asList("fromFile1")));
+        final List<CommandLine> cmdFileContent2 = Arrays.asList(
+                new CommandLine(Arrays.asList("fromFile2")),
+                new CommandLine(Arrays.asList("kept")));
+        mMockCmdFileParser = new CommandFileParser() {
+            boolean firstCall = true;
+            @Override
+            public List<CommandLine> parseFile(File cmdFile) {
+                if (firstCall) {
+                    firstCall = false;
+                    return cmdFileContent1;
+                }
+                return cmdFileContent2;
+            }
+        };
+        replayMocks();
+        mScheduler.setCommandFileReload(true);
+        mScheduler.addCommandFile("mycmd.txt", extraArgs);
+
+        List<CommandTracker> cmds = mScheduler.getCommandTrackers();
+        assertEquals(2, cmds.size());
+        Collections.sort(cmds, new CommandTrackerIdComparator());
+        CommandTracker keptTracker = cmds.get(0);
+        Assert.assertArrayEquals(keptArgs, keptTracker.getArgs());
+        keptTracker.incrementExecTime(1000);
+        CommandTracker removedTracker = cmds.get(1);
+
+        // now reload the command file
+        mScheduler.notifyFileChanged(new File("mycmd.txt"), extraArgs);
+
+        cmds = mScheduler.getCommandTrackers();
+        assertEquals(2, cmds.size());
+        Collections.sort(cmds, new CommandTrackerIdComparator());
+        assertSame(keptTracker, cmds.get(0));
+        assertEquals(1000, cmds.get(0).getTotalExecTime());
+        Assert.assertArrayEquals(cmdFile2Args, cmds.get(1).getArgs());
+        // the removed command must not be queued again by an instance that was executing
+        assertTrue(removedTracker.isRemoved());
+        assertFalse(keptTracker.isRemoved());
+        // createConfigurationFromArgs is only expected once for the kept command
+        verifyMocks();
+    }
+
     /**
      * Verify attempts to add the same commmand file in reload mode are rejected
      */
@@ -23,16 +23,30 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.FreeDeviceState;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.util.RunUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link RemoteManager}.
@@ -490,4 +504,216 @@ public class RemoteManagerTest extends TestCase {
         mRemoteClient.sendFreeDevice("serial");
         EasyMock.verify(mMockDeviceManager, mockHandler, mMockScheduler);
     }
+
+    /**
+     * Test that an operation blocked on one connection does not block the operations of another
+     * connection.
+     */
+    public void testConcurrentClients() throws Exception {
+        final CountDownLatch listDone = new CountDownLatch(1);
+        EasyMock.expect(mMockScheduler.addCommand(EasyMock.aryEq(new String[] {"arg1"}),
+                EasyMock.anyLong())).andAnswer(new IAnswer<Boolean>() {
+            @Override
+            public Boolean answer() throws Throwable {
+                // only completes once the other client got its response
+                return listDone.await(5, TimeUnit.SECONDS);
+            }
+        });
+        List<DeviceDescriptor> devices = Collections.emptyList();
+        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(devices);
+        EasyMock.replay(mMockScheduler, mMockDeviceManager);
+        mRemoteMgr.connect();
+        mRemoteMgr.start();
+        final int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        mRemoteClient = RemoteClient.connect(port);
+        final IRemoteClient otherClient = RemoteClient.connect(port);
+        Thread listThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    otherClient.sendListDevices();
+                    listDone.countDown();
+                } catch (RemoteException e) {
+                    // ignore, the add command will fail
+                }
+            }
+        };
+        listThread.start();
+        try {
+            mRemoteClient.sendAddCommand(3, "arg1");
+        } finally {
+            listThread.join();
+            otherClient.close();
+        }
+        EasyMock.verify(mMockScheduler, mMockDeviceManager);
+    }
+
+    /**
+     * Test that pipelined operations are answered in order, with their request ids.
+     */
+    public void testPipelinedRequestIds() throws Exception {
+        List<DeviceDescriptor> devices = Collections.emptyList();
+        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(devices).times(2);
+        EasyMock.replay(mMockDeviceManager);
+        mRemoteMgr.connect();
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        Socket socket = new Socket("localhost", port);
+        try {
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream()));
+            for (long id : new long[] {5, 3}) {
+                ListDevicesOp op = new ListDevicesOp();
+                op.setRequestId(id);
+                writer.println(op.pack());
+            }
+            writer.println("not an operation");
+            assertEquals(5, new JSONObject(reader.readLine()).getLong(
+                    RemoteOperation.REQUEST_ID));
+            assertEquals(3, new JSONObject(reader.readLine()).getLong(
+                    RemoteOperation.REQUEST_ID));
+            assertTrue(new JSONObject(reader.readLine()).has(RemoteOperation.ERROR));
+        } finally {
+            socket.close();
+        }
+        EasyMock.verify(mMockDeviceManager);
+    }
+
+    /**
+     * Test that several clients pipelining operations concurrently each get all their responses,
+     * in order.
+     */
+    public void testPipelinedClients_concurrent() throws Exception {
+        final int numClients = 4;
+        final int opsPerClient = 50;
+        List<DeviceDescriptor> devices = Collections.emptyList();
+        EasyMock.expect(mMockDeviceManager.listAllDevices()).andStubReturn(devices);
+        // let operations run concurrently, mocks serialize calls by default
+        EasyMock.makeThreadSafe(mMockDeviceManager, false);
+        EasyMock.replay(mMockDeviceManager);
+        mRemoteMgr.connect();
+        mRemoteMgr.start();
+        final int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>(numClients);
+        for (int i = 0; i < numClients; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Socket socket = new Socket("localhost", port);
+                        try {
+                            PrintWriter writer = new PrintWriter(socket.getOutputStream());
+                            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                                    socket.getInputStream()));
+                            for (int j = 0; j < opsPerClient; j++) {
+                                ListDevicesOp op = new ListDevicesOp();
+                                op.setRequestId(j);
+                                writer.println(op.pack());
+                            }
+                            writer.flush();
+                            for (int j = 0; j < opsPerClient; j++) {
+                                JSONObject response = new JSONObject(reader.readLine());
+                                assertEquals(j, response.getLong(RemoteOperation.REQUEST_ID));
+                            }
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+    }
+
+    /**
+     * Test that shutdown does not hang on a client that stops reading its responses.
+     */
+    public void testCancelAndWait_clientNotReading() throws Exception {
+        // large responses, so they fill the socket buffers of a client that does not read
+        List<DeviceDescriptor> devices = new ArrayList<DeviceDescriptor>();
+        for (int i = 0; i < 500; i++) {
+            devices.add(new DeviceDescriptor("serial" + i, false,
+                    DeviceAllocationState.Available, "tuna", "toro", "18", "JWR67C", "4"));
+        }
+        EasyMock.expect(mMockDeviceManager.listAllDevices()).andStubReturn(devices);
+        EasyMock.replay(mMockDeviceManager);
+        mRemoteMgr.setShutdownTimeout(500);
+        mRemoteMgr.connect();
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        Socket socket = new Socket();
+        try {
+            socket.setReceiveBufferSize(4 * 1024);
+            socket.connect(new InetSocketAddress("localhost", port));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream());
+            for (int i = 0; i < 200; i++) {
+                ListDevicesOp op = new ListDevicesOp();
+                op.setRequestId(i);
+                writer.println(op.pack());
+            }
+            writer.flush();
+            // let the operations be processed, so their responses are pending
+            RunUtil.getDefault().sleep(1000);
+            Thread canceller = new Thread() {
+                @Override
+                public void run() {
+                    mRemoteMgr.cancelAndWait();
+                }
+            };
+            canceller.start();
+            canceller.join(10 * 1000);
+            assertFalse("shutdown hung on a client that is not reading", canceller.isAlive());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Test that a connection sending an overly long operation line is closed.
+     */
+    public void testReadLine_tooLong() throws Exception {
+        EasyMock.replay(mMockDeviceManager);
+        mRemoteMgr.connect();
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        Socket socket = new Socket("localhost", port);
+        try {
+            socket.setSoTimeout(10 * 1000);
+            byte[] chunk = new byte[64 * 1024];
+            Arrays.fill(chunk, (byte)'x');
+            OutputStream out = socket.getOutputStream();
+            try {
+                for (int i = 0; i < 32; i++) {
+                    out.write(chunk);
+                }
+                out.flush();
+            } catch (IOException e) {
+                // expected, connection may be closed while still writing
+            }
+            try {
+                assertEquals(-1, socket.getInputStream().read());
+            } catch (SocketException e) {
+                // expected, connection may be reset
+            }
+        } finally {
+            socket.close();
+        }
+        EasyMock.verify(mMockDeviceManager);
+    }
 }
@@ -37,4 +37,24 @@ public class RemoteOperationTest extends TestCase {
         }
         fail("did not throw RemoteException");
     }
+
+    /**
+     * Test that the request id of an operation is sent, and checked against the one of its
+     * response.
+     */
+    public void testRequestId() throws Exception {
+        CloseOp o = new CloseOp();
+        o.setRequestId(42);
+        RemoteOperation<?> parsed = RemoteOperation.createRemoteOpFromString(o.pack());
+        assertEquals(42, parsed.getRequestId());
+        // responses without a request id are accepted, for compatibility
+        o.unpackResponseFromString("{}");
+        o.unpackResponseFromString("{\"requestId\":42}");
+        try {
+            o.unpackResponseFromString("{\"requestId\":41}");
+            fail("did not throw RemoteException");
+        } catch (RemoteException e) {
+            // expected
+        }
+    }
 }
@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -100,6 +101,54 @@ public class ConfigurationFactoryTest extends TestCase {
         }
     }
 
+    /**
+     * Test that a config loaded from a file path is not parsed again while the file is unchanged
+     */
+    public void testGetConfiguration_xmlpathCached() throws ConfigurationException,
+            IOException {
+        File tmpFile = FileUtil.createTempFile(TEST_CONFIG, ".xml");
+        try {
+            FileUtil.writeToFile(getClass().getResourceAsStream(
+                    String.format("/testconfigs/%s.xml", TEST_CONFIG)), tmpFile);
+            String[] args = new String[] {tmpFile.getAbsolutePath()};
+            assertEquals(1, mFactory.createConfigurationFromArgs(args).getTests().size());
+            // replace contents with garbage of the same size, keeping the modification time
+            long lastModified = tmpFile.lastModified();
+            char[] garbage = new char[(int)tmpFile.length()];
+            Arrays.fill(garbage, 'x');
+            FileUtil.writeToFile(new String(garbage), tmpFile);
+            tmpFile.setLastModified(lastModified);
+            assertEquals(1, mFactory.createConfigurationFromArgs(args).getTests().size());
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Test that a cached config loaded from a file path is reloaded once the file changes
+     */
+    public void testGetConfiguration_xmlpathModified() throws ConfigurationException,
+            IOException {
+        File tmpFile = FileUtil.createTempFile(TEST_CONFIG, ".xml");
+        try {
+            FileUtil.writeToFile(getClass().getResourceAsStream(
+                    String.format("/testconfigs/%s.xml", TEST_CONFIG)), tmpFile);
+            String[] args = new String[] {tmpFile.getAbsolutePath()};
+            assertEquals(1, mFactory.createConfigurationFromArgs(args).getTests().size());
+            // a second config from the cached definition gets its own objects
+            IConfiguration config1 = mFactory.createConfigurationFromArgs(args);
+            IConfiguration config2 = mFactory.createConfigurationFromArgs(args);
+            assertNotSame(config1.getTests().get(0), config2.getTests().get(0));
+
+            FileUtil.writeToFile(getClass().getResourceAsStream(
+                    "/testconfigs/include-config.xml"), tmpFile);
+            tmpFile.setLastModified(tmpFile.lastModified() - 10 * 1000);
+            assertEquals(2, mFactory.createConfigurationFromArgs(args).getTests().size());
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
     /**
      * Test that a config xml defined in this test jar can be read as a built-in
      */
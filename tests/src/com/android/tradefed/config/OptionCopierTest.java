@@ -16,6 +16,9 @@
 
 package com.android.tradefed.config;
 
+import com.android.tradefed.device.DeviceSelectionOptions;
+import com.android.tradefed.device.TestDeviceOptions;
+
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
@@ -173,6 +176,30 @@ public class OptionCopierTest extends TestCase {
         assertEquals(DefaultEnumClass.VAL2, dest.mEnumMap.get(DefaultEnumClass.VAL1));
     }
 
+    /**
+     * Test {@link OptionCopier} on the option objects of a configuration created from command
+     * line args, as done when sharding.
+     */
+    public void testCopyOptions_configObjects() throws ConfigurationException {
+        ConfigurationFactory factory = new ConfigurationFactory() {
+            @Override
+            String getConfigPrefix() {
+                return "testconfigs/";
+            }
+        };
+        IConfiguration config = factory.createConfigurationFromArgs(new String[] {
+                "include-config", "--serial", "serial1", "--serial", "serial2",
+                "--min-battery", "20", "--no-enable-root"});
+        DeviceSelectionOptions selection = new DeviceSelectionOptions();
+        OptionCopier.copyOptions(config.getDeviceRequirements(), selection);
+        assertEquals(2, selection.getSerials().size());
+        assertTrue(selection.getSerials().contains("serial2"));
+        assertEquals(Integer.valueOf(20), selection.getMinBatteryLevel());
+        TestDeviceOptions deviceOptions = new TestDeviceOptions();
+        OptionCopier.copyOptions(config.getDeviceOptions(), deviceOptions);
+        assertFalse(deviceOptions.isEnableAdbRoot());
+    }
+
     /**
      * Test {@link OptionCopier} when field's to be copied have different types
      */
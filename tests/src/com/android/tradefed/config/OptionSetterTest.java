@@ -219,6 +219,14 @@ public class OptionSetterTest extends TestCase {
         private final String mFinal= "foo";
     }
 
+    private static class StaticOption {
+        @Option(name = "static-int", description="static field")
+        private static int sStaticInt = 1;
+
+        @Option(name = "static-bool", description="static boolean field")
+        private static boolean sStaticBool = false;
+    }
+
     /**
      * Test creating an {@link OptionSetter} for a source with invalid option type.
      */
@@ -383,6 +391,25 @@ public class OptionSetterTest extends TestCase {
         assertEquals("child", source.mChildString);
     }
 
+    /**
+     * Test that the option schema for a class is built once and shared between
+     * {@link OptionSetter}s.
+     */
+    public void testGetSchema_cached() throws ConfigurationException {
+        OptionSetter.OptionClassSchema schema = OptionSetter.getSchema(ChildOptionSource.class);
+        assertSame(schema, OptionSetter.getSchema(ChildOptionSource.class));
+        assertEquals(2, schema.getFieldDefs().size());
+        assertNotNull(schema.getFieldDef("string"));
+        assertNull(schema.getFieldDef("unknown"));
+
+        ChildOptionSource source1 = new ChildOptionSource();
+        ChildOptionSource source2 = new ChildOptionSource();
+        new OptionSetter(source1).setOptionValue("child-string", "one");
+        new OptionSetter(source2).setOptionValue("child-string", "two");
+        assertEquals("one", source1.mChildString);
+        assertEquals("two", source2.mChildString);
+    }
+
     /**
      * Test that options with {@link OptionSetter#NAMESPACE_SEPARATOR} are rejected
      */
@@ -393,6 +420,13 @@ public class OptionSetterTest extends TestCase {
         } catch (ConfigurationException e) {
             // expected
         }
+        // error should be reported again once the class schema is cached
+        try {
+            new OptionSetter(new BadOptionNameSource());
+            fail("ConfigurationException not thrown");
+        } catch (ConfigurationException e) {
+            // expected
+        }
     }
 
     /**
@@ -814,6 +848,24 @@ public class OptionSetterTest extends TestCase {
         }
     }
 
+    /**
+     * Test {@link OptionSetter} for static fields
+     */
+    public void testOptionSetter_staticField() throws ConfigurationException {
+        int origInt = StaticOption.sStaticInt;
+        boolean origBool = StaticOption.sStaticBool;
+        try {
+            OptionSetter parser = new OptionSetter(new StaticOption());
+            parser.setOptionValue("static-int", "5");
+            parser.setOptionValue("static-bool", "true");
+            assertEquals(5, StaticOption.sStaticInt);
+            assertTrue(StaticOption.sStaticBool);
+        } finally {
+            StaticOption.sStaticInt = origInt;
+            StaticOption.sStaticBool = origBool;
+        }
+    }
+
     /**
      * Perform {@link OptionSetter#setOptionValue(String, String)} for a given option.
      */
@@ -17,6 +17,7 @@
 package com.android.tradefed.device;
 
 import com.android.tradefed.device.CpuStatsCollector.CpuStats;
+import com.android.tradefed.device.CpuStatsCollector.CpuStatsSummary;
 import com.android.tradefed.device.CpuStatsCollector.TimeCategory;
 import com.android.tradefed.testtype.DeviceTestCase;
 
@@ -305,6 +306,37 @@ public class CpuStatsCollectorTest extends DeviceTestCase {
         assertEquals(74.91, CpuStatsCollector.getUsedMhzPercentageMean(stats.get("cpu1")), 0.01);
     }
 
+    /**
+     * Tests that {@link CpuStatsSummary}s match the means calculated from the lists of
+     * {@link CpuStats}, and are kept when the {@link CpuStats} are not retained.
+     */
+    public void testCpuStatsSummaries() {
+        mCollector.setRetainCpuStats(false);
+        mCollector.getReceiver().processNewLines(MULTI_OUTPUT);
+
+        assertTrue(mCollector.getCpuStats().isEmpty());
+        Map<String, CpuStatsSummary> summaries = mCollector.getCpuStatsSummaries();
+        assertEquals(3, summaries.size());
+
+        CpuStatsSummary summary = summaries.get("Total");
+        assertEquals(10, summary.getCount());
+        assertEquals(53.67, summary.getTotalPercentageMean(), 0.01);
+        assertEquals(41.18, summary.getUserPercentageMean(), 0.01);
+        assertEquals(12.49, summary.getSystemPercentageMean(), 0.01);
+        assertEquals(0.0, summary.getIowPercentageMean(), 0.01);
+        assertEquals(0.0, summary.getIrqPercentageMean(), 0.01);
+        assertEquals(480.46, summary.getEstimatedMhzMean(), 0.01);
+        assertEquals(74.91, summary.getUsedMhzPercentageMean(), 0.01);
+        assertNotNull(summary.getTotalPercentageStdev());
+        double median = summary.getTotalPercentagePercentile(50);
+        assertTrue(median >= summary.getTotalPercentagePercentile(0));
+        assertTrue(median <= summary.getTotalPercentagePercentile(100));
+
+        summary = summaries.get("cpu1");
+        assertEquals(76.99, summary.getTotalPercentageMean(), 0.01);
+        assertEquals(714.29, summary.getEstimatedMhzMean(), 0.01);
+    }
+
     /**
      * Tests that multiple lines of {@code cpustats} output are parsed correctly when frequencies
      * are not aggregated and that {@link CpuStatsCollector} calculates the correct means from the
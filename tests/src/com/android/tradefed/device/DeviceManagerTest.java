@@ -22,6 +22,7 @@ import com.android.ddmlib.IDevice.DeviceState;
 import com.android.tradefed.command.remote.DeviceDescriptor;
 import com.android.tradefed.config.IGlobalConfiguration;
 import com.android.tradefed.device.DeviceManager.IManagedTestDeviceFactory;
+import com.android.tradefed.device.IDeviceManager.IFastbootDeviceListener;
 import com.android.tradefed.device.IManagedTestDevice.DeviceEventResponse;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.CommandResult;
@@ -36,8 +37,12 @@ import org.easymock.IAnswer;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Unit tests for {@link DeviceManager}.
@@ -213,6 +218,11 @@ public class DeviceManagerTest extends TestCase {
             void startFastbootMonitor() {
             }
 
+            @Override
+            FastbootUsbWatcher createFastbootUsbWatcher() {
+                return null;
+            }
+
             @Override
             IDeviceStateMonitor createStateMonitor(IDevice device) {
                 return mMockStateMonitor;
@@ -549,7 +559,71 @@ public class DeviceManagerTest extends TestCase {
         mDeviceListener.deviceChanged(newDevice, IDevice.CHANGE_STATE);
     }
 
-    // TODO: add test for fastboot state changes
+    /**
+     * Test that fastboot updates notify {@link IFastbootDeviceListener}s of the devices that
+     * entered and left fastboot since the previous update.
+     */
+    public void testUpdateFastbootDevices_listenerDelta() throws Exception {
+        setFastbootAvailableExpectations();
+        IFastbootDeviceListener listener = EasyMock.createStrictMock(
+                IFastbootDeviceListener.class);
+        listener.fastbootDeviceAdded("serial1");
+        listener.stateUpdated();
+        listener.fastbootDeviceRemoved("serial1");
+        listener.fastbootDeviceAdded("serial2");
+        listener.stateUpdated();
+        listener.stateUpdated();
+        replayMocks(listener);
+        DeviceManager manager = createDeviceManager(null);
+        manager.addFastbootListener(listener);
+        manager.updateFastbootDevices(new HashSet<String>(Arrays.asList("serial1")), false);
+        manager.updateFastbootDevices(new HashSet<String>(Arrays.asList("serial2")), false);
+        manager.updateFastbootDevices(new HashSet<String>(Arrays.asList("serial2")), true);
+        EasyMock.verify(listener);
+    }
+
+    /**
+     * Test that incremental fastboot updates only change the state of devices that entered or
+     * left fastboot, and that a reconcile fixes the state of all devices.
+     */
+    public void testUpdateFastbootDevices_reconcile() throws Exception {
+        setFastbootAvailableExpectations();
+        setCheckAvailableDeviceExpectations();
+        final AtomicInteger fastbootStateCount = new AtomicInteger(0);
+        mMockTestDevice.setDeviceState(TestDeviceState.FASTBOOT);
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                fastbootStateCount.incrementAndGet();
+                return null;
+            }
+        }).anyTimes();
+        replayMocks();
+        DeviceManager manager = createDeviceManager(null, mMockIDevice);
+        Set<String> serials = new HashSet<String>(Arrays.asList(DEVICE_SERIAL));
+        manager.updateFastbootDevices(serials, false);
+        assertEquals(1, fastbootStateCount.get());
+        // no change, so device is not updated
+        manager.updateFastbootDevices(serials, false);
+        assertEquals(1, fastbootStateCount.get());
+        manager.updateFastbootDevices(serials, true);
+        assertEquals(2, fastbootStateCount.get());
+    }
+
+    /**
+     * Sets the expectations of an available fastboot, with no device on it.
+     */
+    private void setFastbootAvailableExpectations() {
+        EasyMock.reset(mMockRunUtil);
+        EasyMock.expect(
+                mMockRunUtil.runTimedCmdSilently(EasyMock.anyLong(), EasyMock.eq("fastboot"),
+                        EasyMock.eq("help"))).andReturn(new CommandResult(CommandStatus.SUCCESS));
+        CommandResult fastbootResult = new CommandResult(CommandStatus.SUCCESS);
+        fastbootResult.setStdout("");
+        EasyMock.expect(
+                mMockRunUtil.runTimedCmd(EasyMock.anyLong(), EasyMock.eq("fastboot"),
+                        EasyMock.eq("devices"))).andReturn(fastbootResult);
+    }
 
     /**
      * Verify the 'fastboot devices' output parsing
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+/**
+ * Unit tests for {@link DevicePropertyCache}.
+ */
+public class DevicePropertyCacheTest extends TestCase {
+
+    private static final String GETPROP_OUTPUT = "[ro.hardware]: [mako]\r\n" +
+            "[ro.build.id]: []\r\n" +
+            "[sys.boot_completed]: [1]\r\n" +
+            "garbage\r\n";
+
+    private long mTime = 1000;
+
+    private DevicePropertyCache createCache(long ttl) {
+        return new DevicePropertyCache(ttl) {
+            @Override
+            long getCurrentTime() {
+                return mTime;
+            }
+        };
+    }
+
+    /**
+     * Test parsing 'getprop' output.
+     */
+    public void testParseGetpropOutput() {
+        Map<String, String> properties = DevicePropertyCache.parseGetpropOutput(GETPROP_OUTPUT);
+        assertEquals(3, properties.size());
+        assertEquals("mako", properties.get("ro.hardware"));
+        assertEquals("", properties.get("ro.build.id"));
+        assertEquals("1", properties.get("sys.boot_completed"));
+    }
+
+    /**
+     * Test that read-only properties, set or not, are served until invalidated, and other
+     * properties are only served within the ttl.
+     */
+    public void testLookup_ttl() {
+        DevicePropertyCache cache = createCache(100);
+        assertTrue(cache.isCacheable("sys.boot_completed"));
+        assertNull(cache.lookup("ro.hardware"));
+        cache.update(DevicePropertyCache.parseGetpropOutput(GETPROP_OUTPUT));
+        assertEquals("mako", cache.lookup("ro.hardware").get());
+        assertEquals("1", cache.lookup("sys.boot_completed").get());
+        assertFalse(cache.lookup("ro.crypto.state").isPresent());
+
+        mTime += 100;
+        assertEquals("mako", cache.lookup("ro.hardware").get());
+        assertNull(cache.lookup("sys.boot_completed"));
+        assertFalse(cache.lookup("ro.crypto.state").isPresent());
+        assertEquals(5, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        cache.invalidate();
+        assertNull(cache.lookup("ro.hardware"));
+        assertEquals(1, cache.getLoadCount());
+    }
+
+    /**
+     * Test that read-only properties that are not set are served as unset until invalidated, once
+     * boot completed.
+     */
+    public void testLookup_missingReadOnly() {
+        DevicePropertyCache cache = createCache(0);
+        cache.update(DevicePropertyCache.parseGetpropOutput("[ro.hardware]: [mako]\r\n"));
+        // read-only property might get set later in boot
+        assertNull(cache.lookup("ro.crypto.state"));
+        cache.update(DevicePropertyCache.parseGetpropOutput(GETPROP_OUTPUT));
+        mTime += 100;
+        assertFalse(cache.lookup("ro.crypto.state").isPresent());
+        assertFalse(cache.lookup("ro.crypto.state").isPresent());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.invalidate();
+        assertNull(cache.lookup("ro.crypto.state"));
+    }
+
+    /**
+     * Test that only read-only properties are cached when there is no ttl.
+     */
+    public void testLookup_noTtl() {
+        DevicePropertyCache cache = createCache(0);
+        assertTrue(cache.isCacheable("ro.hardware"));
+        assertFalse(cache.isCacheable("sys.boot_completed"));
+        cache.update(DevicePropertyCache.parseGetpropOutput(GETPROP_OUTPUT));
+        assertEquals("mako", cache.lookup("ro.hardware").get());
+        assertNull(cache.lookup("sys.boot_completed"));
+    }
+}
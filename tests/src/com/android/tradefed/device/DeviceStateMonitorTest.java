@@ -17,11 +17,18 @@ package com.android.tradefed.device;
 
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IDevice.DeviceState;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.device.DeviceWaitStats.WaitPhase;
 import com.android.tradefed.util.RunUtil;
+import com.google.common.util.concurrent.Futures;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link DeviceStateMonitorTest}.
@@ -32,6 +39,7 @@ public class DeviceStateMonitorTest extends TestCase {
     private IDevice mMockDevice;
     private DeviceStateMonitor mMonitor;
     private IDeviceManager mMockMgr;
+    private DeviceWaitStats mWaitStats;
 
     @Override
     protected void setUp() {
@@ -40,7 +48,17 @@ public class DeviceStateMonitorTest extends TestCase {
         EasyMock.expect(mMockDevice.getState()).andReturn(DeviceState.ONLINE);
         EasyMock.expect(mMockDevice.getSerialNumber()).andReturn(SERIAL_NUMBER).anyTimes();
         EasyMock.replay(mMockDevice);
-        mMonitor = new DeviceStateMonitor(mMockMgr, mMockDevice, true);
+        mMonitor = createMonitor(mMockDevice);
+    }
+
+    private DeviceStateMonitor createMonitor(IDevice device) {
+        mWaitStats = new DeviceWaitStats();
+        return new DeviceStateMonitor(mMockMgr, device, true) {
+            @Override
+            DeviceWaitStats getWaitStats() {
+                return mWaitStats;
+            }
+        };
     }
 
     /**
@@ -48,6 +66,8 @@ public class DeviceStateMonitorTest extends TestCase {
      */
     public void testWaitForDeviceOnline_alreadyOnline() {
         assertEquals(mMockDevice, mMonitor.waitForDeviceOnline());
+        assertEquals(0, mWaitStats.getHistogram(WaitPhase.ONLINE).getCount());
+        assertEquals(0, mWaitStats.getTimeoutCount(WaitPhase.ONLINE));
     }
 
     /**
@@ -63,6 +83,7 @@ public class DeviceStateMonitorTest extends TestCase {
             }
         }.start();
         assertEquals(mMockDevice, mMonitor.waitForDeviceOnline());
+        assertEquals(1, mWaitStats.getHistogram(WaitPhase.ONLINE).getCount());
     }
 
     /**
@@ -79,6 +100,138 @@ public class DeviceStateMonitorTest extends TestCase {
             }
         }.start();
         assertNull(mMonitor.waitForDeviceOnline(100));
+        assertEquals(1, mWaitStats.getTimeoutCount(WaitPhase.ONLINE));
+        assertEquals(0, mWaitStats.getHistogram(WaitPhase.ONLINE).getCount());
+    }
+
+    /**
+     * Test that the poll interval backs off exponentially up to the max.
+     */
+    public void testGetNextPollTime() {
+        long pollTime = DeviceStateMonitor.MIN_POLL_TIME;
+        pollTime = DeviceStateMonitor.getNextPollTime(pollTime);
+        assertEquals(2 * DeviceStateMonitor.MIN_POLL_TIME, pollTime);
+        for (int i = 0; i < 10; i++) {
+            pollTime = DeviceStateMonitor.getNextPollTime(pollTime);
+        }
+        assertEquals(DeviceStateMonitor.MAX_POLL_TIME, pollTime);
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForBootComplete(long)} when device is already booted.
+     */
+    public void testWaitForBootComplete_booted() {
+        IDevice device = createMockDevice();
+        EasyMock.expect(device.getSystemProperty(DeviceStateMonitor.BOOTCOMPLETE_PROP)).andReturn(
+                Futures.immediateFuture("1"));
+        EasyMock.replay(device);
+        DeviceStateMonitor monitor = createMonitor(device);
+        assertTrue(monitor.waitForBootComplete(1000));
+        assertEquals(1, mWaitStats.getHistogram(WaitPhase.BOOT_COMPLETE).getCount());
+        EasyMock.verify(device);
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForBootComplete(long)} waits for boot on the device
+     * rather than polling.
+     */
+    public void testWaitForBootComplete_watch() throws Exception {
+        IDevice device = createMockDevice();
+        EasyMock.expect(device.getSystemProperty(DeviceStateMonitor.BOOTCOMPLETE_PROP)).andReturn(
+                Futures.immediateFuture("0"));
+        injectShellResponse(device, DeviceStateMonitor.BOOTCOMPLETE_MARKER + "\r\n");
+        EasyMock.replay(device);
+        DeviceStateMonitor monitor = createMonitor(device);
+        assertTrue(monitor.waitForBootComplete(1000));
+        EasyMock.verify(device);
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForBootComplete(long)} falls back to polling when the
+     * device shell does not support the boot complete watch.
+     */
+    public void testWaitForBootComplete_watchUnsupported() throws Exception {
+        IDevice device = createMockDevice();
+        EasyMock.expect(device.getSystemProperty(DeviceStateMonitor.BOOTCOMPLETE_PROP)).andReturn(
+                Futures.immediateFuture("0")).times(2);
+        injectShellResponse(device, "syntax error: '(' unexpected\r\n");
+        EasyMock.expect(device.getSystemProperty(DeviceStateMonitor.BOOTCOMPLETE_PROP)).andReturn(
+                Futures.immediateFuture("1"));
+        EasyMock.replay(device);
+        DeviceStateMonitor monitor = createMonitor(device);
+        assertTrue(monitor.waitForBootComplete(5000));
+        EasyMock.verify(device);
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForBootComplete(long)} stops polling when interrupted, and
+     * keeps the thread interrupted.
+     */
+    public void testWaitForBootComplete_interrupted() throws Exception {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(device.getState()).andReturn(DeviceState.OFFLINE);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn(SERIAL_NUMBER);
+        EasyMock.expect(device.getSystemProperty(DeviceStateMonitor.BOOTCOMPLETE_PROP)).andReturn(
+                Futures.immediateFuture("0"));
+        EasyMock.replay(device);
+        DeviceStateMonitor monitor = createMonitor(device);
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(monitor.waitForBootComplete(60 * 1000));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        EasyMock.verify(device);
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForBootComplete(long)} stops polling and keeps the thread
+     * interrupted when the boot flag query is interrupted.
+     */
+    @SuppressWarnings("unchecked")
+    public void testWaitForBootComplete_queryInterrupted() throws Exception {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(device.getState()).andReturn(DeviceState.OFFLINE);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn(SERIAL_NUMBER);
+        Future<String> bootFlag = EasyMock.createMock(Future.class);
+        EasyMock.expect(bootFlag.get(EasyMock.anyLong(), EasyMock.<TimeUnit>anyObject()))
+                .andThrow(new InterruptedException());
+        EasyMock.expect(device.getSystemProperty(DeviceStateMonitor.BOOTCOMPLETE_PROP)).andReturn(
+                bootFlag);
+        EasyMock.replay(device, bootFlag);
+        DeviceStateMonitor monitor = createMonitor(device);
+        try {
+            assertFalse(monitor.waitForBootComplete(60 * 1000));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        EasyMock.verify(device, bootFlag);
+    }
+
+    private IDevice createMockDevice() {
+        IDevice device = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(device.getState()).andReturn(DeviceState.ONLINE);
+        EasyMock.expect(device.getSerialNumber()).andStubReturn(SERIAL_NUMBER);
+        return device;
+    }
+
+    private void injectShellResponse(IDevice device, final String response) throws Exception {
+        device.executeShellCommand(EasyMock.eq(DeviceStateMonitor.BOOTCOMPLETE_WATCH_CMD),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.<TimeUnit>anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+                byte[] inputData = response.getBytes();
+                receiver.addOutput(inputData, 0, inputData.length);
+                receiver.flush();
+                return null;
+            }
+        });
     }
 
     /**
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Unit tests for {@link FastbootUsbWatcher}.
+ * <p/>
+ * Depends on filesystem I/O.
+ */
+public class FastbootUsbWatcherTest extends TestCase {
+
+    private File mTmpDir;
+    private File mUsbDevicesDir;
+    private File mDevUsbDir;
+    private FastbootUsbWatcher mWatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = FileUtil.createTempDir("usb");
+        mUsbDevicesDir = new File(mTmpDir, "devices");
+        mDevUsbDir = new File(mTmpDir, "dev");
+        mUsbDevicesDir.mkdir();
+        new File(mDevUsbDir, "001").mkdirs();
+        mWatcher = new FastbootUsbWatcher(mUsbDevicesDir, mDevUsbDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWatcher.close();
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that only devices with a fastboot interface are discovered.
+     */
+    public void testGetDevicesOnFastboot() throws IOException {
+        addUsbDevice("1-1", "fastboot1", "ff", "42", "03");
+        addUsbDevice("1-2", "adb1", "ff", "42", "01");
+        addUsbDevice("1-3", "mouse", "03", "01", "02");
+        assertEquals(Collections.singleton("fastboot1"), mWatcher.getDevicesOnFastboot());
+    }
+
+    /**
+     * Test that {@link FastbootUsbWatcher#waitForUsbChange(long)} returns when a device node is
+     * created.
+     */
+    public void testWaitForUsbChange() throws Exception {
+        assertFalse(mWatcher.waitForUsbChange(10));
+        new File(new File(mDevUsbDir, "001"), "005").createNewFile();
+        assertTrue(mWatcher.waitForUsbChange(5 * 1000));
+    }
+
+    /**
+     * Test that {@link FastbootUsbWatcher#waitForUsbChange(long)} times out if device nodes
+     * cannot be watched.
+     */
+    public void testWaitForUsbChange_noDevDir() throws Exception {
+        FileUtil.recursiveDelete(mDevUsbDir);
+        assertFalse(mWatcher.waitForUsbChange(10));
+    }
+
+    private void addUsbDevice(String name, String serial, String interfaceClass,
+            String interfaceSubClass, String interfaceProtocol) throws IOException {
+        File deviceDir = new File(mUsbDevicesDir, name);
+        deviceDir.mkdir();
+        FileUtil.writeToFile(serial + "\n", new File(deviceDir, "serial"));
+        File interfaceDir = new File(mUsbDevicesDir, name + ":1.0");
+        interfaceDir.mkdir();
+        FileUtil.writeToFile(interfaceClass + "\n", new File(interfaceDir, "bInterfaceClass"));
+        FileUtil.writeToFile(interfaceSubClass + "\n",
+                new File(interfaceDir, "bInterfaceSubClass"));
+        FileUtil.writeToFile(interfaceProtocol + "\n",
+                new File(interfaceDir, "bInterfaceProtocol"));
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncService;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link FileSyncer}.
+ */
+public class FileSyncerTest extends TestCase {
+
+    private static final String REMOTE_DIR = "/data/foo";
+
+    /**
+     * A {@link FileSyncer} that records pushes instead of sending them to a device.
+     */
+    private static class RecordingFileSyncer extends FileSyncer {
+        final List<String> mPushedFiles = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> mPushedJournals =
+                Collections.synchronizedList(new ArrayList<String>());
+        int mFailOnPush = -1;
+
+        RecordingFileSyncer(File localDir, boolean useManifest) {
+            super(localDir, REMOTE_DIR, null, useManifest, 1);
+        }
+
+        @Override
+        SyncService openSyncService(IDevice device) {
+            return null;
+        }
+
+        @Override
+        void pushFile(SyncService syncService, File localFile, String remotePath)
+                throws IOException {
+            if (remotePath.contains(MANIFEST_FILE_NAME)) {
+                mPushedJournals.add(FileUtil.readStringFromFile(localFile));
+                return;
+            }
+            if (mPushedFiles.size() == mFailOnPush) {
+                mFailOnPush = -1;
+                throw new IOException("push failed");
+            }
+            mPushedFiles.add(remotePath);
+        }
+    }
+
+    private File mLocalDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLocalDir = FileUtil.createTempDir("filesyncer");
+        File subDir = new File(mLocalDir, "a");
+        new File(subDir, "b").mkdirs();
+        FileUtil.writeToFile("one", new File(mLocalDir, "one.txt"));
+        FileUtil.writeToFile("two", new File(subDir, "two.txt"));
+        FileUtil.writeToFile("three", new File(subDir, "b/three.txt"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mLocalDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that only missing directories are created, in a single batched command.
+     */
+    public void testGetMkdirCommands() {
+        FileSyncer syncer = new RecordingFileSyncer(mLocalDir, true);
+        assertTrue(syncer.scanLocalFiles());
+        syncer.parseRemoteListing(String.format("%s:\r\none.txt\r\na\r\n\r\n%s/a:\r\ntwo.txt\r\n",
+                REMOTE_DIR, REMOTE_DIR));
+        assertTrue(syncer.remoteDirExists());
+        assertEquals(Arrays.asList(String.format("mkdir \"%s/a/b\"", REMOTE_DIR)),
+                syncer.getMkdirCommands());
+
+        // when remote dir is missing, it should be created along with its children
+        syncer.parseRemoteListing(String.format("%s: No such file or directory", REMOTE_DIR));
+        assertFalse(syncer.remoteDirExists());
+        assertEquals(Arrays.asList(String.format("mkdir \"%s\" \"%s/a\" \"%s/a/b\"", REMOTE_DIR,
+                REMOTE_DIR, REMOTE_DIR)), syncer.getMkdirCommands());
+    }
+
+    /**
+     * Test that {@link FileSyncer#buildBatchedCommands(String, List)} splits long commands.
+     */
+    public void testBuildBatchedCommands() {
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            paths.add(String.format("%s/dir%03d", REMOTE_DIR, i));
+        }
+        List<String> commands = FileSyncer.buildBatchedCommands("mkdir", paths);
+        assertTrue(commands.size() > 1);
+        int pathCount = 0;
+        for (String command : commands) {
+            assertTrue(command.startsWith("mkdir \""));
+            assertTrue(command.length() <= FileSyncer.MAX_SHELL_CMD_LENGTH);
+            pathCount += command.split(" ").length - 1;
+        }
+        assertEquals(paths.size(), pathCount);
+        assertTrue(FileSyncer.buildBatchedCommands("mkdir", new ArrayList<String>()).isEmpty());
+    }
+
+    /**
+     * Test that files matching the manifest are not pushed, and that files missing remotely or
+     * with a different hash are.
+     */
+    public void testComputePendingFiles_manifest() throws Exception {
+        FileSyncer syncer = new RecordingFileSyncer(mLocalDir, true);
+        assertTrue(syncer.scanLocalFiles());
+        // a/b/three.txt is in manifest but was deleted from device
+        syncer.parseRemoteListing(String.format("%s:\none.txt\na\n\n%s/a:\ntwo.txt\nb\n\n" +
+                "%s/a/b:\n", REMOTE_DIR, REMOTE_DIR, REMOTE_DIR));
+        String oneHash = FileSyncer.getContentHash(new File(mLocalDir, "one.txt"));
+        String threeHash = FileSyncer.getContentHash(new File(mLocalDir, "a/b/three.txt"));
+        syncer.parseManifest(String.format("%s\tone.txt\nbadhash\ta/two.txt\n" +
+                "%s\ta/b/three.txt\ncat: no such file\n", oneHash, threeHash));
+        syncer.computePendingFiles();
+        assertEquals(2, syncer.getPendingCount());
+    }
+
+    /**
+     * Test that an up to date directory needs no pushes, with journal entries overriding the
+     * manifest.
+     */
+    public void testComputePendingFiles_upToDate() throws Exception {
+        FileSyncer syncer = new RecordingFileSyncer(mLocalDir, true);
+        assertTrue(syncer.scanLocalFiles());
+        syncer.parseRemoteListing(String.format("%s:\none.txt\na\n\n%s/a:\ntwo.txt\nb\n\n" +
+                "%s/a/b:\nthree.txt\n", REMOTE_DIR, REMOTE_DIR, REMOTE_DIR));
+        // journal entry overrides the manifest entry for one.txt
+        syncer.parseManifest(String.format("%s\tone.txt\n%s\ta/two.txt\n%s\ta/b/three.txt\n",
+                FileSyncer.UNKNOWN_HASH, hash("a/two.txt"), hash("a/b/three.txt")));
+        syncer.parseManifest(String.format("%s\tone.txt\n", hash("one.txt")));
+        syncer.computePendingFiles();
+        assertEquals(0, syncer.getPendingCount());
+        // manifest has an extra line from the journal, and should be compacted
+        assertTrue(syncer.isManifestChanged());
+    }
+
+    /**
+     * Test that a failed push can be retried, pushing only the files that were not pushed yet,
+     * and that the pushes are recorded in the manifest.
+     */
+    public void testPushFiles_resume() throws Exception {
+        RecordingFileSyncer syncer = new RecordingFileSyncer(mLocalDir, true);
+        assertTrue(syncer.scanLocalFiles());
+        syncer.parseRemoteListing("");
+        syncer.computePendingFiles();
+        assertEquals(3, syncer.getPendingCount());
+        syncer.mFailOnPush = 1;
+        try {
+            syncer.pushFiles(null);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, syncer.mPushedFiles.size());
+        assertEquals(2, syncer.getPendingCount());
+        // completed pushes are only journaled once a batch fills up or a worker finishes
+        assertEquals(0, syncer.mPushedJournals.size());
+
+        assertTrue(syncer.pushFiles(null));
+        assertEquals(3, syncer.mPushedFiles.size());
+        assertEquals(3, syncer.getPushCount());
+        assertEquals(0, syncer.getPendingCount());
+        assertEquals(1, syncer.mPushedJournals.size());
+        assertTrue(syncer.isManifestChanged());
+        String manifest = syncer.getManifestContents();
+        assertTrue(manifest.contains(String.format("%s\tone.txt\n", hash("one.txt"))));
+        assertTrue(manifest.contains(String.format("%s\ta/two.txt\n", hash("a/two.txt"))));
+        assertTrue(manifest.contains(String.format("%s\ta/b/three.txt\n",
+                hash("a/b/three.txt"))));
+    }
+
+    /**
+     * Test that without a manifest all files are pushed.
+     */
+    public void testPushFiles_noManifest() throws Exception {
+        RecordingFileSyncer syncer = new RecordingFileSyncer(mLocalDir, false);
+        assertTrue(syncer.scanLocalFiles());
+        syncer.computePendingFiles();
+        assertEquals(Arrays.asList(String.format("mkdir \"%s/a\" \"%s/a/b\"", REMOTE_DIR,
+                REMOTE_DIR)), syncer.getMkdirCommands());
+        assertTrue(syncer.pushFiles(null));
+        assertEquals(3, syncer.mPushedFiles.size());
+        assertTrue(syncer.mPushedFiles.contains(REMOTE_DIR + "/a/b/three.txt"));
+        assertTrue(syncer.mPushedJournals.isEmpty());
+        assertFalse(syncer.isManifestChanged());
+    }
+
+    private String hash(String relativePath) throws IOException {
+        return FileSyncer.getContentHash(new File(mLocalDir, relativePath));
+    }
+}
@@ -22,6 +22,8 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.util.Collections;
+
 /**
  * Unit tests for {@link ManagedDeviceList}.
  */
@@ -99,4 +101,22 @@ public class ManagedDeviceListTest extends TestCase {
         mManagedDeviceList.handleDeviceEvent(d, DeviceEvent.DISCONNECTED);
         assertEquals(0, mManagedDeviceList.size());
     }
+
+    /**
+     * Test that {@link ManagedDeviceList#updateFastbootStates(Set, Set)} only updates the devices
+     * that entered or left fastboot.
+     */
+    public void testUpdateFastbootStates_delta() {
+        IManagedTestDevice added = mManagedDeviceList.findOrCreate(new StubDevice("added"));
+        IManagedTestDevice removed = mManagedDeviceList.findOrCreate(new StubDevice("removed"));
+        IManagedTestDevice other = mManagedDeviceList.findOrCreate(new StubDevice("other"));
+        removed.setDeviceState(TestDeviceState.FASTBOOT);
+        other.setDeviceState(TestDeviceState.ONLINE);
+
+        mManagedDeviceList.updateFastbootStates(Collections.singleton("added"),
+                Collections.singleton("removed"));
+        assertEquals(TestDeviceState.FASTBOOT, added.getDeviceState());
+        assertEquals(TestDeviceState.NOT_AVAILABLE, removed.getDeviceState());
+        assertEquals(TestDeviceState.ONLINE, other.getDeviceState());
+    }
 }
@@ -237,6 +237,21 @@ public class MockDeviceManager implements IDeviceManager {
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getAvailableDeviceCount(IDeviceSelection options) {
+        TestDeviceMatcher matcher = new TestDeviceMatcher(options);
+        int count = 0;
+        for (ITestDevice device : mAvailableDeviceQueue) {
+            if (matcher.matches(device)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     @Override
     public boolean isNullDevice(String serial) {
         return false;
@@ -815,6 +815,22 @@ public class StubTestDevice implements IManagedTestDevice {
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStreamSource getLogcatSince(long offset, int maxBytes) {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLogcatSize() {
+        return 0;
+    }
+
     /**
      * {@inheritDoc}
      */
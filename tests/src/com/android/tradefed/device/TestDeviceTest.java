@@ -316,6 +316,40 @@ public class TestDeviceTest extends TestCase {
         }
     }
 
+    /**
+     * Test that read-only properties are loaded with one 'getprop' call, and served from the
+     * property cache until device changes state.
+     */
+    public void testGetProperty_cached() throws Exception {
+        final String getpropOutput = "[ro.build.version.incremental]: [1234]\n" +
+                "[ro.product.name]: [mysid]\n[ro.build.type]: [userdebug]\n";
+        injectShellResponse("getprop", getpropOutput);
+        injectShellResponse("getprop", getpropOutput);
+        mMockStateMonitor.setState(TestDeviceState.NOT_AVAILABLE);
+        EasyMock.replay(mMockIDevice, mMockStateMonitor);
+        assertEquals("1234", mTestDevice.getBuildId());
+        assertEquals("mysid-userdebug", mTestDevice.getBuildFlavor());
+        assertEquals(1, mTestDevice.getPropertyCache().getMissCount());
+        assertEquals(2, mTestDevice.getPropertyCache().getHitCount());
+        mTestDevice.setDeviceState(TestDeviceState.NOT_AVAILABLE);
+        assertEquals("1234", mTestDevice.getBuildId());
+        assertEquals(2, mTestDevice.getPropertyCache().getLoadCount());
+        EasyMock.verify(mMockIDevice, mMockStateMonitor);
+    }
+
+    /**
+     * Test that properties that may change are queried directly when no ttl is set.
+     */
+    public void testGetProperty_notCached() throws Exception {
+        SettableFuture<String> f = SettableFuture.create();
+        f.set("READY");
+        EasyMock.expect(mMockIDevice.getSystemProperty("gsm.sim.state")).andReturn(f).times(2);
+        EasyMock.replay(mMockIDevice);
+        assertEquals("READY", mTestDevice.getProperty("gsm.sim.state"));
+        assertEquals("READY", mTestDevice.getProperty("gsm.sim.state"));
+        EasyMock.verify(mMockIDevice);
+    }
+
     /**
      * Test {@link TestDevice#clearErrorDialogs()} when both a error and anr dialog are present.
      */
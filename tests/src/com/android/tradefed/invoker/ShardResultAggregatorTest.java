@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.BuildInfo;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.invoker.ShardResultAggregator.ShardProgress;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link ShardResultAggregator} and {@link ShardListener}.
+ */
+public class ShardResultAggregatorTest extends TestCase {
+
+    private static final long TIMEOUT_MS = 5 * 1000;
+
+    private ITestInvocationListener mMockListener;
+    private IBuildInfo mBuildInfo;
+    private Map<String, String> mEmptyMap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockListener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        mBuildInfo = new BuildInfo();
+        mEmptyMap = Collections.emptyMap();
+    }
+
+    /**
+     * Test that the test runs of concurrent shards are forwarded without interleaving, and that
+     * progress is tracked per shard.
+     */
+    public void testRunsNotInterleaved() {
+        TestIdentifier test1 = new TestIdentifier("FooTest", "test1");
+        TestIdentifier test2 = new TestIdentifier("FooTest", "test2");
+        mMockListener.invocationStarted(mBuildInfo);
+        mMockListener.invocationStarted(mBuildInfo);
+        mMockListener.testRunStarted("run1", 1);
+        mMockListener.testStarted(test1);
+        mMockListener.testFailed(TestFailure.FAILURE, test1, "trace");
+        mMockListener.testEnded(test1, mEmptyMap);
+        mMockListener.testRunEnded(1, mEmptyMap);
+        mMockListener.testRunStarted("run2", 1);
+        mMockListener.testStarted(test2);
+        mMockListener.testEnded(test2, mEmptyMap);
+        mMockListener.testRunEnded(2, mEmptyMap);
+        mMockListener.invocationEnded(4);
+        mMockListener.invocationEnded(3);
+        EasyMock.replay(mMockListener);
+
+        ShardResultAggregator aggregator = new ShardResultAggregator(mMockListener, 2);
+        aggregator.start();
+        ShardListener shard1 = aggregator.createShardListener();
+        ShardListener shard2 = aggregator.createShardListener();
+        shard1.invocationStarted(mBuildInfo);
+        shard2.invocationStarted(mBuildInfo);
+        shard1.testRunStarted("run1", 1);
+        shard2.testRunStarted("run2", 1);
+        shard2.testStarted(test2);
+        shard1.testStarted(test1);
+        shard2.testEnded(test2, mEmptyMap);
+        shard2.testRunEnded(2, mEmptyMap);
+        shard2.invocationEnded(4);
+        shard1.testFailed(TestFailure.FAILURE, test1, "trace");
+        shard1.testEnded(test1, mEmptyMap);
+        shard1.testRunEnded(1, mEmptyMap);
+        shard1.invocationEnded(3);
+        assertTrue(aggregator.awaitCompletion(TIMEOUT_MS));
+        EasyMock.verify(mMockListener);
+
+        ShardProgress progress = shard1.getProgress();
+        assertEquals(1, progress.getExpectedTests());
+        assertEquals(1, progress.getCompletedTests());
+        assertEquals(1, progress.getFailedTests());
+        assertTrue(progress.isDone());
+    }
+
+    /**
+     * Test that logs are forwarded before {@link ShardListener#testLog} returns, even if the
+     * shard's test run is being held back.
+     */
+    public void testTestLog_sync() {
+        InputStreamSource source = new ByteArrayInputStreamSource(new byte[0]);
+        mMockListener.testRunStarted("run1", 0);
+        mMockListener.testLog("log", LogDataType.TEXT, source);
+        EasyMock.replay(mMockListener);
+
+        ShardResultAggregator aggregator = new ShardResultAggregator(mMockListener, 2);
+        aggregator.start();
+        ShardListener shard1 = aggregator.createShardListener();
+        ShardListener shard2 = aggregator.createShardListener();
+        shard1.testRunStarted("run1", 0);
+        shard2.testRunStarted("run2", 0);
+        shard2.testLog("log", LogDataType.TEXT, source);
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Test that a run left open by a shard that ended is closed, so that other shards' runs are
+     * forwarded.
+     */
+    public void testInvocationEnded_openRun() {
+        mMockListener.testRunStarted("run1", 1);
+        mMockListener.testRunEnded(0, new HashMap<String, String>());
+        mMockListener.invocationEnded(1);
+        mMockListener.testRunStarted("run2", 0);
+        mMockListener.testRunEnded(2, mEmptyMap);
+        mMockListener.invocationEnded(2);
+        EasyMock.replay(mMockListener);
+
+        ShardResultAggregator aggregator = new ShardResultAggregator(mMockListener, 2, 1);
+        aggregator.start();
+        ShardListener shard1 = aggregator.createShardListener();
+        ShardListener shard2 = aggregator.createShardListener();
+        shard1.testRunStarted("run1", 1);
+        shard2.testRunStarted("run2", 0);
+        shard2.testRunEnded(2, mEmptyMap);
+        shard2.invocationEnded(2);
+        shard1.invocationEnded(1);
+        assertTrue(aggregator.awaitCompletion(TIMEOUT_MS));
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Test that a shard whose test run is held back does not block, and that its callbacks past
+     * the in memory backlog limit are spooled to disk and forwarded in order once the run in
+     * progress ends.
+     */
+    public void testHoldBack_spooled() throws Exception {
+        final int numTests = 20;
+        final Map<String, String> metrics = new HashMap<String, String>();
+        metrics.put("key", "value");
+        mMockListener.testRunStarted("run1", 0);
+        mMockListener.testRunEnded(1, mEmptyMap);
+        mMockListener.testRunStarted("run2", numTests);
+        for (int i = 0; i < numTests; i++) {
+            TestIdentifier test = new TestIdentifier("FooTest", "test" + i);
+            mMockListener.testStarted(test);
+            mMockListener.testFailed(TestFailure.ERROR, test, null);
+            mMockListener.testEnded(test, metrics);
+        }
+        mMockListener.testRunFailed("failed");
+        mMockListener.testRunEnded(2, mEmptyMap);
+        mMockListener.invocationEnded(2);
+        mMockListener.invocationEnded(1);
+        EasyMock.replay(mMockListener);
+
+        ShardResultAggregator aggregator = new ShardResultAggregator(mMockListener, 2, 10, 2);
+        aggregator.start();
+        ShardListener shard1 = aggregator.createShardListener();
+        final ShardListener shard2 = aggregator.createShardListener();
+        shard1.testRunStarted("run1", 0);
+        Thread poster = new Thread("poster") {
+            @Override
+            public void run() {
+                shard2.testRunStarted("run2", numTests);
+                for (int i = 0; i < numTests; i++) {
+                    TestIdentifier test = new TestIdentifier("FooTest", "test" + i);
+                    shard2.testStarted(test);
+                    shard2.testFailed(TestFailure.ERROR, test, null);
+                    shard2.testEnded(test, metrics);
+                }
+                shard2.testRunFailed("failed");
+                shard2.testRunEnded(2, mEmptyMap);
+                shard2.invocationEnded(2);
+            }
+        };
+        poster.setDaemon(true);
+        poster.start();
+        poster.join(TIMEOUT_MS);
+        assertFalse("shard posting a held back run blocked", poster.isAlive());
+        shard1.testRunEnded(1, mEmptyMap);
+        shard1.invocationEnded(1);
+        assertTrue(aggregator.awaitCompletion(TIMEOUT_MS));
+        EasyMock.verify(mMockListener);
+    }
+
+    /**
+     * Test that a stopped test run stays open until it ends, so other shards' runs are not
+     * forwarded in between.
+     */
+    public void testRunStopped_runStillOpen() {
+        mMockListener.testRunStarted("run1", 0);
+        mMockListener.testRunStopped(1);
+        mMockListener.testRunEnded(1, mEmptyMap);
+        mMockListener.testRunStarted("run2", 0);
+        mMockListener.testRunEnded(2, mEmptyMap);
+        mMockListener.invocationEnded(1);
+        mMockListener.invocationEnded(2);
+        EasyMock.replay(mMockListener);
+
+        ShardResultAggregator aggregator = new ShardResultAggregator(mMockListener, 2);
+        aggregator.start();
+        ShardListener shard1 = aggregator.createShardListener();
+        ShardListener shard2 = aggregator.createShardListener();
+        shard1.testRunStarted("run1", 0);
+        shard1.testRunStopped(1);
+        shard2.testRunStarted("run2", 0);
+        shard2.testRunEnded(2, mEmptyMap);
+        shard1.testRunEnded(1, mEmptyMap);
+        shard1.invocationEnded(1);
+        shard2.invocationEnded(2);
+        assertTrue(aggregator.awaitCompletion(TIMEOUT_MS));
+        EasyMock.verify(mMockListener);
+    }
+}
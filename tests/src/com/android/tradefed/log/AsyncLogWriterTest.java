@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.AsyncLogWriter.OverflowPolicy;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Unit tests for {@link AsyncLogWriter}.
+ */
+public class AsyncLogWriterTest extends TestCase {
+
+    private static final String LOG_TAG = "AsyncLogWriterTest";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ByteArrayOutputStream mLogStream;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLogStream = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Test that queued messages are written in order by {@link AsyncLogWriter#flush()}.
+     */
+    public void testFlush() {
+        AsyncLogWriter writer = new AsyncLogWriter(mLogStream, 10, OverflowPolicy.BLOCK);
+        writer.add(LogLevel.DEBUG, LOG_TAG, "message1", false);
+        writer.add(LogLevel.INFO, LOG_TAG, "message2 \u00e9", false);
+        assertEquals(0, mLogStream.size());
+        writer.flush();
+        String[] lines = getLogLines();
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith(" D/AsyncLogWriterTest: message1"));
+        assertTrue(lines[1].endsWith(" I/AsyncLogWriterTest: message2 \u00e9"));
+    }
+
+    /**
+     * Test that capacities too small for the ring are rejected.
+     */
+    public void testCreate_invalidCapacity() {
+        for (int capacity : new int[] {-1, 0, 1}) {
+            try {
+                new AsyncLogWriter(mLogStream, capacity, OverflowPolicy.BLOCK);
+                fail("IllegalArgumentException not thrown for capacity " + capacity);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Test that the smallest supported ring keeps every message across several laps.
+     */
+    public void testFlush_minCapacity() {
+        AsyncLogWriter writer = new AsyncLogWriter(mLogStream, AsyncLogWriter.MIN_CAPACITY,
+                OverflowPolicy.BLOCK);
+        for (int i = 0; i < 5; i++) {
+            writer.add(LogLevel.DEBUG, LOG_TAG, "message" + i, false);
+            writer.add(LogLevel.DEBUG, LOG_TAG, "message" + i, false);
+            writer.flush();
+        }
+        String[] lines = getLogLines();
+        assertEquals(10, lines.length);
+        assertTrue(lines[9].endsWith(" D/AsyncLogWriterTest: message4"));
+    }
+
+    /**
+     * Test that the writer thread writes queued messages, and that all are written on close.
+     */
+    public void testStart() {
+        AsyncLogWriter writer = new AsyncLogWriter(mLogStream, 10, OverflowPolicy.BLOCK);
+        writer.start();
+        for (int i = 0; i < 1000; i++) {
+            writer.add(LogLevel.DEBUG, LOG_TAG, "message", false);
+        }
+        writer.close();
+        assertEquals(1000, getLogLines().length);
+        // messages logged after close are discarded
+        writer.add(LogLevel.DEBUG, LOG_TAG, "message", false);
+        writer.flush();
+        assertEquals(1000, getLogLines().length);
+    }
+
+    /**
+     * Test that messages added concurrently by several threads through a small ring are all
+     * written, in order for each thread.
+     */
+    public void testAdd_concurrent() throws Exception {
+        final AsyncLogWriter writer = new AsyncLogWriter(mLogStream, 16, OverflowPolicy.BLOCK);
+        writer.start();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final String tag = "thread" + i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        writer.add(LogLevel.DEBUG, tag, Integer.toString(j), false);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        writer.close();
+        String[] lines = getLogLines();
+        assertEquals(4000, lines.length);
+        int[] next = new int[threads.length];
+        for (String line : lines) {
+            int thread = line.charAt(line.indexOf("/thread") + 7) - '0';
+            assertTrue(line.endsWith(": " + next[thread]));
+            next[thread]++;
+        }
+    }
+
+    /**
+     * Test that {@link OverflowPolicy#DROP_VERBOSE} drops only verbose and debug messages when
+     * the queue is full, and reports how many were dropped, while other messages wait for room.
+     */
+    public void testAdd_dropVerbose() {
+        AsyncLogWriter writer = new AsyncLogWriter(mLogStream, 2, OverflowPolicy.DROP_VERBOSE);
+        writer.add(LogLevel.DEBUG, LOG_TAG, "message1", false);
+        writer.add(LogLevel.DEBUG, LOG_TAG, "message2", false);
+        writer.add(LogLevel.VERBOSE, LOG_TAG, "dropped1", false);
+        writer.add(LogLevel.DEBUG, LOG_TAG, "dropped2", false);
+        writer.add(LogLevel.ERROR, LOG_TAG, "message3", false);
+        writer.flush();
+        String[] lines = getLogLines();
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].endsWith("message1"));
+        assertTrue(lines[1].endsWith("message2"));
+        // without a writer thread, the logging thread made room by writing the queue
+        assertTrue(lines[2].contains("dropped 2 verbose and debug messages"));
+        assertTrue(lines[3].endsWith("message3"));
+    }
+
+    /**
+     * Test that {@link OverflowPolicy#SPILL} writes the queue on the logging thread when full.
+     */
+    public void testAdd_spill() {
+        AsyncLogWriter writer = new AsyncLogWriter(mLogStream, 2, OverflowPolicy.SPILL);
+        writer.add(LogLevel.DEBUG, LOG_TAG, "message1", false);
+        writer.add(LogLevel.DEBUG, LOG_TAG, "message2", false);
+        assertEquals(0, mLogStream.size());
+        writer.add(LogLevel.DEBUG, LOG_TAG, "message3", false);
+        assertEquals(2, getLogLines().length);
+        writer.flush();
+        assertEquals(3, getLogLines().length);
+    }
+
+    private String[] getLogLines() {
+        String log = new String(mLogStream.toByteArray(), UTF_8);
+        return log.isEmpty() ? new String[0] : log.split("\n");
+    }
+}
@@ -17,7 +17,9 @@ package com.android.tradefed.log;
 
 import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.log.AsyncLogWriter.OverflowPolicy;
 import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.StreamUtil;
 
 import junit.framework.TestCase;
 
@@ -120,4 +122,77 @@ public class FileLoggerTest extends TestCase {
         // expect this to be silently handled
         logger.getLog();
     }
+
+    /**
+     * Test that messages logged with {@link FileLogger#setAsyncLog} are in the log returned by
+     * {@link FileLogger#getLog()} and dumped by {@link FileLogger#dumpToLog}.
+     */
+    public void testAsyncLog() throws Exception {
+        FileLogger logger = new FileLogger();
+        FileLogger dumpLogger = new FileLogger();
+        logger.setAsyncLog(true, 4, OverflowPolicy.BLOCK);
+        dumpLogger.setAsyncLog(true, 4, OverflowPolicy.BLOCK);
+        InputStreamSource logSource = null;
+        InputStreamSource dumpSource = null;
+        try {
+            logger.init();
+            dumpLogger.init();
+            StringBuilder expectedLog = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                String message = String.format("message %d", i);
+                logger.printLog(LogLevel.VERBOSE, LOG_TAG, message);
+                expectedLog.append(LOG_TAG).append(": ").append(message).append('\n');
+            }
+            logSource = logger.getLog();
+            assertEquals(expectedLog.toString(), stripTimestamps(logSource));
+            dumpLogger.dumpToLog(logSource.createInputStream());
+            dumpSource = dumpLogger.getLog();
+            assertEquals(expectedLog.toString(), stripTimestamps(dumpSource));
+        } finally {
+            StreamUtil.cancel(logSource);
+            StreamUtil.cancel(dumpSource);
+            logger.closeLog();
+            dumpLogger.closeLog();
+        }
+    }
+
+    /**
+     * Test that an async log queue size too small for the ring is raised to the minimum.
+     */
+    public void testAsyncLog_smallQueue() throws Exception {
+        for (int queueSize : new int[] {0, 1}) {
+            FileLogger logger = new FileLogger();
+            logger.setAsyncLog(true, queueSize, OverflowPolicy.BLOCK);
+            InputStreamSource logSource = null;
+            try {
+                logger.init();
+                logger.printLog(LogLevel.VERBOSE, LOG_TAG, "message 1");
+                logger.printLog(LogLevel.VERBOSE, LOG_TAG, "message 2");
+                logSource = logger.getLog();
+                assertEquals(String.format("%s: message 1\n%s: message 2\n", LOG_TAG, LOG_TAG),
+                        stripTimestamps(logSource));
+            } finally {
+                StreamUtil.cancel(logSource);
+                logger.closeLog();
+            }
+        }
+    }
+
+    /**
+     * Returns the contents of a log, with the timestamp and level of each line removed.
+     */
+    private String stripTimestamps(InputStreamSource logSource) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                logSource.createInputStream()));
+        StringBuilder contents = new StringBuilder();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                contents.append(line.substring(line.indexOf('/') + 1)).append('\n');
+            }
+        } finally {
+            reader.close();
+        }
+        return contents.toString();
+    }
 }
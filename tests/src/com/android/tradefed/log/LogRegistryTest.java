@@ -98,6 +98,21 @@ public class LogRegistryTest extends TestCase {
         mLogRegistry.unregisterLogger();
     }
 
+    /**
+     * Tests that {@link LogRegistry#isLoggable} compares against the level of the logger of the
+     * current thread.
+     */
+    public void testIsLoggable() {
+        StdoutLogger stdoutLogger = new StdoutLogger();
+        stdoutLogger.setLogLevel(LogLevel.INFO);
+        mLogRegistry.registerLogger(stdoutLogger);
+
+        assertFalse(mLogRegistry.isLoggable(LogLevel.DEBUG));
+        assertTrue(mLogRegistry.isLoggable(LogLevel.INFO));
+        assertTrue(mLogRegistry.isLoggable(LogLevel.ERROR));
+        mLogRegistry.unregisterLogger();
+    }
+
     /**
      * Tests for ensuring new threads spawned without an explicit ThreadGroup will inherit the
      * same logger as the parent's logger.
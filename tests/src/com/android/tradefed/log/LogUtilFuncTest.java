@@ -16,7 +16,9 @@
 
 package com.android.tradefed.log;
 
+import com.android.ddmlib.DdmPreferences;
 import com.android.ddmlib.Log;
+import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.IGlobalConfiguration;
 import com.android.tradefed.log.LogUtil.CLog;
@@ -74,6 +76,60 @@ public class LogUtilFuncTest extends TestCase {
         CLog.e("this is CLog.e with a format string: %s has length %d", STRING, STRING.length());
     }
 
+    /**
+     * Verify that messages of a level disabled for the current logger are neither formatted nor
+     * printed.
+     */
+    public void testCLog_disabledLevel() {
+        ILogRegistry mockRegistry = EasyMock.createMock(ILogRegistry.class);
+        EasyMock.expect(mockRegistry.isLoggable(LogLevel.VERBOSE)).andReturn(false).times(2);
+        EasyMock.replay(mockRegistry);
+        Object unformattable = new Object() {
+            @Override
+            public String toString() {
+                fail("message was formatted");
+                return null;
+            }
+        };
+        LogLevel ddmLogLevel = DdmPreferences.getLogLevel();
+        DdmPreferences.setLogLevel(LogLevel.VERBOSE.getStringValue());
+        CLog.setLogRegistry(mockRegistry);
+        try {
+            CLog.v("this is CLog.v");
+            CLog.v("this is CLog.v with a format string: %s", unformattable);
+        } finally {
+            CLog.setLogRegistry(null);
+            DdmPreferences.setLogLevel(ddmLogLevel.getStringValue());
+        }
+        EasyMock.verify(mockRegistry);
+    }
+
+    /**
+     * Verify that messages of an enabled level are formatted and tagged with the simple name of
+     * the calling class, including when the name is served from the cache.
+     */
+    public void testCLog_enabledLevel() {
+        ILogRegistry mockRegistry = EasyMock.createMock(ILogRegistry.class);
+        EasyMock.expect(mockRegistry.isLoggable(LogLevel.VERBOSE)).andReturn(true).times(2);
+        mockRegistry.printLog(LogLevel.VERBOSE, CLASS_NAME, "message 1");
+        mockRegistry.printLog(LogLevel.VERBOSE, CLASS_NAME, "message 2");
+        EasyMock.replay(mockRegistry);
+        LogLevel ddmLogLevel = DdmPreferences.getLogLevel();
+        DdmPreferences.setLogLevel(LogLevel.VERBOSE.getStringValue());
+        Log.setLogOutput(mockRegistry);
+        CLog.setLogRegistry(mockRegistry);
+        try {
+            for (int i = 1; i <= 2; i++) {
+                CLog.v("message %d", i);
+            }
+        } finally {
+            CLog.setLogRegistry(null);
+            Log.setLogOutput(null);
+            DdmPreferences.setLogLevel(ddmLogLevel.getStringValue());
+        }
+        EasyMock.verify(mockRegistry);
+    }
+
     /**
      * Verify that all variants of calling CLog.wtf() results in a wtf handler being called
      */
@@ -208,6 +208,19 @@ public class CollectingTestListenerTest extends TestCase {
                 RUN_KEY));
     }
 
+    /**
+     * Test aggregating of metrics with a different aggregation than the default sum
+     */
+    public void testRunEnded_aggregateMaxMetrics() {
+        mCollectingTestListener.setIsAggregrateMetrics(true);
+        mCollectingTestListener.setMetricsAggregation(MetricStore.Aggregation.MAX);
+        injectTestRun("run", "testFoo1", "3");
+        injectTestRun("run", "testFoo1", "5.5");
+        injectTestRun("run", "testFoo1", "4");
+        assertEquals("5.5", mCollectingTestListener.getCurrentRunResults().getRunMetrics().get(
+                RUN_KEY));
+    }
+
     /**
      * Injects a single test run with 1 passed test into the {@link CollectingTestListener} under
      * test
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.ITestDevice;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link FailureArtifactCollector}.
+ */
+public class FailureArtifactCollectorTest extends TestCase {
+
+    private static final String LINE1 = "01-02 03:04:05.100  123  456 I Foo: one";
+    private static final String LINE2 = "01-02 03:04:05.200  123  456 I Foo: two";
+    private static final String LINE3 = "01-02 03:04:05.200  123  456 I Foo: three";
+    private static final String LINE4 = "01-02 03:04:06.000  123  456 I Foo: four";
+
+    private static final TestIdentifier TEST1 = new TestIdentifier("FooTest", "test1");
+    private static final TestIdentifier TEST2 = new TestIdentifier("FooTest", "test2");
+
+    private ITestDevice mMockDevice;
+    private ITestInvocationListener mMockListener;
+    private Map<String, String> mEmptyMap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        mMockListener = EasyMock.createMock(ITestInvocationListener.class);
+        mEmptyMap = Collections.emptyMap();
+    }
+
+    /**
+     * Test that a logcat delta only contains the lines after the previous capture.
+     */
+    public void testCopyLogcatDelta() throws Exception {
+        String logcat = String.format("--------- beginning of main\n%s\n%s\n%s\n%s\n", LINE1,
+                LINE2, LINE3, LINE4);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(LINE4, FailureArtifactCollector.copyLogcatDelta(
+                new ByteArrayInputStream(logcat.getBytes()), output, LINE2));
+        assertEquals(String.format("%s\n%s\n", LINE3, LINE4), output.toString());
+
+        output = new ByteArrayOutputStream();
+        assertNull(FailureArtifactCollector.copyLogcatDelta(
+                new ByteArrayInputStream(logcat.getBytes()), output, LINE4));
+        assertEquals(0, output.size());
+    }
+
+    /**
+     * Test that a bugreport is captured for the first failure only, within the interval, and
+     * forwarded before the test run ends.
+     */
+    public void testBugreport_rateLimited() throws Exception {
+        InputStreamSource bugreport = new ByteArrayInputStreamSource("bugreport".getBytes());
+        EasyMock.expect(mMockDevice.getBugreport()).andReturn(bugreport);
+        mMockListener.testStarted(TEST1);
+        mMockListener.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        mMockListener.testEnded(TEST1, mEmptyMap);
+        mMockListener.testStarted(TEST2);
+        mMockListener.testFailed(TestFailure.FAILURE, TEST2, "trace");
+        mMockListener.testEnded(TEST2, mEmptyMap);
+        mMockListener.testLog("bugreport-FooTest_test1", LogDataType.BUGREPORT, bugreport);
+        mMockListener.testRunEnded(0, mEmptyMap);
+        EasyMock.replay(mMockDevice, mMockListener);
+
+        FailureArtifactCollector collector = new FailureArtifactCollector(mMockListener,
+                mMockDevice);
+        collector.setBugreportOnFailure(60 * 1000);
+        collector.testStarted(TEST1);
+        collector.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        collector.testEnded(TEST1, mEmptyMap);
+        collector.testStarted(TEST2);
+        collector.testFailed(TestFailure.FAILURE, TEST2, "trace");
+        collector.testEnded(TEST2, mEmptyMap);
+        collector.testRunEnded(0, mEmptyMap);
+        collector.close();
+        EasyMock.verify(mMockDevice, mMockListener);
+    }
+
+    /**
+     * Test that logcat captures are forwarded as deltas, and skipped when nothing new was logged.
+     */
+    public void testLogcat_delta() throws Exception {
+        byte[] logcat = String.format("%s\n%s\n", LINE1, LINE2).getBytes();
+        EasyMock.expect(mMockDevice.getLogcatSize()).andReturn(10L);
+        EasyMock.expect(mMockDevice.getLogcatSince(0, 100)).andReturn(
+                new ByteArrayInputStreamSource(logcat));
+        // the second capture starts at the size of the first, and gets data already captured
+        EasyMock.expect(mMockDevice.getLogcatSize()).andReturn(20L);
+        EasyMock.expect(mMockDevice.getLogcatSince(10, 100)).andReturn(
+                new ByteArrayInputStreamSource(logcat));
+        mMockListener.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        mMockListener.testLog(EasyMock.eq("logcat-FooTest_test1"), EasyMock.eq(LogDataType.TEXT),
+                (InputStreamSource)EasyMock.anyObject());
+        mMockListener.testRunEnded(0, mEmptyMap);
+        mMockListener.testFailed(TestFailure.FAILURE, TEST2, "trace");
+        mMockListener.testRunEnded(0, mEmptyMap);
+        EasyMock.replay(mMockDevice, mMockListener);
+
+        FailureArtifactCollector collector = new FailureArtifactCollector(mMockListener,
+                mMockDevice);
+        collector.setLogcatOnFailure(100);
+        collector.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        collector.testRunEnded(0, mEmptyMap);
+        collector.testFailed(TestFailure.FAILURE, TEST2, "trace");
+        collector.testRunEnded(0, mEmptyMap);
+        collector.close();
+        EasyMock.verify(mMockDevice, mMockListener);
+    }
+}
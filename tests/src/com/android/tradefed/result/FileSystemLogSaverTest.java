@@ -33,6 +33,8 @@ import java.io.InputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -235,4 +237,91 @@ public class FileSystemLogSaverTest extends TestCase {
             FileUtil.deleteFile(new File(logFile.getPath()));
         }
     }
+
+    /**
+     * Test saving data with the {@link LogCompression#GZIP} and
+     * {@link LogCompression#PARALLEL_GZIP} codecs, and that compression stats are recorded.
+     */
+    public void testSaveLogData_gzip() throws IOException {
+        for (LogCompression compression : new LogCompression[] {LogCompression.GZIP,
+                LogCompression.PARALLEL_GZIP}) {
+            FileSystemLogSaver saver = new FileSystemLogSaver();
+            saver.setReportDir(mReportDir);
+            saver.setCompression(compression, 2, false);
+            saver.invocationStarted(mMockBuild);
+
+            final String testData = createTestData();
+            LogFile logFile = saver.saveLogData("testSaveLogData", LogDataType.TEXT,
+                    new ByteArrayInputStream(testData.getBytes()));
+            saver.invocationEnded(0);
+
+            assertTrue(logFile.getPath().endsWith(".txt.gz"));
+            assertEquals(testData, readGzipFile(new File(logFile.getPath())));
+            Map<LogDataType, FileSystemLogSaver.CompressionStats> stats =
+                    saver.getCompressionStats();
+            assertEquals(1, stats.size());
+            assertEquals(1, stats.get(LogDataType.TEXT).getFileCount());
+            assertEquals(testData.length(), stats.get(LogDataType.TEXT).getInputBytes());
+            assertTrue(stats.get(LogDataType.TEXT).getCompressionRatio() > 1);
+        }
+    }
+
+    /**
+     * Test that data saved with async compression is complete once the invocation ends, and that
+     * spool files are removed.
+     */
+    public void testSaveLogData_async() throws IOException {
+        FileSystemLogSaver saver = new FileSystemLogSaver();
+        saver.setReportDir(mReportDir);
+        saver.setCompression(LogCompression.PARALLEL_GZIP, 2, true);
+        saver.invocationStarted(mMockBuild);
+
+        final String testData = createTestData();
+        LogFile logFile1 = saver.saveLogData("testSaveLogData1", LogDataType.TEXT,
+                new ByteArrayInputStream(testData.getBytes()));
+        LogFile logFile2 = saver.saveLogData("testSaveLogData2", LogDataType.LOGCAT,
+                new ByteArrayInputStream(testData.getBytes()));
+        saver.invocationEnded(0);
+
+        assertEquals(testData, readGzipFile(new File(logFile1.getPath())));
+        assertEquals(testData, readGzipFile(new File(logFile2.getPath())));
+        File[] files = new File(saver.getLogReportDir().getPath()).listFiles();
+        assertEquals(2, files.length);
+        Map<LogDataType, FileSystemLogSaver.CompressionStats> stats = saver.getCompressionStats();
+        assertEquals(1, stats.get(LogDataType.TEXT).getFileCount());
+        assertEquals(1, stats.get(LogDataType.LOGCAT).getFileCount());
+    }
+
+    /**
+     * Test that {@link LogCompression#STORE} saves data uncompressed.
+     */
+    public void testSaveLogData_store() throws IOException {
+        FileSystemLogSaver saver = new FileSystemLogSaver();
+        saver.setReportDir(mReportDir);
+        saver.setCompression(LogCompression.STORE, 1, false);
+        saver.invocationStarted(mMockBuild);
+
+        final String testData = "Here's some test data, blah";
+        LogFile logFile = saver.saveLogData("testSaveLogData", LogDataType.TEXT,
+                new ByteArrayInputStream(testData.getBytes()));
+        assertTrue(logFile.getPath().endsWith(".txt"));
+        assertEquals(testData, FileUtil.readStringFromFile(new File(logFile.getPath())));
+    }
+
+    private String createTestData() {
+        StringBuilder testData = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            testData.append("Here's some test data, line ").append(i).append('\n');
+        }
+        return testData.toString();
+    }
+
+    private String readGzipFile(File file) throws IOException {
+        InputStream stream = new GZIPInputStream(new FileInputStream(file));
+        try {
+            return StreamUtil.getStringFromStream(stream);
+        } finally {
+            stream.close();
+        }
+    }
 }
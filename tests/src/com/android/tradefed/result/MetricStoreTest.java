@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.result.MetricStore.Aggregation;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link MetricStore}.
+ */
+public class MetricStoreTest extends TestCase {
+
+    private MetricStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStore = new MetricStore();
+    }
+
+    /**
+     * Test that values that were not aggregated are read back exactly as reported.
+     */
+    public void testSet_verbatim() {
+        mStore.set("long", "007");
+        mStore.set("double", "1.50");
+        mStore.set("string", "foo");
+        mStore.aggregate("new", "2.0", Aggregation.SUM);
+        assertEquals("007", mStore.getString("long"));
+        assertEquals("1.50", mStore.getString("double"));
+        assertEquals("foo", mStore.getString("string"));
+        assertEquals("2.0", mStore.getString("new"));
+        assertEquals(7.0, mStore.getDouble("long"));
+        assertNull(mStore.getDouble("string"));
+        assertNull(mStore.getString("missing"));
+        assertEquals(4, mStore.size());
+    }
+
+    /**
+     * Test summing longs and doubles.
+     */
+    public void testAggregate_sum() {
+        mStore.aggregate("long", "1", Aggregation.SUM);
+        mStore.aggregate("long", "-3", Aggregation.SUM);
+        mStore.aggregate("mixed", "1", Aggregation.SUM);
+        mStore.aggregate("mixed", "1.1", Aggregation.SUM);
+        mStore.aggregate("double", "1.5e1", Aggregation.SUM);
+        mStore.aggregate("double", ".5", Aggregation.SUM);
+        assertEquals("-2", mStore.getString("long"));
+        assertEquals("2.1", mStore.getString("mixed"));
+        assertEquals("15.5", mStore.getString("double"));
+    }
+
+    /**
+     * Test the min, max, count and mean aggregations.
+     */
+    public void testAggregate_modes() {
+        for (String value : new String[] {"4", "2", "9"}) {
+            mStore.aggregate("min", value, Aggregation.MIN);
+            mStore.aggregate("max", value, Aggregation.MAX);
+            mStore.aggregate("count", value, Aggregation.COUNT);
+            mStore.aggregate("mean", value, Aggregation.MEAN);
+        }
+        assertEquals("2", mStore.getString("min"));
+        assertEquals("9", mStore.getString("max"));
+        assertEquals("3", mStore.getString("count"));
+        assertEquals("5.0", mStore.getString("mean"));
+        assertEquals(5.0, mStore.getDouble("mean"));
+    }
+
+    /**
+     * Test that values that are not numbers replace the current value, and are replaced by
+     * numbers.
+     */
+    public void testAggregate_strings() {
+        mStore.aggregate("key", "1", Aggregation.SUM);
+        mStore.aggregate("key", "bar", Aggregation.SUM);
+        assertEquals("bar", mStore.getString("key"));
+        mStore.aggregate("key", "2", Aggregation.SUM);
+        assertEquals("2", mStore.getString("key"));
+        mStore.aggregate("key", "3", Aggregation.SUM);
+        assertEquals("5", mStore.getString("key"));
+        // not numbers, though they start like one
+        mStore.aggregate("key", "1e", Aggregation.SUM);
+        assertEquals("1e", mStore.getString("key"));
+        mStore.aggregate("key", "-", Aggregation.SUM);
+        assertEquals("-", mStore.getString("key"));
+    }
+
+    /**
+     * Test that longs overflowing a long are aggregated as doubles.
+     */
+    public void testAggregate_overflow() {
+        mStore.aggregate("key", Long.toString(Long.MIN_VALUE), Aggregation.MIN);
+        mStore.aggregate("key", Long.toString(Long.MAX_VALUE), Aggregation.MIN);
+        assertEquals(Long.toString(Long.MIN_VALUE), mStore.getString("key"));
+        mStore.aggregate("key", "9223372036854775808", Aggregation.MAX);
+        assertEquals(Double.toString(9223372036854775808.0), mStore.getString("key"));
+    }
+
+    /**
+     * Test that the string map is cached until metrics are updated, and is read-only.
+     */
+    public void testToStringMap() {
+        Map<String, String> metrics = new HashMap<String, String>();
+        metrics.put("key", "1");
+        mStore.aggregateAll(metrics, Aggregation.SUM);
+        Map<String, String> stringMap = mStore.toStringMap();
+        assertSame(stringMap, mStore.toStringMap());
+        assertEquals("1", stringMap.get("key"));
+        try {
+            stringMap.put("key", "2");
+            fail("UnsupportedOperationException not thrown");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+
+        mStore.aggregateAll(metrics, Aggregation.SUM);
+        assertEquals("2", mStore.toStringMap().get("key"));
+        mStore.setAll(metrics);
+        assertEquals("1", mStore.toStringMap().get("key"));
+    }
+}
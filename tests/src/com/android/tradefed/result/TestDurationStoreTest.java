@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link TestDurationStore} and {@link TestDurationRecorder}.
+ */
+public class TestDurationStoreTest extends TestCase {
+
+    private static final String KEY = "com.foo/FooTest";
+    private static final TestIdentifier TEST1 = new TestIdentifier("FooTest", "test1");
+    private static final TestIdentifier TEST2 = new TestIdentifier("FooTest", "test2");
+
+    private File mStoreDir;
+    private TestDurationStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStoreDir = FileUtil.createTempDir("durations");
+        mStore = new TestDurationStore(mStoreDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mStoreDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that no durations are returned for an unknown key.
+     */
+    public void testGetDurations_unknown() {
+        assertTrue(mStore.getDurations(KEY).isEmpty());
+    }
+
+    /**
+     * Test that recorded durations are averaged with the stored ones.
+     */
+    public void testRecordDurations() {
+        Map<TestIdentifier, Long> durations = new HashMap<TestIdentifier, Long>();
+        durations.put(TEST1, 100L);
+        mStore.recordDurations(KEY, durations);
+        durations.put(TEST1, 200L);
+        durations.put(TEST2, 50L);
+        mStore.recordDurations(KEY, durations);
+
+        Map<TestIdentifier, Long> storedDurations = mStore.getDurations(KEY);
+        assertEquals(2, storedDurations.size());
+        assertEquals(Long.valueOf(150), storedDurations.get(TEST1));
+        assertEquals(Long.valueOf(50), storedDurations.get(TEST2));
+        // key is sanitized into a single file
+        assertEquals(1, mStoreDir.listFiles().length);
+        assertEquals(mStoreDir, mStore.getStoreFile(KEY).getParentFile());
+    }
+
+    /**
+     * Test that a complete run prunes the stored durations of tests it did not run, while a
+     * partial run keeps them.
+     */
+    public void testRecordDurations_completeRun() {
+        Map<TestIdentifier, Long> durations = new HashMap<TestIdentifier, Long>();
+        durations.put(TEST1, 100L);
+        durations.put(TEST2, 50L);
+        mStore.recordDurations(KEY, durations);
+        durations.remove(TEST2);
+        mStore.recordDurations(KEY, durations, false);
+        assertEquals(2, mStore.getDurations(KEY).size());
+
+        mStore.recordDurations(KEY, durations, true);
+        Map<TestIdentifier, Long> storedDurations = mStore.getDurations(KEY);
+        assertEquals(1, storedDurations.size());
+        assertEquals(Long.valueOf(100), storedDurations.get(TEST1));
+    }
+
+    /**
+     * Test that {@link TestDurationRecorder} records the duration of completed tests when the
+     * run ends.
+     */
+    public void testRecorder() {
+        final long[] time = new long[] {0};
+        TestDurationRecorder recorder = new TestDurationRecorder(new CollectingTestListener(),
+                mStore, KEY) {
+            @Override
+            long getCurrentTime() {
+                return time[0];
+            }
+        };
+        Map<String, String> emptyMap = Collections.emptyMap();
+        recorder.testRunStarted("run", 2);
+        recorder.testStarted(TEST1);
+        time[0] = 30;
+        recorder.testEnded(TEST1, emptyMap);
+        recorder.testStarted(TEST2);
+        assertTrue(mStore.getDurations(KEY).isEmpty());
+        recorder.testRunEnded(40, emptyMap);
+
+        Map<TestIdentifier, Long> storedDurations = mStore.getDurations(KEY);
+        assertEquals(1, storedDurations.size());
+        assertEquals(Long.valueOf(30), storedDurations.get(TEST1));
+    }
+
+    /**
+     * Test that {@link TestDurationRecorder} prunes stale durations only after a complete first
+     * run, and not after a failed run or a later rerun.
+     */
+    public void testRecorder_completeRun() {
+        Map<TestIdentifier, Long> durations = new HashMap<TestIdentifier, Long>();
+        durations.put(TEST1, 10L);
+        durations.put(TEST2, 20L);
+        Map<String, String> emptyMap = Collections.emptyMap();
+
+        // failed run is partial
+        mStore.recordDurations(KEY, durations);
+        TestDurationRecorder recorder = new TestDurationRecorder(new CollectingTestListener(),
+                mStore, KEY, true);
+        recorder.testRunStarted("run", 1);
+        recorder.testStarted(TEST1);
+        recorder.testEnded(TEST1, emptyMap);
+        recorder.testRunFailed("crashed");
+        recorder.testRunEnded(0, emptyMap);
+        // a rerun is partial
+        recorder.testRunStarted("run", 1);
+        recorder.testStarted(TEST1);
+        recorder.testEnded(TEST1, emptyMap);
+        recorder.testRunEnded(0, emptyMap);
+        assertEquals(2, mStore.getDurations(KEY).size());
+
+        // recorder of a filtered test set is partial
+        recorder = new TestDurationRecorder(new CollectingTestListener(), mStore, KEY);
+        recorder.testRunStarted("run", 1);
+        recorder.testStarted(TEST1);
+        recorder.testEnded(TEST1, emptyMap);
+        recorder.testRunEnded(0, emptyMap);
+        assertEquals(2, mStore.getDurations(KEY).size());
+
+        recorder = new TestDurationRecorder(new CollectingTestListener(), mStore, KEY, true);
+        recorder.testRunStarted("run", 1);
+        recorder.testStarted(TEST1);
+        recorder.testEnded(TEST1, emptyMap);
+        recorder.testRunEnded(0, emptyMap);
+        Map<TestIdentifier, Long> storedDurations = mStore.getDurations(KEY);
+        assertEquals(1, storedDurations.size());
+        assertTrue(storedDurations.containsKey(TEST1));
+    }
+}
@@ -19,10 +19,14 @@ import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.build.BuildInfo;
 import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
 
 import junit.framework.TestCase;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
 import java.util.Map;
@@ -35,13 +39,15 @@ public class XmlResultReporterTest extends TestCase {
     private static final String URL = "url";
 
     private XmlResultReporter mResultReporter;
-    private ByteArrayOutputStream mOutputStream;
+    private String mOutput;
     private ILogSaver mMockLogSaver;
+    private File mJournalDir;
 
     class MockLogSaver implements ILogSaver {
         @Override
         public LogFile saveLogData(String dataName, LogDataType dataType,
-                InputStream dataStream) {
+                InputStream dataStream) throws IOException {
+            mOutput = StreamUtil.getStringFromStream(dataStream);
             return new LogFile(PATH, URL);
         }
 
@@ -75,23 +81,21 @@ public class XmlResultReporterTest extends TestCase {
 
         mMockLogSaver = new MockLogSaver();
 
+        mJournalDir = FileUtil.createTempDir("xmlreporter");
         mResultReporter = new XmlResultReporter() {
-            @Override
-            ByteArrayOutputStream createOutputStream() {
-                mOutputStream = new ByteArrayOutputStream();
-                return mOutputStream;
-            }
-
             @Override
             String getTimestamp() {
                 return "ignore";
             }
         };
         mResultReporter.setLogSaver(mMockLogSaver);
+        new OptionSetter(mResultReporter).setOptionValue("journal-dir",
+                mJournalDir.getAbsolutePath());
     }
 
     @Override
     protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mJournalDir);
         super.tearDown();
     }
 
@@ -153,11 +157,86 @@ public class XmlResultReporterTest extends TestCase {
         assertTrue(output.contains(failureTag));
     }
 
+    /**
+     * Test that tests are journaled to disk as they end, that an incomplete test is replaced by
+     * its rerun, and that the journal is removed once the report is saved.
+     */
+    public void testJournal() throws Exception {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        final TestIdentifier passId = new TestIdentifier("FooTest", "testPass");
+        final TestIdentifier errorId = new TestIdentifier("FooTest", "testError");
+        final TestIdentifier incompleteId = new TestIdentifier("FooTest", "testIncomplete");
+        mResultReporter.invocationStarted(new BuildInfo());
+        mResultReporter.testRunStarted("run", 3);
+        mResultReporter.testStarted(passId);
+        mResultReporter.testEnded(passId, emptyMap);
+        mResultReporter.testStarted(errorId);
+        mResultReporter.testFailed(TestFailure.ERROR, errorId, "error trace");
+        mResultReporter.testEnded(errorId, emptyMap);
+        mResultReporter.testStarted(incompleteId);
+        mResultReporter.testRunFailed("device crashed");
+        mResultReporter.testRunEnded(3, emptyMap);
+
+        File[] journals = mJournalDir.listFiles();
+        assertEquals(1, journals.length);
+        String journal = FileUtil.readStringFromFile(journals[0]);
+        assertTrue(journal.contains("testPass"));
+        assertTrue(journal.contains("<error>error trace</error>"));
+        assertFalse(journal.contains("testIncomplete"));
+
+        mResultReporter.testRunStarted("run", 1);
+        mResultReporter.testStarted(incompleteId);
+        mResultReporter.testEnded(incompleteId, emptyMap);
+        mResultReporter.testRunEnded(3, emptyMap);
+        mResultReporter.invocationEnded(1);
+        String output = getOutput();
+        assertTrue(output.contains("tests=\"3\" failures=\"0\" errors=\"1\""));
+        assertEquals(1, output.split("testIncomplete", -1).length - 1);
+        assertTrue(output.endsWith("</testsuite>"));
+        assertEquals(0, mJournalDir.listFiles().length);
+    }
+
+    /**
+     * Test that a test that never ends is reported and counted as an error.
+     */
+    public void testIncomplete() {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        final TestIdentifier testId = new TestIdentifier("FooTest", "testFoo");
+        mResultReporter.invocationStarted(new BuildInfo());
+        mResultReporter.testRunStarted("run", 1);
+        mResultReporter.testStarted(testId);
+        mResultReporter.testRunFailed("device crashed");
+        mResultReporter.testRunEnded(3, emptyMap);
+        mResultReporter.invocationEnded(1);
+        String output = getOutput();
+        assertTrue(output.contains("tests=\"1\" failures=\"0\" errors=\"1\""));
+        assertTrue(output.contains("<error>"));
+    }
+
+    /**
+     * Test that the report is still generated from memory when the journal cannot be created.
+     */
+    public void testJournalUnavailable() throws Exception {
+        Map<String, String> emptyMap = Collections.emptyMap();
+        final TestIdentifier testId = new TestIdentifier("FooTest", "testFoo");
+        new OptionSetter(mResultReporter).setOptionValue("journal-dir",
+                new File(mJournalDir, "missing").getAbsolutePath());
+        mResultReporter.invocationStarted(new BuildInfo());
+        mResultReporter.testRunStarted("run", 1);
+        mResultReporter.testStarted(testId);
+        mResultReporter.testEnded(testId, emptyMap);
+        mResultReporter.testRunEnded(3, emptyMap);
+        mResultReporter.invocationEnded(1);
+        String output = getOutput();
+        assertTrue(output.contains("tests=\"1\" failures=\"0\" errors=\"0\""));
+        assertTrue(output.contains("testFoo"));
+    }
+
     /**
      * Gets the output produced, stripping it of extraneous whitespace characters.
      */
     private String getOutput() {
-        String output = mOutputStream.toString();
+        String output = mOutput;
         // ignore newlines and tabs whitespace
         output = output.replaceAll("[\\r\\n\\t]", "");
         // replace two ws chars with one
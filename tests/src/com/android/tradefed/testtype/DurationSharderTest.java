@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.TestDurationStore;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link DurationSharder}.
+ */
+public class DurationSharderTest extends TestCase {
+
+    private static final String KEY = "com.foo";
+    private static final TestIdentifier TEST1 = new TestIdentifier("FooTest", "test1");
+    private static final TestIdentifier TEST2 = new TestIdentifier("FooTest", "test2");
+    private static final TestIdentifier TEST3 = new TestIdentifier("FooTest", "test3");
+
+    /**
+     * A {@link ITestListShardable} that records the shards created.
+     */
+    private static class FakeShardableTest implements ITestListShardable {
+        final Collection<TestIdentifier> mTests;
+        final Collection<TestIdentifier> mExcludedTests;
+
+        FakeShardableTest(Collection<TestIdentifier> tests,
+                Collection<TestIdentifier> excludedTests) {
+            mTests = tests;
+            mExcludedTests = excludedTests;
+        }
+
+        @Override
+        public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
+            // ignore
+        }
+
+        @Override
+        public String getDurationKey() {
+            return KEY;
+        }
+
+        @Override
+        public Collection<TestIdentifier> getTestList() {
+            return mTests;
+        }
+
+        @Override
+        public IRemoteTest createShard(Collection<TestIdentifier> tests,
+                Collection<TestIdentifier> excludedTests) {
+            return new FakeShardableTest(tests, excludedTests);
+        }
+    }
+
+    private File mStoreDir;
+    private TestDurationStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStoreDir = FileUtil.createTempDir("durations");
+        mStore = new TestDurationStore(mStoreDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mStoreDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that items are partitioned by longest processing time first.
+     */
+    public void testPartition() {
+        Map<String, Long> durations = new HashMap<String, Long>();
+        durations.put("a", 10L);
+        durations.put("b", 6L);
+        durations.put("c", 5L);
+        durations.put("d", 4L);
+        List<List<String>> partitions = DurationSharder.partition(
+                Arrays.asList("d", "c", "b", "a"), durations, 2);
+        assertEquals(2, partitions.size());
+        assertEquals(Arrays.asList("a", "d"), partitions.get(0));
+        assertEquals(Arrays.asList("b", "c"), partitions.get(1));
+    }
+
+    /**
+     * Test that items without a known duration are distributed round robin, and that no more bins
+     * than items are created.
+     */
+    public void testPartition_unknownDurations() {
+        List<List<String>> partitions = DurationSharder.partition(
+                Arrays.asList("a", "b", "c"), new HashMap<String, Long>(), 5);
+        assertEquals(3, partitions.size());
+        assertEquals(Arrays.asList("a"), partitions.get(0));
+        assertEquals(Arrays.asList("c"), partitions.get(2));
+    }
+
+    /**
+     * Test splitting a test whose test list is known.
+     */
+    public void testSplit_knownTests() {
+        Map<TestIdentifier, Long> durations = new HashMap<TestIdentifier, Long>();
+        durations.put(TEST1, 100L);
+        durations.put(TEST2, 30L);
+        mStore.recordDurations(KEY, durations);
+        // TEST3 is expected to take the mean duration
+        FakeShardableTest test = new FakeShardableTest(Arrays.asList(TEST1, TEST2, TEST3), null);
+        List<IRemoteTest> shards = DurationSharder.split(test, mStore, 2);
+        assertEquals(2, shards.size());
+        assertEquals(Arrays.asList(TEST1), ((FakeShardableTest)shards.get(0)).mTests);
+        assertEquals(Arrays.asList(TEST3, TEST2), ((FakeShardableTest)shards.get(1)).mTests);
+    }
+
+    /**
+     * Test splitting a test whose test list is only known from history, where the lightest shard
+     * must run every test not assigned to the others.
+     */
+    public void testSplit_historicalTests() {
+        Map<TestIdentifier, Long> durations = new HashMap<TestIdentifier, Long>();
+        durations.put(TEST1, 100L);
+        durations.put(TEST2, 60L);
+        durations.put(TEST3, 30L);
+        mStore.recordDurations(KEY, durations);
+        List<IRemoteTest> shards = DurationSharder.split(new FakeShardableTest(null, null),
+                mStore, 2);
+        assertEquals(2, shards.size());
+        FakeShardableTest shard1 = (FakeShardableTest)shards.get(0);
+        FakeShardableTest shard2 = (FakeShardableTest)shards.get(1);
+        assertEquals(Arrays.asList(TEST1), shard1.mTests);
+        assertNull(shard2.mTests);
+        assertEquals(new ArrayList<TestIdentifier>(shard1.mTests),
+                new ArrayList<TestIdentifier>(shard2.mExcludedTests));
+    }
+
+    /**
+     * Test that the catch-all shard is the one with the lowest expected duration, even when that
+     * is not the last one.
+     */
+    public void testSplit_historicalTests_lightestFirst() {
+        Map<TestIdentifier, Long> durations = new HashMap<TestIdentifier, Long>();
+        durations.put(TEST1, 60L);
+        durations.put(TEST2, 50L);
+        durations.put(TEST3, 40L);
+        mStore.recordDurations(KEY, durations);
+        List<IRemoteTest> shards = DurationSharder.split(new FakeShardableTest(null, null),
+                mStore, 2);
+        assertEquals(2, shards.size());
+        FakeShardableTest shard1 = (FakeShardableTest)shards.get(0);
+        FakeShardableTest shard2 = (FakeShardableTest)shards.get(1);
+        assertNull(shard1.mTests);
+        assertEquals(Arrays.asList(TEST2, TEST3), shard2.mTests);
+        assertEquals(new HashSet<TestIdentifier>(shard2.mTests),
+                new HashSet<TestIdentifier>(shard1.mExcludedTests));
+    }
+
+    /**
+     * Test that a test is not split without history or with a single shard.
+     */
+    public void testSplit_notSharded() {
+        assertNull(DurationSharder.split(new FakeShardableTest(null, null), mStore, 2));
+        assertNull(DurationSharder.split(new FakeShardableTest(Arrays.asList(TEST1, TEST2), null),
+                mStore, 1));
+    }
+}
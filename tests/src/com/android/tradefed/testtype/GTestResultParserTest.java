@@ -18,12 +18,14 @@ package com.android.tradefed.testtype;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.StreamUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -154,6 +156,39 @@ public class GTestResultParserTest extends TestCase {
         resultParser.processNewLines(contents);
     }
 
+    /**
+     * Tests that raw output delivered through {@link GTestResultParser#addOutput} in chunks that
+     * split lines is parsed like whole lines.
+     */
+    @SuppressWarnings("unchecked")
+    public void testAddOutput_chunked() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream stream = getClass().getResourceAsStream(File.separator + TEST_TYPE_DIR
+                + File.separator + GTEST_OUTPUT_FILE_4);
+        try {
+            StreamUtil.copyStreams(stream, output);
+        } finally {
+            StreamUtil.close(stream);
+        }
+        byte[] bytes = output.toByteArray();
+        ITestRunListener mockRunListener = EasyMock.createMock(ITestRunListener.class);
+        mockRunListener.testRunStarted(TEST_MODULE_NAME, 268);
+        for (int i=0; i<268; ++i) {
+            mockRunListener.testStarted((TestIdentifier)EasyMock.anyObject());
+            mockRunListener.testEnded((TestIdentifier)EasyMock.anyObject(),
+                    (Map<String, String>)EasyMock.anyObject());
+        }
+        mockRunListener.testRunEnded(EasyMock.anyLong(),
+                (Map<String, String>) EasyMock.anyObject());
+        EasyMock.replay(mockRunListener);
+        GTestResultParser resultParser = new GTestResultParser(TEST_MODULE_NAME, mockRunListener);
+        for (int offset = 0; offset < bytes.length; offset += 7) {
+            resultParser.addOutput(bytes, offset, Math.min(7, bytes.length - offset));
+        }
+        resultParser.done();
+        EasyMock.verify(mockRunListener);
+    }
+
     /**
      * Tests the parser for a run with test failures.
      */
@@ -254,4 +289,29 @@ public class GTestResultParserTest extends TestCase {
         resultParser.processNewLines(contents);
         EasyMock.verify(mockRunListener);
     }
+
+    /**
+     * Tests that flushing truncated output processes the unterminated last line, and reports the
+     * incomplete run as failed and ended.
+     */
+    @SuppressWarnings("unchecked")
+    public void testFlush_truncatedOutput() throws Exception {
+        TestIdentifier test = new TestIdentifier("Foo", "bar");
+        ITestRunListener mockRunListener = EasyMock.createStrictMock(ITestRunListener.class);
+        mockRunListener.testRunStarted(TEST_MODULE_NAME, 2);
+        mockRunListener.testStarted(test);
+        mockRunListener.testEnded(EasyMock.eq(test),
+                (Map<String, String>)EasyMock.anyObject());
+        mockRunListener.testRunFailed((String)EasyMock.anyObject());
+        mockRunListener.testRunEnded(EasyMock.anyLong(),
+                (Map<String, String>)EasyMock.anyObject());
+        EasyMock.replay(mockRunListener);
+        GTestResultParser resultParser = new GTestResultParser(TEST_MODULE_NAME, mockRunListener);
+        byte[] output = ("[==========] Running 2 tests from 1 test case.\r\n" +
+                "[ RUN      ] Foo.bar\r\n" +
+                "[       OK ] Foo.bar (1 ms)").getBytes("UTF-8");
+        resultParser.addOutput(output, 0, output.length);
+        resultParser.flush();
+        EasyMock.verify(mockRunListener);
+    }
 }
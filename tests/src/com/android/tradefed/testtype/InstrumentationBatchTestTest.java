@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.ITestInvocationListener;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Unit tests for {@link InstrumentationBatchTest}.
+ */
+public class InstrumentationBatchTestTest extends TestCase {
+
+    private static final TestIdentifier TEST0 = new TestIdentifier("FooTest", "test0");
+    private static final TestIdentifier TEST1 = new TestIdentifier("FooTest", "test1");
+    private static final TestIdentifier CRASHING = new TestIdentifier("FooTest", "testCrash");
+    private static final TestIdentifier TEST3 = new TestIdentifier("FooTest", "test3");
+    private static final TestIdentifier TEST4 = new TestIdentifier("FooTest", "test4");
+
+    /**
+     * A {@link InstrumentationBatchTest} that records the batches run instead of running them.
+     */
+    private static class FakeBatchTest extends InstrumentationBatchTest {
+        final List<List<TestIdentifier>> mBatches = new ArrayList<List<TestIdentifier>>();
+        final List<TestIdentifier> mSerialTests = new ArrayList<TestIdentifier>();
+        /** whether the crashing test prevents its whole batch from running */
+        boolean mCrashOnStart = true;
+
+        FakeBatchTest(InstrumentationTest instrumentationTest,
+                Collection<TestIdentifier> testsToRun, int batchSize) {
+            super(instrumentationTest, testsToRun, batchSize);
+        }
+
+        @Override
+        void runBatch(Collection<TestIdentifier> tests, ITestInvocationListener listener) {
+            mBatches.add(new ArrayList<TestIdentifier>(tests));
+            if (!tests.contains(CRASHING)) {
+                tests.clear();
+            } else if (!mCrashOnStart) {
+                // tests up to and including the crashing test are reported
+                List<TestIdentifier> ranTests = new ArrayList<TestIdentifier>(tests);
+                tests.removeAll(ranTests.subList(0, ranTests.indexOf(CRASHING) + 1));
+                mCrashOnStart = true;
+            }
+        }
+
+        @Override
+        void runSerially(Collection<TestIdentifier> tests, ITestInvocationListener listener) {
+            mSerialTests.addAll(tests);
+        }
+    }
+
+    private InstrumentationTest mInstrumentationTest;
+    private List<TestIdentifier> mTests;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mInstrumentationTest = new InstrumentationTest();
+        mInstrumentationTest.setDevice(EasyMock.createMock(ITestDevice.class));
+        mTests = new ArrayList<TestIdentifier>(Arrays.asList(TEST0, TEST1, CRASHING, TEST3,
+                TEST4));
+    }
+
+    /**
+     * Test that a batch which fails to run any test is bisected until the crashing test is
+     * isolated and run on its own.
+     */
+    public void testRun_bisect() throws Exception {
+        FakeBatchTest batchTest = new FakeBatchTest(mInstrumentationTest, mTests, 4);
+        batchTest.run(EasyMock.createMock(ITestInvocationListener.class));
+        assertEquals(Arrays.asList(
+                Arrays.asList(TEST0, TEST1, CRASHING, TEST3),
+                Arrays.asList(TEST0, TEST1),
+                Arrays.asList(CRASHING, TEST3),
+                Arrays.asList(CRASHING),
+                Arrays.asList(TEST3),
+                Arrays.asList(TEST4)), batchTest.mBatches);
+        assertEquals(Arrays.asList(CRASHING), batchTest.mSerialTests);
+        assertEquals(2, batchTest.getBisectCount());
+        assertEquals(6, batchTest.getBatchTimes().size());
+        assertTrue(mTests.isEmpty());
+    }
+
+    /**
+     * Test that a batch interrupted after running some tests is resumed with the tests that did
+     * not run.
+     */
+    public void testRun_resume() throws Exception {
+        FakeBatchTest batchTest = new FakeBatchTest(mInstrumentationTest, mTests, 10);
+        batchTest.mCrashOnStart = false;
+        batchTest.run(EasyMock.createMock(ITestInvocationListener.class));
+        assertEquals(Arrays.asList(
+                Arrays.asList(TEST0, TEST1, CRASHING, TEST3, TEST4),
+                Arrays.asList(TEST3, TEST4)), batchTest.mBatches);
+        assertTrue(batchTest.mSerialTests.isEmpty());
+        assertEquals(0, batchTest.getBisectCount());
+        assertTrue(mTests.isEmpty());
+    }
+}
@@ -28,6 +28,7 @@ import junit.framework.TestCase;
 import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
@@ -112,6 +113,8 @@ public class InstrumentationTestTest extends TestCase {
        mInstrumentationTest.setDevice(mMockTestDevice);
        // default to no rerun, for simplicity
        mInstrumentationTest.setRerunMode(false);
+       // don't record test durations in the shared store
+       mInstrumentationTest.setRecordTestDurations(false);
        // default to no timeout for simplicity
        mInstrumentationTest.setTestTimeout(TEST_TIMEOUT);
        mMockRemoteRunner.setMaxTimeToOutputResponse(0, TimeUnit.MILLISECONDS);
@@ -390,6 +393,32 @@ public class InstrumentationTestTest extends TestCase {
         }
     }
 
+    /**
+     * Test that the duration key identifies the tests selected by the filters.
+     */
+    public void testGetDurationKey() {
+        assertEquals(TEST_PACKAGE_VALUE, mInstrumentationTest.getDurationKey());
+        mInstrumentationTest.setClassName("FooTest");
+        mInstrumentationTest.setMethodName("testFoo");
+        assertEquals("com.foo-FooTest-testFoo", mInstrumentationTest.getDurationKey());
+    }
+
+    /**
+     * Test that a shard created with a list of tests runs exactly those tests.
+     */
+    public void testCreateShard() {
+        assertNull(mInstrumentationTest.getTestList());
+        Collection<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        tests.add(TEST1);
+        InstrumentationTest shard = (InstrumentationTest)mInstrumentationTest.createShard(tests,
+                null);
+        assertEquals(TEST_PACKAGE_VALUE, shard.getPackageName());
+        assertEquals(tests, shard.getTestList());
+        // shard keeps its own copy
+        tests.add(TEST2);
+        assertEquals(1, shard.getTestList().size());
+    }
+
     private void setCollectTestsExpectations(CollectTestAnswer collectTestAnswer)
             throws DeviceNotAvailableException {
         EasyMock.expect(
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for {@link NativeTestOutputReceiver}.
+ */
+public class NativeTestOutputReceiverTest extends TestCase {
+
+    private List<String> mLines;
+    private NativeTestOutputReceiver mReceiver;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLines = new ArrayList<String>();
+        mReceiver = new NativeTestOutputReceiver() {
+            @Override
+            protected void processLine(byte[] buffer, int offset, int length) {
+                mLines.add(decode(buffer, offset, offset + length));
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Test that lines split across output chunks are reassembled.
+     */
+    public void testAddOutput_splitLines() {
+        addOutput("first\nsec");
+        addOutput("ond");
+        addOutput("\nthird\n\nfou");
+        assertEquals(4, mLines.size());
+        mReceiver.done();
+        assertEquals(5, mLines.size());
+        assertEquals("first", mLines.get(0));
+        assertEquals("second", mLines.get(1));
+        assertEquals("third", mLines.get(2));
+        assertEquals("", mLines.get(3));
+        assertEquals("fou", mLines.get(4));
+    }
+
+    /**
+     * Test that lines are trimmed, including the '\r' of "\r\n" terminated lines.
+     */
+    public void testAddOutput_trim() {
+        addOutput("  [ RUN      ] Foo.bar \r\n\tline\r");
+        addOutput("\n");
+        assertEquals(2, mLines.size());
+        assertEquals("[ RUN      ] Foo.bar", mLines.get(0));
+        assertEquals("line", mLines.get(1));
+    }
+
+    /**
+     * Test that a line longer than the initial line buffer is carried over in full.
+     */
+    public void testAddOutput_longLine() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            line.append(i % 10);
+        }
+        for (int i = 0; i < line.length(); i += 7) {
+            addOutput(line.substring(i, Math.min(i + 7, line.length())));
+        }
+        addOutput("\n");
+        assertEquals(1, mLines.size());
+        assertEquals(line.toString(), mLines.get(0));
+    }
+
+    /**
+     * Simple test for {@link NativeTestOutputReceiver#parseLong(byte[], int, int)}.
+     */
+    public void testParseLong() {
+        byte[] buffer = NativeTestOutputReceiver.toBytes("(1234 ms)");
+        assertEquals(1234, NativeTestOutputReceiver.parseLong(buffer, 1, 5));
+        assertEquals(-1, NativeTestOutputReceiver.parseLong(buffer, 1, 6));
+        assertEquals(-1, NativeTestOutputReceiver.parseLong(buffer, 1, 1));
+    }
+
+    private void addOutput(String output) {
+        byte[] data = NativeTestOutputReceiver.toBytes(output);
+        mReceiver.addOutput(data, 0, data.length);
+    }
+}
@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -194,6 +195,73 @@ public class FileUtilFuncTest extends TestCase {
         assertTrue(FileUtil.compareFileContents(subFile, subFileCopy));
     }
 
+    /**
+     * Test {@link FileUtil#recursiveHardlink(File, File)} on a nested tree.
+     */
+    public void testRecursiveHardlink() throws IOException {
+        File tmpParentDir = createTempDir("foo");
+        File childDir = createTempDir("foochild", tmpParentDir);
+        File emptyDir = createTempDir("fooempty", tmpParentDir);
+        File subFile = createTempFile("foo", ".txt", childDir);
+        FileUtil.writeToFile("foo", subFile);
+        File destDir = createTempDir("dest");
+        FileUtil.recursiveHardlink(tmpParentDir, destDir);
+        File subFileLink = new File(destDir, String.format("%s%s%s", childDir.getName(),
+                    File.separator, subFile.getName()));
+        assertTrue(subFileLink.exists());
+        assertTrue(new File(destDir, emptyDir.getName()).isDirectory());
+        assertTrue(Files.isSameFile(subFile.toPath(), subFileLink.toPath()));
+    }
+
+    /**
+     * Test {@link FileUtil#recursiveHardlink(File, File)} on a wide tree, whose directories are
+     * linked in parallel.
+     */
+    public void testRecursiveHardlink_wideTree() throws IOException {
+        File tmpParentDir = createTempDir("foo");
+        for (int i = 0; i < 50; i++) {
+            File childDir = new File(tmpParentDir, String.format("dir%d%sdir%d", i / 2,
+                    File.separator, i));
+            assertTrue(childDir.mkdirs());
+            for (int j = 0; j < 20; j++) {
+                FileUtil.writeToFile("foo", new File(childDir, String.format("file%d.txt", j)));
+            }
+        }
+        File destDir = createTempDir("dest");
+        FileUtil.recursiveHardlink(tmpParentDir, destDir);
+        for (int i = 0; i < 50; i++) {
+            String childPath = String.format("dir%d%sdir%d", i / 2, File.separator, i);
+            for (int j = 0; j < 20; j++) {
+                String fileName = String.format("file%d.txt", j);
+                assertTrue(Files.isSameFile(
+                        new File(new File(tmpParentDir, childPath), fileName).toPath(),
+                        new File(new File(destDir, childPath), fileName).toPath()));
+            }
+        }
+    }
+
+    /**
+     * Test that {@link FileUtil#recursiveCopy(File, File)} reports a missing source directory.
+     */
+    public void testRecursiveCopy_missingSource() throws IOException {
+        File destDir = createTempDir("dest");
+        try {
+            FileUtil.recursiveCopy(new File(destDir, "doesnotexist"), destDir);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Simple test for {@link FileUtil#chmod(File, String)} with an octal mode.
+     */
+    public void testChmod_octal() throws IOException {
+        File tmpFile = createTempFile("foo", "txt");
+        assertTrue(FileUtil.chmod(tmpFile, "770"));
+        assertUnixPerms(tmpFile, "-" + PERMS_GRWX);
+    }
+
     public void testFindDirsUnder() throws IOException {
         File absRootDir = createTempDir("rootDir");
         File relRootDir = new File(absRootDir.getName());
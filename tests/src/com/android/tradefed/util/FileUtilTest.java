@@ -17,6 +17,10 @@ package com.android.tradefed.util;
 
 import junit.framework.TestCase;
 
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
 /**
  * Unit tests for {@link FileUtil}
  */
@@ -26,4 +30,25 @@ public class FileUtilTest extends TestCase {
         assertEquals(".txt", FileUtil.getExtension("file.txt"));
         assertEquals(".txt", FileUtil.getExtension("foo.file.txt"));
     }
+
+    /**
+     * Test {@link FileUtil#applyPermissionMode(Set, String)} for octal and symbolic modes.
+     */
+    public void testApplyPermissionMode() {
+        Set<PosixFilePermission> perms = PosixFilePermissions.fromString("rw-r--r--");
+        assertEquals("rwxr-x---", PosixFilePermissions.toString(
+                FileUtil.applyPermissionMode(perms, "750")));
+        assertEquals("rwxrwxr--", PosixFilePermissions.toString(
+                FileUtil.applyPermissionMode(perms, "ug+rwx")));
+        assertEquals("rw-r-----", PosixFilePermissions.toString(
+                FileUtil.applyPermissionMode(perms, "o-r")));
+        assertEquals("r--rw-r--", PosixFilePermissions.toString(
+                FileUtil.applyPermissionMode(perms, "u=r,g+w")));
+        assertEquals("---------", PosixFilePermissions.toString(
+                FileUtil.applyPermissionMode(perms, "a=")));
+        // modes left to the chmod command
+        assertNull(FileUtil.applyPermissionMode(perms, "+x"));
+        assertNull(FileUtil.applyPermissionMode(perms, "4755"));
+        assertNull(FileUtil.applyPermissionMode(perms, "u+s"));
+    }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    /**
+     * Test the statistics of an empty histogram.
+     */
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMax());
+    }
+
+    /**
+     * Test that percentiles are bounded by their bucket.
+     */
+    public void testGetPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(150);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(4000);
+        }
+        histogram.record(3 * 1000 * 1000);
+        assertEquals(100, histogram.getCount());
+        assertEquals(3 * 1000 * 1000, histogram.getMax());
+        assertEquals((90 * 150 + 9 * 4000 + 3 * 1000 * 1000) / 100, histogram.getMean());
+        assertEquals(200, histogram.getPercentile(50));
+        assertEquals(200, histogram.getPercentile(90));
+        assertEquals(5000, histogram.getPercentile(99));
+        // last bucket is unbounded, so the max is used
+        assertEquals(3 * 1000 * 1000, histogram.getPercentile(100));
+    }
+
+    /**
+     * Test that a percentile bound never exceeds the max latency.
+     */
+    public void testGetPercentile_max() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(120);
+        histogram.record(-5);
+        assertEquals(10, histogram.getPercentile(50));
+        assertEquals(120, histogram.getPercentile(100));
+    }
+}
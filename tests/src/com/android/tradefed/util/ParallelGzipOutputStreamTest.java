@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Unit tests for {@link ParallelGzipOutputStream}.
+ */
+public class ParallelGzipOutputStreamTest extends TestCase {
+
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newFixedThreadPool(3);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    /**
+     * Test that data spanning multiple blocks, mixing compressible and random data, can be
+     * decompressed.
+     */
+    public void testWrite_multipleBlocks() throws IOException {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        Random random = new Random(0);
+        byte[] randomData = new byte[50 * 1024];
+        for (int i = 0; i < 20; i++) {
+            input.write(String.format("line %d of some log output\n", i).getBytes());
+            for (int j = 0; j < 1000; j++) {
+                input.write(String.format("log message %d\n", j % 10).getBytes());
+            }
+            random.nextBytes(randomData);
+            input.write(randomData);
+        }
+        byte[] data = input.toByteArray();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = new ParallelGzipOutputStream(compressed,
+                Deflater.DEFAULT_COMPRESSION, mExecutor, 2);
+        // write in uneven chunks, to cross block boundaries
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(data.length - offset, 7919);
+            out.write(data, offset, length);
+            offset += length;
+        }
+        out.write('x');
+        out.close();
+
+        byte[] expected = Arrays.copyOf(data, data.length + 1);
+        expected[data.length] = 'x';
+        assertTrue(Arrays.equals(expected, decompress(compressed.toByteArray())));
+        assertTrue(compressed.size() < expected.length);
+    }
+
+    /**
+     * Test that an empty stream produces a valid gzip file.
+     */
+    public void testWrite_empty() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        new ParallelGzipOutputStream(compressed, Deflater.BEST_SPEED, mExecutor, 2).close();
+        assertEquals(0, decompress(compressed.toByteArray()).length);
+    }
+
+    /**
+     * Test that writing to a closed stream fails.
+     */
+    public void testWrite_closed() throws IOException {
+        OutputStream out = new ParallelGzipOutputStream(new ByteArrayOutputStream(),
+                Deflater.BEST_SPEED, mExecutor, 2);
+        out.close();
+        try {
+            out.write(1);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private byte[] decompress(byte[] compressed) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
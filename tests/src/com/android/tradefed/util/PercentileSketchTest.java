@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Unit tests for {@link PercentileSketch}
+ */
+public class PercentileSketchTest extends TestCase {
+
+    /**
+     * Make sure that the class behaves as expected when no measurements were added
+     */
+    public void testPercentile_empty() {
+        PercentileSketch sketch = new PercentileSketch();
+        assertEquals(0, sketch.count());
+        assertNull(sketch.percentile(50));
+        assertNull(sketch.min());
+        assertNull(sketch.max());
+    }
+
+    /**
+     * Test that percentiles are within the relative error of the exact percentiles, for
+     * measurements spanning several orders of magnitude
+     */
+    public void testPercentile_relativeError() {
+        PercentileSketch sketch = new PercentileSketch();
+        SimpleStats exact = new SimpleStats();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            double meas = Math.exp(random.nextGaussian() * 5);
+            sketch.add(meas);
+            exact.add(meas);
+        }
+        assertEquals(100000, sketch.count());
+        for (double percentile : new double[] {1, 10, 50, 90, 99, 99.9}) {
+            double expected = exact.percentile(percentile);
+            assertEquals(expected, sketch.percentile(percentile), expected * 0.004);
+        }
+        assertEquals(exact.min(), sketch.percentile(0));
+        assertEquals(exact.max(), sketch.percentile(100));
+    }
+
+    /**
+     * Test percentiles of negative measurements and zeros
+     */
+    public void testPercentile_negativeAndZero() {
+        PercentileSketch sketch = new PercentileSketch();
+        sketch.add(-100);
+        sketch.add(-1);
+        sketch.add(0);
+        sketch.add(0);
+        sketch.add(10);
+        assertEquals(-100, sketch.percentile(20), 0.4);
+        assertEquals(-1, sketch.percentile(40), 0.004);
+        assertEquals(0.0, sketch.percentile(50));
+        assertEquals(0.0, sketch.percentile(80));
+        assertEquals(10, sketch.percentile(90), 0.04);
+    }
+
+    /**
+     * Test that percentiles are exact at the lowest precision when all measurements are equal
+     */
+    public void testPercentile_constant() {
+        PercentileSketch sketch = new PercentileSketch(0);
+        for (int i = 0; i < 10; i++) {
+            sketch.add(3.7);
+        }
+        assertEquals(3.7, sketch.percentile(50));
+    }
+
+    /**
+     * Test that infinite and NaN measurements are rejected
+     */
+    public void testAdd_invalid() {
+        PercentileSketch sketch = new PercentileSketch();
+        try {
+            sketch.add(Double.NaN);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            sketch.add(Double.POSITIVE_INFINITY);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, sketch.count());
+    }
+}
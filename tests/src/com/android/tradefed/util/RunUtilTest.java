@@ -15,6 +15,7 @@
  */
 package com.android.tradefed.util;
 
+import com.android.ddmlib.IShellOutputReceiver;
 import com.android.tradefed.util.IRunUtil.IRunnableResult;
 
 import junit.framework.TestCase;
@@ -22,6 +23,7 @@ import junit.framework.TestCase;
 import org.easymock.EasyMock;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * Unit tests for {@link RunUtilTest}
@@ -92,6 +94,82 @@ public class RunUtilTest extends TestCase {
         assertNull(result.getStderr());
     }
 
+    /**
+     * Test that {@link RunUtil#runTimedCmd(long, String)} captures stdout and stderr.
+     */
+    public void testRunTimedCmd_output() {
+        CommandResult result = mRunUtil.runTimedCmd(10 * 1000, "sh", "-c",
+                "echo out; echo err >&2");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertEquals("out\n", result.getStdout());
+        assertEquals("err\n", result.getStderr());
+        assertNull(result.getStdoutFile());
+    }
+
+    /**
+     * Test that {@link RunUtil#runTimedCmd(long, IShellOutputReceiver, String)} streams stdout
+     * to the receiver.
+     */
+    public void testRunTimedCmd_receiver() {
+        final StringBuilder output = new StringBuilder();
+        final boolean[] flushed = new boolean[1];
+        IShellOutputReceiver receiver = new IShellOutputReceiver() {
+            @Override
+            public void addOutput(byte[] data, int offset, int length) {
+                output.append(new String(data, offset, length));
+            }
+
+            @Override
+            public void flush() {
+                flushed[0] = true;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+        CommandResult result = mRunUtil.runTimedCmd(10 * 1000, receiver, "echo", "hello");
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertEquals("hello\n", output.toString());
+        assertTrue(flushed[0]);
+        assertNull(result.getStdout());
+    }
+
+    /**
+     * Test that {@link RunUtil.CapturedOutput} spills large output to a file.
+     */
+    public void testCapturedOutput_spill() throws IOException {
+        RunUtil.CapturedOutput output = new RunUtil.CapturedOutput(4, 0);
+        output.write("abc".getBytes(), 0, 3);
+        output.write("defgh".getBytes(), 1, 3);
+        output.close();
+        CommandResult result = new CommandResult();
+        output.writeTo(result, true);
+        output.discard();
+        File stdoutFile = result.getStdoutFile();
+        try {
+            assertNotNull(stdoutFile);
+            assertEquals("abcefg", result.getStdout());
+        } finally {
+            FileUtil.deleteFile(stdoutFile);
+        }
+    }
+
+    /**
+     * Test that {@link RunUtil.CapturedOutput} discards output beyond max size.
+     */
+    public void testCapturedOutput_maxSize() throws IOException {
+        RunUtil.CapturedOutput output = new RunUtil.CapturedOutput(0, 4);
+        output.write("abc".getBytes(), 0, 3);
+        output.write("def".getBytes(), 0, 3);
+        output.close();
+        CommandResult result = new CommandResult();
+        output.writeTo(result, false);
+        assertEquals("abcd", result.getStderr());
+        assertNull(result.getStderrFile());
+    }
+
     /**
      * Verify that calling {@link RunUtil#setWorkingDir()} is not allowed on default instance.
      */
@@ -103,5 +103,22 @@ public class SimpleStatsTest extends TestCase {
         assertEquals(4, mStats.median(), 0.1);
         assertEquals(1.247219, mStats.stdev(), 0.000001);
     }
-}
 
+    /**
+     * Test nearest-rank percentiles, and that the dataset is still available in insertion order
+     * until it is sorted.
+     */
+    public void testStats_percentile() {
+        for (int i = 10; i >= 1; --i) {
+            mStats.add(i);
+        }
+        assertEquals(10, mStats.getData().get(0), 0.1);
+        assertEquals(10, mStats.getData().size());
+        assertEquals(1, mStats.percentile(0), 0.1);
+        assertEquals(1, mStats.percentile(10), 0.1);
+        assertEquals(5, mStats.percentile(50), 0.1);
+        assertEquals(10, mStats.percentile(95), 0.1);
+        assertEquals(10, mStats.percentile(100), 0.1);
+        assertEquals(1, mStats.getData().get(0), 0.1);
+    }
+}
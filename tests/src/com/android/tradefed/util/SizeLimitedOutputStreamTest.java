@@ -17,6 +17,8 @@
 
 package com.android.tradefed.util;
 
+import com.android.tradefed.result.InputStreamSource;
+
 import junit.framework.TestCase;
 
 import java.io.IOException;
@@ -59,4 +61,72 @@ public class SizeLimitedOutputStreamTest extends TestCase {
             outStream.delete();
         }
     }
+
+    /**
+     * Test that {@link SizeLimitedOutputStream#getSnapshot()} returns a fixed view of the data that
+     * survives rotation and deletion of the backing files.
+     */
+    public void testGetSnapshot() throws IOException {
+        SizeLimitedOutputStream outStream = new SizeLimitedOutputStream(20, 4, "foo", "bar");
+        InputStreamSource snapshot = null;
+        try {
+            outStream.write(createData(0, 12));
+            snapshot = outStream.getSnapshot();
+            assertEquals(12, snapshot.size());
+            // write enough data to rotate out all the files referenced by the snapshot
+            outStream.write(createData(12, 40));
+            outStream.delete();
+            byte[] readData = readAll(snapshot.createInputStream());
+            assertEquals(12, readData.length);
+            for (int i = 0; i < readData.length; i++) {
+                assertEquals(i, readData[i]);
+            }
+            // verify snapshot can be read multiple times
+            assertEquals(12, readAll(snapshot.createInputStream()).length);
+        } finally {
+            if (snapshot != null) {
+                snapshot.cancel();
+            }
+            outStream.delete();
+        }
+        assertNull(snapshot.createInputStream());
+    }
+
+    /**
+     * Test that {@link SizeLimitedOutputStream#getSnapshot(long)} returns only the tail of the data.
+     */
+    public void testGetSnapshot_tail() throws IOException {
+        SizeLimitedOutputStream outStream = new SizeLimitedOutputStream(20, 4, "foo", "bar");
+        InputStreamSource snapshot = null;
+        try {
+            outStream.write(createData(0, 17));
+            snapshot = outStream.getSnapshot(7);
+            assertEquals(7, snapshot.size());
+            byte[] readData = readAll(snapshot.createInputStream());
+            assertEquals(7, readData.length);
+            assertEquals(10, readData[0]);
+            assertEquals(16, readData[6]);
+        } finally {
+            if (snapshot != null) {
+                snapshot.cancel();
+            }
+            outStream.delete();
+        }
+    }
+
+    private byte[] createData(int start, int end) {
+        byte[] data = new byte[end - start];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(start + i);
+        }
+        return data;
+    }
+
+    private byte[] readAll(InputStream stream) throws IOException {
+        try {
+            return StreamUtil.getByteArrayListFromStream(stream).getContents();
+        } finally {
+            stream.close();
+        }
+    }
 }
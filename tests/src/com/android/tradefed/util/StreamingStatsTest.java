@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link StreamingStats}
+ */
+public class StreamingStatsTest extends TestCase {
+
+    /**
+     * Make sure that the class behaves as expected when no measurements were added
+     */
+    public void testStats_empty() {
+        StreamingStats stats = new StreamingStats();
+        assertTrue(stats.isEmpty());
+        assertEquals(0, stats.count());
+        assertNull(stats.mean());
+        assertNull(stats.stdev());
+        assertNull(stats.min());
+        assertNull(stats.max());
+    }
+
+    /**
+     * Make sure that the measures match those of {@link SimpleStats}
+     */
+    public void testStats() {
+        StreamingStats stats = new StreamingStats();
+        // [1, 10]
+        for (int i = 1; i <= 10; ++i) {
+            stats.add(i);
+        }
+        assertEquals(10, stats.count());
+        assertEquals(55, stats.sum(), 0.000001);
+        assertEquals(1, stats.min(), 0.000001);
+        assertEquals(10, stats.max(), 0.000001);
+        assertEquals(5.5, stats.mean(), 0.000001);
+        assertEquals(2.872281, stats.stdev(), 0.000001);
+    }
+
+    /**
+     * Test that the variance stays accurate for measurements with a large offset, where summing
+     * squares would lose all precision
+     */
+    public void testStats_largeOffset() {
+        StreamingStats stats = new StreamingStats();
+        for (int i = 0; i < 1000000; ++i) {
+            stats.add(1e9 + (i % 2));
+        }
+        assertEquals(1e9 + 0.5, stats.mean(), 0.000001);
+        assertEquals(0.5, stats.stdev(), 0.000001);
+    }
+
+    /**
+     * Test that merging two {@link StreamingStats} is the same as adding all measurements to one
+     */
+    public void testAddAll() {
+        StreamingStats stats1 = new StreamingStats();
+        StreamingStats stats2 = new StreamingStats();
+        StreamingStats all = new StreamingStats();
+        for (int i = 1; i <= 10; ++i) {
+            (i <= 3 ? stats1 : stats2).add(i * i);
+            all.add(i * i);
+        }
+        stats1.addAll(stats2);
+        stats1.addAll(new StreamingStats());
+        assertEquals(all.count(), stats1.count());
+        assertEquals(all.mean(), stats1.mean(), 0.000001);
+        assertEquals(all.stdev(), stats1.stdev(), 0.000001);
+        assertEquals(1, stats1.min(), 0.000001);
+        assertEquals(100, stats1.max(), 0.000001);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import junit.framework.TestCase;
+
+import org.junit.Assert;
+
+/**
+ * Unit tests for {@link WindowedStats}
+ */
+public class WindowedStatsTest extends TestCase {
+
+    /**
+     * Make sure that the class behaves as expected when the window is empty
+     */
+    public void testStats_empty() {
+        WindowedStats stats = new WindowedStats(3);
+        assertTrue(stats.isEmpty());
+        assertEquals(0, stats.getWindow().length);
+        assertNull(stats.mean());
+        assertNull(stats.percentile(50));
+    }
+
+    /**
+     * Test that only the most recent measurements are used once the window is full
+     */
+    public void testStats_evicted() {
+        WindowedStats stats = new WindowedStats(3);
+        stats.add(1);
+        stats.add(2);
+        Assert.assertArrayEquals(new double[] {1, 2}, stats.getWindow(), 0);
+        assertEquals(1.5, stats.mean(), 0.000001);
+
+        stats.add(3);
+        stats.add(10);
+        stats.add(20);
+        assertEquals(3, stats.size());
+        assertEquals(5, stats.getTotalCount());
+        Assert.assertArrayEquals(new double[] {3, 10, 20}, stats.getWindow(), 0);
+        assertEquals(11, stats.mean(), 0.000001);
+        assertEquals(3, stats.min(), 0.000001);
+        assertEquals(20, stats.max(), 0.000001);
+        assertEquals(10, stats.percentile(50), 0.000001);
+        assertEquals(6.976150, stats.stdev(), 0.000001);
+    }
+
+    /**
+     * Test that a window size that is not positive is rejected
+     */
+    public void testWindowSize_invalid() {
+        try {
+            new WindowedStats(0);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
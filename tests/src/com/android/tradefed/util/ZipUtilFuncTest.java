@@ -17,11 +17,21 @@ package com.android.tradefed.util;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 /**
@@ -146,6 +156,127 @@ public class ZipUtilFuncTest extends TestCase {
         }
     }
 
+    /**
+     * Test creating then extracting a zip file with uncompressed entries, which are extracted by
+     * copying them directly from the zip file.
+     */
+    public void testCreateAndExtractZip_stored() throws IOException {
+        File tmpParentDir = createTempDir("foo");
+        File zipFile = createTempFile("foo", ".zip");
+        File extractedDir = createTempDir("extract-foo");
+        File childDir = new File(tmpParentDir, "foochild");
+        assertTrue(childDir.mkdir());
+        assertTrue(new File(tmpParentDir, "emptychild").mkdir());
+        List<File> subFiles = new ArrayList<File>();
+        for (int i = 0; i < 20; i++) {
+            File subFile = new File(childDir, String.format("foo%d.txt", i));
+            FileUtil.writeToFile(String.format("contents %d", i), subFile);
+            subFiles.add(subFile);
+        }
+        ZipUtil.createZip(tmpParentDir, zipFile, Deflater.NO_COMPRESSION, 4);
+        ZipFile zip = new ZipFile(zipFile);
+        RandomAccessFile rawZipFile = new RandomAccessFile(zipFile, "r");
+        try {
+            Map<String, Long> offsets = ZipUtil.readStoredEntryOffsets(rawZipFile.getChannel());
+            // 20 files and 3 directories
+            assertEquals(23, offsets.size());
+            ZipUtil.extractZip(zip, extractedDir);
+        } finally {
+            ZipUtil.closeZip(zip);
+            StreamUtil.close(rawZipFile);
+        }
+        File extractedParentDir = new File(extractedDir, tmpParentDir.getName());
+        assertTrue(new File(extractedParentDir, "emptychild").isDirectory());
+        for (File subFile : subFiles) {
+            File extractedSubFile = new File(new File(extractedParentDir, childDir.getName()),
+                    subFile.getName());
+            assertTrue(FileUtil.compareFileContents(subFile, extractedSubFile));
+        }
+    }
+
+    /**
+     * Test creating a zip file with parallel compression, then extracting only the entries
+     * matching a glob.
+     */
+    public void testCreateAndExtractZip_glob() throws IOException {
+        File tmpParentDir = createTempDir("foo");
+        File zipFile = createTempFile("foo", ".zip");
+        File extractedDir = createTempDir("extract-foo");
+        File childDir = new File(tmpParentDir, "foochild");
+        assertTrue(childDir.mkdir());
+        File subFile = new File(childDir, "foo.apk");
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            contents.append(i);
+        }
+        FileUtil.writeToFile(contents.toString(), subFile);
+        FileUtil.writeToFile("contents", new File(childDir, "foo.txt"));
+        ZipUtil.createZip(tmpParentDir, zipFile, Deflater.BEST_SPEED, 4);
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            assertTrue(zip.getEntry(tmpParentDir.getName() + "/foochild/foo.apk")
+                    .getCompressedSize() < subFile.length());
+            ZipUtil.extractZip(zip, extractedDir, Arrays.asList("*/foochild/*.apk"));
+        } finally {
+            ZipUtil.closeZip(zip);
+        }
+        File extractedChildDir = new File(new File(extractedDir, tmpParentDir.getName()),
+                childDir.getName());
+        assertTrue(FileUtil.compareFileContents(subFile, new File(extractedChildDir,
+                subFile.getName())));
+        assertFalse(new File(extractedChildDir, "foo.txt").exists());
+    }
+
+    /**
+     * Test creating and extracting a zip in parallel, for a tree mixing an incompressible large
+     * file with many small compressible files.
+     */
+    public void testCreateAndExtractZip_parallel() throws IOException {
+        File tmpParentDir = createTempDir("foo");
+        File zipFile = createTempFile("foo", ".zip");
+        File extractedDir = createTempDir("extract-foo");
+        byte[] randomBytes = new byte[1024 * 1024];
+        new Random(0).nextBytes(randomBytes);
+        File largeFile = new File(tmpParentDir, "image.img");
+        FileUtil.writeToFile(new ByteArrayInputStream(randomBytes), largeFile);
+        List<File> subFiles = new ArrayList<File>();
+        subFiles.add(largeFile);
+        for (int i = 0; i < 200; i++) {
+            File childDir = new File(tmpParentDir, String.format("DATA%sapp%d", File.separator,
+                    i / 20));
+            childDir.mkdirs();
+            File subFile = new File(childDir, String.format("file%d.txt", i));
+            FileUtil.writeToFile(String.format("compressible contents %d", i), subFile);
+            subFiles.add(subFile);
+        }
+        ZipUtil.createZip(tmpParentDir, zipFile, Deflater.DEFAULT_COMPRESSION, 4);
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            assertEquals(subFiles.size(), countFileEntries(zip));
+            ZipUtil.extractZip(zip, extractedDir, null, 4, true);
+        } finally {
+            ZipUtil.closeZip(zip);
+        }
+        String parentPath = tmpParentDir.getAbsolutePath();
+        File extractedParentDir = new File(extractedDir, tmpParentDir.getName());
+        for (File subFile : subFiles) {
+            File extractedSubFile = new File(extractedParentDir,
+                    subFile.getAbsolutePath().substring(parentPath.length()));
+            assertTrue(FileUtil.compareFileContents(subFile, extractedSubFile));
+        }
+    }
+
+    private int countFileEntries(ZipFile zip) {
+        int count = 0;
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            if (!entries.nextElement().isDirectory()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     // Helpers
     private File createTempDir(String prefix) throws IOException {
         return createTempDir(prefix, null);